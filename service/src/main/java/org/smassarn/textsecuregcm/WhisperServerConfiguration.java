@@ -15,6 +15,7 @@ import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import org.smassarn.textsecuregcm.configuration.AccountDatabaseCrawlerConfiguration;
 import org.smassarn.textsecuregcm.configuration.AccountsDatabaseConfiguration;
+import org.smassarn.textsecuregcm.configuration.AccountNearCacheConfiguration;
 import org.smassarn.textsecuregcm.configuration.AccountsDynamoDbConfiguration;
 import org.smassarn.textsecuregcm.configuration.ApnConfiguration;
 import org.smassarn.textsecuregcm.configuration.AppConfigConfiguration;
@@ -29,8 +30,10 @@ import org.smassarn.textsecuregcm.configuration.DonationConfiguration;
 import org.smassarn.textsecuregcm.configuration.DynamoDbConfiguration;
 import org.smassarn.textsecuregcm.configuration.GcmConfiguration;
 import org.smassarn.textsecuregcm.configuration.GcpAttachmentsConfiguration;
+import org.smassarn.textsecuregcm.configuration.LastSeenWriteBehindConfiguration;
 import org.smassarn.textsecuregcm.configuration.MaxDeviceConfiguration;
 import org.smassarn.textsecuregcm.configuration.MessageCacheConfiguration;
+import org.smassarn.textsecuregcm.configuration.MessageDeliveryConfiguration;
 import org.smassarn.textsecuregcm.configuration.MessageDynamoDbConfiguration;
 import org.smassarn.textsecuregcm.configuration.MonitoredS3ObjectConfiguration;
 import org.smassarn.textsecuregcm.configuration.PaymentsServiceConfiguration;
@@ -43,6 +46,7 @@ import org.smassarn.textsecuregcm.configuration.RedisConfiguration;
 import org.smassarn.textsecuregcm.configuration.RemoteConfigConfiguration;
 import org.smassarn.textsecuregcm.configuration.SecureBackupServiceConfiguration;
 import org.smassarn.textsecuregcm.configuration.SecureStorageServiceConfiguration;
+import org.smassarn.textsecuregcm.configuration.TargetedNotificationConfiguration;
 import org.smassarn.textsecuregcm.configuration.TestDeviceConfiguration;
 import org.smassarn.textsecuregcm.configuration.TurnConfiguration;
 import org.smassarn.textsecuregcm.configuration.TwilioConfiguration;
@@ -89,6 +93,21 @@ public class WhisperServerConfiguration extends Configuration {
   @JsonProperty
   private RedisClusterConfiguration cacheCluster;
 
+  @Valid
+  @NotNull
+  @JsonProperty
+  private AccountNearCacheConfiguration accountNearCache = new AccountNearCacheConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private LastSeenWriteBehindConfiguration lastSeenWriteBehind = new LastSeenWriteBehindConfiguration();
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private TargetedNotificationConfiguration targetedNotifications = new TargetedNotificationConfiguration();
+
   @NotNull
   @Valid
   @JsonProperty
@@ -209,6 +228,11 @@ public class WhisperServerConfiguration extends Configuration {
   @JsonProperty
   private WebSocketConfiguration webSocket = new WebSocketConfiguration();
 
+  @Valid
+  @NotNull
+  @JsonProperty
+  private MessageDeliveryConfiguration messageDelivery = new MessageDeliveryConfiguration();
+
   @Valid
   @NotNull
   @JsonProperty
@@ -312,6 +336,10 @@ public class WhisperServerConfiguration extends Configuration {
     return webSocket;
   }
 
+  public MessageDeliveryConfiguration getMessageDeliveryConfiguration() {
+    return messageDelivery;
+  }
+
   public TwilioConfiguration getTwilioConfiguration() {
     return twilio;
   }
@@ -336,6 +364,18 @@ public class WhisperServerConfiguration extends Configuration {
     return cacheCluster;
   }
 
+  public AccountNearCacheConfiguration getAccountNearCacheConfiguration() {
+    return accountNearCache;
+  }
+
+  public LastSeenWriteBehindConfiguration getLastSeenWriteBehindConfiguration() {
+    return lastSeenWriteBehind;
+  }
+
+  public TargetedNotificationConfiguration getTargetedNotificationConfiguration() {
+    return targetedNotifications;
+  }
+
   public RedisConfiguration getPubsubCacheConfiguration() {
     return pubsub;
   }
@@ -97,6 +97,7 @@ import org.smassarn.textsecuregcm.experiment.ExperimentEnrollmentManager;
 import org.smassarn.textsecuregcm.filters.ContentLengthFilter;
 import org.smassarn.textsecuregcm.filters.RemoteDeprecationFilter;
 import org.smassarn.textsecuregcm.filters.TimestampResponseFilter;
+import org.smassarn.textsecuregcm.limits.LeasingRateLimiterCleaner;
 import org.smassarn.textsecuregcm.limits.PreKeyRateLimiter;
 import org.smassarn.textsecuregcm.limits.PushChallengeManager;
 import org.smassarn.textsecuregcm.limits.RateLimitChallengeManager;
@@ -151,6 +152,7 @@ import org.smassarn.textsecuregcm.sms.TwilioVerifyExperimentEnrollmentManager;
 import org.smassarn.textsecuregcm.sqs.DirectoryQueue;
 import org.smassarn.textsecuregcm.storage.AbusiveHostRules;
 import org.smassarn.textsecuregcm.storage.AccountCleaner;
+import org.smassarn.textsecuregcm.storage.AccountNearCache;
 import org.smassarn.textsecuregcm.storage.AccountDatabaseCrawler;
 import org.smassarn.textsecuregcm.storage.AccountDatabaseCrawlerCache;
 import org.smassarn.textsecuregcm.storage.AccountDatabaseCrawlerListener;
@@ -166,6 +168,7 @@ import org.smassarn.textsecuregcm.storage.DirectoryReconciliationClient;
 import org.smassarn.textsecuregcm.storage.DynamicConfigurationManager;
 import org.smassarn.textsecuregcm.storage.FaultTolerantDatabase;
 import org.smassarn.textsecuregcm.storage.KeysDynamoDb;
+import org.smassarn.textsecuregcm.storage.LastSeenWriteBehindFlusher;
 import org.smassarn.textsecuregcm.storage.MessagePersister;
 import org.smassarn.textsecuregcm.storage.MessagesCache;
 import org.smassarn.textsecuregcm.storage.MessagesDynamoDb;
@@ -192,6 +195,7 @@ import org.smassarn.textsecuregcm.util.TorExitNodeManager;
 import org.smassarn.textsecuregcm.util.logging.LoggingUnhandledExceptionMapper;
 import org.smassarn.textsecuregcm.util.logging.UncaughtExceptionHandler;
 import org.smassarn.textsecuregcm.websocket.AuthenticatedConnectListener;
+import org.smassarn.textsecuregcm.websocket.AuthenticatedWebSocketRoutes;
 import org.smassarn.textsecuregcm.websocket.DeadLetterHandler;
 import org.smassarn.textsecuregcm.websocket.ProvisioningConnectListener;
 import org.smassarn.textsecuregcm.websocket.WebSocketAccountAuthenticator;
@@ -208,6 +212,7 @@ import org.smassarn.websocket.setup.WebSocketEnvironment;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.s3.S3Client;
 
@@ -299,9 +304,15 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     DynamoDbClient messageDynamoDb = DynamoDbFromConfig.client(config.getMessageDynamoDbConfiguration(),
         software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create());
 
+    DynamoDbAsyncClient messageDynamoDbAsync = DynamoDbFromConfig.asyncClient(config.getMessageDynamoDbConfiguration(),
+        software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create(), null);
+
     DynamoDbClient preKeyDynamoDb = DynamoDbFromConfig.client(config.getKeysDynamoDbConfiguration(),
         software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create());
 
+    DynamoDbAsyncClient preKeyDynamoDbAsync = DynamoDbFromConfig.asyncClient(config.getKeysDynamoDbConfiguration(),
+        software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create(), null);
+
     DynamoDbClient accountsDynamoDbClient = DynamoDbFromConfig.client(config.getAccountsDynamoDbConfiguration(),
         software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create());
 
@@ -340,12 +351,14 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     Accounts accounts = new Accounts(accountsDynamoDbClient,
         config.getAccountsDynamoDbConfiguration().getTableName(),
         config.getAccountsDynamoDbConfiguration().getPhoneNumberTableName(),
-        config.getAccountsDynamoDbConfiguration().getScanPageSize());
+        config.getAccountsDynamoDbConfiguration().getScanPageSize(),
+        config.getAccountsDynamoDbConfiguration().isWriteCompactAccountData(),
+        config.getAccountsDynamoDbConfiguration().isStoreDevicesSeparately());
     Usernames usernames = new Usernames(accountDatabase);
     ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
     Profiles profiles = new Profiles(accountDatabase);
-    KeysDynamoDb keysDynamoDb = new KeysDynamoDb(preKeyDynamoDb, config.getKeysDynamoDbConfiguration().getTableName());
-    MessagesDynamoDb messagesDynamoDb = new MessagesDynamoDb(messageDynamoDb,
+    KeysDynamoDb keysDynamoDb = new KeysDynamoDb(preKeyDynamoDb, preKeyDynamoDbAsync, config.getKeysDynamoDbConfiguration().getTableName());
+    MessagesDynamoDb messagesDynamoDb = new MessagesDynamoDb(messageDynamoDb, messageDynamoDbAsync,
         config.getMessageDynamoDbConfiguration().getTableName(),
         config.getMessageDynamoDbConfiguration().getTimeToLive());
     AbusiveHostRules abusiveHostRules = new AbusiveHostRules(abuseDatabase);
@@ -380,17 +393,22 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     BlockingQueue<Runnable> keyspaceNotificationDispatchQueue = new ArrayBlockingQueue<>(10_000);
     Metrics.gaugeCollectionSize(name(getClass(), "keyspaceNotificationDispatchQueueSize"), Collections.emptyList(), keyspaceNotificationDispatchQueue);
 
+    BlockingQueue<Runnable> messageNotificationDispatchQueue = new ArrayBlockingQueue<>(10_000);
+    Metrics.gaugeCollectionSize(name(getClass(), "messageNotificationDispatchQueueSize"), Collections.emptyList(), messageNotificationDispatchQueue);
+
     ScheduledExecutorService recurringJobExecutor = environment.lifecycle()
         .scheduledExecutorService(name(getClass(), "recurringJob-%d")).threads(6).build();
     ScheduledExecutorService declinedMessageReceiptExecutor = environment.lifecycle()
         .scheduledExecutorService(name(getClass(), "declined-receipt-%d")).threads(2).build();
     ScheduledExecutorService retrySchedulingExecutor              = environment.lifecycle().scheduledExecutorService(name(getClass(), "retry-%d")).threads(2).build();
     ExecutorService          keyspaceNotificationDispatchExecutor = environment.lifecycle().executorService(name(getClass(), "keyspaceNotification-%d")).maxThreads(16).workQueue(keyspaceNotificationDispatchQueue).build();
+    ExecutorService          messageNotificationDispatchExecutor  = environment.lifecycle().executorService(name(getClass(), "messageNotification-%d")).minThreads(16).maxThreads(16).workQueue(messageNotificationDispatchQueue).build();
     ExecutorService          apnSenderExecutor                    = environment.lifecycle().executorService(name(getClass(), "apnSender-%d")).maxThreads(1).minThreads(1).build();
     ExecutorService          gcmSenderExecutor                    = environment.lifecycle().executorService(name(getClass(), "gcmSender-%d")).maxThreads(1).minThreads(1).build();
     ExecutorService          backupServiceExecutor                = environment.lifecycle().executorService(name(getClass(), "backupService-%d")).maxThreads(1).minThreads(1).build();
     ExecutorService          storageServiceExecutor               = environment.lifecycle().executorService(name(getClass(), "storageService-%d")).maxThreads(1).minThreads(1).build();
     ExecutorService          donationExecutor                     = environment.lifecycle().executorService(name(getClass(), "donation-%d")).maxThreads(1).minThreads(1).build();
+    ExecutorService          messagePurgeExecutor                 = environment.lifecycle().executorService(name(getClass(), "messagePurge-%d")).maxThreads(8).minThreads(8).build();
     ExecutorService multiRecipientMessageExecutor = environment.lifecycle()
         .executorService(name(getClass(), "multiRecipientMessage-%d")).minThreads(64).maxThreads(64).build();
 
@@ -412,21 +430,27 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
 
     SecureBackupClient         secureBackupClient         = new SecureBackupClient(backupCredentialsGenerator, backupServiceExecutor, config.getSecureBackupServiceConfiguration());
     SecureStorageClient        secureStorageClient        = new SecureStorageClient(storageCredentialsGenerator, storageServiceExecutor, config.getSecureStorageServiceConfiguration());
-    ClientPresenceManager      clientPresenceManager      = new ClientPresenceManager(clientPresenceCluster, recurringJobExecutor, keyspaceNotificationDispatchExecutor);
+    ClientPresenceManager      clientPresenceManager      = new ClientPresenceManager(clientPresenceCluster, recurringJobExecutor, keyspaceNotificationDispatchExecutor, config.getTargetedNotificationConfiguration().isEnabled());
     DirectoryQueue             directoryQueue             = new DirectoryQueue(config.getDirectoryConfiguration().getSqsConfiguration());
     StoredVerificationCodeManager pendingAccountsManager  = new StoredVerificationCodeManager(pendingAccounts);
     StoredVerificationCodeManager pendingDevicesManager   = new StoredVerificationCodeManager(pendingDevices);
     UsernamesManager           usernamesManager           = new UsernamesManager(usernames, reservedUsernames, cacheCluster);
     ProfilesManager            profilesManager            = new ProfilesManager(profiles, cacheCluster);
-    MessagesCache              messagesCache              = new MessagesCache(messagesCluster, messagesCluster, keyspaceNotificationDispatchExecutor);
+    MessagesCache              messagesCache              = new MessagesCache(messagesCluster, messagesCluster, messageNotificationDispatchExecutor, recurringJobExecutor, config.getTargetedNotificationConfiguration().isEnabled());
     PushLatencyManager         pushLatencyManager         = new PushLatencyManager(metricsCluster);
     ReportMessageManager       reportMessageManager       = new ReportMessageManager(reportMessageDynamoDb, Metrics.globalRegistry);
-    MessagesManager            messagesManager            = new MessagesManager(messagesDynamoDb, messagesCache, pushLatencyManager, reportMessageManager);
+    MessagesManager            messagesManager            = new MessagesManager(messagesDynamoDb, messagesCache, pushLatencyManager, reportMessageManager, messagePurgeExecutor);
     DeletedAccountsManager deletedAccountsManager = new DeletedAccountsManager(deletedAccounts,
         deletedAccountsLockDynamoDbClient, config.getDeletedAccountsLockDynamoDbConfiguration().getTableName());
-    AccountsManager accountsManager = new AccountsManager(accounts, cacheCluster,
+    AccountNearCache accountNearCache = new AccountNearCache(cacheCluster, config.getAccountNearCacheConfiguration());
+    AccountsManager accountsManager = new AccountsManager(accounts, cacheCluster, accountNearCache,
         deletedAccountsManager, directoryQueue, keysDynamoDb, messagesManager, usernamesManager, profilesManager,
-        pendingAccountsManager, secureStorageClient, secureBackupClient);
+        pendingAccountsManager, secureStorageClient, secureBackupClient,
+        config.getAccountsDynamoDbConfiguration().isWriteCompactAccountData(),
+        config.getLastSeenWriteBehindConfiguration().isEnabled());
+    LastSeenWriteBehindFlusher lastSeenWriteBehindFlusher = new LastSeenWriteBehindFlusher(accountsManager,
+        environment.lifecycle().scheduledExecutorService(name(getClass(), "lastSeenWriteBehind-%d")).threads(1).build(),
+        config.getLastSeenWriteBehindConfiguration());
     RemoteConfigsManager remoteConfigsManager = new RemoteConfigsManager(remoteConfigs);
     DeadLetterHandler          deadLetterHandler          = new DeadLetterHandler(accountsManager, messagesManager);
     DispatchManager            dispatchManager            = new DispatchManager(pubSubClientFactory, Optional.of(deadLetterHandler));
@@ -434,6 +458,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     APNSender                  apnSender                  = new APNSender(apnSenderExecutor, accountsManager, config.getApnConfiguration());
     GCMSender                  gcmSender                  = new GCMSender(gcmSenderExecutor, accountsManager, config.getGcmConfiguration().getApiKey());
     RateLimiters               rateLimiters               = new RateLimiters(config.getLimitsConfiguration(), dynamicConfigurationManager, rateLimitersCluster);
+    LeasingRateLimiterCleaner  leasingRateLimiterCleaner  = new LeasingRateLimiterCleaner(rateLimiters, recurringJobExecutor);
     ProvisioningManager        provisioningManager        = new ProvisioningManager(pubSubManager);
     TorExitNodeManager         torExitNodeManager         = new TorExitNodeManager(recurringJobExecutor, config.getTorExitNodeListConfiguration());
     AsnManager                 asnManager                 = new AsnManager(recurringJobExecutor, config.getAsnTableConfiguration());
@@ -464,7 +489,14 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
         transitionalRecaptchaClient, preKeyRateLimiter, unsealedSenderRateLimiter, rateLimiters,
         dynamicConfigurationManager);
 
-    MessagePersister messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfigurationManager, Duration.ofMinutes(config.getMessageCacheConfiguration().getPersistDelayMinutes()));
+    ExecutorService messagePersisterExecutor = environment.lifecycle()
+        .executorService(name(getClass(), "messagePersister-%d"))
+        .minThreads(config.getMessageCacheConfiguration().getPersisterConfiguration().getMaxConcurrency())
+        .maxThreads(config.getMessageCacheConfiguration().getPersisterConfiguration().getMaxConcurrency())
+        .build();
+
+    MessagePersister messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfigurationManager, Duration.ofMinutes(config.getMessageCacheConfiguration().getPersistDelayMinutes()),
+        config.getMessageCacheConfiguration().getPersisterConfiguration(), messagePersisterExecutor);
 
     // TODO listeners must be ordered so that ones that directly update accounts come last, so that read-only ones are not working with stale data
     final List<AccountDatabaseCrawlerListener> accountDatabaseCrawlerListeners = new ArrayList<>();
@@ -512,6 +544,9 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     environment.lifecycle().manage(deletedAccountsTableCrawler);
     environment.lifecycle().manage(remoteConfigsManager);
     environment.lifecycle().manage(messagesCache);
+    environment.lifecycle().manage(accountNearCache);
+    environment.lifecycle().manage(lastSeenWriteBehindFlusher);
+    environment.lifecycle().manage(leasingRateLimiterCleaner);
     environment.lifecycle().manage(messagePersister);
     environment.lifecycle().manage(clientPresenceManager);
     environment.lifecycle().manage(currencyManager);
@@ -565,12 +600,15 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
     webSocketEnvironment.setAuthenticator(new WebSocketAccountAuthenticator(accountAuthenticator));
     webSocketEnvironment.setConnectListener(
         new AuthenticatedConnectListener(receiptSender, messagesManager, messageSender, apnFallbackManager,
-            clientPresenceManager, retrySchedulingExecutor));
+            clientPresenceManager, retrySchedulingExecutor,
+            config.getMessageDeliveryConfiguration().getMaxInFlightMessages(),
+            config.getMessageDeliveryConfiguration().getMaxAckBatchSize()));
     webSocketEnvironment.jersey().register(new WebsocketRefreshApplicationEventListener(clientPresenceManager));
     webSocketEnvironment.jersey().register(new ContentLengthFilter(TrafficSource.WEBSOCKET));
     webSocketEnvironment.jersey().register(MultiRecipientMessageProvider.class);
     webSocketEnvironment.jersey().register(new MetricsApplicationEventListener(TrafficSource.WEBSOCKET));
-    webSocketEnvironment.jersey().register(new KeepAliveController(clientPresenceManager));
+    final KeepAliveController keepAliveController = new KeepAliveController(clientPresenceManager);
+    webSocketEnvironment.jersey().register(keepAliveController);
 
     // these should be common, but use @Auth DisabledPermittedAccount, which isn’t supported yet on websocket
     environment.jersey().register(
@@ -580,6 +618,11 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
             verifyExperimentEnrollmentManager));
     environment.jersey().register(new KeysController(rateLimiters, keysDynamoDb, accountsManager, preKeyRateLimiter, rateLimitChallengeManager));
 
+    final MessageController messageController = new MessageController(rateLimiters, messageSender, receiptSender,
+        accountsManager, messagesManager, unsealedSenderRateLimiter, apnFallbackManager, dynamicConfigurationManager,
+        rateLimitChallengeManager, reportMessageManager, metricsCluster, declinedMessageReceiptExecutor,
+        multiRecipientMessageExecutor);
+
     final List<Object> commonControllers = List.of(
         new AttachmentControllerV1(rateLimiters, config.getAwsAttachmentsConfiguration().getAccessKey(), config.getAwsAttachmentsConfiguration().getAccessSecret(), config.getAwsAttachmentsConfiguration().getBucket()),
         new AttachmentControllerV2(rateLimiters, config.getAwsAttachmentsConfiguration().getAccessKey(), config.getAwsAttachmentsConfiguration().getAccessSecret(), config.getAwsAttachmentsConfiguration().getRegion(), config.getAwsAttachmentsConfiguration().getBucket()),
@@ -589,7 +632,7 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
         new DeviceController(pendingDevicesManager, accountsManager, messagesManager, keysDynamoDb, rateLimiters, config.getMaxDevices()),
         new DirectoryController(directoryCredentialsGenerator),
         new DonationController(donationExecutor, config.getDonationConfiguration()),
-        new MessageController(rateLimiters, messageSender, receiptSender, accountsManager, messagesManager, unsealedSenderRateLimiter, apnFallbackManager, dynamicConfigurationManager, rateLimitChallengeManager, reportMessageManager, metricsCluster, declinedMessageReceiptExecutor, multiRecipientMessageExecutor),
+        messageController,
         new PaymentsController(currencyManager, paymentsCredentialsGenerator),
         new ProfileController(clock, rateLimiters, accountsManager, profilesManager, usernamesManager, dynamicConfigurationManager, profileBadgeConverter, config.getBadges(), cdnS3Client, profileCdnPolicyGenerator, profileCdnPolicySigner, config.getCdnConfiguration().getBucket(), zkProfileOperations),
         new ProvisioningController(rateLimiters, provisioningManager),
@@ -606,6 +649,8 @@ public class WhisperServerService extends Application<WhisperServerConfiguration
       webSocketEnvironment.jersey().register(controller);
     }
 
+    new AuthenticatedWebSocketRoutes(keepAliveController, messageController).register(webSocketEnvironment.routes());
+
     WebSocketEnvironment<AuthenticatedAccount> provisioningEnvironment = new WebSocketEnvironment<>(environment,
         webSocketEnvironment.getRequestLog(), 60000);
     provisioningEnvironment.jersey().register(new WebsocketRefreshApplicationEventListener(clientPresenceManager));
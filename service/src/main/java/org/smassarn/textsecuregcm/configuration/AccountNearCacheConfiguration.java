@@ -0,0 +1,49 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.Duration;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class AccountNearCacheConfiguration {
+
+  /**
+   * The maximum number of accounts each server will hold in memory.
+   */
+  @JsonProperty
+  @Min(0)
+  private int maxSize = 100_000;
+
+  /**
+   * How long an account may be served from memory before it must be fetched again. Accounts are invalidated across the
+   * fleet when they change, so this only bounds staleness if an invalidation is lost or races with a concurrent read.
+   */
+  @JsonProperty
+  @NotNull
+  private Duration timeToLive = Duration.ofSeconds(30);
+
+  /**
+   * How much longer than {@link #timeToLive} an account may be held in memory for callers that can tolerate staleness.
+   * Such callers are served the stale account immediately while a fresh copy is fetched in the background.
+   */
+  @JsonProperty
+  @NotNull
+  private Duration staleWhileRevalidate = Duration.ofSeconds(30);
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public Duration getTimeToLive() {
+    return timeToLive;
+  }
+
+  public Duration getStaleWhileRevalidate() {
+    return staleWhileRevalidate;
+  }
+}
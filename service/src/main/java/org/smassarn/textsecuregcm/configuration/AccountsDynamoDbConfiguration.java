@@ -10,6 +10,10 @@ public class AccountsDynamoDbConfiguration extends DynamoDbConfiguration {
 
   private int scanPageSize = 100;
 
+  private boolean writeCompactAccountData = false;
+
+  private boolean storeDevicesSeparately = false;
+
   @JsonProperty
   public String getPhoneNumberTableName() {
     return phoneNumberTableName;
@@ -20,4 +24,24 @@ public class AccountsDynamoDbConfiguration extends DynamoDbConfiguration {
     return scanPageSize;
   }
 
+  /**
+   * If true, accounts are written to the accounts table and the account cache in the compact binary form rather than
+   * as JSON. Both forms can always be read, but this should not be enabled until every server is able to read the
+   * compact form.
+   */
+  @JsonProperty
+  public boolean isWriteCompactAccountData() {
+    return writeCompactAccountData;
+  }
+
+  /**
+   * If true, each device is stored in its own attribute of the account item so that a change to a single device can be
+   * written without rewriting the whole account. Accounts are migrated to this form as they're written. Like
+   * {@link #isWriteCompactAccountData()}, this should not be enabled until every server is able to read this form.
+   */
+  @JsonProperty
+  public boolean isStoreDevicesSeparately() {
+    return storeDevicesSeparately;
+  }
+
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.Duration;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class LastSeenWriteBehindConfiguration {
+
+  /**
+   * Whether device "last seen" updates should be buffered in memory and written to account records in the background
+   * instead of being written as part of the request that triggered them.
+   */
+  @JsonProperty
+  private boolean enabled = false;
+
+  /**
+   * How often buffered "last seen" updates are written to account records.
+   */
+  @JsonProperty
+  @NotNull
+  private Duration flushInterval = Duration.ofMinutes(1);
+
+  /**
+   * The maximum number of account records each server will update per second when writing buffered updates.
+   */
+  @JsonProperty
+  @Min(1)
+  private int maxWritesPerSecond = 100;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public Duration getFlushInterval() {
+    return flushInterval;
+  }
+
+  public int getMaxWritesPerSecond() {
+    return maxWritesPerSecond;
+  }
+}
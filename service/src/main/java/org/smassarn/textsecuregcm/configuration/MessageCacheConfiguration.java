@@ -20,6 +20,11 @@ public class MessageCacheConfiguration {
   @JsonProperty
   private int persistDelayMinutes = 10;
 
+  @JsonProperty
+  @NotNull
+  @Valid
+  private MessagePersisterConfiguration persister = new MessagePersisterConfiguration();
+
   public RedisClusterConfiguration getRedisClusterConfiguration() {
     return cluster;
   }
@@ -28,4 +33,8 @@ public class MessageCacheConfiguration {
     return persistDelayMinutes;
   }
 
+  public MessagePersisterConfiguration getPersisterConfiguration() {
+    return persister;
+  }
+
 }
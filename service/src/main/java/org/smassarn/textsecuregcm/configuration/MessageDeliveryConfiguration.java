@@ -0,0 +1,36 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import javax.validation.constraints.Min;
+
+public class MessageDeliveryConfiguration {
+
+  /**
+   * The maximum number of stored messages that may be sent to a single websocket client without having been
+   * acknowledged.
+   */
+  @JsonProperty
+  @Min(1)
+  private int maxInFlightMessages = 64;
+
+  /**
+   * The maximum number of acknowledged messages a single websocket connection will gather before deleting them from
+   * storage in one batch.
+   */
+  @JsonProperty
+  @Min(1)
+  private int maxAckBatchSize = 25;
+
+  public int getMaxInFlightMessages() {
+    return maxInFlightMessages;
+  }
+
+  public int getMaxAckBatchSize() {
+    return maxAckBatchSize;
+  }
+}
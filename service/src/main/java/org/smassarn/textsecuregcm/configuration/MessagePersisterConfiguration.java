@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.Duration;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class MessagePersisterConfiguration {
+
+  /**
+   * The number of queues the persister will always be willing to persist concurrently, even when storage is slow.
+   */
+  @JsonProperty
+  @Min(1)
+  private int minConcurrency = 4;
+
+  /**
+   * The greatest number of queues the persister may persist concurrently while working through a backlog.
+   */
+  @JsonProperty
+  @Min(1)
+  private int maxConcurrency = 32;
+
+  /**
+   * The DynamoDB write latency above which the persister will back off rather than add concurrency.
+   */
+  @JsonProperty
+  @NotNull
+  private Duration targetWriteLatency = Duration.ofMillis(250);
+
+  /**
+   * How far behind its schedule the persister may fall before it adds concurrency.
+   */
+  @JsonProperty
+  @NotNull
+  private Duration maxLag = Duration.ofMinutes(1);
+
+  /**
+   * How long to wait before trying again to persist a queue that could not be persisted.
+   */
+  @JsonProperty
+  @NotNull
+  private Duration queueRetryDelay = Duration.ofSeconds(30);
+
+  public int getMinConcurrency() {
+    return minConcurrency;
+  }
+
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  public Duration getTargetWriteLatency() {
+    return targetWriteLatency;
+  }
+
+  public Duration getMaxLag() {
+    return maxLag;
+  }
+
+  public Duration getQueueRetryDelay() {
+    return queueRetryDelay;
+  }
+}
@@ -6,6 +6,8 @@ package org.smassarn.textsecuregcm.configuration;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import java.time.Duration;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
 
 public class RateLimitsConfiguration {
 
@@ -37,10 +39,10 @@ public class RateLimitsConfiguration {
   private RateLimitConfiguration attachments = new RateLimitConfiguration(50, 50);
 
   @JsonProperty
-  private RateLimitConfiguration prekeys = new RateLimitConfiguration(3, 1.0 / 10.0);
+  private LeasedRateLimitConfiguration prekeys = new LeasedRateLimitConfiguration(3, 1.0 / 10.0);
 
   @JsonProperty
-  private RateLimitConfiguration messages = new RateLimitConfiguration(60, 60);
+  private LeasedRateLimitConfiguration messages = new LeasedRateLimitConfiguration(60, 60);
 
   @JsonProperty
   private RateLimitConfiguration allocateDevice = new RateLimitConfiguration(2, 1.0 / 2.0);
@@ -75,11 +77,11 @@ public class RateLimitsConfiguration {
     return verifyDevice;
   }
 
-  public RateLimitConfiguration getMessages() {
+  public LeasedRateLimitConfiguration getMessages() {
     return messages;
   }
 
-  public RateLimitConfiguration getPreKeys() {
+  public LeasedRateLimitConfiguration getPreKeys() {
     return prekeys;
   }
 
@@ -158,6 +160,42 @@ public class RateLimitsConfiguration {
     }
   }
 
+  /**
+   * Configuration for a rate limiter that may lease permits from its shared bucket and spend them locally.
+   */
+  public static class LeasedRateLimitConfiguration extends RateLimitConfiguration {
+
+    /**
+     * The number of permits each server leases from a key's bucket at a time, or 0 to check the shared bucket for every
+     * request. Permits held in leases are unavailable to other servers, so this bounds (per server and key) how far
+     * admissions may stray from a limiter that checks the shared bucket every time.
+     */
+    @JsonProperty
+    @Min(0)
+    private int leaseSize = 0;
+
+    /**
+     * How long a server may hold leased permits before returning any it hasn't used.
+     */
+    @JsonProperty
+    @NotNull
+    private Duration leaseDuration = Duration.ofSeconds(5);
+
+    public LeasedRateLimitConfiguration(int bucketSize, double leakRatePerMinute) {
+      super(bucketSize, leakRatePerMinute);
+    }
+
+    public LeasedRateLimitConfiguration() {}
+
+    public int getLeaseSize() {
+      return leaseSize;
+    }
+
+    public Duration getLeaseDuration() {
+      return leaseDuration;
+    }
+  }
+
   public static class CardinalityRateLimitConfiguration {
     @JsonProperty
     private int maxCardinality;
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class TargetedNotificationConfiguration {
+
+  /**
+   * Whether each server should receive presence displacements and new message notifications on a fixed set of
+   * server-specific channels instead of subscribing to keyspace notifications for every connected device. Writers
+   * publish to server-specific channels regardless of this setting, so it must only be enabled once every server in the
+   * fleet publishes them.
+   */
+  @JsonProperty
+  private boolean enabled = false;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+}
@@ -17,7 +17,6 @@ import com.google.protobuf.ByteString;
 import io.dropwizard.auth.Auth;
 import io.dropwizard.util.DataSize;
 import io.lettuce.core.ScriptOutputType;
-import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
 import io.micrometer.core.instrument.Tags;
@@ -38,12 +37,10 @@ import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.annotation.Nonnull;
@@ -258,7 +255,7 @@ public class MessageController {
       Optional<Account> destination;
 
       if (!isSyncMessage) {
-        destination = accountsManager.get(destinationUuid);
+        destination = accountsManager.getAllowingStale(destinationUuid);
       } else {
         destination = source.map(AuthenticatedAccount::getAccount);
       }
@@ -361,16 +358,15 @@ public class MessageController {
 
     unidentifiedMeter.mark(multiRecipientMessage.getRecipients().length);
 
-    Map<UUID, Account> uuidToAccountMap = Arrays.stream(multiRecipientMessage.getRecipients())
+    final Set<UUID> recipientUuids = Arrays.stream(multiRecipientMessage.getRecipients())
         .map(Recipient::getUuid)
-        .distinct()
-        .collect(Collectors.toUnmodifiableMap(Function.identity(), uuid -> {
-          Optional<Account> account = accountsManager.get(uuid);
-          if (account.isEmpty()) {
-            throw new WebApplicationException(Status.NOT_FOUND);
-          }
-          return account.get();
-        }));
+        .collect(Collectors.toSet());
+
+    Map<UUID, Account> uuidToAccountMap = accountsManager.getAll(recipientUuids);
+
+    if (uuidToAccountMap.size() != recipientUuids.size()) {
+      throw new WebApplicationException(Status.NOT_FOUND);
+    }
     checkAccessKeys(accessKeys, uuidToAccountMap);
 
     final Map<Account, HashSet<Pair<Long, Integer>>> accountToDeviceIdAndRegistrationIdMap =
@@ -420,29 +416,37 @@ public class MessageController {
         UserAgentTagUtil.getPlatformTag(userAgent),
         Tag.of(EPHEMERAL_TAG_NAME, String.valueOf(online)),
         Tag.of(SENDER_TYPE_TAG_NAME, "unidentified"));
-    List<UUID> uuids404 = Collections.synchronizedList(new ArrayList<>());
-    final Counter counter = Metrics.counter(SENT_MESSAGE_COUNTER_NAME, tags);
-    try {
-      multiRecipientMessageExecutor.invokeAll(Arrays.stream(multiRecipientMessage.getRecipients())
-          .map(recipient -> (Callable<Void>) () -> {
-            Account destinationAccount = uuidToAccountMap.get(recipient.getUuid());
 
-            // we asserted this must exist in validateCompleteDeviceList
-            Device destinationDevice = destinationAccount.getDevice(recipient.getDeviceId()).orElseThrow();
-            counter.increment();
-            try {
-              sendMessage(destinationAccount, destinationDevice, timestamp, online, recipient,
-                  multiRecipientMessage.getCommonPayload());
-            } catch (NoSuchUserException e) {
-              uuids404.add(destinationAccount.getUuid());
-            }
-            return null;
-          })
-          .collect(Collectors.toList()));
-    } catch (InterruptedException e) {
-      logger.error("interrupted while delivering multi-recipient messages", e);
-      return Response.serverError().entity("interrupted during delivery").build();
+    // Recipients may repeat a destination device; each entry is still delivered separately
+    final List<Pair<Pair<Account, Device>, Envelope>> messages =
+        new ArrayList<>(multiRecipientMessage.getRecipients().length);
+
+    for (final Recipient recipient : multiRecipientMessage.getRecipients()) {
+      final Account destinationAccount = uuidToAccountMap.get(recipient.getUuid());
+
+      // we asserted this must exist in validateCompleteDeviceList
+      final Device destinationDevice = destinationAccount.getDevice(recipient.getDeviceId()).orElseThrow();
+
+      messages.add(new Pair<>(new Pair<>(destinationAccount, destinationDevice),
+          buildMultiRecipientEnvelope(timestamp, recipient, multiRecipientMessage.getCommonPayload())));
     }
+
+    Metrics.counter(SENT_MESSAGE_COUNTER_NAME, tags).increment(multiRecipientMessage.getRecipients().length);
+
+    final List<UUID> uuids404 = new ArrayList<>();
+
+    try (final Timer.Context ignored = sendCommonMessageInternalTimer.time()) {
+      for (final Pair<Account, Device> undeliverable : messageSender.sendMessages(messages, online,
+          multiRecipientMessageExecutor)) {
+
+        if (undeliverable.second().isMaster()) {
+          uuids404.add(undeliverable.first().getUuid());
+        } else {
+          logger.debug("Not registered");
+        }
+      }
+    }
+
     return Response.ok(new SendMultiRecipientMessageResponse(uuids404)).build();
   }
 
@@ -642,32 +646,22 @@ public class MessageController {
     }
   }
 
-  private void sendMessage(Account destinationAccount, Device destinationDevice, long timestamp, boolean online,
-      Recipient recipient, byte[] commonPayload) throws NoSuchUserException {
-    try (final Timer.Context ignored = sendCommonMessageInternalTimer.time()) {
-      Envelope.Builder messageBuilder = Envelope.newBuilder();
-      long serverTimestamp = System.currentTimeMillis();
-      byte[] recipientKeyMaterial = recipient.getPerRecipientKeyMaterial();
-
-      byte[] payload = new byte[1 + recipientKeyMaterial.length + commonPayload.length];
-      payload[0] = MultiRecipientMessageProvider.VERSION;
-      System.arraycopy(recipientKeyMaterial, 0, payload, 1, recipientKeyMaterial.length);
-      System.arraycopy(commonPayload, 0, payload, 1 + recipientKeyMaterial.length, commonPayload.length);
-
-      messageBuilder
-          .setType(Type.UNIDENTIFIED_SENDER)
-          .setTimestamp(timestamp == 0 ? serverTimestamp : timestamp)
-          .setServerTimestamp(serverTimestamp)
-          .setContent(ByteString.copyFrom(payload));
-
-      messageSender.sendMessage(destinationAccount, destinationDevice, messageBuilder.build(), online);
-    } catch (NotPushRegisteredException e) {
-      if (destinationDevice.isMaster()) {
-        throw new NoSuchUserException(e);
-      } else {
-        logger.debug("Not registered", e);
-      }
-    }
+  private Envelope buildMultiRecipientEnvelope(long timestamp, Recipient recipient, byte[] commonPayload) {
+    Envelope.Builder messageBuilder = Envelope.newBuilder();
+    long serverTimestamp = System.currentTimeMillis();
+    byte[] recipientKeyMaterial = recipient.getPerRecipientKeyMaterial();
+
+    byte[] payload = new byte[1 + recipientKeyMaterial.length + commonPayload.length];
+    payload[0] = MultiRecipientMessageProvider.VERSION;
+    System.arraycopy(recipientKeyMaterial, 0, payload, 1, recipientKeyMaterial.length);
+    System.arraycopy(commonPayload, 0, payload, 1 + recipientKeyMaterial.length, commonPayload.length);
+
+    return messageBuilder
+        .setType(Type.UNIDENTIFIED_SENDER)
+        .setTimestamp(timestamp == 0 ? serverTimestamp : timestamp)
+        .setServerTimestamp(serverTimestamp)
+        .setContent(ByteString.copyFrom(payload))
+        .build();
   }
 
   @VisibleForTesting
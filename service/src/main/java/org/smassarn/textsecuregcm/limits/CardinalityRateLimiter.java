@@ -5,9 +5,14 @@
 
 package org.smassarn.textsecuregcm.limits;
 
+import io.lettuce.core.ScriptOutputType;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
+import java.util.List;
 import org.smassarn.textsecuregcm.configuration.RateLimitsConfiguration.CardinalityRateLimitConfiguration;
 import org.smassarn.textsecuregcm.controllers.RateLimitExceededException;
+import org.smassarn.textsecuregcm.redis.ClusterLuaScript;
 import org.smassarn.textsecuregcm.redis.FaultTolerantRedisCluster;
 
 /**
@@ -25,6 +30,8 @@ public class CardinalityRateLimiter {
   private final Duration ttl;
   private final int defaultMaxCardinality;
 
+  private final ClusterLuaScript validateScript;
+
   public CardinalityRateLimiter(final FaultTolerantRedisCluster cacheCluster, final String name, final Duration ttl, final int defaultMaxCardinality) {
     this.cacheCluster = cacheCluster;
 
@@ -32,29 +39,28 @@ public class CardinalityRateLimiter {
 
     this.ttl = ttl;
     this.defaultMaxCardinality = defaultMaxCardinality;
+
+    try {
+      this.validateScript = ClusterLuaScript.fromResource(cacheCluster, "lua/cardinality_rate_limit/validate.lua",
+          ScriptOutputType.MULTI);
+    } catch (final IOException e) {
+      // The script is bundled with the application, so this should never happen
+      throw new UncheckedIOException(e);
+    }
   }
 
   public void validate(final String key, final String target, final int maxCardinality) throws RateLimitExceededException {
+    // Adding the target, counting the set, and checking and setting its expiration all happen in one round trip
+    @SuppressWarnings("unchecked") final List<Long> result = (List<Long>) validateScript.execute(
+        List.of(getHllKey(key)),
+        List.of(target, String.valueOf(ttl.toSeconds())));
 
-    final boolean rateLimitExceeded = cacheCluster.withCluster(connection -> {
-      final String hllKey = getHllKey(key);
-
-      final boolean changed = connection.sync().pfadd(hllKey, target) == 1;
-      final long cardinality = connection.sync().pfcount(hllKey);
-
-      final boolean mayNeedExpiration = changed && cardinality == 1;
-
-      // If the set already existed, we can assume it already had an expiration time and can save a round trip by
-      // skipping the ttl check.
-      if (mayNeedExpiration && connection.sync().ttl(hllKey) == -1) {
-        connection.sync().expire(hllKey, ttl.toSeconds());
-      }
-
-      return changed && cardinality > maxCardinality;
-    });
+    final boolean changed = result.get(0) == 1;
+    final long cardinality = result.get(1);
+    final long remainingTtlSeconds = result.get(2);
 
-    if (rateLimitExceeded) {
-      throw new RateLimitExceededException(Duration.ofSeconds(getRemainingTtl(key)));
+    if (changed && cardinality > maxCardinality) {
+      throw new RateLimitExceededException(Duration.ofSeconds(remainingTtlSeconds));
     }
   }
 
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.limits;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import java.time.Duration;
+import org.smassarn.textsecuregcm.controllers.RateLimitExceededException;
+import org.smassarn.textsecuregcm.redis.FaultTolerantRedisCluster;
+import org.smassarn.textsecuregcm.util.Constants;
+
+/**
+ * A rate limiter that leases permits from a key's shared bucket a few at a time and spends them locally, so most
+ * checks for busy keys don't need a round trip to Redis. Permits are always taken from the shared bucket before
+ * they're spent, so a lease never admits more requests than the bucket held when it was granted; instead:
+ * <ul>
+ *   <li>permits held in one server's lease can't be used by other servers until they're returned (at most
+ *   {@code leaseSize} per server and key), and</li>
+ *   <li>permits spent late in a lease's life may have been refilled by the shared bucket in the meantime, so a burst
+ *   can exceed the bucket size by up to the number of permits left in the lease.</li>
+ * </ul>
+ * Both are bounded by the lease size and duration. Leases that expire or are replaced return their unused permits to
+ * the shared bucket; expired leases are only noticed when the lease cache is used, so callers should also call
+ * {@link #cleanUp()} periodically to return permits for keys that have gone quiet.
+ */
+public class LeasingRateLimiter extends RateLimiter {
+
+  private final int leaseSize;
+  private final Duration leaseDuration;
+  private final Cache<String, Lease> leases;
+
+  private final Meter leaseHitMeter;
+  private final Meter leaseRefillMeter;
+  private final Meter staleLeaseSpendMeter;
+
+  private static final int MAX_LEASES = 100_000;
+
+  private static class Lease {
+
+    private final long leasedAtMillis;
+    private int permitsRemaining;
+
+    private Lease(final long leasedAtMillis, final int permitsRemaining) {
+      this.leasedAtMillis = leasedAtMillis;
+      this.permitsRemaining = permitsRemaining;
+    }
+
+    synchronized boolean tryTake(final int amount) {
+      if (permitsRemaining >= amount) {
+        permitsRemaining -= amount;
+        return true;
+      }
+
+      return false;
+    }
+
+    synchronized boolean hasPermits(final int amount) {
+      return permitsRemaining >= amount;
+    }
+
+    synchronized int takeAll() {
+      final int permits = permitsRemaining;
+      permitsRemaining = 0;
+
+      return permits;
+    }
+  }
+
+  public LeasingRateLimiter(final FaultTolerantRedisCluster cacheCluster, final String name, final int bucketSize,
+      final double leakRatePerMinute, final int leaseSize, final Duration leaseDuration) {
+
+    super(cacheCluster, name, bucketSize, leakRatePerMinute);
+
+    this.leaseSize = Math.min(leaseSize, bucketSize);
+    this.leaseDuration = leaseDuration;
+
+    this.leases = CacheBuilder.newBuilder()
+        .maximumSize(MAX_LEASES)
+        .expireAfterWrite(leaseDuration)
+        .<String, Lease>removalListener(notification -> {
+          // Leases are discarded without returning their permits when a key's bucket is cleared
+          if (notification.getCause() != RemovalCause.EXPLICIT) {
+            final int unusedPermits = notification.getValue().takeAll();
+
+            if (unusedPermits > 0) {
+              returnPermits(notification.getKey(), unusedPermits);
+            }
+          }
+        })
+        .build();
+
+    final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
+
+    this.leaseHitMeter = metricRegistry.meter(name(getClass(), name, "leaseHit"));
+    this.leaseRefillMeter = metricRegistry.meter(name(getClass(), name, "leaseRefill"));
+    this.staleLeaseSpendMeter = metricRegistry.meter(name(getClass(), name, "staleLeaseSpend"));
+  }
+
+  @Override
+  public void validate(final String key, final int amount) throws RateLimitExceededException {
+    try (final Timer.Context ignored = validateTimer.time()) {
+      final Lease lease = leases.getIfPresent(key);
+
+      if (lease != null && lease.tryTake(amount)) {
+        leaseHitMeter.mark();
+
+        // The shared bucket would have refilled at least one permit since this lease was granted. That doesn't mean
+        // these permits were over-admitted (the bucket may never have emptied), only that they could have been, so
+        // this is an upper bound on over-admission rather than a measure of it.
+        if ((System.currentTimeMillis() - lease.leasedAtMillis) * getLeakRatePerMillis() >= 1) {
+          staleLeaseSpendMeter.mark(amount);
+        }
+
+        return;
+      }
+
+      leaseRefillMeter.mark();
+
+      final long leasedAtMillis = System.currentTimeMillis();
+      final int permitsTaken = takePermits(key, amount, Math.max(amount, leaseSize));
+
+      if (permitsTaken > amount) {
+        // Any permits left in a lease being replaced are returned by the removal listener
+        leases.put(key, new Lease(leasedAtMillis, permitsTaken - amount));
+      }
+    }
+  }
+
+  @Override
+  public boolean hasAvailablePermits(final String key, final int permits) {
+    final Lease lease = leases.getIfPresent(key);
+
+    if (lease != null && lease.hasPermits(permits)) {
+      return true;
+    }
+
+    return super.hasAvailablePermits(key, permits);
+  }
+
+  @Override
+  public void clear(final String key) {
+    leases.invalidate(key);
+    super.clear(key);
+  }
+
+  /**
+   * Discards expired leases and returns their unused permits to the shared bucket.
+   */
+  public void cleanUp() {
+    leases.cleanUp();
+  }
+
+  public Duration getLeaseDuration() {
+    return leaseDuration;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.limits;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.dropwizard.lifecycle.Managed;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically discards expired leases held by {@link LeasingRateLimiter}s. Expired leases are otherwise only noticed
+ * when a limiter's lease cache is used, so permits leased for keys that have gone quiet could be withheld from the
+ * shared bucket indefinitely.
+ */
+public class LeasingRateLimiterCleaner implements Managed {
+
+  private final List<LeasingRateLimiter> rateLimiters;
+  private final ScheduledExecutorService scheduledExecutorService;
+
+  private ScheduledFuture<?> cleanUpFuture;
+
+  private static final Logger log = LoggerFactory.getLogger(LeasingRateLimiterCleaner.class);
+
+  public LeasingRateLimiterCleaner(final RateLimiters rateLimiters,
+      final ScheduledExecutorService scheduledExecutorService) {
+
+    this(rateLimiters.getLeasingRateLimiters(), scheduledExecutorService);
+  }
+
+  @VisibleForTesting
+  LeasingRateLimiterCleaner(final List<LeasingRateLimiter> rateLimiters,
+      final ScheduledExecutorService scheduledExecutorService) {
+
+    this.rateLimiters = rateLimiters;
+    this.scheduledExecutorService = scheduledExecutorService;
+  }
+
+  @Override
+  public synchronized void start() {
+    if (rateLimiters.isEmpty()) {
+      return;
+    }
+
+    // Checking as often as the shortest lease expires means no lease outlives its duration by more than that again
+    final long cleanUpIntervalMillis = Math.max(1, rateLimiters.stream()
+        .map(LeasingRateLimiter::getLeaseDuration)
+        .min(Duration::compareTo)
+        .orElseThrow()
+        .toMillis());
+
+    cleanUpFuture = scheduledExecutorService.scheduleWithFixedDelay(this::cleanUp,
+        cleanUpIntervalMillis, cleanUpIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (cleanUpFuture != null) {
+      cleanUpFuture.cancel(false);
+    }
+  }
+
+  @VisibleForTesting
+  void cleanUp() {
+    for (final LeasingRateLimiter rateLimiter : rateLimiters) {
+      try {
+        rateLimiter.cleanUp();
+      } catch (final Exception e) {
+        log.warn("Failed to clean up expired leases", e);
+      }
+    }
+  }
+}
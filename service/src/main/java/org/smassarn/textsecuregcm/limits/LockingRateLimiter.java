@@ -1,62 +0,0 @@
-/*
- * Copyright 2013-2020 Massarn Messenger, LLC
- * SPDX-License-Identifier: AGPL-3.0-only
- */
-
-package org.smassarn.textsecuregcm.limits;
-
-import static com.codahale.metrics.MetricRegistry.name;
-
-import com.codahale.metrics.Meter;
-import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.SharedMetricRegistries;
-import io.lettuce.core.SetArgs;
-import java.time.Duration;
-import org.smassarn.textsecuregcm.controllers.RateLimitExceededException;
-import org.smassarn.textsecuregcm.redis.FaultTolerantRedisCluster;
-import org.smassarn.textsecuregcm.util.Constants;
-
-public class LockingRateLimiter extends RateLimiter {
-
-  private final Meter meter;
-
-  public LockingRateLimiter(FaultTolerantRedisCluster cacheCluster, String name, int bucketSize, double leakRatePerMinute) {
-    super(cacheCluster, name, bucketSize, leakRatePerMinute);
-
-    MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
-    this.meter = metricRegistry.meter(name(getClass(), name, "locked"));
-  }
-
-  @Override
-  public void validate(String key, int amount) throws RateLimitExceededException {
-    if (!acquireLock(key)) {
-      meter.mark();
-      throw new RateLimitExceededException("Locked", Duration.ZERO);
-    }
-
-    try {
-      super.validate(key, amount);
-    } finally {
-      releaseLock(key);
-    }
-  }
-
-  @Override
-  public void validate(String key) throws RateLimitExceededException {
-    validate(key, 1);
-  }
-
-  private void releaseLock(String key) {
-    cacheCluster.useCluster(connection -> connection.sync().del(getLockName(key)));
-  }
-
-  private boolean acquireLock(String key) {
-    return cacheCluster.withCluster(connection -> connection.sync().set(getLockName(key), "L", SetArgs.Builder.nx().ex(10))) != null;
-  }
-
-  private String getLockName(String key) {
-    return "leaky_lock::" + name + "::" + key;
-  }
-
-
-}
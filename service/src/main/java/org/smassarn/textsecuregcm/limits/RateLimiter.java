@@ -10,31 +10,42 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.lettuce.core.ScriptOutputType;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
+import java.util.List;
 import java.util.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smassarn.textsecuregcm.configuration.RateLimitsConfiguration.RateLimitConfiguration;
 import org.smassarn.textsecuregcm.controllers.RateLimitExceededException;
+import org.smassarn.textsecuregcm.redis.ClusterLuaScript;
 import org.smassarn.textsecuregcm.redis.FaultTolerantRedisCluster;
 import org.smassarn.textsecuregcm.util.Constants;
-import org.smassarn.textsecuregcm.util.SystemMapper;
 
+/**
+ * A rate limiter backed by leaky buckets in Redis. Each check is a single atomic script invocation that refills the
+ * bucket, takes the requested space if it's available, and reports how long the caller must wait if it isn't.
+ * Buckets are stored as hashes of compact numeric fields; buckets stored as JSON by earlier versions of this class are
+ * imported the first time they're used.
+ *
+ * @see LeakyBucket
+ */
 public class RateLimiter {
 
-  private final Logger       logger = LoggerFactory.getLogger(RateLimiter.class);
-  private final ObjectMapper mapper = SystemMapper.getMapper();
-
   private   final Meter                     meter;
-  private   final Timer                     validateTimer;
+  protected final Timer                     validateTimer;
   protected final FaultTolerantRedisCluster cacheCluster;
   protected final String                    name;
   private   final int                       bucketSize;
   private   final double                    leakRatePerMinute;
   private   final double                    leakRatePerMillis;
+  private   final int                       ttlSeconds;
+  private   final ClusterLuaScript          validateScript;
+  private   final ClusterLuaScript          releaseScript;
+
+  private static final Logger logger = LoggerFactory.getLogger(RateLimiter.class);
 
   public RateLimiter(FaultTolerantRedisCluster cacheCluster, String name, int bucketSize, double leakRatePerMinute)
   {
@@ -47,18 +58,22 @@ public class RateLimiter {
     this.bucketSize             = bucketSize;
     this.leakRatePerMinute      = leakRatePerMinute;
     this.leakRatePerMillis      = leakRatePerMinute / (60.0 * 1000.0);
+    this.ttlSeconds             = (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000);
+
+    try {
+      this.validateScript = ClusterLuaScript.fromResource(cacheCluster, "lua/leaky_bucket/validate.lua",
+          ScriptOutputType.MULTI);
+      this.releaseScript = ClusterLuaScript.fromResource(cacheCluster, "lua/leaky_bucket/release.lua",
+          ScriptOutputType.INTEGER);
+    } catch (final IOException e) {
+      // The scripts are bundled with the application, so this should never happen
+      throw new UncheckedIOException(e);
+    }
   }
 
   public void validate(String key, int amount) throws RateLimitExceededException {
     try (final Timer.Context ignored = validateTimer.time()) {
-      LeakyBucket bucket = getBucket(key);
-
-      if (bucket.add(amount)) {
-        setBucket(key, bucket);
-      } else {
-        meter.mark();
-        throw new RateLimitExceededException(key + " , " + amount, bucket.getTimeUntilSpaceAvailable(amount));
-      }
+      takePermits(key, amount, amount);
     }
   }
 
@@ -81,7 +96,7 @@ public class RateLimiter {
   }
 
   public boolean hasAvailablePermits(final String key, final int permits) {
-    return getBucket(key).getTimeUntilSpaceAvailable(permits).equals(Duration.ZERO);
+    return executeValidateScript(key, permits, 0).getTimeUntilSpaceAvailable().isZero();
   }
 
   public void clear(final UUID accountUuid) {
@@ -89,7 +104,7 @@ public class RateLimiter {
   }
 
   public void clear(String key) {
-    cacheCluster.useCluster(connection -> connection.sync().del(getBucketName(key)));
+    cacheCluster.useCluster(connection -> connection.sync().del(getBucketName(key), getLegacyBucketName(key)));
   }
 
   public int getBucketSize() {
@@ -100,32 +115,89 @@ public class RateLimiter {
     return leakRatePerMinute;
   }
 
-  private void setBucket(String key, LeakyBucket bucket) {
+  protected double getLeakRatePerMillis() {
+    return leakRatePerMillis;
+  }
 
-    try {
-      final String serialized = bucket.serialize(mapper);
+  /**
+   * Takes at least {@code amount} and at most {@code maxAmount} permits from the given key's bucket, as many as are
+   * available, and returns the number taken.
+   *
+   * @throws RateLimitExceededException if fewer than {@code amount} permits are available
+   */
+  protected int takePermits(final String key, final int amount, final int maxAmount) throws RateLimitExceededException {
+    final ValidateResult result = executeValidateScript(key, amount, maxAmount);
+
+    if (!result.getTimeUntilSpaceAvailable().isZero()) {
+      meter.mark();
+      throw new RateLimitExceededException(key + " , " + amount, result.getTimeUntilSpaceAvailable());
+    }
+
+    return result.getAmountTaken();
+  }
 
-      cacheCluster.useCluster(connection -> connection.sync().setex(getBucketName(key), (int) Math.ceil((bucketSize / leakRatePerMillis) / 1000), serialized));
-    } catch (JsonProcessingException e) {
-      throw new IllegalArgumentException(e);
+  /**
+   * Returns permits taken by {@link #takePermits(String, int, int)} but not used to the given key's bucket. This does
+   * not block the calling thread.
+   */
+  protected void returnPermits(final String key, final int amount) {
+    releaseScript.executeAsync(List.of(getBucketName(key)), List.of(String.valueOf(bucketSize), String.valueOf(amount)))
+        .whenComplete((ignored, cause) -> {
+          if (cause != null) {
+            logger.warn("Failed to return unused permits", cause);
+          }
+        });
+  }
+
+  private ValidateResult executeValidateScript(final String key, final int amount, final int maxAmount) {
+    final String legacyBucketName = getLegacyBucketName(key);
+
+    // The legacy bucket can only be read if it's in the same slot as the bucket, which hash tags guarantee unless the
+    // key itself contains braces
+    final List<String> keys = legacyBucketName.indexOf('{') == -1 && legacyBucketName.indexOf('}') == -1
+        ? List.of(getBucketName(key), legacyBucketName)
+        : List.of(getBucketName(key));
+
+    @SuppressWarnings("unchecked") final List<Long> result = (List<Long>) validateScript.execute(keys, List.of(
+        String.valueOf(bucketSize),
+        String.valueOf(leakRatePerMillis),
+        String.valueOf(System.currentTimeMillis()),
+        String.valueOf(amount),
+        String.valueOf(ttlSeconds),
+        String.valueOf(maxAmount)));
+
+    if (result.get(1) < 0) {
+      // This shouldn't happen today but if so we should bubble this to the clients somehow
+      throw new IllegalArgumentException("Requested permits exceed maximum bucket size");
     }
+
+    return new ValidateResult(result.get(0).intValue(), Duration.ofMillis(result.get(1)));
   }
 
-  private LeakyBucket getBucket(String key) {
-    try {
-      final String serialized = cacheCluster.withCluster(connection -> connection.sync().get(getBucketName(key)));
+  private static class ValidateResult {
+
+    private final int amountTaken;
+    private final Duration timeUntilSpaceAvailable;
 
-      if (serialized != null) {
-        return LeakyBucket.fromSerialized(mapper, serialized);
-      }
-    } catch (IOException e) {
-      logger.warn("Deserialization error", e);
+    private ValidateResult(final int amountTaken, final Duration timeUntilSpaceAvailable) {
+      this.amountTaken = amountTaken;
+      this.timeUntilSpaceAvailable = timeUntilSpaceAvailable;
     }
 
-    return new LeakyBucket(bucketSize, leakRatePerMillis);
+    int getAmountTaken() {
+      return amountTaken;
+    }
+
+    Duration getTimeUntilSpaceAvailable() {
+      return timeUntilSpaceAvailable;
+    }
   }
 
   private String getBucketName(String key) {
+    return "leaky_bucket_hash::{" + getLegacyBucketName(key) + "}";
+  }
+
+  private String getLegacyBucketName(String key) {
     return "leaky_bucket::" + name + "::" + key;
   }
 
@@ -5,10 +5,14 @@
 package org.smassarn.textsecuregcm.limits;
 
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.function.BiFunction;
 import org.smassarn.textsecuregcm.configuration.RateLimitsConfiguration;
 import org.smassarn.textsecuregcm.configuration.RateLimitsConfiguration.CardinalityRateLimitConfiguration;
+import org.smassarn.textsecuregcm.configuration.RateLimitsConfiguration.LeasedRateLimitConfiguration;
 import org.smassarn.textsecuregcm.configuration.RateLimitsConfiguration.RateLimitConfiguration;
 import org.smassarn.textsecuregcm.redis.FaultTolerantRedisCluster;
 import org.smassarn.textsecuregcm.storage.DynamicConfigurationManager;
@@ -78,25 +82,21 @@ public class RateLimiters {
                                             config.getAutoBlock().getBucketSize(),
                                             config.getAutoBlock().getLeakRatePerMinute());
 
-    this.verifyLimiter = new LockingRateLimiter(cacheCluster, "verify",
-                                                config.getVerifyNumber().getBucketSize(),
-                                                config.getVerifyNumber().getLeakRatePerMinute());
+    this.verifyLimiter = new RateLimiter(cacheCluster, "verify",
+                                         config.getVerifyNumber().getBucketSize(),
+                                         config.getVerifyNumber().getLeakRatePerMinute());
 
-    this.pinLimiter = new LockingRateLimiter(cacheCluster, "pin",
-                                             config.getVerifyPin().getBucketSize(),
-                                             config.getVerifyPin().getLeakRatePerMinute());
+    this.pinLimiter = new RateLimiter(cacheCluster, "pin",
+                                      config.getVerifyPin().getBucketSize(),
+                                      config.getVerifyPin().getLeakRatePerMinute());
 
     this.attachmentLimiter = new RateLimiter(cacheCluster, "attachmentCreate",
                                              config.getAttachments().getBucketSize(),
                                              config.getAttachments().getLeakRatePerMinute());
 
-    this.preKeysLimiter = new RateLimiter(cacheCluster, "prekeys",
-                                          config.getPreKeys().getBucketSize(),
-                                          config.getPreKeys().getLeakRatePerMinute());
+    this.preKeysLimiter = createLeasedLimiter(cacheCluster, config.getPreKeys(), "prekeys");
 
-    this.messagesLimiter = new RateLimiter(cacheCluster, "messages",
-                                           config.getMessages().getBucketSize(),
-                                           config.getMessages().getLeakRatePerMinute());
+    this.messagesLimiter = createLeasedLimiter(cacheCluster, config.getMessages(), "messages");
 
     this.allocateDeviceLimiter = new RateLimiter(cacheCluster, "allocateDevice",
                                                  config.getAllocateDevice().getBucketSize(),
@@ -230,6 +230,13 @@ public class RateLimiters {
     return preKeysLimiter;
   }
 
+  public List<LeasingRateLimiter> getLeasingRateLimiters() {
+    return Stream.of(preKeysLimiter, messagesLimiter)
+        .filter(limiter -> limiter instanceof LeasingRateLimiter)
+        .map(limiter -> (LeasingRateLimiter) limiter)
+        .collect(Collectors.toList());
+  }
+
   public RateLimiter getAttachmentLimiter() {
     return this.attachmentLimiter;
   }
@@ -319,6 +326,18 @@ public class RateLimiters {
     return createLimiter(cacheCluster, configuration, "dailyPreKeys");
   }
 
+  private RateLimiter createLeasedLimiter(FaultTolerantRedisCluster cacheCluster, LeasedRateLimitConfiguration configuration, String name) {
+    if (configuration.getLeaseSize() > 0) {
+      return new LeasingRateLimiter(cacheCluster, name,
+                                    configuration.getBucketSize(),
+                                    configuration.getLeakRatePerMinute(),
+                                    configuration.getLeaseSize(),
+                                    configuration.getLeaseDuration());
+    }
+
+    return createLimiter(cacheCluster, configuration, name);
+  }
+
   private RateLimiter createLimiter(FaultTolerantRedisCluster cacheCluster, RateLimitConfiguration configuration, String name) {
     return new RateLimiter(cacheCluster, name,
                            configuration.getBucketSize(),
@@ -17,6 +17,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 import org.glassfish.jersey.server.monitoring.RequestEvent;
 import org.glassfish.jersey.server.monitoring.RequestEventListener;
 import org.smassarn.textsecuregcm.util.logging.UriInfoUtil;
@@ -69,26 +70,36 @@ public class MetricsRequestEventListener implements RequestEventListener {
     public void onEvent(final RequestEvent event) {
         if (event.getType() == RequestEvent.Type.FINISHED) {
             if (!event.getUriInfo().getMatchedTemplates().isEmpty()) {
-                final List<Tag> tags = new ArrayList<>(5);
-                tags.add(Tag.of(PATH_TAG, UriInfoUtil.getPathTemplate(event.getUriInfo())));
-                tags.add(Tag.of(STATUS_CODE_TAG, String.valueOf(event.getContainerResponse().getStatus())));
-                tags.add(Tag.of(TRAFFIC_SOURCE_TAG, trafficSource.name().toLowerCase()));
-
                 final List<String> userAgentValues = event.getContainerRequest().getRequestHeader("User-Agent");
-                // tags.addAll(UserAgentTagUtil.getUserAgentTags(userAgentValues != null ? userAgentValues.stream().findFirst().orElse(null) : null));
-                tags.add(UserAgentTagUtil.getPlatformTag(userAgentValues != null ? userAgentValues.stream().findFirst().orElse(null) : null));
 
-                meterRegistry.counter(REQUEST_COUNTER_NAME, tags).increment();
+                recordRequest(UriInfoUtil.getPathTemplate(event.getUriInfo()),
+                    event.getContainerResponse().getStatus(),
+                    userAgentValues != null ? userAgentValues.stream().findFirst().orElse(null) : null);
+            }
+        }
+    }
 
-                try {
-                    final UserAgent userAgent = UserAgentUtil.parseUserAgentString(userAgentValues != null ? userAgentValues.stream().findFirst().orElse(null) : null);
+    /**
+     * Records a finished request; used directly by routes that bypass Jersey.
+     */
+    public void recordRequest(final String pathTemplate, final int status, @Nullable final String userAgentString) {
+        final List<Tag> tags = new ArrayList<>(5);
+        tags.add(Tag.of(PATH_TAG, pathTemplate));
+        tags.add(Tag.of(STATUS_CODE_TAG, String.valueOf(status)));
+        tags.add(Tag.of(TRAFFIC_SOURCE_TAG, trafficSource.name().toLowerCase()));
 
-                    recordDesktopOperatingSystem(userAgent);
-                    recordAndroidSdkVersion(userAgent);
-                    recordIosVersion(userAgent);
-                } catch (final UnrecognizedUserAgentException ignored) {
-                }
-            }
+        // tags.addAll(UserAgentTagUtil.getUserAgentTags(userAgentString));
+        tags.add(UserAgentTagUtil.getPlatformTag(userAgentString));
+
+        meterRegistry.counter(REQUEST_COUNTER_NAME, tags).increment();
+
+        try {
+            final UserAgent userAgent = UserAgentUtil.parseUserAgentString(userAgentString);
+
+            recordDesktopOperatingSystem(userAgent);
+            recordAndroidSdkVersion(userAgent);
+            recordIosVersion(userAgent);
+        } catch (final UnrecognizedUserAgentException ignored) {
         }
     }
 
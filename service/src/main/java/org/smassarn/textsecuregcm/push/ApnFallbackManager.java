@@ -17,11 +17,14 @@ import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.cluster.SlotHash;
 import java.io.IOException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smassarn.textsecuregcm.push.ApnMessage.Type;
@@ -93,12 +96,25 @@ public class ApnFallbackManager implements Managed {
         pendingDestinations = getPendingDestinations(slot, 100);
         entriesProcessed += pendingDestinations.size();
 
+        final Map<String, Optional<Pair<String, Long>>> separatedByDestination = new HashMap<>();
+
+        for (final String uuidAndDevice : pendingDestinations) {
+          separatedByDestination.put(uuidAndDevice, getSeparated(uuidAndDevice));
+        }
+
+        // Fetch every account in this batch at once rather than one at a time
+        final Map<UUID, Account> accountsByUuid = accountsManager.getAll(separatedByDestination.values().stream()
+            .flatMap(Optional::stream)
+            .map(Pair::first)
+            .map(UUID::fromString)
+            .collect(Collectors.toSet()));
+
         for (final String uuidAndDevice : pendingDestinations) {
-          final Optional<Pair<String, Long>> separated = getSeparated(uuidAndDevice);
+          final Optional<Pair<String, Long>> separated = separatedByDestination.get(uuidAndDevice);
 
           final Optional<Account> maybeAccount = separated.map(Pair::first)
                                                           .map(UUID::fromString)
-                                                          .flatMap(accountsManager::get);
+                                                          .map(accountsByUuid::get);
 
           final Optional<Device> maybeDevice = separated.map(Pair::second)
                                                         .flatMap(deviceId -> maybeAccount.flatMap(account -> account.getDevice(deviceId)));
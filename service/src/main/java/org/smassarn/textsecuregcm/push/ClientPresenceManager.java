@@ -13,30 +13,37 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
 import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SetArgs;
 import io.lettuce.core.cluster.SlotHash;
-import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
 import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
 import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smassarn.textsecuregcm.redis.ClusterLuaScript;
 import org.smassarn.textsecuregcm.redis.FaultTolerantPubSubConnection;
 import org.smassarn.textsecuregcm.redis.FaultTolerantRedisCluster;
 import org.smassarn.textsecuregcm.util.Constants;
+import org.smassarn.textsecuregcm.util.Pair;
 
 /**
  * The client presence manager keeps track of which clients are actively connected and "present" to receive messages.
@@ -55,6 +62,11 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
 
   private final ClusterLuaScript clearPresenceScript;
+  private final ClusterLuaScript setPresenceScript;
+  private final ClusterLuaScript renewPruneLockScript;
+  private final ClusterLuaScript releasePruneLockScript;
+
+  private final boolean targetedNotifications;
 
   private final ExecutorService keyspaceNotificationExecutorService;
   private final ScheduledExecutorService scheduledExecutorService;
@@ -63,26 +75,55 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   private final Map<String, DisplacedPresenceListener> displacementListenersByPresenceKey = new ConcurrentHashMap<>();
 
   private final Timer checkPresenceTimer;
+  private final Meter localPresenceMeter;
   private final Timer setPresenceTimer;
   private final Timer clearPresenceTimer;
   private final Timer prunePeersTimer;
   private final Meter pruneClientMeter;
+  private final Meter prunePeerMeter;
+  private final AtomicLong pruneBacklog = new AtomicLong();
   private final Meter remoteDisplacementMeter;
   private final Meter pubSubMessageMeter;
 
   private static final int PRUNE_PEERS_INTERVAL_SECONDS = (int) Duration.ofSeconds(30).toSeconds();
+  private static final int PRUNE_BATCH_SIZE = 1_000;
+  private static final Duration PRUNE_LOCK_TTL = Duration.ofSeconds(30);
 
   static final String MANAGER_SET_KEY = "presence::managers";
 
+  private static final String MANAGER_PRESENCE_CHANNEL_PREFIX = "presence::manager::";
+
   private static final Logger log = LoggerFactory.getLogger(ClientPresenceManager.class);
 
   public ClientPresenceManager(final FaultTolerantRedisCluster presenceCluster,
       final ScheduledExecutorService scheduledExecutorService,
       final ExecutorService keyspaceNotificationExecutorService) throws IOException {
+
+    this(presenceCluster, scheduledExecutorService, keyspaceNotificationExecutorService, false);
+  }
+
+  /**
+   * Constructs a new client presence manager.
+   *
+   * @param targetedNotifications if {@code true}, this manager learns that its clients have been displaced only via its
+   * own manager channel, to which other managers publish when they take over a presence; otherwise, it also subscribes
+   * to keyspace notifications for each of its clients' presence keys
+   */
+  public ClientPresenceManager(final FaultTolerantRedisCluster presenceCluster,
+      final ScheduledExecutorService scheduledExecutorService,
+      final ExecutorService keyspaceNotificationExecutorService,
+      final boolean targetedNotifications) throws IOException {
     this.presenceCluster = presenceCluster;
     this.pubSubConnection = this.presenceCluster.createPubSubConnection();
     this.clearPresenceScript = ClusterLuaScript.fromResource(presenceCluster, "lua/clear_presence.lua",
         ScriptOutputType.INTEGER);
+    this.setPresenceScript = ClusterLuaScript.fromResource(presenceCluster, "lua/set_presence.lua",
+        ScriptOutputType.INTEGER);
+    this.renewPruneLockScript = ClusterLuaScript.fromResource(presenceCluster, "lua/renew_prune_lock.lua",
+        ScriptOutputType.INTEGER);
+    this.releasePruneLockScript = ClusterLuaScript.fromResource(presenceCluster, "lua/release_prune_lock.lua",
+        ScriptOutputType.INTEGER);
+    this.targetedNotifications = targetedNotifications;
     this.scheduledExecutorService = scheduledExecutorService;
     this.keyspaceNotificationExecutorService = keyspaceNotificationExecutorService;
 
@@ -90,10 +131,13 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
     metricRegistry.gauge(name(getClass(), "localClientCount"), () -> displacementListenersByPresenceKey::size);
 
     this.checkPresenceTimer = metricRegistry.timer(name(getClass(), "checkPresence"));
+    this.localPresenceMeter = metricRegistry.meter(name(getClass(), "localPresence"));
     this.setPresenceTimer = metricRegistry.timer(name(getClass(), "setPresence"));
     this.clearPresenceTimer = metricRegistry.timer(name(getClass(), "clearPresence"));
     this.prunePeersTimer = metricRegistry.timer(name(getClass(), "prunePeers"));
     this.pruneClientMeter = metricRegistry.meter(name(getClass(), "pruneClient"));
+    this.prunePeerMeter = metricRegistry.meter(name(getClass(), "prunePeer"));
+    metricRegistry.gauge(name(getClass(), "pruneBacklog"), () -> pruneBacklog::get);
     this.remoteDisplacementMeter = metricRegistry.meter(name(getClass(), "remoteDisplacement"));
     this.pubSubMessageMeter = metricRegistry.meter(name(getClass(), "pubSubMessage"));
   }
@@ -110,15 +154,10 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
       connection.getResources().eventBus().get()
           .filter(event -> event instanceof ClusterTopologyChangedEvent)
           .subscribe(event -> resubscribeAll());
-
-      final String presenceChannel = getManagerPresenceChannel(managerId);
-      final int slot = SlotHash.getSlot(presenceChannel);
-
-      connection.sync().nodes(node -> node.is(RedisClusterNode.NodeFlag.UPSTREAM) && node.hasSlot(slot))
-          .commands()
-          .subscribe(presenceChannel);
     });
 
+    subscribeForManagerPresenceChannel();
+
     presenceCluster.useCluster(connection -> connection.sync().sadd(MANAGER_SET_KEY, managerId));
 
     pruneMissingPeersFuture = scheduledExecutorService.scheduleWithFixedDelay(() -> {
@@ -161,13 +200,19 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
       displacementListenersByPresenceKey.put(presenceKey, displacementListener);
 
       presenceCluster.useCluster(connection -> {
-        final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
+        // The two keys live in different slots and can't be updated by a single script, but both commands can be in
+        // flight at once
+        final RedisFuture<Long> saddFuture = connection.async().sadd(connectedClientSetKey, presenceKey);
 
-        commands.sadd(connectedClientSetKey, presenceKey);
-        commands.set(presenceKey, managerId);
+        // If another manager held this presence, the script tells it that its client has been displaced
+        setPresenceScript.execute(List.of(presenceKey), List.of(managerId, MANAGER_PRESENCE_CHANNEL_PREFIX));
+        LettuceFutures.awaitAll(connection.getTimeout(), saddFuture);
       });
 
-      subscribeForRemotePresenceChanges(presenceKey);
+      if (!targetedNotifications) {
+        // Subscribing only after the presence key has been set keeps us from being notified of our own write
+        subscribeForRemotePresenceChanges(presenceKey);
+      }
     }
   }
 
@@ -187,11 +232,58 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
 
   public boolean isPresent(final UUID accountUuid, final long deviceId) {
     try (final Timer.Context ignored = checkPresenceTimer.time()) {
+      if (isLocallyPresent(accountUuid, deviceId)) {
+        localPresenceMeter.mark();
+        return true;
+      }
+
       return presenceCluster.withCluster(connection ->
           connection.sync().exists(getPresenceKey(accountUuid, deviceId))) == 1;
     }
   }
 
+  /**
+   * Checks whether each of the given devices is present on any server. Devices connected to this server are answered
+   * from memory, and the presence of all others is checked with a single pipelined batch of commands.
+   *
+   * @param accountUuidsAndDeviceIds the account UUIDs and device IDs of the devices to check
+   *
+   * @return whether each of the given devices is present
+   */
+  public Map<Pair<UUID, Long>, Boolean> isPresent(final Collection<Pair<UUID, Long>> accountUuidsAndDeviceIds) {
+    try (final Timer.Context ignored = checkPresenceTimer.time()) {
+      final Map<Pair<UUID, Long>, Boolean> presenceByDevice = new HashMap<>(accountUuidsAndDeviceIds.size());
+      final Map<Pair<UUID, Long>, String> presenceKeysByRemoteDevice = new HashMap<>();
+
+      for (final Pair<UUID, Long> accountUuidAndDeviceId : accountUuidsAndDeviceIds) {
+        final String presenceKey = getPresenceKey(accountUuidAndDeviceId.first(), accountUuidAndDeviceId.second());
+
+        if (displacementListenersByPresenceKey.containsKey(presenceKey)) {
+          localPresenceMeter.mark();
+          presenceByDevice.put(accountUuidAndDeviceId, true);
+        } else {
+          presenceKeysByRemoteDevice.put(accountUuidAndDeviceId, presenceKey);
+        }
+      }
+
+      if (!presenceKeysByRemoteDevice.isEmpty()) {
+        presenceCluster.useCluster(connection -> {
+          final Map<Pair<UUID, Long>, RedisFuture<Long>> existsFutures = new HashMap<>();
+
+          presenceKeysByRemoteDevice.forEach((accountUuidAndDeviceId, presenceKey) ->
+              existsFutures.put(accountUuidAndDeviceId, connection.async().exists(presenceKey)));
+
+          LettuceFutures.awaitAll(connection.getTimeout(), existsFutures.values().toArray(RedisFuture[]::new));
+
+          existsFutures.forEach((accountUuidAndDeviceId, existsFuture) ->
+              presenceByDevice.put(accountUuidAndDeviceId, existsFuture.toCompletableFuture().join() == 1));
+        });
+      }
+
+      return presenceByDevice;
+    }
+  }
+
   public boolean isLocallyPresent(final UUID accountUuid, final long deviceId) {
     return displacementListenersByPresenceKey.containsKey(getPresenceKey(accountUuid, deviceId));
   }
@@ -203,7 +295,10 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   private boolean clearPresence(final String presenceKey) {
     try (final Timer.Context ignored = clearPresenceTimer.time()) {
       displacementListenersByPresenceKey.remove(presenceKey);
-      unsubscribeFromRemotePresenceChanges(presenceKey);
+
+      if (!targetedNotifications) {
+        unsubscribeFromRemotePresenceChanges(presenceKey);
+      }
 
       final boolean removed = clearPresenceScript.execute(List.of(presenceKey), List.of(managerId)) != null;
       presenceCluster.useCluster(connection -> connection.sync().srem(connectedClientSetKey, presenceKey));
@@ -221,9 +316,23 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
             .subscribe(getKeyspaceNotificationChannel(presenceKey)));
   }
 
+  private void subscribeForManagerPresenceChannel() {
+    final String presenceChannel = getManagerPresenceChannel(managerId);
+    final int slot = SlotHash.getSlot(presenceChannel);
+
+    pubSubConnection.usePubSubConnection(
+        connection -> connection.sync().nodes(node -> node.is(RedisClusterNode.NodeFlag.UPSTREAM) && node.hasSlot(slot))
+            .commands()
+            .subscribe(presenceChannel));
+  }
+
   private void resubscribeAll() {
-    for (final String presenceKey : displacementListenersByPresenceKey.keySet()) {
-      subscribeForRemotePresenceChanges(presenceKey);
+    subscribeForManagerPresenceChannel();
+
+    if (!targetedNotifications) {
+      for (final String presenceKey : displacementListenersByPresenceKey.keySet()) {
+        subscribeForRemotePresenceChanges(presenceKey);
+      }
     }
   }
 
@@ -238,49 +347,128 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
           connection -> connection.sync().smembers(MANAGER_SET_KEY));
       peerIds.remove(managerId);
 
-      for (final String peerId : peerIds) {
-        final boolean peerMissing = presenceCluster.withCluster(
-            connection -> connection.sync().publish(getManagerPresenceChannel(peerId), "ping") == 0);
+      if (peerIds.isEmpty()) {
+        return;
+      }
+
+      // Ping all peers at once rather than waiting for each to respond in turn
+      final Map<String, RedisFuture<Long>> pingFuturesByPeerId = new HashMap<>();
+
+      presenceCluster.useCluster(connection -> {
+        for (final String peerId : peerIds) {
+          pingFuturesByPeerId.put(peerId, connection.async().publish(getManagerPresenceChannel(peerId), "ping"));
+        }
+
+        LettuceFutures.awaitAll(connection.getTimeout(), pingFuturesByPeerId.values().toArray(RedisFuture[]::new));
+      });
+
+      for (final Map.Entry<String, RedisFuture<Long>> entry : pingFuturesByPeerId.entrySet()) {
+        if (entry.getValue().toCompletableFuture().join() == 0) {
+          log.debug("Presence manager {} did not respond to ping", entry.getKey());
+          pruneMissingPeer(entry.getKey());
+        }
+      }
+    }
+  }
+
+  private void pruneMissingPeer(final String peerId) {
+    final String pruneLockKey = getPruneLockKey(peerId);
+
+    // Every surviving manager will notice the missing peer, but only one needs to clean up after it
+    final boolean claimed = "OK".equals(presenceCluster.withCluster(connection ->
+        connection.sync().set(pruneLockKey, managerId, SetArgs.Builder.nx().ex(PRUNE_LOCK_TTL.toSeconds()))));
+
+    if (!claimed) {
+      return;
+    }
+
+    prunePeerMeter.mark();
+
+    final String connectedClientsKey = getConnectedClientSetKey(peerId);
 
-        if (peerMissing) {
-          log.debug("Presence manager {} did not respond to ping", peerId);
+    try {
+      pruneBacklog.set(presenceCluster.withCluster(connection -> connection.sync().scard(connectedClientsKey)));
 
-          final String connectedClientsKey = getConnectedClientSetKey(peerId);
+      Set<String> presenceKeys;
 
-          String presenceKey;
+      while (!(presenceKeys = presenceCluster.withCluster(connection ->
+          connection.sync().spop(connectedClientsKey, PRUNE_BATCH_SIZE))).isEmpty()) {
 
-          while ((presenceKey = presenceCluster.withCluster(connection -> connection.sync().spop(connectedClientsKey)))
-              != null) {
-            clearPresenceScript.execute(List.of(presenceKey), List.of(peerId));
-            pruneClientMeter.mark();
-          }
+        CompletableFuture.allOf(presenceKeys.stream()
+            .map(presenceKey -> clearPresenceScript.executeAsync(List.of(presenceKey), List.of(peerId)))
+            .toArray(CompletableFuture[]::new))
+            .join();
 
-          presenceCluster.useCluster(connection -> {
-            connection.sync().del(connectedClientsKey);
-            connection.sync().srem(MANAGER_SET_KEY, peerId);
-          });
+        pruneClientMeter.mark(presenceKeys.size());
+        pruneBacklog.addAndGet(-presenceKeys.size());
+
+        // Keep the claim for as long as we're making progress; if it lapsed and another manager took over, let that
+        // manager finish
+        if (!renewPruneLock(peerId)) {
+          log.warn("Lost claim on pruning missing peer {}", peerId);
+          return;
         }
       }
+
+      presenceCluster.useCluster(connection -> {
+        connection.sync().del(connectedClientsKey);
+        connection.sync().srem(MANAGER_SET_KEY, peerId);
+      });
+    } finally {
+      pruneBacklog.set(0);
+      releasePruneLock(peerId);
     }
   }
 
+  /**
+   * Extends this manager's claim on pruning the given peer.
+   *
+   * @return {@code true} if this manager still held the claim or {@code false} if another manager has taken it over
+   */
+  @VisibleForTesting
+  boolean renewPruneLock(final String peerId) {
+    final Object renewed = renewPruneLockScript.execute(List.of(getPruneLockKey(peerId)),
+        List.of(managerId, String.valueOf(PRUNE_LOCK_TTL.toSeconds())));
+
+    return renewed instanceof Long && (Long) renewed == 1;
+  }
+
+  /**
+   * Releases this manager's claim on pruning the given peer. If the claim expired and another manager has since taken
+   * it over, the other manager's claim is left in place.
+   */
+  @VisibleForTesting
+  void releasePruneLock(final String peerId) {
+    releasePruneLockScript.execute(List.of(getPruneLockKey(peerId)), List.of(managerId));
+  }
+
   @Override
   public void message(final RedisClusterNode node, final String channel, final String message) {
     pubSubMessageMeter.mark();
 
     if ("set".equals(message) && channel.startsWith("__keyspace@0__:presence::{")) {
       // Another process has overwritten this presence key, which means the client has connected to another host.
-      // At this point, we're on a Lettuce IO thread and need to dispatch to a separate thread before making
-      // synchronous Lettuce calls to avoid deadlocking.
-      keyspaceNotificationExecutorService.execute(() -> {
-        try {
-          displacePresence(channel.substring("__keyspace@0__:".length()));
+      handleRemoteDisplacement(channel.substring("__keyspace@0__:".length()));
+    } else if (message.startsWith("presence::{") && channel.equals(getManagerPresenceChannel(managerId))) {
+      // Another manager has taken over this presence and told us so directly
+      handleRemoteDisplacement(message);
+    }
+  }
+
+  private void handleRemoteDisplacement(final String presenceKey) {
+    // At this point, we're on a Lettuce IO thread and need to dispatch to a separate thread before making synchronous
+    // Lettuce calls to avoid deadlocking.
+    keyspaceNotificationExecutorService.execute(() -> {
+      try {
+        // With both kinds of notification, the same displacement may be reported twice
+        if (displacementListenersByPresenceKey.containsKey(presenceKey)) {
+          displacePresence(presenceKey);
           remoteDisplacementMeter.mark();
-        } catch (final Exception e) {
-          log.warn("Error displacing presence", e);
         }
-      });
-    }
+      } catch (final Exception e) {
+        log.warn("Error displacing presence", e);
+      }
+    });
   }
 
   @VisibleForTesting
@@ -297,8 +485,13 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
     return "presence::clients::" + managerId;
   }
 
+  @VisibleForTesting
+  static String getPruneLockKey(final String managerId) {
+    return "presence::prune_lock::" + managerId;
+  }
+
   @VisibleForTesting
   static String getManagerPresenceChannel(final String managerId) {
-    return "presence::manager::" + managerId;
+    return MANAGER_PRESENCE_CHANNEL_PREFIX + managerId;
   }
 }
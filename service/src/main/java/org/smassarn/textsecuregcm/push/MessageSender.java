@@ -8,16 +8,29 @@ import static com.codahale.metrics.MetricRegistry.name;
 import static org.smassarn.textsecuregcm.entities.MessageProtos.Envelope;
 
 import io.dropwizard.lifecycle.Managed;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.smassarn.textsecuregcm.metrics.PushLatencyManager;
 import org.smassarn.textsecuregcm.push.ApnMessage.Type;
 import org.smassarn.textsecuregcm.redis.RedisOperation;
 import org.smassarn.textsecuregcm.storage.Account;
 import org.smassarn.textsecuregcm.storage.Device;
 import org.smassarn.textsecuregcm.storage.MessagesManager;
+import org.smassarn.textsecuregcm.storage.PendingMessage;
+import org.smassarn.textsecuregcm.util.Pair;
 import org.smassarn.textsecuregcm.util.Util;
 
 /**
@@ -47,6 +60,29 @@ public class MessageSender implements Managed {
   private static final String EPHEMERAL_TAG_NAME     = "ephemeral";
   private static final String CLIENT_ONLINE_TAG_NAME = "clientOnline";
 
+  private static final Counter SEND_FAILED_COUNTER = Metrics.counter(name(MessageSender.class, "sendMessageFailed"));
+
+  private static final Logger logger = LoggerFactory.getLogger(MessageSender.class);
+
+  private static class Delivery {
+
+    private final Account account;
+    private final Device device;
+    private final Envelope message;
+    private final String channel;
+
+    private Delivery(final Account account, final Device device, final Envelope message, final String channel) {
+      this.account = account;
+      this.device = device;
+      this.message = message;
+      this.channel = channel;
+    }
+
+    private Pair<UUID, Long> getDestination() {
+      return new Pair<>(account.getUuid(), device.getId());
+    }
+  }
+
   public MessageSender(ApnFallbackManager    apnFallbackManager,
                        ClientPresenceManager clientPresenceManager,
                        MessagesManager       messagesManager,
@@ -65,22 +101,7 @@ public class MessageSender implements Managed {
   public void sendMessage(final Account account, final Device device, final Envelope message, boolean online)
       throws NotPushRegisteredException
   {
-    if (device.getGcmId() == null && device.getApnId() == null && !device.getFetchesMessages()) {
-      throw new NotPushRegisteredException("No delivery possible!");
-    }
-
-    final String channel;
-
-    if (device.getGcmId() != null) {
-      channel = "gcm";
-    } else if (device.getApnId() != null) {
-      channel = "apn";
-    } else if (device.getFetchesMessages()) {
-      channel = "websocket";
-    } else {
-      throw new AssertionError();
-    }
-
+    final String channel = getDeliveryChannel(device);
     final boolean clientPresent;
 
     if (online) {
@@ -102,6 +123,131 @@ public class MessageSender implements Managed {
       }
     }
 
+    incrementSendCounter(channel, online, clientPresent);
+  }
+
+  /**
+   * Sends messages to many destination devices at once (as for a multi-recipient message). Unlike
+   * {@link #sendMessage(Account, Device, Envelope, boolean)}, all messages are written to the message cache as a single
+   * batch instead of one blocking round trip per device, and presence is checked for all devices with a single batch;
+   * notifications are then dispatched via the given executor.
+   * <p/>
+   * Each message is delivered independently of the others: a message that can't be written to the cache, or whose
+   * notification can't be sent, is logged and counted, but doesn't prevent delivery of the rest. A destination that
+   * appears more than once receives each of its messages.
+   *
+   * @param messages the destination account and device for each message, paired with the message itself
+   * @param online whether the messages should be delivered only to devices that are currently connected
+   * @param executor the executor on which to send notifications for individual devices
+   *
+   * @return the destinations to which no delivery was possible because the device has no delivery channel
+   */
+  public List<Pair<Account, Device>> sendMessages(final List<Pair<Pair<Account, Device>, Envelope>> messages,
+      final boolean online, final Executor executor) {
+
+    final List<Pair<Account, Device>> undeliverableDestinations = new ArrayList<>();
+    final List<Delivery> deliveries = new ArrayList<>(messages.size());
+
+    for (final Pair<Pair<Account, Device>, Envelope> message : messages) {
+      try {
+        deliveries.add(new Delivery(message.first().first(), message.first().second(), message.second(),
+            getDeliveryChannel(message.first().second())));
+      } catch (final NotPushRegisteredException e) {
+        undeliverableDestinations.add(message.first());
+      }
+    }
+
+    if (online) {
+      final Map<Pair<UUID, Long>, Boolean> presenceByDevice = isPresent(deliveries);
+
+      insert(deliveries.stream()
+          .filter(delivery -> presenceByDevice.getOrDefault(delivery.getDestination(), false))
+          .collect(Collectors.toList()), true);
+
+      deliveries.forEach(delivery -> incrementSendCounter(delivery.channel, true,
+          presenceByDevice.getOrDefault(delivery.getDestination(), false)));
+    } else {
+      final List<Delivery> insertedDeliveries = insert(deliveries, false);
+
+      // As with single messages, check for presence only after all messages have been inserted
+      final Map<Pair<UUID, Long>, Boolean> presenceByDevice = isPresent(insertedDeliveries);
+
+      CompletableFuture.allOf(insertedDeliveries.stream()
+          .filter(delivery -> !presenceByDevice.getOrDefault(delivery.getDestination(), false))
+          .map(delivery -> CompletableFuture.runAsync(
+              () -> sendNewMessageNotification(delivery.account, delivery.device), executor)
+              .exceptionally(cause -> {
+                SEND_FAILED_COUNTER.increment();
+                logger.warn("Failed to send notification to {}::{}", delivery.account.getUuid(), delivery.device.getId(),
+                    cause);
+
+                return null;
+              }))
+          .toArray(CompletableFuture[]::new)).join();
+
+      insertedDeliveries.forEach(delivery -> incrementSendCounter(delivery.channel, false,
+          presenceByDevice.getOrDefault(delivery.getDestination(), false)));
+    }
+
+    return undeliverableDestinations;
+  }
+
+  /**
+   * Writes the given deliveries' messages to the message cache as a single batch and waits for every write to finish.
+   *
+   * @return the deliveries whose messages were written successfully
+   */
+  private List<Delivery> insert(final List<Delivery> deliveries, final boolean ephemeral) {
+    final List<CompletableFuture<Void>> insertFutures = messagesManager.insert(deliveries.stream()
+        .map(delivery -> new PendingMessage(UUID.randomUUID(), delivery.account.getUuid(), delivery.device.getId(),
+            ephemeral ? delivery.message.toBuilder().setEphemeral(true).build() : delivery.message))
+        .collect(Collectors.toList()));
+
+    final List<Delivery> insertedDeliveries = new ArrayList<>(deliveries.size());
+
+    for (int i = 0; i < deliveries.size(); i++) {
+      try {
+        insertFutures.get(i).join();
+        insertedDeliveries.add(deliveries.get(i));
+      } catch (final CompletionException e) {
+        SEND_FAILED_COUNTER.increment();
+        logger.warn("Failed to insert message for {}::{}", deliveries.get(i).account.getUuid(),
+            deliveries.get(i).device.getId(), e.getCause());
+      }
+    }
+
+    return insertedDeliveries;
+  }
+
+  /**
+   * Checks presence for all of the given deliveries' devices at once. If presence can't be checked, every device is
+   * treated as absent, which errs toward sending notifications rather than failing every delivery.
+   */
+  private Map<Pair<UUID, Long>, Boolean> isPresent(final List<Delivery> deliveries) {
+    try {
+      return clientPresenceManager.isPresent(deliveries.stream()
+          .map(Delivery::getDestination)
+          .distinct()
+          .collect(Collectors.toList()));
+    } catch (final Exception e) {
+      logger.warn("Failed to check presence for {} devices", deliveries.size(), e);
+      return Collections.emptyMap();
+    }
+  }
+
+  private static String getDeliveryChannel(final Device device) throws NotPushRegisteredException {
+    if (device.getGcmId() != null) {
+      return "gcm";
+    } else if (device.getApnId() != null) {
+      return "apn";
+    } else if (device.getFetchesMessages()) {
+      return "websocket";
+    } else {
+      throw new NotPushRegisteredException("No delivery possible!");
+    }
+  }
+
+  private static void incrementSendCounter(final String channel, final boolean online, final boolean clientPresent) {
     final List<Tag> tags = List.of(
             Tag.of(CHANNEL_TAG_NAME, channel),
             Tag.of(EPHEMERAL_TAG_NAME, String.valueOf(online)),
@@ -13,6 +13,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -87,7 +92,71 @@ public class ClusterLuaScript {
         });
     }
 
+    /**
+     * Executes this script without blocking the calling thread. Callers that submit many invocations in a row
+     * effectively pipeline them; Lettuce writes each command to the owning node as soon as it's issued. If the script
+     * isn't present on the destination node, it's reloaded and the invocation is retried once.
+     *
+     * @param keys the keys to pass to the script
+     * @param args the arguments to pass to the script
+     *
+     * @return a future that yields the script's result
+     *
+     * @see FaultTolerantRedisCluster#withClusterAsync(Function)
+     */
+    public CompletableFuture<Object> executeAsync(final List<String> keys, final List<String> args) {
+        final String[] keyArray = keys.toArray(STRING_ARRAY);
+        final String[] argArray = args.toArray(STRING_ARRAY);
+
+        return redisCluster.withClusterAsync(connection ->
+            reloadOnNoScript(() -> connection.async().<Object>evalsha(sha, scriptOutputType, keyArray, argArray)))
+            .toCompletableFuture();
+    }
+
+    /**
+     * Executes this script with binary keys and arguments without blocking the calling thread.
+     *
+     * @param keys the keys to pass to the script
+     * @param args the arguments to pass to the script
+     *
+     * @return a future that yields the script's result
+     *
+     * @see #executeAsync(List, List)
+     */
+    public CompletableFuture<Object> executeBinaryAsync(final List<byte[]> keys, final List<byte[]> args) {
+        final byte[][] keyArray = keys.toArray(BYTE_ARRAY_ARRAY);
+        final byte[][] argArray = args.toArray(BYTE_ARRAY_ARRAY);
+
+        return redisCluster.withBinaryClusterAsync(connection ->
+            reloadOnNoScript(() -> connection.async().<Object>evalsha(sha, scriptOutputType, keyArray, argArray)))
+            .toCompletableFuture();
+    }
+
+    private CompletionStage<Object> reloadOnNoScript(final Supplier<CompletionStage<Object>> evalsha) {
+        return evalsha.get()
+            .handle((result, throwable) -> {
+                if (throwable == null) {
+                    return CompletableFuture.completedFuture(result);
+                }
+
+                final Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+
+                if (cause instanceof RedisNoScriptException) {
+                    return reloadScriptAsync().thenCompose(ignored -> evalsha.get());
+                }
+
+                log.warn("Failed to execute script", cause);
+                return CompletableFuture.<Object>failedFuture(cause);
+            })
+            .thenCompose(Function.identity());
+    }
+
     private void reloadScript() {
         redisCluster.useCluster(connection -> connection.sync().upstream().commands().scriptLoad(script));
     }
+
+    private CompletionStage<Void> reloadScriptAsync() {
+        return redisCluster.withClusterAsync(connection ->
+            CompletableFuture.allOf(connection.async().upstream().commands().scriptLoad(script).futures()));
+    }
 }
@@ -22,6 +22,9 @@ import io.lettuce.core.resource.ClientResources;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -49,6 +52,8 @@ public class FaultTolerantRedisCluster {
     private final CircuitBreaker circuitBreaker;
     private final Retry          retry;
 
+    private final ScheduledExecutorService asyncRetryExecutor;
+
     public FaultTolerantRedisCluster(final String name, final RedisClusterConfiguration clusterConfiguration, final ClientResources clientResources) {
         this(name,
              RedisClusterClient.create(clientResources, clusterConfiguration.getUrls().stream().map(RedisURI::create).collect(Collectors.toList())),
@@ -76,6 +81,9 @@ public class FaultTolerantRedisCluster {
         this.circuitBreaker = CircuitBreaker.of(name + "-breaker", circuitBreakerConfiguration.toCircuitBreakerConfig());
         this.retry          = Retry.of(name + "-retry", retryConfiguration.toRetryConfigBuilder().retryOnException(exception -> exception instanceof RedisCommandTimeoutException).build());
 
+        // Async retries are scheduled on Lettuce's own event executors rather than a dedicated thread pool
+        this.asyncRetryExecutor = clusterClient.getResources().eventExecutorGroup();
+
         CircuitBreakerUtil.registerMetrics(SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME), circuitBreaker, FaultTolerantRedisCluster.class);
         CircuitBreakerUtil.registerMetrics(SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME), retry, FaultTolerantRedisCluster.class);
     }
@@ -111,6 +119,33 @@ public class FaultTolerantRedisCluster {
         return withConnection(binaryConnection, function);
     }
 
+    /**
+     * Applies the given function to the cluster's string connection without blocking the calling thread. The function
+     * is expected to issue commands via {@link StatefulRedisClusterConnection#async()} and return the resulting stage.
+     * The operation is protected by the same circuit breaker as synchronous operations, and timed-out operations are
+     * retried asynchronously according to the same retry policy.
+     *
+     * @param function the function to apply to the cluster's string connection
+     *
+     * @return a stage that completes with the result of the asynchronous operation
+     */
+    public <T> CompletionStage<T> withClusterAsync(final Function<StatefulRedisClusterConnection<String, String>, CompletionStage<T>> function) {
+        return withConnectionAsync(stringConnection, function);
+    }
+
+    /**
+     * Applies the given function to the cluster's binary connection without blocking the calling thread.
+     *
+     * @param function the function to apply to the cluster's binary connection
+     *
+     * @return a stage that completes with the result of the asynchronous operation
+     *
+     * @see #withClusterAsync(Function)
+     */
+    public <T> CompletionStage<T> withBinaryClusterAsync(final Function<StatefulRedisClusterConnection<byte[], byte[]>, CompletionStage<T>> function) {
+        return withConnectionAsync(binaryConnection, function);
+    }
+
     private <K, V> void useConnection(final StatefulRedisClusterConnection<K, V> connection, final Consumer<StatefulRedisClusterConnection<K, V>> consumer) {
         try {
             circuitBreaker.executeCheckedRunnable(() -> retry.executeRunnable(() -> consumer.accept(connection)));
@@ -135,6 +170,16 @@ public class FaultTolerantRedisCluster {
         }
     }
 
+    private <T, K, V> CompletionStage<T> withConnectionAsync(final StatefulRedisClusterConnection<K, V> connection, final Function<StatefulRedisClusterConnection<K, V>, CompletionStage<T>> function) {
+        return circuitBreaker.executeCompletionStage(() -> retry.executeCompletionStage(asyncRetryExecutor, () -> {
+            try {
+                return function.apply(connection);
+            } catch (final Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }));
+    }
+
     public FaultTolerantPubSubConnection<String, String> createPubSubConnection() {
         final StatefulRedisClusterPubSubConnection<String, String> pubSubConnection = clusterClient.connectPubSub();
         pubSubConnections.add(pubSubConnection);
@@ -9,20 +9,29 @@ import static com.codahale.metrics.MetricRegistry.name;
 import static io.micrometer.core.instrument.Metrics.counter;
 import static io.micrometer.core.instrument.Metrics.timer;
 
-import io.micrometer.core.instrument.Counter;
+import com.google.common.annotations.VisibleForTesting;
 import io.micrometer.core.instrument.Timer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
-import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
 import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
@@ -30,9 +39,13 @@ public class AbstractDynamoDbStore {
 
   private final DynamoDbClient dynamoDbClient;
 
-  private final Timer batchWriteItemsFirstPass = timer(name(getClass(), "batchWriteItems"), "firstAttempt", "true");
-  private final Timer batchWriteItemsRetryPass = timer(name(getClass(), "batchWriteItems"), "firstAttempt", "false");
-  private final Counter batchWriteItemsUnprocessed = counter(name(getClass(), "batchWriteItemsUnprocessed"));
+  @Nullable
+  private final DynamoDbAsyncClient dynamoDbAsyncClient;
+
+  private final String batchWriteItemsTimerName = name(getClass(), "batchWriteItems");
+  private final String batchWriteItemsWrittenCounterName = name(getClass(), "batchWriteItemsWritten");
+  private final String batchWriteItemsThrottledCounterName = name(getClass(), "batchWriteItemsThrottled");
+  private final String batchWriteItemsUnprocessedCounterName = name(getClass(), "batchWriteItemsUnprocessed");
 
   private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -40,34 +53,124 @@ public class AbstractDynamoDbStore {
   public static final int DYNAMO_DB_MAX_BATCH_SIZE = 25;  // This limit comes from Amazon Dynamo DB itself. It will reject batch writes larger than this.
   public static final int RESULT_SET_CHUNK_SIZE = 100;
 
+  @VisibleForTesting
+  static final int MAX_CONCURRENT_BATCH_WRITES = 8;
+
+  private static final long BASE_RETRY_DELAY_MILLIS = 25;
+  private static final long MAX_RETRY_DELAY_MILLIS = 2_000;
+
   public AbstractDynamoDbStore(final DynamoDbClient dynamoDbClient) {
+    this(dynamoDbClient, null);
+  }
+
+  public AbstractDynamoDbStore(final DynamoDbClient dynamoDbClient, @Nullable final DynamoDbAsyncClient dynamoDbAsyncClient) {
     this.dynamoDbClient = dynamoDbClient;
+    this.dynamoDbAsyncClient = dynamoDbAsyncClient;
   }
 
   protected DynamoDbClient db() {
     return dynamoDbClient;
   }
 
-  protected void executeTableWriteItemsUntilComplete(final Map<String, List<WriteRequest>> items) {
-    AtomicReference<BatchWriteItemResponse> outcome = new AtomicReference<>();
-    batchWriteItemsFirstPass.record(
-        () -> outcome.set(dynamoDbClient.batchWriteItem(BatchWriteItemRequest.builder().requestItems(items).build())));
-    int attemptCount = 0;
-    while (!outcome.get().unprocessedItems().isEmpty() && attemptCount < MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE) {
-      batchWriteItemsRetryPass.record(() -> outcome.set(dynamoDbClient.batchWriteItem(BatchWriteItemRequest.builder()
-          .requestItems(outcome.get().unprocessedItems())
-          .build())));
-      ++attemptCount;
+  /**
+   * Writes the given items to the given table in batches of at most {@link #DYNAMO_DB_MAX_BATCH_SIZE} items, keeping up
+   * to {@link #MAX_CONCURRENT_BATCH_WRITES} batches in flight at a time. Items that DynamoDB leaves unprocessed are
+   * retried with jittered exponential backoff. Items are drawn from the given iterable lazily, so it may be backed by a
+   * paginated query; this method blocks until every batch has either been written or exhausted its retries. If any
+   * batch fails, no further items are drawn from the iterable.
+   *
+   * @param tableName the name of the table to which to write
+   * @param items the write requests to apply
+   *
+   * @throws IllegalStateException if this store was not constructed with an asynchronous client
+   */
+  protected void executeTableWriteItemsUntilComplete(final String tableName, final Iterable<WriteRequest> items) {
+    if (dynamoDbAsyncClient == null) {
+      throw new IllegalStateException("Batch writes require an asynchronous DynamoDB client");
     }
-    if (!outcome.get().unprocessedItems().isEmpty()) {
-      int totalItems = outcome.get().unprocessedItems().values().stream().mapToInt(List::size).sum();
-      logger.error(
-          "Attempt count ({}) reached max ({}}) before applying all batch writes to dynamo. {} unprocessed items remain.",
-          attemptCount, MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE, totalItems);
-      batchWriteItemsUnprocessed.increment(totalItems);
+
+    final Semaphore batchPermits = new Semaphore(MAX_CONCURRENT_BATCH_WRITES);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    writeInBatches(items, batch -> {
+      batchPermits.acquireUninterruptibly();
+
+      try {
+        writeBatch(tableName, new ArrayList<>(batch), 1).whenComplete((ignored, cause) -> {
+          if (cause != null) {
+            failure.compareAndSet(null, cause);
+          }
+
+          batchPermits.release();
+        });
+      } catch (final RuntimeException e) {
+        failure.compareAndSet(null, e);
+        batchPermits.release();
+      }
+    }, () -> failure.get() != null);
+
+    // Wait for every outstanding batch to finish
+    batchPermits.acquireUninterruptibly(MAX_CONCURRENT_BATCH_WRITES);
+
+    final Throwable cause = failure.get();
+
+    if (cause != null) {
+      final Throwable unwrapped = cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause;
+
+      if (unwrapped instanceof RuntimeException) {
+        throw (RuntimeException) unwrapped;
+      }
+
+      throw new CompletionException(unwrapped);
     }
   }
 
+  private CompletableFuture<Void> writeBatch(final String tableName, final List<WriteRequest> batch, final int attempt) {
+    final Timer.Sample sample = Timer.start();
+
+    return dynamoDbAsyncClient.batchWriteItem(BatchWriteItemRequest.builder()
+            .requestItems(Map.of(tableName, batch))
+            .build())
+        .thenCompose(response -> {
+          sample.stop(timer(batchWriteItemsTimerName, "table", tableName, "firstAttempt", String.valueOf(attempt == 1)));
+
+          final List<WriteRequest> unprocessed =
+              response.unprocessedItems().getOrDefault(tableName, Collections.emptyList());
+
+          counter(batchWriteItemsWrittenCounterName, "table", tableName).increment(batch.size() - unprocessed.size());
+
+          if (unprocessed.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+          }
+
+          counter(batchWriteItemsThrottledCounterName, "table", tableName).increment(unprocessed.size());
+
+          if (attempt >= MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE) {
+            logger.error(
+                "Attempt count ({}) reached max ({}) before applying all batch writes to dynamo. {} unprocessed items remain.",
+                attempt, MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE, unprocessed.size());
+
+            counter(batchWriteItemsUnprocessedCounterName, "table", tableName).increment(unprocessed.size());
+
+            return CompletableFuture.completedFuture(null);
+          }
+
+          return CompletableFuture.runAsync(() -> {},
+                  CompletableFuture.delayedExecutor(getRetryDelayMillis(attempt), TimeUnit.MILLISECONDS))
+              .thenCompose(ignored -> writeBatch(tableName, unprocessed, attempt + 1));
+        });
+  }
+
+  /**
+   * Chooses a delay before retrying unprocessed items using "full jitter," which spreads retries from many concurrent
+   * writers evenly over an exponentially-growing window.
+   */
+  @VisibleForTesting
+  static long getRetryDelayMillis(final int attempt) {
+    final long maxDelay = Math.min(MAX_RETRY_DELAY_MILLIS, BASE_RETRY_DELAY_MILLIS << Math.min(attempt - 1, 16));
+    return ThreadLocalRandom.current().nextLong(maxDelay + 1);
+  }
+
   protected List<Map<String, AttributeValue>> scan(ScanRequest scanRequest, int max) {
 
     return db().scanPaginator(scanRequest)
@@ -77,18 +180,25 @@ public class AbstractDynamoDbStore {
         .collect(Collectors.toList());
   }
 
-  static <T> void writeInBatches(final Iterable<T> items, final Consumer<List<T>> action) {
+  /**
+   * Passes the given items to the given action in batches of at most {@link #DYNAMO_DB_MAX_BATCH_SIZE} items. Once
+   * {@code stop} returns {@code true}, no further items are drawn from the iterable and no further batches are passed
+   * to the action.
+   */
+  static <T> void writeInBatches(final Iterable<T> items, final Consumer<List<T>> action, final BooleanSupplier stop) {
     final List<T> batch = new ArrayList<>(DYNAMO_DB_MAX_BATCH_SIZE);
+    final Iterator<T> iterator = items.iterator();
 
-    for (T item : items) {
-      batch.add(item);
+    // Check before advancing the iterator, which may fetch another page of a lazily-evaluated query
+    while (!stop.getAsBoolean() && iterator.hasNext()) {
+      batch.add(iterator.next());
 
       if (batch.size() == DYNAMO_DB_MAX_BATCH_SIZE) {
         action.accept(batch);
         batch.clear();
       }
     }
-    if (!batch.isEmpty()) {
+    if (!batch.isEmpty() && !stop.getAsBoolean()) {
       action.accept(batch);
     }
   }
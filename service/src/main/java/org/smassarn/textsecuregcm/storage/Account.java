@@ -387,6 +387,19 @@ public class Account {
     return new StoredRegistrationLock(Optional.ofNullable(registrationLock), Optional.ofNullable(registrationLockSalt), getLastSeen());
   }
 
+  // The raw stored values are needed only to serialize accounts; see AccountCodec
+  String getRegistrationLockHash() {
+    requireNotStale();
+
+    return registrationLock;
+  }
+
+  String getRegistrationLockSalt() {
+    requireNotStale();
+
+    return registrationLockSalt;
+  }
+
   public Optional<byte[]> getUnidentifiedAccessKey() {
     requireNotStale();
 
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import org.smassarn.textsecuregcm.auth.AuthenticationCredentials;
+import org.smassarn.textsecuregcm.entities.SignedPreKey;
+import org.smassarn.textsecuregcm.storage.Device.DeviceCapabilities;
+import org.smassarn.textsecuregcm.util.SystemMapper;
+
+/**
+ * Serializes accounts in a compact, versioned binary form. Encoded accounts begin with a single format version byte,
+ * which is followed by fields in the protocol buffer wire format: each field carries a numeric tag, absent fields are
+ * omitted, and unknown fields are skipped so that newer servers may add fields without breaking older readers. Like
+ * the JSON form, the compact form does not include an account's UUID.
+ * <p>
+ * Decoding also accepts accounts serialized as JSON, which lets compact and JSON records coexist while stored
+ * accounts are migrated.
+ */
+public class AccountCodec {
+
+  private static final byte COMPACT_FORMAT_V1 = 0x01;
+
+  private static final int ACCOUNT_NUMBER = 1;
+  private static final int ACCOUNT_DEVICE = 2;
+  private static final int ACCOUNT_IDENTITY_KEY = 3;
+  private static final int ACCOUNT_CURRENT_PROFILE_VERSION = 4;
+  private static final int ACCOUNT_NAME = 5;
+  private static final int ACCOUNT_AVATAR = 6;
+  private static final int ACCOUNT_BADGE = 7;
+  private static final int ACCOUNT_REGISTRATION_LOCK = 8;
+  private static final int ACCOUNT_REGISTRATION_LOCK_SALT = 9;
+  private static final int ACCOUNT_UNIDENTIFIED_ACCESS_KEY = 10;
+  private static final int ACCOUNT_UNRESTRICTED_UNIDENTIFIED_ACCESS = 11;
+  private static final int ACCOUNT_DISCOVERABLE_BY_PHONE_NUMBER = 12;
+  private static final int ACCOUNT_VERSION = 13;
+
+  private static final int DEVICE_ID = 1;
+  private static final int DEVICE_NAME = 2;
+  private static final int DEVICE_AUTH_TOKEN = 3;
+  private static final int DEVICE_SALT = 4;
+  private static final int DEVICE_GCM_ID = 5;
+  private static final int DEVICE_APN_ID = 6;
+  private static final int DEVICE_VOIP_APN_ID = 7;
+  private static final int DEVICE_PUSH_TIMESTAMP = 8;
+  private static final int DEVICE_UNINSTALLED_FEEDBACK = 9;
+  private static final int DEVICE_FETCHES_MESSAGES = 10;
+  private static final int DEVICE_REGISTRATION_ID = 11;
+  private static final int DEVICE_SIGNED_PRE_KEY = 12;
+  private static final int DEVICE_LAST_SEEN = 13;
+  private static final int DEVICE_CREATED = 14;
+  private static final int DEVICE_USER_AGENT = 15;
+  private static final int DEVICE_CAPABILITIES = 16;
+
+  private static final int SIGNED_PRE_KEY_ID = 1;
+  private static final int SIGNED_PRE_KEY_PUBLIC_KEY = 2;
+  private static final int SIGNED_PRE_KEY_SIGNATURE = 3;
+
+  private static final int CAPABILITY_GV2 = 1;
+  private static final int CAPABILITY_GV2_2 = 2;
+  private static final int CAPABILITY_GV2_3 = 3;
+  private static final int CAPABILITY_STORAGE = 4;
+  private static final int CAPABILITY_TRANSFER = 5;
+  private static final int CAPABILITY_GV1_MIGRATION = 6;
+  private static final int CAPABILITY_SENDER_KEY = 7;
+  private static final int CAPABILITY_ANNOUNCEMENT_GROUP = 8;
+  private static final int CAPABILITY_CHANGE_NUMBER = 9;
+
+  private static final int BADGE_ID = 1;
+  private static final int BADGE_EXPIRATION_SECONDS = 2;
+  private static final int BADGE_EXPIRATION_NANOS = 3;
+  private static final int BADGE_VISIBLE = 4;
+
+  @FunctionalInterface
+  private interface MessageWriter<T> {
+    void write(CodedOutputStream out, T value) throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface MessageReader<T> {
+    T read(CodedInputStream in) throws IOException;
+  }
+
+  private AccountCodec() {
+  }
+
+  /**
+   * Encodes the given account in the compact binary form.
+   */
+  public static byte[] encode(final Account account) {
+    final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(1024);
+    byteArrayOutputStream.write(COMPACT_FORMAT_V1);
+
+    writeMessage(byteArrayOutputStream, account, (out, a) -> writeAccount(out, a, true));
+
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  /**
+   * Encodes the given account in the compact binary form, but without its devices, for storage alongside devices
+   * encoded individually by {@link #encodeDevice(Device)}.
+   */
+  public static byte[] encodeWithoutDevices(final Account account) {
+    final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(256);
+    byteArrayOutputStream.write(COMPACT_FORMAT_V1);
+
+    writeMessage(byteArrayOutputStream, account, (out, a) -> writeAccount(out, a, false));
+
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  /**
+   * Encodes a single device in the compact binary form.
+   */
+  public static byte[] encodeDevice(final Device device) {
+    final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(256);
+    byteArrayOutputStream.write(COMPACT_FORMAT_V1);
+
+    writeMessage(byteArrayOutputStream, device, AccountCodec::writeDevice);
+
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  /**
+   * Decodes a single device encoded by {@link #encodeDevice(Device)}.
+   *
+   * @throws IOException if the given bytes could not be decoded as a device
+   */
+  public static Device decodeDevice(final byte[] bytes) throws IOException {
+    if (bytes.length > 0 && bytes[0] == COMPACT_FORMAT_V1) {
+      return readDevice(CodedInputStream.newInstance(bytes, 1, bytes.length - 1));
+    }
+
+    throw new IOException("Unrecognized device format");
+  }
+
+  /**
+   * Decodes an account encoded either in the compact binary form or as JSON.
+   *
+   * @throws IOException if the given bytes could not be decoded as an account in either form
+   */
+  public static Account decode(final byte[] bytes) throws IOException {
+    if (bytes.length > 0 && bytes[0] == COMPACT_FORMAT_V1) {
+      return readAccount(CodedInputStream.newInstance(bytes, 1, bytes.length - 1));
+    } else if (bytes.length > 0 && (bytes[0] == '{' || Character.isWhitespace(bytes[0]))) {
+      return SystemMapper.getMapper().readValue(bytes, Account.class);
+    }
+
+    throw new IOException("Unrecognized account format");
+  }
+
+  /**
+   * Returns a deep copy of the given account, including its UUID.
+   */
+  public static Account copy(final Account account) {
+    try {
+      final Account copy = decode(encode(account));
+      copy.setUuid(account.getUuid());
+
+      return copy;
+    } catch (final IOException e) {
+      // We just encoded this account ourselves, so this should never happen
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void writeAccount(final CodedOutputStream out, final Account account, final boolean includeDevices)
+      throws IOException {
+
+    writeString(out, ACCOUNT_NUMBER, account.getNumber());
+
+    if (includeDevices) {
+      for (final Device device : account.getDevices()) {
+        out.writeByteArray(ACCOUNT_DEVICE, encodeMessage(device, AccountCodec::writeDevice));
+      }
+    }
+
+    writeString(out, ACCOUNT_IDENTITY_KEY, account.getIdentityKey());
+    writeString(out, ACCOUNT_CURRENT_PROFILE_VERSION, account.getCurrentProfileVersion().orElse(null));
+    writeString(out, ACCOUNT_NAME, account.getProfileName());
+    writeString(out, ACCOUNT_AVATAR, account.getAvatar());
+
+    for (final AccountBadge badge : account.getBadges()) {
+      out.writeByteArray(ACCOUNT_BADGE, encodeMessage(badge, AccountCodec::writeBadge));
+    }
+
+    writeString(out, ACCOUNT_REGISTRATION_LOCK, account.getRegistrationLockHash());
+    writeString(out, ACCOUNT_REGISTRATION_LOCK_SALT, account.getRegistrationLockSalt());
+
+    if (account.getUnidentifiedAccessKey().isPresent()) {
+      out.writeByteArray(ACCOUNT_UNIDENTIFIED_ACCESS_KEY, account.getUnidentifiedAccessKey().get());
+    }
+
+    out.writeBool(ACCOUNT_UNRESTRICTED_UNIDENTIFIED_ACCESS, account.isUnrestrictedUnidentifiedAccess());
+    // Discoverability defaults to true, so it's always written explicitly
+    out.writeBool(ACCOUNT_DISCOVERABLE_BY_PHONE_NUMBER, account.isDiscoverableByPhoneNumber());
+    out.writeInt32(ACCOUNT_VERSION, account.getVersion());
+  }
+
+  private static Account readAccount(final CodedInputStream in) throws IOException {
+    final Account account = new Account();
+
+    String registrationLock = null;
+    String registrationLockSalt = null;
+
+    int tag;
+
+    while ((tag = in.readTag()) != 0) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case ACCOUNT_NUMBER: account.setNumber(in.readString()); break;
+        case ACCOUNT_DEVICE: account.addDevice(readMessage(in, AccountCodec::readDevice)); break;
+        case ACCOUNT_IDENTITY_KEY: account.setIdentityKey(in.readString()); break;
+        case ACCOUNT_CURRENT_PROFILE_VERSION: account.setCurrentProfileVersion(in.readString()); break;
+        case ACCOUNT_NAME: account.setProfileName(in.readString()); break;
+        case ACCOUNT_AVATAR: account.setAvatar(in.readString()); break;
+        case ACCOUNT_BADGE: account.getBadges().add(readMessage(in, AccountCodec::readBadge)); break;
+        case ACCOUNT_REGISTRATION_LOCK: registrationLock = in.readString(); break;
+        case ACCOUNT_REGISTRATION_LOCK_SALT: registrationLockSalt = in.readString(); break;
+        case ACCOUNT_UNIDENTIFIED_ACCESS_KEY: account.setUnidentifiedAccessKey(in.readByteArray()); break;
+        case ACCOUNT_UNRESTRICTED_UNIDENTIFIED_ACCESS: account.setUnrestrictedUnidentifiedAccess(in.readBool()); break;
+        case ACCOUNT_DISCOVERABLE_BY_PHONE_NUMBER: account.setDiscoverableByPhoneNumber(in.readBool()); break;
+        case ACCOUNT_VERSION: account.setVersion(in.readInt32()); break;
+        default: in.skipField(tag); break;
+      }
+    }
+
+    account.setRegistrationLock(registrationLock, registrationLockSalt);
+
+    return account;
+  }
+
+  private static void writeDevice(final CodedOutputStream out, final Device device) throws IOException {
+    final AuthenticationCredentials credentials = device.getAuthenticationCredentials();
+
+    out.writeInt64(DEVICE_ID, device.getId());
+    writeString(out, DEVICE_NAME, device.getName());
+    writeString(out, DEVICE_AUTH_TOKEN, credentials.getHashedAuthenticationToken());
+    writeString(out, DEVICE_SALT, credentials.getSalt());
+    writeString(out, DEVICE_GCM_ID, device.getGcmId());
+    writeString(out, DEVICE_APN_ID, device.getApnId());
+    writeString(out, DEVICE_VOIP_APN_ID, device.getVoipApnId());
+    out.writeInt64(DEVICE_PUSH_TIMESTAMP, device.getPushTimestamp());
+    out.writeInt64(DEVICE_UNINSTALLED_FEEDBACK, device.getUninstalledFeedbackTimestamp());
+    out.writeBool(DEVICE_FETCHES_MESSAGES, device.getFetchesMessages());
+    out.writeInt32(DEVICE_REGISTRATION_ID, device.getRegistrationId());
+
+    if (device.getSignedPreKey() != null) {
+      out.writeByteArray(DEVICE_SIGNED_PRE_KEY,
+          encodeMessage(device.getSignedPreKey(), AccountCodec::writeSignedPreKey));
+    }
+
+    out.writeInt64(DEVICE_LAST_SEEN, device.getLastSeen());
+    out.writeInt64(DEVICE_CREATED, device.getCreated());
+    writeString(out, DEVICE_USER_AGENT, device.getUserAgent());
+
+    if (device.getCapabilities() != null) {
+      out.writeByteArray(DEVICE_CAPABILITIES, encodeMessage(device.getCapabilities(), AccountCodec::writeCapabilities));
+    }
+  }
+
+  private static Device readDevice(final CodedInputStream in) throws IOException {
+    final Device device = new Device();
+
+    String authToken = null;
+    String salt = null;
+    long pushTimestamp = 0;
+
+    int tag;
+
+    while ((tag = in.readTag()) != 0) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case DEVICE_ID: device.setId(in.readInt64()); break;
+        case DEVICE_NAME: device.setName(in.readString()); break;
+        case DEVICE_AUTH_TOKEN: authToken = in.readString(); break;
+        case DEVICE_SALT: salt = in.readString(); break;
+        case DEVICE_GCM_ID: device.setGcmId(in.readString()); break;
+        case DEVICE_APN_ID: device.setApnId(in.readString()); break;
+        case DEVICE_VOIP_APN_ID: device.setVoipApnId(in.readString()); break;
+        case DEVICE_PUSH_TIMESTAMP: pushTimestamp = in.readInt64(); break;
+        case DEVICE_UNINSTALLED_FEEDBACK: device.setUninstalledFeedbackTimestamp(in.readInt64()); break;
+        case DEVICE_FETCHES_MESSAGES: device.setFetchesMessages(in.readBool()); break;
+        case DEVICE_REGISTRATION_ID: device.setRegistrationId(in.readInt32()); break;
+        case DEVICE_SIGNED_PRE_KEY: device.setSignedPreKey(readMessage(in, AccountCodec::readSignedPreKey)); break;
+        case DEVICE_LAST_SEEN: device.setLastSeen(in.readInt64()); break;
+        case DEVICE_CREATED: device.setCreated(in.readInt64()); break;
+        case DEVICE_USER_AGENT: device.setUserAgent(in.readString()); break;
+        case DEVICE_CAPABILITIES: device.setCapabilities(readMessage(in, AccountCodec::readCapabilities)); break;
+        default: in.skipField(tag); break;
+      }
+    }
+
+    device.setAuthenticationCredentials(new AuthenticationCredentials(authToken, salt));
+
+    // Setting push tokens above updates the push timestamp, so restore the stored value last
+    device.setPushTimestamp(pushTimestamp);
+
+    return device;
+  }
+
+  private static void writeSignedPreKey(final CodedOutputStream out, final SignedPreKey signedPreKey)
+      throws IOException {
+
+    out.writeInt64(SIGNED_PRE_KEY_ID, signedPreKey.getKeyId());
+    writeString(out, SIGNED_PRE_KEY_PUBLIC_KEY, signedPreKey.getPublicKey());
+    writeString(out, SIGNED_PRE_KEY_SIGNATURE, signedPreKey.getSignature());
+  }
+
+  private static SignedPreKey readSignedPreKey(final CodedInputStream in) throws IOException {
+    long keyId = 0;
+    String publicKey = null;
+    String signature = null;
+
+    int tag;
+
+    while ((tag = in.readTag()) != 0) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case SIGNED_PRE_KEY_ID: keyId = in.readInt64(); break;
+        case SIGNED_PRE_KEY_PUBLIC_KEY: publicKey = in.readString(); break;
+        case SIGNED_PRE_KEY_SIGNATURE: signature = in.readString(); break;
+        default: in.skipField(tag); break;
+      }
+    }
+
+    return new SignedPreKey(keyId, publicKey, signature);
+  }
+
+  private static void writeCapabilities(final CodedOutputStream out, final DeviceCapabilities capabilities)
+      throws IOException {
+
+    out.writeBool(CAPABILITY_GV2, capabilities.isGv2());
+    out.writeBool(CAPABILITY_GV2_2, capabilities.isGv2_2());
+    out.writeBool(CAPABILITY_GV2_3, capabilities.isGv2_3());
+    out.writeBool(CAPABILITY_STORAGE, capabilities.isStorage());
+    out.writeBool(CAPABILITY_TRANSFER, capabilities.isTransfer());
+    out.writeBool(CAPABILITY_GV1_MIGRATION, capabilities.isGv1Migration());
+    out.writeBool(CAPABILITY_SENDER_KEY, capabilities.isSenderKey());
+    out.writeBool(CAPABILITY_ANNOUNCEMENT_GROUP, capabilities.isAnnouncementGroup());
+    out.writeBool(CAPABILITY_CHANGE_NUMBER, capabilities.isChangeNumber());
+  }
+
+  private static DeviceCapabilities readCapabilities(final CodedInputStream in) throws IOException {
+    final boolean[] capabilities = new boolean[CAPABILITY_CHANGE_NUMBER + 1];
+
+    int tag;
+
+    while ((tag = in.readTag()) != 0) {
+      final int fieldNumber = WireFormat.getTagFieldNumber(tag);
+
+      if (fieldNumber < capabilities.length) {
+        capabilities[fieldNumber] = in.readBool();
+      } else {
+        in.skipField(tag);
+      }
+    }
+
+    return new DeviceCapabilities(capabilities[CAPABILITY_GV2], capabilities[CAPABILITY_GV2_2],
+        capabilities[CAPABILITY_GV2_3], capabilities[CAPABILITY_STORAGE], capabilities[CAPABILITY_TRANSFER],
+        capabilities[CAPABILITY_GV1_MIGRATION], capabilities[CAPABILITY_SENDER_KEY],
+        capabilities[CAPABILITY_ANNOUNCEMENT_GROUP], capabilities[CAPABILITY_CHANGE_NUMBER]);
+  }
+
+  private static void writeBadge(final CodedOutputStream out, final AccountBadge badge) throws IOException {
+    writeString(out, BADGE_ID, badge.getId());
+
+    if (badge.getExpiration() != null) {
+      out.writeInt64(BADGE_EXPIRATION_SECONDS, badge.getExpiration().getEpochSecond());
+      out.writeInt32(BADGE_EXPIRATION_NANOS, badge.getExpiration().getNano());
+    }
+
+    out.writeBool(BADGE_VISIBLE, badge.isVisible());
+  }
+
+  private static AccountBadge readBadge(final CodedInputStream in) throws IOException {
+    String id = null;
+    Long expirationSeconds = null;
+    int expirationNanos = 0;
+    boolean visible = false;
+
+    int tag;
+
+    while ((tag = in.readTag()) != 0) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case BADGE_ID: id = in.readString(); break;
+        case BADGE_EXPIRATION_SECONDS: expirationSeconds = in.readInt64(); break;
+        case BADGE_EXPIRATION_NANOS: expirationNanos = in.readInt32(); break;
+        case BADGE_VISIBLE: visible = in.readBool(); break;
+        default: in.skipField(tag); break;
+      }
+    }
+
+    return new AccountBadge(id,
+        expirationSeconds != null ? Instant.ofEpochSecond(expirationSeconds, expirationNanos) : null,
+        visible);
+  }
+
+  private static void writeString(final CodedOutputStream out, final int fieldNumber, final String value)
+      throws IOException {
+
+    if (value != null) {
+      out.writeString(fieldNumber, value);
+    }
+  }
+
+  private static <T> byte[] encodeMessage(final T value, final MessageWriter<T> writer) {
+    final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(256);
+    writeMessage(byteArrayOutputStream, value, writer);
+
+    return byteArrayOutputStream.toByteArray();
+  }
+
+  private static <T> void writeMessage(final ByteArrayOutputStream byteArrayOutputStream, final T value,
+      final MessageWriter<T> writer) {
+
+    try {
+      final CodedOutputStream out = CodedOutputStream.newInstance(byteArrayOutputStream);
+      writer.write(out, value);
+      out.flush();
+    } catch (final IOException e) {
+      // Writing to a byte array can't actually fail
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static <T> T readMessage(final CodedInputStream in, final MessageReader<T> reader) throws IOException {
+    final int length = in.readRawVarint32();
+
+    if (length < 0) {
+      throw new InvalidProtocolBufferException("Negative message length");
+    }
+
+    final int previousLimit = in.pushLimit(length);
+    final T value = reader.read(in);
+    in.popLimit(previousLimit);
+
+    return value;
+  }
+}
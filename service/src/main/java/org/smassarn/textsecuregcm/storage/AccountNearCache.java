@@ -0,0 +1,235 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smassarn.textsecuregcm.configuration.AccountNearCacheConfiguration;
+import org.smassarn.textsecuregcm.redis.FaultTolerantPubSubConnection;
+import org.smassarn.textsecuregcm.redis.FaultTolerantRedisCluster;
+
+/**
+ * An account near cache holds recently-read accounts in memory so that hot accounts don't require a round trip to the
+ * cache cluster on every request. Accounts are held in their serialized form because {@link Account} instances are
+ * mutable and must not be shared between callers. When an account changes, the server that changed it publishes an
+ * invalidation to every other server via the cache cluster.
+ * <p>
+ * Accounts older than the configured time-to-live are no longer returned by {@link #get(UUID)}, but are retained for
+ * an additional "stale-while-revalidate" period during which callers that can tolerate staleness may still use them
+ * (see {@link #getStale(UUID)}) while a fresh copy is fetched.
+ */
+public class AccountNearCache extends RedisClusterPubSubAdapter<String, String> implements Managed {
+
+  private final FaultTolerantRedisCluster cacheCluster;
+  private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
+
+  private final Cache<UUID, CachedAccount> accountsByUuid;
+  private final Cache<String, UUID> uuidsByNumber;
+
+  private final long timeToLiveMillis;
+  private final Clock clock;
+
+  private final Counter hitCounter = Metrics.counter(name(AccountNearCache.class, "get"), "outcome", "hit");
+  private final Counter missCounter = Metrics.counter(name(AccountNearCache.class, "get"), "outcome", "miss");
+  private final Counter staleHitCounter = Metrics.counter(name(AccountNearCache.class, "get"), "outcome", "staleHit");
+  private final Counter localInvalidationCounter =
+      Metrics.counter(name(AccountNearCache.class, "invalidate"), "source", "local");
+  private final Counter remoteInvalidationCounter =
+      Metrics.counter(name(AccountNearCache.class, "invalidate"), "source", "remote");
+  private final Timer invalidatedEntryAgeTimer = Metrics.timer(name(AccountNearCache.class, "invalidatedEntryAge"));
+
+  @VisibleForTesting
+  static final String INVALIDATION_CHANNEL = "account_near_cache::invalidate";
+
+  private static final Logger logger = LoggerFactory.getLogger(AccountNearCache.class);
+
+  private static class CachedAccount {
+
+    private final byte[] accountData;
+    private final long cachedAtMillis;
+
+    private CachedAccount(final byte[] accountData, final long cachedAtMillis) {
+      this.accountData = accountData;
+      this.cachedAtMillis = cachedAtMillis;
+    }
+  }
+
+  public AccountNearCache(final FaultTolerantRedisCluster cacheCluster,
+      final AccountNearCacheConfiguration configuration) {
+
+    this(cacheCluster, configuration, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  AccountNearCache(final FaultTolerantRedisCluster cacheCluster,
+      final AccountNearCacheConfiguration configuration,
+      final Clock clock) {
+
+    this.cacheCluster = cacheCluster;
+    this.clock = clock;
+    this.pubSubConnection = cacheCluster.createPubSubConnection();
+
+    this.timeToLiveMillis = configuration.getTimeToLive().toMillis();
+
+    this.accountsByUuid = CacheBuilder.newBuilder()
+        .maximumSize(configuration.getMaxSize())
+        .expireAfterWrite(configuration.getTimeToLive().plus(configuration.getStaleWhileRevalidate()))
+        .build();
+
+    this.uuidsByNumber = CacheBuilder.newBuilder()
+        .maximumSize(configuration.getMaxSize())
+        .expireAfterWrite(configuration.getTimeToLive())
+        .build();
+
+    Metrics.gauge(name(AccountNearCache.class, "size"), accountsByUuid, Cache::size);
+  }
+
+  @Override
+  public void start() {
+    pubSubConnection.usePubSubConnection(connection -> {
+      connection.addListener(this);
+      connection.getResources().eventBus().get()
+          .filter(event -> event instanceof ClusterTopologyChangedEvent)
+          .subscribe(event -> subscribe());
+    });
+
+    subscribe();
+  }
+
+  @Override
+  public void stop() {
+    pubSubConnection.usePubSubConnection(connection -> {
+      connection.removeListener(this);
+      connection.sync().unsubscribe(INVALIDATION_CHANNEL);
+    });
+  }
+
+  private void subscribe() {
+    // Published messages are broadcast to every node in the cluster, so subscribing via any one node is sufficient
+    pubSubConnection.usePubSubConnection(connection -> connection.sync().subscribe(INVALIDATION_CHANNEL));
+  }
+
+  /**
+   * Returns the serialized form of the account with the given UUID if it's held in memory.
+   */
+  public Optional<byte[]> get(final UUID uuid) {
+    final CachedAccount cachedAccount = accountsByUuid.getIfPresent(uuid);
+
+    if (cachedAccount != null && !isStale(cachedAccount)) {
+      hitCounter.increment();
+      return Optional.of(cachedAccount.accountData);
+    }
+
+    missCounter.increment();
+    return Optional.empty();
+  }
+
+  /**
+   * Returns the serialized form of the account with the given UUID only if it's held in memory but has outlived its
+   * time-to-live. Callers that use a stale account should fetch a fresh copy and {@link #replace(UUID, byte[], byte[])}
+   * the stale one.
+   */
+  public Optional<byte[]> getStale(final UUID uuid) {
+    final CachedAccount cachedAccount = accountsByUuid.getIfPresent(uuid);
+
+    if (cachedAccount != null && isStale(cachedAccount)) {
+      staleHitCounter.increment();
+      return Optional.of(cachedAccount.accountData);
+    }
+
+    return Optional.empty();
+  }
+
+  private boolean isStale(final CachedAccount cachedAccount) {
+    return clock.millis() - cachedAccount.cachedAtMillis > timeToLiveMillis;
+  }
+
+  /**
+   * Returns the UUID of the account most recently known to hold the given number. Callers must check that the account
+   * with the returned UUID still holds the given number.
+   */
+  public Optional<UUID> getUuid(final String number) {
+    return Optional.ofNullable(uuidsByNumber.getIfPresent(number));
+  }
+
+  public void put(final UUID uuid, final byte[] accountData) {
+    accountsByUuid.put(uuid, new CachedAccount(accountData, clock.millis()));
+  }
+
+  /**
+   * Replaces a stale account returned by {@link #getStale(UUID)} with a freshly-fetched copy, or evicts it if the
+   * given copy is {@code null}. Does nothing if the stale account has since been replaced or invalidated, since the
+   * "fresh" copy may have been fetched before the invalidation.
+   */
+  public void replace(final UUID uuid, final byte[] staleAccountData, @Nullable final byte[] accountData) {
+    final CachedAccount cachedAccount = accountsByUuid.getIfPresent(uuid);
+
+    if (cachedAccount != null && cachedAccount.accountData == staleAccountData) {
+      if (accountData != null) {
+        accountsByUuid.asMap().replace(uuid, cachedAccount, new CachedAccount(accountData, clock.millis()));
+      } else {
+        accountsByUuid.asMap().remove(uuid, cachedAccount);
+      }
+    }
+  }
+
+  public void putUuid(final String number, final UUID uuid) {
+    uuidsByNumber.put(number, uuid);
+  }
+
+  /**
+   * Evicts the account with the given UUID from this server's near cache and asks every other server to do the same.
+   */
+  public void invalidate(final UUID uuid) {
+    localInvalidationCounter.increment();
+    invalidateLocally(uuid);
+
+    cacheCluster.withClusterAsync(connection -> connection.async().publish(INVALIDATION_CHANNEL, uuid.toString()))
+        .whenComplete((ignored, cause) -> {
+          if (cause != null) {
+            logger.warn("Failed to publish account invalidation", cause);
+          }
+        });
+  }
+
+  private void invalidateLocally(final UUID uuid) {
+    final CachedAccount cachedAccount = accountsByUuid.asMap().remove(uuid);
+
+    if (cachedAccount != null) {
+      invalidatedEntryAgeTimer.record(clock.millis() - cachedAccount.cachedAtMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void message(final RedisClusterNode node, final String channel, final String message) {
+    if (INVALIDATION_CHANNEL.equals(channel)) {
+      remoteInvalidationCounter.increment();
+
+      try {
+        invalidateLocally(UUID.fromString(message));
+      } catch (final IllegalArgumentException e) {
+        logger.warn("Received malformed account invalidation: {}", message);
+      }
+    }
+  }
+}
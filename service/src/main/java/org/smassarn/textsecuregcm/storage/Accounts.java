@@ -12,21 +12,32 @@ import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.stream.Collectors;
 import org.smassarn.textsecuregcm.util.AttributeValues;
 import org.smassarn.textsecuregcm.util.SystemMapper;
 import org.smassarn.textsecuregcm.util.UUIDUtil;
+import org.smassarn.textsecuregcm.util.Util;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.CancellationReason;
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.Delete;
 import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
 import software.amazon.awssdk.services.dynamodb.model.Put;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValuesOnConditionCheckFailure;
@@ -44,12 +55,15 @@ public class Accounts extends AbstractDynamoDbStore {
   static final String KEY_ACCOUNT_UUID = "U";
   // phone number
   static final String ATTR_ACCOUNT_E164 = "P";
-  // account, serialized to JSON
+  // account, serialized to JSON or in the compact form written by AccountCodec
   static final String ATTR_ACCOUNT_DATA = "D";
   // internal version for optimistic locking
   static final String ATTR_VERSION = "V";
   // canonically discoverable
   static final String ATTR_CANONICALLY_DISCOVERABLE = "C";
+  // devices in the compact form written by AccountCodec, keyed by device ID; only present if devices are stored
+  // separately from the rest of the account, in which case the account data does not include devices
+  static final String ATTR_DEVICES = "DV";
 
   private final DynamoDbClient client;
 
@@ -58,24 +72,50 @@ public class Accounts extends AbstractDynamoDbStore {
 
   private final int scanPageSize;
 
+  private final boolean writeCompactAccountData;
+  private final boolean storeDevicesSeparately;
+
   private static final Timer CREATE_TIMER = Metrics.timer(name(Accounts.class, "create"));
   private static final Timer UPDATE_TIMER = Metrics.timer(name(Accounts.class, "update"));
+  private static final Timer UPDATE_DEVICE_TIMER = Metrics.timer(name(Accounts.class, "updateDevice"));
   private static final Timer GET_BY_NUMBER_TIMER = Metrics.timer(name(Accounts.class, "getByNumber"));
   private static final Timer GET_BY_UUID_TIMER = Metrics.timer(name(Accounts.class, "getByUuid"));
+  private static final Timer GET_ALL_BY_UUID_TIMER = Metrics.timer(name(Accounts.class, "getAllByUuid"));
   private static final Timer GET_ALL_FROM_START_TIMER = Metrics.timer(name(Accounts.class, "getAllFrom"));
   private static final Timer GET_ALL_FROM_OFFSET_TIMER = Metrics.timer(name(Accounts.class, "getAllFromOffset"));
   private static final Timer DELETE_TIMER = Metrics.timer(name(Accounts.class, "delete"));
 
+  // This limit comes from DynamoDB itself; it will reject batch gets with more keys than this
+  static final int GET_BATCH_SIZE = 100;
+
+  // Bounds how long a single batch read may keep retrying unprocessed keys against a throttled table
+  @VisibleForTesting
+  static final int MAX_GET_ALL_UNPROCESSED_ATTEMPTS = 8;
+
 
   public Accounts(DynamoDbClient client, String accountsTableName, String phoneNumbersTableName,
       final int scanPageSize) {
 
+    this(client, accountsTableName, phoneNumbersTableName, scanPageSize, false);
+  }
+
+  public Accounts(DynamoDbClient client, String accountsTableName, String phoneNumbersTableName,
+      final int scanPageSize, final boolean writeCompactAccountData) {
+
+    this(client, accountsTableName, phoneNumbersTableName, scanPageSize, writeCompactAccountData, false);
+  }
+
+  public Accounts(DynamoDbClient client, String accountsTableName, String phoneNumbersTableName,
+      final int scanPageSize, final boolean writeCompactAccountData, final boolean storeDevicesSeparately) {
+
     super(client);
 
     this.client = client;
     this.phoneNumbersTableName = phoneNumbersTableName;
     this.accountsTableName = accountsTableName;
     this.scanPageSize = scanPageSize;
+    this.writeCompactAccountData = writeCompactAccountData;
+    this.storeDevicesSeparately = storeDevicesSeparately;
   }
 
   public boolean create(Account account) {
@@ -134,19 +174,41 @@ public class Accounts extends AbstractDynamoDbStore {
   }
 
   private TransactWriteItem buildPutWriteItemForAccount(Account account, UUID uuid, Put.Builder putBuilder) throws JsonProcessingException {
+    final Map<String, AttributeValue> item = new HashMap<>(Map.of(
+        KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid),
+        ATTR_ACCOUNT_E164, AttributeValues.fromString(account.getNumber()),
+        ATTR_ACCOUNT_DATA, AttributeValues.fromByteArray(serialize(account)),
+        ATTR_VERSION, AttributeValues.fromInt(account.getVersion()),
+        ATTR_CANONICALLY_DISCOVERABLE, AttributeValues.fromBool(account.shouldBeVisibleInDirectory())));
+
+    if (storeDevicesSeparately) {
+      item.put(ATTR_DEVICES, serializeDevices(account));
+    }
+
     return TransactWriteItem.builder()
         .put(putBuilder
             .tableName(accountsTableName)
-            .item(Map.of(
-                KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid),
-                ATTR_ACCOUNT_E164, AttributeValues.fromString(account.getNumber()),
-                ATTR_ACCOUNT_DATA, AttributeValues.fromByteArray(SystemMapper.getMapper().writeValueAsBytes(account)),
-                ATTR_VERSION, AttributeValues.fromInt(account.getVersion()),
-                ATTR_CANONICALLY_DISCOVERABLE, AttributeValues.fromBool(account.shouldBeVisibleInDirectory())))
+            .item(item)
             .build())
         .build();
   }
 
+  private byte[] serialize(final Account account) throws JsonProcessingException {
+    if (storeDevicesSeparately) {
+      return AccountCodec.encodeWithoutDevices(account);
+    }
+
+    return writeCompactAccountData ? AccountCodec.encode(account) : SystemMapper.getMapper().writeValueAsBytes(account);
+  }
+
+  private static AttributeValue serializeDevices(final Account account) {
+    return AttributeValue.builder()
+        .m(account.getDevices().stream()
+            .collect(Collectors.toMap(device -> String.valueOf(device.getId()),
+                device -> AttributeValues.fromByteArray(AccountCodec.encodeDevice(device)))))
+        .build();
+  }
+
   private TransactWriteItem buildPutWriteItemForPhoneNumberConstraint(Account account, UUID uuid) {
     return TransactWriteItem.builder()
         .put(
@@ -171,20 +233,33 @@ public class Accounts extends AbstractDynamoDbStore {
     UPDATE_TIMER.record(() -> {
       UpdateItemRequest updateItemRequest;
       try {
+        final Map<String, AttributeValue> expressionAttributeValues = new HashMap<>(Map.of(
+            ":data", AttributeValues.fromByteArray(serialize(account)),
+            ":cds", AttributeValues.fromBool(account.shouldBeVisibleInDirectory()),
+            ":version", AttributeValues.fromInt(account.getVersion()),
+            ":version_increment", AttributeValues.fromInt(1)));
+
+        final String updateExpression;
+
+        if (storeDevicesSeparately) {
+          updateExpression = "SET #data = :data, #devices = :devices, #cds = :cds ADD #version :version_increment";
+          expressionAttributeValues.put(":devices", serializeDevices(account));
+        } else {
+          // Devices stored separately by a previous write are superseded by those in the account data
+          updateExpression = "SET #data = :data, #cds = :cds REMOVE #devices ADD #version :version_increment";
+        }
+
         updateItemRequest = UpdateItemRequest.builder()
             .tableName(accountsTableName)
             .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
-            .updateExpression("SET #data = :data, #cds = :cds ADD #version :version_increment")
+            .updateExpression(updateExpression)
             .conditionExpression("attribute_exists(#number) AND #version = :version")
             .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_E164,
                 "#data", ATTR_ACCOUNT_DATA,
+                "#devices", ATTR_DEVICES,
                 "#cds", ATTR_CANONICALLY_DISCOVERABLE,
                 "#version", ATTR_VERSION))
-            .expressionAttributeValues(Map.of(
-                ":data", AttributeValues.fromByteArray(SystemMapper.getMapper().writeValueAsBytes(account)),
-                ":cds", AttributeValues.fromBool(account.shouldBeVisibleInDirectory()),
-                ":version", AttributeValues.fromInt(account.getVersion()),
-                ":version_increment", AttributeValues.fromInt(1)))
+            .expressionAttributeValues(expressionAttributeValues)
             .returnValues(ReturnValue.UPDATED_NEW)
             .build();
 
@@ -209,6 +284,64 @@ public class Accounts extends AbstractDynamoDbStore {
     });
   }
 
+  /**
+   * Writes a change to a single device of the given account. If devices are stored separately from the rest of the
+   * account, only the given device (and the account's version and discoverability) is written; otherwise, this is
+   * equivalent to {@link #update(Account)}.
+   */
+  public void updateDevice(final Account account, final long deviceId) throws ContestedOptimisticLockException {
+    final Optional<Device> maybeDevice = account.getDevice(deviceId);
+
+    if (!storeDevicesSeparately || maybeDevice.isEmpty()) {
+      update(account);
+      return;
+    }
+
+    UPDATE_DEVICE_TIMER.record(() -> {
+      final UpdateItemRequest updateItemRequest = UpdateItemRequest.builder()
+          .tableName(accountsTableName)
+          .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
+          .updateExpression("SET #devices.#device_id = :device, #cds = :cds ADD #version :version_increment")
+          .conditionExpression("attribute_exists(#number) AND attribute_exists(#devices) AND #version = :version")
+          .expressionAttributeNames(Map.of("#number", ATTR_ACCOUNT_E164,
+              "#devices", ATTR_DEVICES,
+              "#device_id", String.valueOf(deviceId),
+              "#cds", ATTR_CANONICALLY_DISCOVERABLE,
+              "#version", ATTR_VERSION))
+          .expressionAttributeValues(Map.of(
+              ":device", AttributeValues.fromByteArray(AccountCodec.encodeDevice(maybeDevice.get())),
+              ":cds", AttributeValues.fromBool(account.shouldBeVisibleInDirectory()),
+              ":version", AttributeValues.fromInt(account.getVersion()),
+              ":version_increment", AttributeValues.fromInt(1)))
+          .returnValues(ReturnValue.UPDATED_NEW)
+          .build();
+
+      try {
+        UpdateItemResponse response = client.updateItem(updateItemRequest);
+
+        account.setVersion(AttributeValues.getInt(response.attributes(), "V", account.getVersion() + 1));
+      } catch (final TransactionConflictException e) {
+
+        throw new ContestedOptimisticLockException();
+
+      } catch (final ConditionalCheckFailedException e) {
+
+        final Map<String, AttributeValue> item = accountByUuid(AttributeValues.fromUUID(account.getUuid()));
+
+        if (item == null) {
+          throw e;
+        }
+
+        if (!item.containsKey(ATTR_DEVICES) && AttributeValues.getInt(item, ATTR_VERSION, -1) == account.getVersion()) {
+          // The account was last written with its devices in the account data; rewriting it in full splits them out
+          update(account);
+        } else {
+          throw new ContestedOptimisticLockException();
+        }
+      }
+    });
+  }
+
   public Optional<Account> get(String number) {
     return GET_BY_NUMBER_TIMER.record(() -> {
 
@@ -239,6 +372,64 @@ public class Accounts extends AbstractDynamoDbStore {
             .map(Accounts::fromItem));
   }
 
+  /**
+   * Retrieves the accounts with the given UUIDs using as few batch reads as possible. UUIDs with no corresponding
+   * account are absent from the returned map. Keys that DynamoDB leaves unprocessed are retried with jittered
+   * exponential backoff.
+   *
+   * @throws ProvisionedThroughputExceededException if keys remain unprocessed after
+   * {@link #MAX_GET_ALL_UNPROCESSED_ATTEMPTS} retries
+   */
+  public Map<UUID, Account> getAll(final Collection<UUID> uuids) {
+    return GET_ALL_BY_UUID_TIMER.record(() -> {
+      final Queue<Map<String, AttributeValue>> pendingKeys = uuids.stream()
+          .distinct()
+          .map(uuid -> Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid)))
+          .collect(Collectors.toCollection(ArrayDeque::new));
+
+      final Map<UUID, Account> accounts = new HashMap<>(pendingKeys.size());
+      final List<Map<String, AttributeValue>> batchKeys = new ArrayList<>(GET_BATCH_SIZE);
+
+      int unprocessedAttempts = 0;
+
+      while (!pendingKeys.isEmpty()) {
+        batchKeys.clear();
+
+        for (int i = 0; i < GET_BATCH_SIZE && !pendingKeys.isEmpty(); i++) {
+          batchKeys.add(pendingKeys.remove());
+        }
+
+        final BatchGetItemResponse response = client.batchGetItem(BatchGetItemRequest.builder()
+            .requestItems(Map.of(accountsTableName, KeysAndAttributes.builder()
+                .consistentRead(true)
+                .keys(batchKeys)
+                .build()))
+            .build());
+
+        response.responses().getOrDefault(accountsTableName, Collections.emptyList()).stream()
+            .map(Accounts::fromItem)
+            .forEach(account -> accounts.put(account.getUuid(), account));
+
+        if (response.hasUnprocessedKeys() && response.unprocessedKeys().containsKey(accountsTableName)) {
+          final List<Map<String, AttributeValue>> unprocessedKeys =
+              response.unprocessedKeys().get(accountsTableName).keys();
+
+          if (++unprocessedAttempts >= MAX_GET_ALL_UNPROCESSED_ATTEMPTS) {
+            throw ProvisionedThroughputExceededException.builder()
+                .message(String.format("%d keys remain unprocessed after %d attempts",
+                    unprocessedKeys.size() + pendingKeys.size(), unprocessedAttempts))
+                .build();
+          }
+
+          pendingKeys.addAll(unprocessedKeys);
+          Util.sleep(getRetryDelayMillis(unprocessedAttempts));
+        }
+      }
+
+      return accounts;
+    });
+  }
+
   public void delete(UUID uuid) {
     DELETE_TIMER.record(() -> {
 
@@ -310,12 +501,18 @@ public class Accounts extends AbstractDynamoDbStore {
       throw new RuntimeException("item missing values");
     }
     try {
-      Account account = SystemMapper.getMapper().readValue(item.get(ATTR_ACCOUNT_DATA).b().asByteArray(), Account.class);
+      Account account = AccountCodec.decode(item.get(ATTR_ACCOUNT_DATA).b().asByteArray());
       account.setNumber(item.get(ATTR_ACCOUNT_E164).s());
       account.setUuid(UUIDUtil.fromByteBuffer(item.get(KEY_ACCOUNT_UUID).b().asByteBuffer()));
       account.setVersion(Integer.parseInt(item.get(ATTR_VERSION).n()));
       account.setCanonicallyDiscoverable(Optional.ofNullable(item.get(ATTR_CANONICALLY_DISCOVERABLE)).map(av -> av.bool()).orElse(false));
 
+      if (item.containsKey(ATTR_DEVICES)) {
+        for (final AttributeValue device : item.get(ATTR_DEVICES).m().values()) {
+          account.addDevice(AccountCodec.decodeDevice(device.b().asByteArray()));
+        }
+      }
+
       return account;
 
     } catch (IOException e) {
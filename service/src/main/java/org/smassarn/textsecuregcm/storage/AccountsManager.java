@@ -13,17 +13,27 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.lettuce.core.KeyValue;
 import io.lettuce.core.RedisException;
-import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tags;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smassarn.textsecuregcm.auth.AuthenticationCredentials;
@@ -44,6 +54,8 @@ public class AccountsManager {
   private static final Timer          updateTimer      = metricRegistry.timer(name(AccountsManager.class, "update"     ));
   private static final Timer          getByNumberTimer = metricRegistry.timer(name(AccountsManager.class, "getByNumber"));
   private static final Timer          getByUuidTimer   = metricRegistry.timer(name(AccountsManager.class, "getByUuid"  ));
+  private static final Timer          getAllByUuidTimer =
+      metricRegistry.timer(name(AccountsManager.class, "getAllByUuid"));
   private static final Timer          deleteTimer      = metricRegistry.timer(name(AccountsManager.class, "delete"));
 
   // TODO Remove this meter when external dependencies have been resolved
@@ -54,6 +66,13 @@ public class AccountsManager {
   private static final Timer redisNumberGetTimer = metricRegistry.timer(name(AccountsManager.class, "redisNumberGet"));
   private static final Timer redisUuidGetTimer   = metricRegistry.timer(name(AccountsManager.class, "redisUuidGet"  ));
   private static final Timer redisDeleteTimer    = metricRegistry.timer(name(AccountsManager.class, "redisDelete"   ));
+  private static final Timer redisSetAllTimer    = metricRegistry.timer(name(AccountsManager.class, "redisSetAll"   ));
+  private static final Timer redisUuidGetAllTimer =
+      metricRegistry.timer(name(AccountsManager.class, "redisUuidGetAll"));
+
+  private static final Meter coalescedLoadMeter   = metricRegistry.meter(name(AccountsManager.class, "coalescedLoad"));
+  private static final Meter staleRevalidateMeter = metricRegistry.meter(name(AccountsManager.class, "staleRevalidate"));
+  private static final Meter bufferedLastSeenMeter = metricRegistry.meter(name(AccountsManager.class, "bufferedLastSeen"));
 
   private static final String CREATE_COUNTER_NAME       = name(AccountsManager.class, "createCounter");
   private static final String DELETE_COUNTER_NAME       = name(AccountsManager.class, "deleteCounter");
@@ -64,6 +83,7 @@ public class AccountsManager {
 
   private final Accounts accounts;
   private final FaultTolerantRedisCluster cacheCluster;
+  private final AccountNearCache accountNearCache;
   private final DeletedAccountsManager deletedAccountsManager;
   private final DirectoryQueue            directoryQueue;
   private final KeysDynamoDb              keysDynamoDb;
@@ -74,6 +94,14 @@ public class AccountsManager {
   private final SecureStorageClient       secureStorageClient;
   private final SecureBackupClient        secureBackupClient;
   private final ObjectMapper              mapper;
+  private final boolean                   writeCompactAccountData;
+  private final boolean                   bufferLastSeenUpdates;
+
+  private final Map<UUID, CompletableFuture<Optional<Account>>> loadsInProgress = new ConcurrentHashMap<>();
+  private final Set<UUID> revalidationsInProgress = ConcurrentHashMap.newKeySet();
+
+  // Device IDs to "last seen" timestamps that haven't yet been written to the account record; inner maps are immutable
+  private final Map<UUID, Map<Long, Long>> pendingLastSeenByUuid = new ConcurrentHashMap<>();
 
   public enum DeletionReason {
     ADMIN_DELETED("admin"),
@@ -88,6 +116,7 @@ public class AccountsManager {
   }
 
   public AccountsManager(Accounts accounts, FaultTolerantRedisCluster cacheCluster,
+      final AccountNearCache accountNearCache,
       final DeletedAccountsManager deletedAccountsManager,
       final DirectoryQueue directoryQueue,
       final KeysDynamoDb keysDynamoDb, final MessagesManager messagesManager,
@@ -95,9 +124,12 @@ public class AccountsManager {
       final ProfilesManager profilesManager,
       final StoredVerificationCodeManager pendingAccounts,
       final SecureStorageClient secureStorageClient,
-      final SecureBackupClient secureBackupClient) {
+      final SecureBackupClient secureBackupClient,
+      final boolean writeCompactAccountData,
+      final boolean bufferLastSeenUpdates) {
     this.accounts = accounts;
     this.cacheCluster = cacheCluster;
+    this.accountNearCache = accountNearCache;
     this.deletedAccountsManager = deletedAccountsManager;
     this.directoryQueue = directoryQueue;
     this.keysDynamoDb = keysDynamoDb;
@@ -108,6 +140,10 @@ public class AccountsManager {
     this.secureStorageClient = secureStorageClient;
     this.secureBackupClient  = secureBackupClient;
     this.mapper              = SystemMapper.getMapper();
+    this.writeCompactAccountData = writeCompactAccountData;
+    this.bufferLastSeenUpdates = bufferLastSeenUpdates;
+
+    Metrics.gaugeMapSize(name(AccountsManager.class, "pendingLastSeenUpdates"), Tags.empty(), pendingLastSeenByUuid);
 
   }
 
@@ -148,6 +184,8 @@ public class AccountsManager {
         final UUID actualUuid = account.getUuid();
 
         redisSet(account);
+        accountNearCache.invalidate(actualUuid);
+        pendingLastSeenByUuid.remove(actualUuid);
 
         pendingAccounts.remove(number);
 
@@ -164,7 +202,12 @@ public class AccountsManager {
         // confident that everything has already been deleted. In the second case, though, we're taking over an existing
         // account and need to clear out messages and keys that may have been stored for the old account.
         if (!originalUuid.equals(actualUuid)) {
-          messagesManager.clear(actualUuid);
+          // The old account's device IDs aren't known here, so every possible device's cached queue is cleared
+          messagesManager.purge(actualUuid).whenComplete((purged, cause) -> {
+            if (cause != null) {
+              logger.warn("Failed to purge messages for re-registered account {}", actualUuid, cause);
+            }
+          });
           keysDynamoDb.delete(actualUuid);
           profilesManager.deleteAll(actualUuid);
         }
@@ -203,25 +246,96 @@ public class AccountsManager {
 
   /**
    * Specialized version of {@link #updateDevice(Account, long, Consumer)} that minimizes potentially contentious and
-   * redundant updates of {@code device.lastSeen}
+   * redundant updates of {@code device.lastSeen}. If buffering is enabled, the new value is applied to the given
+   * account and held in memory until {@link #flushPendingLastSeenUpdates(UUID)} writes it to the account record;
+   * accounts read in the meantime reflect the buffered value.
    */
   public Account updateDeviceLastSeen(Account account, Device device, final long lastSeen) {
 
+    if (bufferLastSeenUpdates) {
+      if (device.getLastSeen() < lastSeen) {
+        device.setLastSeen(lastSeen);
+
+        pendingLastSeenByUuid.merge(account.getUuid(), Map.of(device.getId(), lastSeen),
+            AccountsManager::mergeLastSeen);
+
+        bufferedLastSeenMeter.mark();
+      }
+
+      return account;
+    }
+
     return update(account, a -> {
+      return applyLastSeen(a, Map.of(device.getId(), lastSeen));
+    }, a -> dynamoUpdateDevice(a, device.getId()));
+  }
 
-      final Optional<Device> maybeDevice = a.getDevice(device.getId());
+  /**
+   * Returns the UUIDs of accounts with "last seen" updates that haven't yet been written to the account record.
+   */
+  public Set<UUID> getUuidsWithPendingLastSeenUpdates() {
+    return Set.copyOf(pendingLastSeenByUuid.keySet());
+  }
 
-      return maybeDevice.map(d -> {
-        if (d.getLastSeen() >= lastSeen) {
-          return false;
-        }
+  /**
+   * Writes any buffered "last seen" updates for the account with the given UUID to the account record in a single
+   * update. Updates that arrive while the write is in progress remain buffered.
+   */
+  public void flushPendingLastSeenUpdates(final UUID uuid) {
+    final Map<Long, Long> pendingLastSeen = pendingLastSeenByUuid.get(uuid);
 
-        d.setLastSeen(lastSeen);
+    if (pendingLastSeen == null) {
+      return;
+    }
 
-        return true;
+    // Most buffered updates touch a single device, which can be written without rewriting the rest of the account
+    final Consumer<Account> persister = pendingLastSeen.size() == 1
+        ? a -> dynamoUpdateDevice(a, pendingLastSeen.keySet().iterator().next())
+        : this::dynamoUpdate;
 
-      }).orElse(false);
-    });
+    // Read the account without merging buffered values so the updater can tell whether the record needs to change
+    redisGet(uuid)
+        .or(() -> loadAndCache(uuid))
+        .ifPresent(account -> update(account, a -> {
+          return applyLastSeen(a, pendingLastSeen);
+        }, persister));
+
+    pendingLastSeenByUuid.remove(uuid, pendingLastSeen);
+  }
+
+  private static Map<Long, Long> mergeLastSeen(final Map<Long, Long> a, final Map<Long, Long> b) {
+    final Map<Long, Long> merged = new HashMap<>(a);
+    b.forEach((deviceId, lastSeen) -> merged.merge(deviceId, lastSeen, Math::max));
+
+    return Map.copyOf(merged);
+  }
+
+  /**
+   * Advances the "last seen" timestamps of the given account's devices; returns {@code true} if any device changed.
+   */
+  private static boolean applyLastSeen(final Account account, final Map<Long, Long> lastSeenByDeviceId) {
+    boolean updated = false;
+
+    for (final Map.Entry<Long, Long> entry : lastSeenByDeviceId.entrySet()) {
+      final Optional<Device> maybeDevice = account.getDevice(entry.getKey());
+
+      if (maybeDevice.isPresent() && maybeDevice.get().getLastSeen() < entry.getValue()) {
+        maybeDevice.get().setLastSeen(entry.getValue());
+        updated = true;
+      }
+    }
+
+    return updated;
+  }
+
+  private Account withPendingLastSeen(final Account account) {
+    final Map<Long, Long> pendingLastSeen = pendingLastSeenByUuid.get(account.getUuid());
+
+    if (pendingLastSeen != null) {
+      applyLastSeen(account, pendingLastSeen);
+    }
+
+    return account;
   }
 
   /**
@@ -229,6 +343,15 @@ public class AccountsManager {
    * @param updater must return {@code true} if the account was actually updated
    */
   private Account update(Account account, Function<Account, Boolean> updater) {
+    return update(account, updater, this::dynamoUpdate);
+  }
+
+  /**
+   * @param account account to update
+   * @param updater must return {@code true} if the account was actually updated
+   * @param persister writes the updated account to the database
+   */
+  private Account update(Account account, Function<Account, Boolean> updater, Consumer<Account> persister) {
 
     final boolean wasVisibleBeforeUpdate = account.shouldBeVisibleInDirectory();
 
@@ -240,9 +363,13 @@ public class AccountsManager {
 
       final UUID uuid = account.getUuid();
 
-      updatedAccount = updateWithRetries(account, updater, this::dynamoUpdate, () -> dynamoGet(uuid).get());
+      updatedAccount = updateWithRetries(account, updater, persister, () -> dynamoGet(uuid).get());
 
       redisSet(updatedAccount);
+      accountNearCache.invalidate(uuid);
+
+      // Loads that started before this update may have read the old account; later callers shouldn't wait for them
+      loadsInProgress.remove(uuid);
     }
 
     final boolean isVisibleAfterUpdate = updatedAccount.shouldBeVisibleInDirectory();
@@ -269,15 +396,7 @@ public class AccountsManager {
       try {
         persister.accept(account);
 
-        final Account updatedAccount;
-        try {
-          updatedAccount = mapper.readValue(mapper.writeValueAsBytes(account), Account.class);
-          updatedAccount.setUuid(account.getUuid());
-        } catch (final IOException e) {
-          // this should really, truly, never happen
-          throw new IllegalArgumentException(e);
-        }
-
+        final Account updatedAccount = AccountCodec.copy(account);
         account.markStale();
 
         return updatedAccount;
@@ -299,7 +418,7 @@ public class AccountsManager {
       a.getDevice(deviceId).ifPresent(deviceUpdater);
       // assume that all updaters passed to the public method actually modify the device
       return true;
-    });
+    }, a -> dynamoUpdateDevice(a, deviceId));
   }
 
   public Optional<Account> get(String number) {
@@ -311,7 +430,7 @@ public class AccountsManager {
         account.ifPresent(this::redisSet);
       }
 
-      return account;
+      return account.map(this::withPendingLastSeen);
     }
   }
 
@@ -320,14 +439,122 @@ public class AccountsManager {
       Optional<Account> account = redisGet(uuid);
 
       if (account.isEmpty()) {
-        account = dynamoGet(uuid);
-        account.ifPresent(this::redisSet);
+        account = loadAndCache(uuid);
+      }
+
+      return account.map(this::withPendingLastSeen);
+    }
+  }
+
+  /**
+   * Gets the accounts with the given UUIDs. Accounts are read from the cache in a single multi-key fetch (which is
+   * split by slot across the cache cluster), and any accounts missing from the cache are read from the database in
+   * batches and written back to the cache together. UUIDs with no corresponding account are absent from the returned
+   * map.
+   */
+  public Map<UUID, Account> getAll(final Collection<UUID> uuids) {
+    try (Timer.Context ignored = getAllByUuidTimer.time()) {
+      final Map<UUID, Account> accounts = redisGetAll(uuids);
+
+      final List<UUID> misses = uuids.stream()
+          .distinct()
+          .filter(uuid -> !accounts.containsKey(uuid))
+          .collect(Collectors.toList());
+
+      if (!misses.isEmpty()) {
+        final Map<UUID, Account> loadedAccounts = dynamoGetAll(misses);
+
+        redisSetAll(loadedAccounts.values());
+        accounts.putAll(loadedAccounts);
+      }
+
+      accounts.values().forEach(this::withPendingLastSeen);
+
+      return accounts;
+    }
+  }
+
+  /**
+   * Gets the account with the given UUID, tolerating a copy that was held in memory for somewhat longer than the near
+   * cache would normally allow. If a stale copy is returned, it's refreshed from the cache cluster in the background.
+   * This is intended for callers that only read the returned account, like those that look up other users' accounts
+   * to deliver messages or fetch keys, and that can tolerate a few seconds of staleness.
+   */
+  public Optional<Account> getAllowingStale(UUID uuid) {
+    final Optional<byte[]> maybeStaleAccountData = accountNearCache.getStale(uuid);
+
+    if (maybeStaleAccountData.isPresent()) {
+      try {
+        final Account account = readAccount(uuid, maybeStaleAccountData.get());
+        revalidate(uuid, maybeStaleAccountData.get());
+
+        return Optional.of(withPendingLastSeen(account));
+      } catch (final IOException e) {
+        logger.warn("Deserialization error", e);
+      }
+    }
+
+    return get(uuid);
+  }
+
+  /**
+   * Loads the account with the given UUID from the database and writes it to the cache. Concurrent loads of the same
+   * account are coalesced so that only one read is in flight per account; each caller receives its own copy.
+   */
+  private Optional<Account> loadAndCache(final UUID uuid) {
+    final CompletableFuture<Optional<Account>> load = new CompletableFuture<>();
+    final CompletableFuture<Optional<Account>> loadInProgress = loadsInProgress.putIfAbsent(uuid, load);
+
+    if (loadInProgress != null) {
+      coalescedLoadMeter.mark();
+
+      try {
+        return loadInProgress.join().map(AccountCodec::copy);
+      } catch (final CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+
+        throw e;
       }
+    }
+
+    try {
+      final Optional<Account> account = dynamoGet(uuid);
+      account.ifPresent(this::redisSet);
+
+      // Waiters copy the loaded account, so complete the load before the caller can modify it
+      load.complete(account.map(AccountCodec::copy));
 
       return account;
+    } catch (final RuntimeException e) {
+      load.completeExceptionally(e);
+      throw e;
+    } finally {
+      loadsInProgress.remove(uuid, load);
     }
   }
 
+  private void revalidate(final UUID uuid, final byte[] staleAccountData) {
+    if (!revalidationsInProgress.add(uuid)) {
+      return;
+    }
+
+    staleRevalidateMeter.mark();
+
+    cacheCluster.withBinaryClusterAsync(connection -> connection.async().get(getAccountEntityKeyBytes(uuid)))
+        .whenComplete((accountData, cause) -> {
+          revalidationsInProgress.remove(uuid);
+
+          if (cause != null) {
+            logger.warn("Failed to revalidate account", cause);
+          } else {
+            // If the account isn't cached at all, the next caller will load it from the database
+            accountNearCache.replace(uuid, staleAccountData, accountData);
+          }
+        });
+  }
+
   public AccountCrawlChunk getAllFromDynamo(int length) {
     return accounts.getAllFromStart(length);
   }
@@ -342,17 +569,28 @@ public class AccountsManager {
         final CompletableFuture<Void> deleteStorageServiceDataFuture = secureStorageClient.deleteStoredData(account.getUuid());
         final CompletableFuture<Void> deleteBackupServiceDataFuture = secureBackupClient.deleteBackups(account.getUuid());
 
+        // Persisted messages are purged in the background; the purge only removes messages received before it started,
+        // so it can't remove messages sent to a new registration that reuses this account's UUID
+        messagesManager.purge(account.getUuid(),
+            account.getDevices().stream().map(Device::getId).collect(Collectors.toList()))
+            .whenComplete((purged, cause) -> {
+              if (cause != null) {
+                logger.warn("Failed to purge messages for deleted account {}", account.getUuid(), cause);
+              }
+            });
+
         usernamesManager.delete(account.getUuid());
         directoryQueue.deleteAccount(account);
         profilesManager.deleteAll(account.getUuid());
         keysDynamoDb.delete(account.getUuid());
-        messagesManager.clear(account.getUuid());
 
         deleteStorageServiceDataFuture.join();
         deleteBackupServiceDataFuture.join();
 
         redisDelete(account);
+        accountNearCache.invalidate(account.getUuid());
         dynamoDelete(account);
+        pendingLastSeenByUuid.remove(account.getUuid());
 
         return account.getUuid();
       });
@@ -375,27 +613,70 @@ public class AccountsManager {
     return "Account3::" + uuid.toString();
   }
 
+  private byte[] getAccountEntityKeyBytes(UUID uuid) {
+    return getAccountEntityKey(uuid).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private byte[] serialize(final Account account) throws JsonProcessingException {
+    return writeCompactAccountData ? AccountCodec.encode(account) : mapper.writeValueAsBytes(account);
+  }
+
   private void redisSet(Account account) {
     try (Timer.Context ignored = redisSetTimer.time()) {
-      final String accountJson = mapper.writeValueAsString(account);
+      final byte[] accountData = serialize(account);
 
-      cacheCluster.useCluster(connection -> {
-        final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
+      cacheCluster.useCluster(connection ->
+          connection.sync().set(getAccountMapKey(account.getNumber()), account.getUuid().toString()));
 
-        commands.set(getAccountMapKey(account.getNumber()), account.getUuid().toString());
-        commands.set(getAccountEntityKey(account.getUuid()), accountJson);
-      });
+      cacheCluster.useBinaryCluster(connection ->
+          connection.sync().set(getAccountEntityKeyBytes(account.getUuid()), accountData));
     } catch (JsonProcessingException e) {
       throw new IllegalStateException(e);
     }
   }
 
+  private void redisSetAll(final Collection<Account> accounts) {
+    if (accounts.isEmpty()) {
+      return;
+    }
+
+    try (Timer.Context ignored = redisSetAllTimer.time()) {
+      final Map<String, String> uuidsByAccountMapKey = new HashMap<>(accounts.size());
+      final Map<byte[], byte[]> accountDataByEntityKey = new HashMap<>(accounts.size());
+
+      for (final Account account : accounts) {
+        uuidsByAccountMapKey.put(getAccountMapKey(account.getNumber()), account.getUuid().toString());
+        accountDataByEntityKey.put(getAccountEntityKeyBytes(account.getUuid()), serialize(account));
+      }
+
+      // Multi-key commands are split by slot and pipelined across the cluster
+      cacheCluster.useCluster(connection -> connection.sync().mset(uuidsByAccountMapKey));
+      cacheCluster.useBinaryCluster(connection -> connection.sync().mset(accountDataByEntityKey));
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException(e);
+    } catch (RedisException e) {
+      logger.warn("Redis failure", e);
+    }
+  }
+
   private Optional<Account> redisGet(String number) {
+    final Optional<Account> maybeNearCachedAccount = accountNearCache.getUuid(number)
+        .flatMap(this::redisGet)
+        .filter(account -> number.equals(account.getNumber()));
+
+    if (maybeNearCachedAccount.isPresent()) {
+      return maybeNearCachedAccount;
+    }
+
     try (Timer.Context ignored = redisNumberGetTimer.time()) {
       final String uuid = cacheCluster.withCluster(connection -> connection.sync().get(getAccountMapKey(number)));
 
-      if (uuid != null) return redisGet(UUID.fromString(uuid));
-      else              return Optional.empty();
+      if (uuid != null) {
+        accountNearCache.putUuid(number, UUID.fromString(uuid));
+        return redisGet(UUID.fromString(uuid));
+      } else {
+        return Optional.empty();
+      }
     } catch (IllegalArgumentException e) {
       logger.warn("Deserialization error", e);
       return Optional.empty();
@@ -406,17 +687,26 @@ public class AccountsManager {
   }
 
   private Optional<Account> redisGet(UUID uuid) {
-    try (Timer.Context ignored = redisUuidGetTimer.time()) {
-      final String json = cacheCluster.withCluster(connection -> connection.sync().get(getAccountEntityKey(uuid)));
-
-      if (json != null) {
-        Account account = mapper.readValue(json, Account.class);
-        account.setUuid(uuid);
+    try {
+      final Optional<byte[]> maybeNearCachedAccountData = accountNearCache.get(uuid);
 
-        return Optional.of(account);
+      if (maybeNearCachedAccountData.isPresent()) {
+        return Optional.of(readAccount(uuid, maybeNearCachedAccountData.get()));
       }
 
-      return Optional.empty();
+      try (Timer.Context ignored = redisUuidGetTimer.time()) {
+        final byte[] accountData =
+            cacheCluster.withBinaryCluster(connection -> connection.sync().get(getAccountEntityKeyBytes(uuid)));
+
+        if (accountData != null) {
+          final Account account = readAccount(uuid, accountData);
+          accountNearCache.put(uuid, accountData);
+
+          return Optional.of(account);
+        }
+
+        return Optional.empty();
+      }
     } catch (IOException e) {
       logger.warn("Deserialization error", e);
       return Optional.empty();
@@ -426,6 +716,72 @@ public class AccountsManager {
     }
   }
 
+  private Map<UUID, Account> redisGetAll(final Collection<UUID> uuids) {
+    final Map<UUID, Account> accounts = new HashMap<>(uuids.size());
+    final List<UUID> nearCacheMisses = new ArrayList<>(uuids.size());
+
+    for (final UUID uuid : uuids) {
+      if (accounts.containsKey(uuid)) {
+        continue;
+      }
+
+      final Optional<byte[]> maybeNearCachedAccountData = accountNearCache.get(uuid);
+
+      try {
+        if (maybeNearCachedAccountData.isPresent()) {
+          accounts.put(uuid, readAccount(uuid, maybeNearCachedAccountData.get()));
+          continue;
+        }
+      } catch (IOException e) {
+        logger.warn("Deserialization error", e);
+      }
+
+      nearCacheMisses.add(uuid);
+    }
+
+    if (nearCacheMisses.isEmpty()) {
+      return accounts;
+    }
+
+    final List<UUID> distinctMisses = nearCacheMisses.stream().distinct().collect(Collectors.toList());
+
+    try (Timer.Context ignored = redisUuidGetAllTimer.time()) {
+      final byte[][] keys = distinctMisses.stream()
+          .map(this::getAccountEntityKeyBytes)
+          .toArray(byte[][]::new);
+
+      final List<KeyValue<byte[], byte[]>> keyValues =
+          cacheCluster.withBinaryCluster(connection -> connection.sync().mget(keys));
+
+      // Values are returned in the order in which their keys were requested
+      for (int i = 0; i < keyValues.size(); i++) {
+        final KeyValue<byte[], byte[]> keyValue = keyValues.get(i);
+
+        if (keyValue.hasValue()) {
+          final UUID uuid = distinctMisses.get(i);
+
+          try {
+            accounts.put(uuid, readAccount(uuid, keyValue.getValue()));
+            accountNearCache.put(uuid, keyValue.getValue());
+          } catch (IOException e) {
+            logger.warn("Deserialization error", e);
+          }
+        }
+      }
+    } catch (RedisException e) {
+      logger.warn("Redis failure", e);
+    }
+
+    return accounts;
+  }
+
+  private Account readAccount(final UUID uuid, final byte[] accountData) throws IOException {
+    final Account account = AccountCodec.decode(accountData);
+    account.setUuid(uuid);
+
+    return account;
+  }
+
   private void redisDelete(final Account account) {
     try (final Timer.Context ignored = redisDeleteTimer.time()) {
       cacheCluster.useCluster(connection -> connection.sync()
@@ -441,6 +797,10 @@ public class AccountsManager {
     return accounts.get(uuid);
   }
 
+  private Map<UUID, Account> dynamoGetAll(Collection<UUID> uuids) {
+    return accounts.getAll(uuids);
+  }
+
   private boolean dynamoCreate(Account account) {
     return accounts.create(account);
   }
@@ -449,6 +809,10 @@ public class AccountsManager {
     accounts.update(account);
   }
 
+  private void dynamoUpdateDevice(Account account, long deviceId) {
+    accounts.updateDevice(account, deviceId);
+  }
+
   private void dynamoDelete(final Account account) {
     accounts.delete(account.getUuid());
   }
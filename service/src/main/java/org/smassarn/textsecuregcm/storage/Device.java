@@ -218,6 +218,10 @@ public class Device {
     return pushTimestamp;
   }
 
+  void setPushTimestamp(long pushTimestamp) {
+    this.pushTimestamp = pushTimestamp;
+  }
+
   public void setUserAgent(String userAgent) {
     this.userAgent = userAgent;
   }
@@ -8,18 +8,20 @@ package org.smassarn.textsecuregcm.storage;
 import static com.codahale.metrics.MetricRegistry.name;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
 import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Collectors;
 import org.smassarn.textsecuregcm.entities.PreKey;
 import org.smassarn.textsecuregcm.util.AttributeValues;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
@@ -49,8 +51,8 @@ public class KeysDynamoDb extends AbstractDynamoDbStore {
   private static final DistributionSummary CONTESTED_KEY_DISTRIBUTION    = Metrics.summary(name(KeysDynamoDb.class, "contestedKeys"));
   private static final DistributionSummary KEY_COUNT_DISTRIBUTION        = Metrics.summary(name(KeysDynamoDb.class, "keyCount"));
 
-  public KeysDynamoDb(final DynamoDbClient dynamoDB, final String tableName) {
-    super(dynamoDB);
+  public KeysDynamoDb(final DynamoDbClient dynamoDB, final DynamoDbAsyncClient dynamoDbAsync, final String tableName) {
+    super(dynamoDB, dynamoDbAsync);
     this.tableName = tableName;
   }
 
@@ -58,17 +60,13 @@ public class KeysDynamoDb extends AbstractDynamoDbStore {
     STORE_KEYS_TIMER.record(() -> {
       delete(account.getUuid(), deviceId);
 
-      writeInBatches(keys, batch -> {
-        List<WriteRequest> items = new ArrayList<>();
-        for (final PreKey preKey : batch) {
-          items.add(WriteRequest.builder()
+      executeTableWriteItemsUntilComplete(tableName, keys.stream()
+          .map(preKey -> WriteRequest.builder()
               .putRequest(PutRequest.builder()
                   .item(getItemFromPreKey(account.getUuid(), deviceId, preKey))
                   .build())
-              .build());
-        }
-        executeTableWriteItemsUntilComplete(Map.of(tableName, items));
-      });
+              .build())
+          .collect(Collectors.toList()));
     });
   }
 
@@ -188,19 +186,14 @@ public class KeysDynamoDb extends AbstractDynamoDbStore {
   private void deleteItemsForAccountMatchingQuery(final UUID accountUuid, final QueryRequest querySpec) {
     final AttributeValue partitionKey = getPartitionKey(accountUuid);
 
-    writeInBatches(db().query(querySpec).items(), batch -> {
-      List<WriteRequest> deletes = new ArrayList<>();
-      for (final Map<String, AttributeValue> item : batch) {
-        deletes.add(WriteRequest.builder()
+    executeTableWriteItemsUntilComplete(tableName, Iterables.transform(db().queryPaginator(querySpec).items(),
+        item -> WriteRequest.builder()
             .deleteRequest(DeleteRequest.builder()
                 .key(Map.of(
                     KEY_ACCOUNT_UUID, partitionKey,
                     KEY_DEVICE_ID_KEY_ID, item.get(KEY_DEVICE_ID_KEY_ID)))
                 .build())
-            .build());
-      }
-      executeTableWriteItemsUntilComplete(Map.of(tableName, deletes));
-    });
+            .build()));
   }
 
   private static AttributeValue getPartitionKey(final UUID accountUuid) {
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
+import io.dropwizard.lifecycle.Managed;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smassarn.textsecuregcm.configuration.LastSeenWriteBehindConfiguration;
+
+/**
+ * Periodically writes "last seen" updates buffered by {@link AccountsManager#updateDeviceLastSeen(Account, Device, long)}
+ * to account records. Writes are rate-limited so that the burst of updates that follows the start of each day is
+ * spread out over time instead of landing on the database all at once.
+ */
+public class LastSeenWriteBehindFlusher implements Managed {
+
+  private final AccountsManager accountsManager;
+  private final ScheduledExecutorService scheduledExecutorService;
+  private final LastSeenWriteBehindConfiguration configuration;
+  private final RateLimiter rateLimiter;
+
+  private ScheduledFuture<?> flushFuture;
+
+  private static final Counter FLUSHED_COUNTER = Metrics.counter(name(LastSeenWriteBehindFlusher.class, "flushed"));
+  private static final Counter ERROR_COUNTER = Metrics.counter(name(LastSeenWriteBehindFlusher.class, "errors"));
+
+  private static final Logger log = LoggerFactory.getLogger(LastSeenWriteBehindFlusher.class);
+
+  public LastSeenWriteBehindFlusher(final AccountsManager accountsManager,
+      final ScheduledExecutorService scheduledExecutorService,
+      final LastSeenWriteBehindConfiguration configuration) {
+
+    this.accountsManager = accountsManager;
+    this.scheduledExecutorService = scheduledExecutorService;
+    this.configuration = configuration;
+    this.rateLimiter = RateLimiter.create(configuration.getMaxWritesPerSecond());
+  }
+
+  @Override
+  public synchronized void start() {
+    final long flushIntervalMillis = configuration.getFlushInterval().toMillis();
+
+    flushFuture = scheduledExecutorService.scheduleWithFixedDelay(() -> flush(true),
+        flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (flushFuture != null) {
+      flushFuture.cancel(false);
+    }
+
+    // Anything still buffered would otherwise be lost, so write it all out as quickly as possible
+    flush(false);
+  }
+
+  @VisibleForTesting
+  void flush(final boolean rateLimited) {
+    for (final UUID uuid : accountsManager.getUuidsWithPendingLastSeenUpdates()) {
+      if (rateLimited) {
+        rateLimiter.acquire();
+      }
+
+      try {
+        accountsManager.flushPendingLastSeenUpdates(uuid);
+        FLUSHED_COUNTER.increment();
+      } catch (final Exception e) {
+        // Failed updates remain buffered and will be retried on the next pass
+        ERROR_COUNTER.increment();
+        log.warn("Failed to write buffered last seen updates", e);
+      }
+    }
+  }
+}
@@ -14,13 +14,20 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.ScoredValue;
+import io.micrometer.core.instrument.Metrics;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.smassarn.textsecuregcm.configuration.MessagePersisterConfiguration;
 import org.smassarn.textsecuregcm.entities.MessageProtos;
 import org.smassarn.textsecuregcm.util.Constants;
 import org.smassarn.textsecuregcm.util.Util;
@@ -32,6 +39,13 @@ public class MessagePersister implements Managed {
     private final AccountsManager             accountsManager;
 
     private final Duration        persistDelay;
+    private final Duration        queueRetryDelay;
+
+    private final ExecutorService                    persistQueueExecutor;
+    private final MessagePersisterConcurrencyLimiter concurrencyLimiter;
+
+    // Age of the oldest due queue found in the most recently scanned slot, or zero if that slot had nothing due
+    private final AtomicLong backlogAgeMillis = new AtomicLong();
 
     private final    Thread[]     workerThreads = new Thread[WORKER_THREAD_COUNT];
     private volatile boolean      running;
@@ -43,21 +57,33 @@ public class MessagePersister implements Managed {
     private final Histogram      queueCountHistogram        = metricRegistry.histogram(name(MessagePersister.class, "queueCount"));
     private final Histogram      queueSizeHistogram         = metricRegistry.histogram(name(MessagePersister.class, "queueSize"));
 
+    private final io.micrometer.core.instrument.Timer persistLagTimer = Metrics.timer(name(MessagePersister.class, "persistLag"));
+    private final io.micrometer.core.instrument.Timer writeBatchTimer = Metrics.timer(name(MessagePersister.class, "writeBatch"));
+
     static final int QUEUE_BATCH_LIMIT   = 100;
     static final int MESSAGE_BATCH_LIMIT = 100;
 
-    private static final long EXCEPTION_PAUSE_MILLIS = Duration.ofSeconds(3).toMillis();
-
     private static final String DISABLE_PERSISTER_FEATURE_FLAG = "DISABLE_MESSAGE_PERSISTER";
     private static final int WORKER_THREAD_COUNT = 4;
 
     private static final Logger logger = LoggerFactory.getLogger(MessagePersister.class);
 
-    public MessagePersister(final MessagesCache messagesCache, final MessagesManager messagesManager, final AccountsManager accountsManager, final DynamicConfigurationManager dynamicConfigurationManager, final Duration persistDelay) {
+    public MessagePersister(final MessagesCache messagesCache, final MessagesManager messagesManager, final AccountsManager accountsManager, final DynamicConfigurationManager dynamicConfigurationManager, final Duration persistDelay,
+                            final MessagePersisterConfiguration configuration, final ExecutorService persistQueueExecutor) {
         this.messagesCache               = messagesCache;
         this.messagesManager             = messagesManager;
         this.accountsManager             = accountsManager;
         this.persistDelay                = persistDelay;
+        this.queueRetryDelay             = configuration.getQueueRetryDelay();
+        this.persistQueueExecutor        = persistQueueExecutor;
+        this.concurrencyLimiter          = new MessagePersisterConcurrencyLimiter(configuration.getMinConcurrency(),
+                                                                                  configuration.getMaxConcurrency(),
+                                                                                  configuration.getTargetWriteLatency(),
+                                                                                  configuration.getMaxLag());
+
+        Metrics.gauge(name(MessagePersister.class, "concurrencyLimit"), concurrencyLimiter, MessagePersisterConcurrencyLimiter::getLimit);
+        Metrics.gauge(name(MessagePersister.class, "queuesInFlight"), concurrencyLimiter, MessagePersisterConcurrencyLimiter::getInFlight);
+        Metrics.gauge(name(MessagePersister.class, "backlogAge"), backlogAgeMillis);
 
         for (int i = 0; i < workerThreads.length; i++) {
             workerThreads[i] = new Thread(() -> {
@@ -108,38 +134,85 @@ public class MessagePersister implements Managed {
         }
     }
 
+    /**
+     * Persists all queues in the next slot that are due for persistence. Queues are persisted in parallel on the
+     * persister's executor, up to the current concurrency limit; this method blocks while the limit is reached and
+     * returns once every queue it started has been persisted or rescheduled.
+     */
     @VisibleForTesting
     int persistNextQueues(final Instant currentTime) {
-        final int slot = messagesCache.getNextSlotToPersist();
+        final int     slot    = messagesCache.getNextSlotToPersist();
+        final Instant maxTime = currentTime.minus(persistDelay);
 
-        List<String> queuesToPersist;
-        int queuesPersisted = 0;
+        final List<CompletableFuture<Void>> persistFutures = new ArrayList<>();
 
-        do {
-            try (final Timer.Context ignored = getQueuesTimer.time()) {
-                queuesToPersist = messagesCache.getQueuesToPersist(slot, currentTime.minus(persistDelay), QUEUE_BATCH_LIMIT);
-            }
+        List<ScoredValue<String>> queuesToPersist;
+        boolean firstBatch = true;
 
-            for (final String queue : queuesToPersist) {
-                final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queue);
-                final long deviceId    = MessagesCache.getDeviceIdFromQueueName(queue);
+        try {
+            do {
+                try (final Timer.Context ignored = getQueuesTimer.time()) {
+                    queuesToPersist = messagesCache.getScoredQueuesToPersist(slot, maxTime, QUEUE_BATCH_LIMIT);
+                }
 
-                try {
-                    persistQueue(accountUuid, deviceId);
-                } catch (final Exception e) {
-                    persistQueueExceptionMeter.mark();
-                    logger.warn("Failed to persist queue {}::{}; will schedule for retry", accountUuid, deviceId, e);
+                if (!queuesToPersist.isEmpty()) {
+                    // Queues come back oldest first, so the first one tells us how far behind we've fallen
+                    final Duration lag = Duration.ofMillis(Math.max(0, maxTime.toEpochMilli() - (long) queuesToPersist.get(0).getScore()));
 
-                    messagesCache.addQueueToPersist(accountUuid, deviceId);
+                    persistLagTimer.record(lag);
+                    concurrencyLimiter.recordLag(lag);
 
-                    Util.sleep(EXCEPTION_PAUSE_MILLIS);
+                    if (firstBatch) {
+                        backlogAgeMillis.set(currentTime.toEpochMilli() - (long) queuesToPersist.get(0).getScore());
+                    }
+                } else if (firstBatch) {
+                    backlogAgeMillis.set(0);
                 }
-            }
 
-            queuesPersisted += queuesToPersist.size();
-        } while (queuesToPersist.size() >= QUEUE_BATCH_LIMIT);
+                firstBatch = false;
+
+                for (int i = 0; i < queuesToPersist.size(); i++) {
+                    final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queuesToPersist.get(i).getValue());
+                    final long deviceId    = MessagesCache.getDeviceIdFromQueueName(queuesToPersist.get(i).getValue());
+
+                    try {
+                        concurrencyLimiter.acquire();
+                    } catch (final InterruptedException e) {
+                        // These queues have already been removed from the index; put them back for someone else
+                        for (final ScoredValue<String> remainingQueue : queuesToPersist.subList(i, queuesToPersist.size())) {
+                            messagesCache.addQueueToPersist(MessagesCache.getAccountUuidFromQueueName(remainingQueue.getValue()),
+                                                            MessagesCache.getDeviceIdFromQueueName(remainingQueue.getValue()),
+                                                            Instant.ofEpochMilli((long) remainingQueue.getScore()));
+                        }
+
+                        throw e;
+                    }
+
+                    persistFutures.add(CompletableFuture.runAsync(() -> persistQueueOrReschedule(accountUuid, deviceId), persistQueueExecutor)
+                        .whenComplete((ignored, cause) -> concurrencyLimiter.release()));
+                }
+            } while (queuesToPersist.size() >= QUEUE_BATCH_LIMIT);
+        } catch (final InterruptedException e) {
+            logger.warn("Interrupted while waiting to persist queues");
+            Thread.currentThread().interrupt();
+        } finally {
+            CompletableFuture.allOf(persistFutures.toArray(CompletableFuture[]::new)).join();
+        }
 
-        return queuesPersisted;
+        return persistFutures.size();
+    }
+
+    private void persistQueueOrReschedule(final UUID accountUuid, final long deviceId) {
+        try {
+            persistQueue(accountUuid, deviceId);
+        } catch (final Exception e) {
+            persistQueueExceptionMeter.mark();
+            concurrencyLimiter.recordFailure();
+            logger.warn("Failed to persist queue {}::{}; will schedule for retry", accountUuid, deviceId, e);
+
+            // Make just this queue eligible again after the retry delay instead of pausing other work
+            messagesCache.addQueueToPersist(accountUuid, deviceId, Instant.now().minus(persistDelay).plus(queueRetryDelay));
+        }
     }
 
     @VisibleForTesting
@@ -156,16 +229,22 @@ public class MessagePersister implements Managed {
 
             try {
               int messageCount = 0;
-              List<MessageProtos.Envelope> messages;
 
-              do {
-                messages = messagesCache.getMessagesToPersist(accountUuid, deviceId, MESSAGE_BATCH_LIMIT);
+              List<MessageProtos.Envelope> messages = messagesCache.getMessagesToPersist(accountUuid, deviceId, MESSAGE_BATCH_LIMIT);
+
+              // The final, empty read only confirms the queue is drained; it writes nothing, so it isn't timed
+              while (!messages.isEmpty()) {
+                final long start = System.nanoTime();
 
                 messagesManager.persistMessages(accountUuid, deviceId, messages);
-                messageCount += messages.size();
 
+                final Duration writeLatency = Duration.ofNanos(System.nanoTime() - start);
+                writeBatchTimer.record(writeLatency);
+                concurrencyLimiter.recordWriteLatency(writeLatency);
 
-              } while (!messages.isEmpty());
+                messageCount += messages.size();
+                messages = messagesCache.getMessagesToPersist(accountUuid, deviceId, MESSAGE_BATCH_LIMIT);
+              }
 
               queueSizeHistogram.update(messageCount);
             } finally {
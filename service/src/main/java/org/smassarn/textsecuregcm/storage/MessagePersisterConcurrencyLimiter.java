@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import java.time.Duration;
+
+/**
+ * Bounds the number of queues a {@link MessagePersister} persists concurrently and adapts that bound to conditions in
+ * both the message cache and persistent storage. The limit grows by one whenever the persister falls further behind
+ * than its maximum lag while writes are healthy, shrinks by one when writes are slow or the persister is keeping up,
+ * and is halved when a queue cannot be persisted at all.
+ */
+class MessagePersisterConcurrencyLimiter {
+
+  private final int minConcurrency;
+  private final int maxConcurrency;
+  private final double targetWriteLatencyMillis;
+  private final Duration maxLag;
+
+  private int limit;
+  private int inFlight;
+  private double writeLatencyMillis;
+
+  // Weight given to each new write latency sample in the moving average
+  private static final double WRITE_LATENCY_ALPHA = 0.2;
+
+  MessagePersisterConcurrencyLimiter(final int minConcurrency, final int maxConcurrency,
+      final Duration targetWriteLatency, final Duration maxLag) {
+
+    if (minConcurrency < 1 || maxConcurrency < minConcurrency) {
+      throw new IllegalArgumentException("Concurrency bounds must satisfy 1 <= min <= max");
+    }
+
+    this.minConcurrency = minConcurrency;
+    this.maxConcurrency = maxConcurrency;
+    this.targetWriteLatencyMillis = targetWriteLatency.toMillis();
+    this.maxLag = maxLag;
+
+    this.limit = minConcurrency;
+  }
+
+  /**
+   * Blocks until fewer than the current limit of queues are being persisted, then claims a slot for a new queue.
+   * Callers must call {@link #release()} once they have finished with the queue.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  synchronized void acquire() throws InterruptedException {
+    while (inFlight >= limit) {
+      wait();
+    }
+
+    inFlight++;
+  }
+
+  synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Records how long it took to write a batch of messages to persistent storage.
+   *
+   * @param latency the time taken to write the batch
+   */
+  synchronized void recordWriteLatency(final Duration latency) {
+    writeLatencyMillis = (WRITE_LATENCY_ALPHA * latency.toMillis()) + ((1 - WRITE_LATENCY_ALPHA) * writeLatencyMillis);
+
+    if (writeLatencyMillis > targetWriteLatencyMillis) {
+      setLimit(limit - 1);
+    }
+  }
+
+  /**
+   * Records how far past its persistence deadline the oldest queue in a freshly-fetched batch of queues was.
+   *
+   * @param lag the time by which the oldest queue in the batch missed its deadline
+   */
+  synchronized void recordLag(final Duration lag) {
+    if (lag.compareTo(maxLag) > 0) {
+      if (writeLatencyMillis <= targetWriteLatencyMillis) {
+        setLimit(limit + 1);
+      }
+    } else {
+      setLimit(limit - 1);
+    }
+  }
+
+  /**
+   * Records that a queue could not be persisted.
+   */
+  synchronized void recordFailure() {
+    setLimit(limit / 2);
+  }
+
+  synchronized int getLimit() {
+    return limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  private void setLimit(final int limit) {
+    this.limit = Math.max(minConcurrency, Math.min(maxConcurrency, limit));
+    notifyAll();
+  }
+}
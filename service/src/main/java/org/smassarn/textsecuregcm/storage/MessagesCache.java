@@ -8,6 +8,7 @@ package org.smassarn.textsecuregcm.storage;
 import static com.codahale.metrics.MetricRegistry.name;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.InvalidProtocolBufferException;
 import io.dropwizard.lifecycle.Managed;
 import io.lettuce.core.ScoredValue;
@@ -18,6 +19,7 @@ import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
 import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
 import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
 import java.io.IOException;
@@ -25,17 +27,28 @@ import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smassarn.textsecuregcm.entities.MessageProtos;
@@ -51,21 +64,35 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     private final FaultTolerantRedisCluster readDeleteCluster;
     private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
 
-    private final ExecutorService notificationExecutorService;
+    private final Executor[] notificationExecutors;
 
     private final ClusterLuaScript insertScript;
     private final ClusterLuaScript removeByGuidScript;
     private final ClusterLuaScript getItemsScript;
     private final ClusterLuaScript removeQueueScript;
     private final ClusterLuaScript getQueuesToPersistScript;
+    private final ClusterLuaScript unlockQueueScript;
+    private final ClusterLuaScript removeQueueListenerScript;
+    private final ClusterLuaScript refreshQueueListenerScript;
 
-    private final Map<String, MessageAvailabilityListener> messageListenersByQueueName = new HashMap<>();
-    private final Map<MessageAvailabilityListener, String> queueNamesByMessageListener = new IdentityHashMap<>();
+    @Nullable
+    private final ScheduledExecutorService listenerRefreshExecutor;
+    private final boolean targetedNotifications;
+
+    @Nullable
+    private ScheduledFuture<?> refreshQueueListenersFuture;
+    private final String serverId = UUID.randomUUID().toString();
+
+    private final Map<String, MessageAvailabilityListener> messageListenersByQueueName = new ConcurrentHashMap<>();
+    private final Map<MessageAvailabilityListener, String> queueNamesByMessageListener = new ConcurrentHashMap<>();
 
     private final Timer   insertTimer                         = Metrics.timer(name(MessagesCache.class, "insert"), "ephemeral", "false");
+    private final Timer   insertBatchTimer                    = Metrics.timer(name(MessagesCache.class, "insertBatch"));
+    private final DistributionSummary insertBatchSizeDistribution = Metrics.summary(name(MessagesCache.class, "insertBatchSize"));
     private final Timer   getMessagesTimer                    = Metrics.timer(name(MessagesCache.class, "get"));
     private final Timer   getQueuesToPersistTimer             = Metrics.timer(name(MessagesCache.class, "getQueuesToPersist"));
     private final Timer   clearQueueTimer                     = Metrics.timer(name(MessagesCache.class, "clear"));
+    private final Timer   clearAccountTimer                   = Metrics.timer(name(MessagesCache.class, "clearAccount"));
     private final Timer   takeEphemeralMessageTimer           = Metrics.timer(name(MessagesCache.class, "takeEphemeral"));
     private final Counter pubSubMessageCounter                = Metrics.counter(name(MessagesCache.class, "pubSubMessage"));
     private final Counter newMessageNotificationCounter       = Metrics.counter(name(MessagesCache.class, "newMessageNotification"), "ephemeral", "false");
@@ -79,8 +106,23 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     private static final String EPHEMERAL_QUEUE_KEYSPACE_PREFIX = "__keyspace@0__:user_queue_ephemeral::";
     private static final String PERSISTING_KEYSPACE_PREFIX      = "__keyspace@0__:user_queue_persisting::";
 
+    private static final String QUEUE_NOTIFICATION_CHANNEL_PREFIX = "user_queue_notifications::";
+    private static final String NEW_MESSAGE_NOTIFICATION_PREFIX   = "zadd:";
+    private static final String PERSISTED_NOTIFICATION_PREFIX     = "del:";
+
+    // Listener records are refreshed for as long as their listener is registered, so a record left behind by a server
+    // that stopped without removing it lapses after a few minutes
+    private static final Duration QUEUE_LISTENER_TTL = Duration.ofMinutes(5);
+    private static final Duration QUEUE_LISTENER_REFRESH_INTERVAL = Duration.ofMinutes(1);
+
+    // Notifications for a given queue are always dispatched through the same stripe so they're handled in order
+    private static final int NOTIFICATION_DISPATCH_STRIPES = 64;
+
     private static final Duration MAX_EPHEMERAL_MESSAGE_DELAY = Duration.ofSeconds(10);
 
+    // Device IDs are bytes on the wire, and the primary device is always device 1
+    private static final List<Long> ALL_DEVICE_IDS = LongStream.range(1, 256).boxed().collect(Collectors.toList());
+
     private static final String REMOVE_TIMER_NAME = name(MessagesCache.class, "remove");
 
     private static final String REMOVE_METHOD_TAG    = "method";
@@ -89,18 +131,49 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     private static final Logger logger = LoggerFactory.getLogger(MessagesCache.class);
 
     public MessagesCache(final FaultTolerantRedisCluster insertCluster, final FaultTolerantRedisCluster readDeleteCluster, final ExecutorService notificationExecutorService) throws IOException {
+        this(insertCluster, readDeleteCluster, notificationExecutorService, null, false);
+    }
+
+  /**
+   * Constructs a new messages cache.
+   *
+   * @param listenerRefreshExecutor the executor on which listener records are periodically refreshed; required only if
+   * {@code targetedNotifications} is {@code true}
+   * @param targetedNotifications if {@code true}, this cache records which server is listening to each queue alongside
+   * the queue and receives notifications for all of its listeners on a single server-specific channel; otherwise, it
+   * subscribes to keyspace notifications for each listener's queue and neither reads nor writes listener records, so
+   * every server sharing a cluster must agree on this setting
+   */
+    public MessagesCache(final FaultTolerantRedisCluster insertCluster, final FaultTolerantRedisCluster readDeleteCluster,
+        final ExecutorService notificationExecutorService,
+        @Nullable final ScheduledExecutorService listenerRefreshExecutor,
+        final boolean targetedNotifications) throws IOException {
+
+        if (targetedNotifications && listenerRefreshExecutor == null) {
+            throw new IllegalArgumentException("Targeted notifications require a listener refresh executor");
+        }
 
         this.insertCluster = insertCluster;
         this.readDeleteCluster = readDeleteCluster;
         this.pubSubConnection = readDeleteCluster.createPubSubConnection();
 
-        this.notificationExecutorService = notificationExecutorService;
+        this.notificationExecutors = new Executor[NOTIFICATION_DISPATCH_STRIPES];
+
+        for (int i = 0; i < notificationExecutors.length; i++) {
+            notificationExecutors[i] = MoreExecutors.newSequentialExecutor(notificationExecutorService);
+        }
 
         this.insertScript             = ClusterLuaScript.fromResource(insertCluster, "lua/insert_item.lua",           ScriptOutputType.INTEGER);
         this.removeByGuidScript       = ClusterLuaScript.fromResource(readDeleteCluster, "lua/remove_item_by_guid.lua",   ScriptOutputType.MULTI);
         this.getItemsScript           = ClusterLuaScript.fromResource(readDeleteCluster, "lua/get_items.lua",             ScriptOutputType.MULTI);
         this.removeQueueScript        = ClusterLuaScript.fromResource(readDeleteCluster, "lua/remove_queue.lua",          ScriptOutputType.STATUS);
         this.getQueuesToPersistScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/get_queues_to_persist.lua", ScriptOutputType.MULTI);
+        this.unlockQueueScript        = ClusterLuaScript.fromResource(readDeleteCluster, "lua/unlock_queue_for_persistence.lua", ScriptOutputType.STATUS);
+        this.removeQueueListenerScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/clear_queue_listener.lua", ScriptOutputType.INTEGER);
+        this.refreshQueueListenerScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/refresh_queue_listener.lua", ScriptOutputType.INTEGER);
+
+        this.listenerRefreshExecutor = listenerRefreshExecutor;
+        this.targetedNotifications = targetedNotifications;
     }
 
     @Override
@@ -111,21 +184,40 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
                     .filter(event -> event instanceof ClusterTopologyChangedEvent)
                     .subscribe(event -> resubscribeAll());
         });
+
+        if (targetedNotifications) {
+            subscribeForQueueNotificationChannel();
+
+            final long refreshIntervalMillis = QUEUE_LISTENER_REFRESH_INTERVAL.toMillis();
+
+            refreshQueueListenersFuture = listenerRefreshExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    refreshQueueListeners();
+                } catch (final Throwable t) {
+                    logger.warn("Failed to refresh queue listener records", t);
+                }
+            }, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void stop() {
+        if (refreshQueueListenersFuture != null) {
+            refreshQueueListenersFuture.cancel(false);
+        }
+
         pubSubConnection.usePubSubConnection(connection -> connection.sync().upstream().commands().unsubscribe());
     }
 
     private void resubscribeAll() {
+        if (targetedNotifications) {
+            subscribeForQueueNotificationChannel();
+            return;
+        }
+
         logger.info("Got topology change event, resubscribing all keyspace notifications");
 
-        final Set<String> queueNames;
-
-        synchronized (messageListenersByQueueName) {
-            queueNames = new HashSet<>(messageListenersByQueueName.keySet());
-        }
+        final Set<String> queueNames = new HashSet<>(messageListenersByQueueName.keySet());
 
         for (final String queueName : queueNames) {
             subscribeForKeyspaceNotifications(queueName);
@@ -135,13 +227,56 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     public long insert(final UUID guid, final UUID destinationUuid, final long destinationDevice, final MessageProtos.Envelope message) {
       final MessageProtos.Envelope messageWithGuid = message.toBuilder().setServerGuid(guid.toString()).build();
       return (long) insertTimer.record(() ->
-          insertScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
-                  getMessageQueueMetadataKey(destinationUuid, destinationDevice),
-                  getQueueIndexKey(destinationUuid, destinationDevice)),
+          insertScript.executeBinary(getInsertKeys(destinationUuid, destinationDevice),
               List.of(messageWithGuid.toByteArray(),
                   String.valueOf(message.getTimestamp()).getBytes(StandardCharsets.UTF_8),
-                  guid.toString().getBytes(StandardCharsets.UTF_8))));
-    }
+                  guid.toString().getBytes(StandardCharsets.UTF_8),
+                  QUEUE_NOTIFICATION_CHANNEL_PREFIX.getBytes(StandardCharsets.UTF_8))));
+    }
+
+  /**
+   * Inserts a batch of messages, potentially bound for many different destination devices, without blocking on each
+   * individual insertion. Messages are grouped by the cluster slot of their destination queue and submitted back to back
+   * on the asynchronous connection so that messages destined for the same shard are pipelined together.
+   *
+   * @param pendingMessages the messages to insert
+   *
+   * @return one future per message, in the order of {@code pendingMessages}, each of which completes when its message
+   * has been inserted or fails if that insertion failed; a failed insertion does not affect any other
+   */
+  public List<CompletableFuture<Void>> insert(final List<PendingMessage> pendingMessages) {
+    if (pendingMessages.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    final Timer.Sample sample = Timer.start();
+    insertBatchSizeDistribution.record(pendingMessages.size());
+
+    @SuppressWarnings("unchecked") final CompletableFuture<Void>[] insertFutures = new CompletableFuture[pendingMessages.size()];
+
+    IntStream.range(0, pendingMessages.size())
+        .boxed()
+        .sorted(Comparator.comparingInt(i -> SlotHash.getSlot(getMessageQueueKey(
+            pendingMessages.get(i).getDestinationUuid(), pendingMessages.get(i).getDestinationDevice()))))
+        .forEach(i -> {
+          final PendingMessage pendingMessage = pendingMessages.get(i);
+          final MessageProtos.Envelope messageWithGuid = pendingMessage.getEnvelope().toBuilder()
+              .setServerGuid(pendingMessage.getGuid().toString())
+              .build();
+
+          insertFutures[i] = insertScript.executeBinaryAsync(
+              getInsertKeys(pendingMessage.getDestinationUuid(), pendingMessage.getDestinationDevice()),
+              List.of(messageWithGuid.toByteArray(),
+                  String.valueOf(pendingMessage.getEnvelope().getTimestamp()).getBytes(StandardCharsets.UTF_8),
+                  pendingMessage.getGuid().toString().getBytes(StandardCharsets.UTF_8),
+                  QUEUE_NOTIFICATION_CHANNEL_PREFIX.getBytes(StandardCharsets.UTF_8)))
+              .thenApply(ignored -> null);
+        });
+
+    CompletableFuture.allOf(insertFutures).whenComplete((ignored, throwable) -> sample.stop(insertBatchTimer));
+
+    return Arrays.asList(insertFutures);
+  }
 
   public Optional<OutgoingMessageEntity> remove(final UUID destinationUuid, final long destinationDevice,
       final UUID messageGuid) {
@@ -176,12 +311,9 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         return readDeleteCluster.withBinaryCluster(connection -> connection.sync().zcard(getMessageQueueKey(destinationUuid, destinationDevice)) > 0);
     }
 
-    @SuppressWarnings("unchecked")
     public List<OutgoingMessageEntity> get(final UUID destinationUuid, final long destinationDevice, final int limit) {
         return getMessagesTimer.record(() -> {
-            final List<byte[]> queueItems = (List<byte[]>)getItemsScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
-                                                                                               getPersistInProgressKey(destinationUuid, destinationDevice)),
-                                                                                       List.of(String.valueOf(limit).getBytes(StandardCharsets.UTF_8)));
+            final List<byte[]> queueItems = getQueueItems(destinationUuid, destinationDevice, limit, null);
 
             final List<OutgoingMessageEntity> messageEntities;
 
@@ -207,6 +339,61 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         });
     }
 
+  /**
+   * Retrieves messages bound for the given destination device without converting them to {@link OutgoingMessageEntity}
+   * instances; the returned messages carry their envelopes in serialized form as stored.
+   *
+   * @param destinationUuid the UUID of the destination account
+   * @param destinationDevice the ID of the destination device
+   * @param afterMessageId only return messages with a local ID greater than this one; pass {@code 0} to read from the
+   * head of the queue
+   * @param limit the maximum number of messages to retrieve
+   *
+   * @return up to {@code limit} messages bound for the given destination device, in queue order
+   */
+  public List<StoredMessage> getStoredMessages(final UUID destinationUuid, final long destinationDevice,
+      final long afterMessageId, final int limit) {
+
+    return getMessagesTimer.record(() -> {
+      final List<byte[]> queueItems = getQueueItems(destinationUuid, destinationDevice, limit, afterMessageId);
+
+      if (queueItems.size() % 2 != 0) {
+        logger.error("\"Get messages\" operation returned a list with a non-even number of elements.");
+        return Collections.emptyList();
+      }
+
+      final List<StoredMessage> messages = new ArrayList<>(queueItems.size() / 2);
+
+      for (int i = 0; i < queueItems.size() - 1; i += 2) {
+        try {
+          final long id = Long.parseLong(new String(queueItems.get(i + 1), StandardCharsets.UTF_8));
+          messages.add(StoredMessage.fromSerializedEnvelope(id, queueItems.get(i)));
+        } catch (final InvalidProtocolBufferException e) {
+          logger.warn("Failed to parse envelope", e);
+        }
+      }
+
+      return messages;
+    });
+  }
+
+  /**
+   * Reads alternating serialized envelopes and local message IDs from the given destination device's queue. If
+   * {@code afterMessageId} is {@code null}, reads from the head of the queue.
+   */
+  @SuppressWarnings("unchecked")
+  private List<byte[]> getQueueItems(final UUID destinationUuid, final long destinationDevice, final int limit,
+      @Nullable final Long afterMessageId) {
+
+    final List<byte[]> arguments = afterMessageId == null
+        ? List.of(String.valueOf(limit).getBytes(StandardCharsets.UTF_8))
+        : List.of(String.valueOf(limit).getBytes(StandardCharsets.UTF_8),
+            String.valueOf(afterMessageId).getBytes(StandardCharsets.UTF_8));
+
+    return (List<byte[]>) getItemsScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
+        getPersistInProgressKey(destinationUuid, destinationDevice)), arguments);
+  }
+
     @VisibleForTesting
     List<MessageProtos.Envelope> getMessagesToPersist(final UUID accountUuid, final long destinationDevice, final int limit) {
         return getMessagesTimer.record(() -> {
@@ -259,12 +446,27 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     public void clear(final UUID destinationUuid) {
         // TODO Remove null check in a fully UUID-based world
         if (destinationUuid != null) {
-            for (int i = 1; i < 256; i++) {
-                clear(destinationUuid, i);
-            }
+            clear(destinationUuid, ALL_DEVICE_IDS);
         }
     }
 
+  /**
+   * Clears the queues for the given devices. Removals for all devices are submitted at once and pipelined rather than
+   * waiting for each device's queue to be cleared in turn.
+   *
+   * @param destinationUuid the account whose queues should be cleared
+   * @param deviceIds the devices whose queues should be cleared
+   */
+  public void clear(final UUID destinationUuid, final Collection<Long> deviceIds) {
+    clearAccountTimer.record(() -> CompletableFuture.allOf(deviceIds.stream()
+            .map(deviceId -> removeQueueScript.executeBinaryAsync(List.of(getMessageQueueKey(destinationUuid, deviceId),
+                    getMessageQueueMetadataKey(destinationUuid, deviceId),
+                    getQueueIndexKey(destinationUuid, deviceId)),
+                Collections.emptyList()))
+            .toArray(CompletableFuture[]::new))
+        .join());
+  }
+
     public void clear(final UUID destinationUuid, final long deviceId) {
         clearQueueTimer.record(() ->
                 removeQueueScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, deviceId),
@@ -278,47 +480,106 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     }
 
     List<String> getQueuesToPersist(final int slot, final Instant maxTime, final int limit) {
-        //noinspection unchecked
-        return getQueuesToPersistTimer.record(() -> (List<String>)getQueuesToPersistScript.execute(List.of(new String(getQueueIndexKey(slot), StandardCharsets.UTF_8)),
-                                                                                                   List.of(String.valueOf(maxTime.toEpochMilli()),
-                                                                                                           String.valueOf(limit))));
+        return getScoredQueuesToPersist(slot, maxTime, limit).stream()
+            .map(ScoredValue::getValue)
+            .collect(Collectors.toList());
     }
 
-    void addQueueToPersist(final UUID accountUuid, final long deviceId) {
-        readDeleteCluster.useBinaryCluster(connection -> connection.sync().zadd(getQueueIndexKey(accountUuid, deviceId), ZAddArgs.Builder.nx(), System.currentTimeMillis(), getMessageQueueKey(accountUuid, deviceId)));
+  /**
+   * Removes up to {@code limit} queues that were added to the given slot's persistence index no later than
+   * {@code maxTime} and returns their names, each scored with the epoch millisecond at which it was added.
+   */
+  List<ScoredValue<String>> getScoredQueuesToPersist(final int slot, final Instant maxTime, final int limit) {
+    //noinspection unchecked
+    final List<String> results = getQueuesToPersistTimer.record(() -> (List<String>) getQueuesToPersistScript.execute(
+        List.of(new String(getQueueIndexKey(slot), StandardCharsets.UTF_8)),
+        List.of(String.valueOf(maxTime.toEpochMilli()), String.valueOf(limit))));
+
+    final List<ScoredValue<String>> scoredQueues = new ArrayList<>(results.size() / 2);
+
+    for (int i = 0; i < results.size() - 1; i += 2) {
+      scoredQueues.add(ScoredValue.just(Double.parseDouble(results.get(i + 1)), results.get(i)));
     }
 
+    return scoredQueues;
+  }
+
+  /**
+   * Adds the given queue to its slot's persistence index as if it had first received a message at {@code queueTime},
+   * unless it is already present.
+   */
+  void addQueueToPersist(final UUID accountUuid, final long deviceId, final Instant queueTime) {
+    readDeleteCluster.useBinaryCluster(connection -> connection.sync()
+        .zadd(getQueueIndexKey(accountUuid, deviceId), ZAddArgs.Builder.nx(), queueTime.toEpochMilli(),
+            getMessageQueueKey(accountUuid, deviceId)));
+  }
+
     void lockQueueForPersistence(final UUID accountUuid, final long deviceId) {
         readDeleteCluster.useBinaryCluster(connection -> connection.sync().setex(getPersistInProgressKey(accountUuid, deviceId), 30, LOCK_VALUE));
     }
 
     void unlockQueueForPersistence(final UUID accountUuid, final long deviceId) {
-        readDeleteCluster.useBinaryCluster(connection -> connection.sync().del(getPersistInProgressKey(accountUuid, deviceId)));
+        unlockQueueScript.executeBinary(targetedNotifications
+                ? List.of(getPersistInProgressKey(accountUuid, deviceId), getQueueListenerKey(accountUuid, deviceId))
+                : List.of(getPersistInProgressKey(accountUuid, deviceId)),
+            List.of(QUEUE_NOTIFICATION_CHANNEL_PREFIX.getBytes(StandardCharsets.UTF_8)));
     }
 
     public void addMessageAvailabilityListener(final UUID destinationUuid, final long deviceId, final MessageAvailabilityListener listener) {
         final String queueName = getQueueName(destinationUuid, deviceId);
 
-        synchronized (messageListenersByQueueName) {
-            messageListenersByQueueName.put(queueName, listener);
-            queueNamesByMessageListener.put(listener, queueName);
-        }
+        queueNamesByMessageListener.put(listener, queueName);
+        messageListenersByQueueName.put(queueName, listener);
 
-        subscribeForKeyspaceNotifications(queueName);
+        if (targetedNotifications) {
+            readDeleteCluster.useBinaryCluster(connection -> connection.sync().setex(
+                getQueueListenerKey(destinationUuid, deviceId), QUEUE_LISTENER_TTL.toSeconds(),
+                serverId.getBytes(StandardCharsets.UTF_8)));
+        } else {
+            subscribeForKeyspaceNotifications(queueName);
+        }
     }
 
     public void removeMessageAvailabilityListener(final MessageAvailabilityListener listener) {
         final String queueName = queueNamesByMessageListener.remove(listener);
 
-        unsubscribeFromKeyspaceNotifications(queueName);
-
-        synchronized (messageListenersByQueueName) {
-            if (queueName != null) {
-                messageListenersByQueueName.remove(queueName);
+        // If another listener has since replaced this one for the same queue, leave its mapping and subscription alone
+        if (queueName != null && messageListenersByQueueName.remove(queueName, listener)) {
+            if (targetedNotifications) {
+                // Another server may have taken over the queue in the meantime, in which case its record stays
+                removeQueueListenerScript.execute(List.of(getQueueListenerKey(queueName)), List.of(serverId));
+            } else {
+                unsubscribeFromKeyspaceNotifications(queueName);
             }
         }
     }
 
+    /**
+     * Extends the listener record for every queue this cache is listening to, restoring any that have lapsed.
+     */
+    @VisibleForTesting
+    void refreshQueueListeners() {
+        final List<String> ttlArgs = List.of(serverId, String.valueOf(QUEUE_LISTENER_TTL.toSeconds()));
+
+        for (final String queueName : messageListenersByQueueName.keySet()) {
+            refreshQueueListenerScript.executeAsync(List.of(getQueueListenerKey(queueName)), ttlArgs)
+                .whenComplete((refreshed, cause) -> {
+                    if (cause != null) {
+                        logger.warn("Failed to refresh listener record for queue {}", queueName, cause);
+                    }
+                });
+        }
+    }
+
+    private void subscribeForQueueNotificationChannel() {
+        final String channel = QUEUE_NOTIFICATION_CHANNEL_PREFIX + serverId;
+        final int slot = SlotHash.getSlot(channel);
+
+        pubSubConnection.usePubSubConnection(connection -> connection.sync().nodes(node -> node.is(RedisClusterNode.NodeFlag.UPSTREAM) && node.hasSlot(slot))
+                                                                     .commands()
+                                                                     .subscribe(channel));
+    }
+
     private void subscribeForKeyspaceNotifications(final String queueName) {
         final int slot = SlotHash.getSlot(queueName);
 
@@ -346,41 +607,52 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         pubSubMessageCounter.increment();
 
         if (channel.startsWith(QUEUE_KEYSPACE_PREFIX) && "zadd".equals(message)) {
-          newMessageNotificationCounter.increment();
-          notificationExecutorService.execute(() -> {
-            try {
-              findListener(channel).ifPresent(MessageAvailabilityListener::handleNewMessagesAvailable);
-            } catch (final Exception e) {
-              logger.warn("Unexpected error handling new message", e);
-            }
-          });
+          handleNewMessagesAvailable(getQueueNameFromKeyspaceChannel(channel));
         } else if (channel.startsWith(EPHEMERAL_QUEUE_KEYSPACE_PREFIX) && "rpush".equals(message)) {
           ephemeralMessageNotificationCounter.increment();
-          notificationExecutorService.execute(() -> {
+          dispatchNotification(getQueueNameFromKeyspaceChannel(channel), listener -> {
             try {
-              findListener(channel).ifPresent(MessageAvailabilityListener::handleNewEphemeralMessageAvailable);
+              listener.handleNewEphemeralMessageAvailable();
             } catch (final Exception e) {
               logger.warn("Unexpected error handling new ephemeral message", e);
             }
           });
         } else if (channel.startsWith(PERSISTING_KEYSPACE_PREFIX) && "del".equals(message)) {
-          queuePersistedNotificationCounter.increment();
-          notificationExecutorService.execute(() -> {
-            try {
-              findListener(channel).ifPresent(MessageAvailabilityListener::handleMessagesPersisted);
-            } catch (final Exception e) {
-              logger.warn("Unexpected error handling messages persisted", e);
-            }
-          });
+          handleMessagesPersisted(getQueueNameFromKeyspaceChannel(channel));
+        } else if (channel.equals(QUEUE_NOTIFICATION_CHANNEL_PREFIX + serverId)) {
+          if (message.startsWith(NEW_MESSAGE_NOTIFICATION_PREFIX)) {
+            handleNewMessagesAvailable(message.substring(NEW_MESSAGE_NOTIFICATION_PREFIX.length()));
+          } else if (message.startsWith(PERSISTED_NOTIFICATION_PREFIX)) {
+            handleMessagesPersisted(message.substring(PERSISTED_NOTIFICATION_PREFIX.length()));
+          }
         }
     }
 
-    private Optional<MessageAvailabilityListener> findListener(final String keyspaceChannel) {
-        final String queueName = getQueueNameFromKeyspaceChannel(keyspaceChannel);
+    private void handleNewMessagesAvailable(final String queueName) {
+      newMessageNotificationCounter.increment();
+      dispatchNotification(queueName, listener -> {
+        try {
+          listener.handleNewMessagesAvailable();
+        } catch (final Exception e) {
+          logger.warn("Unexpected error handling new message", e);
+        }
+      });
+    }
 
-        synchronized (messageListenersByQueueName) {
-            return Optional.ofNullable(messageListenersByQueueName.get(queueName));
+    private void handleMessagesPersisted(final String queueName) {
+      queuePersistedNotificationCounter.increment();
+      dispatchNotification(queueName, listener -> {
+        try {
+          listener.handleMessagesPersisted();
+        } catch (final Exception e) {
+          logger.warn("Unexpected error handling messages persisted", e);
         }
+      });
+    }
+
+    private void dispatchNotification(final String queueName, final Consumer<MessageAvailabilityListener> notificationHandler) {
+        notificationExecutors[Math.floorMod(queueName.hashCode(), notificationExecutors.length)].execute(() ->
+            Optional.ofNullable(messageListenersByQueueName.get(queueName)).ifPresent(notificationHandler));
     }
 
     @VisibleForTesting
@@ -432,6 +704,26 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         return ("user_queue_index::{" + RedisClusterUtil.getMinimalHashTag(slot) + "}").getBytes(StandardCharsets.UTF_8);
     }
 
+    private List<byte[]> getInsertKeys(final UUID accountUuid, final long deviceId) {
+        // Without targeted notifications, nobody writes listener records, so there's no point in reading them
+        return targetedNotifications
+            ? List.of(getMessageQueueKey(accountUuid, deviceId),
+                getMessageQueueMetadataKey(accountUuid, deviceId),
+                getQueueIndexKey(accountUuid, deviceId),
+                getQueueListenerKey(accountUuid, deviceId))
+            : List.of(getMessageQueueKey(accountUuid, deviceId),
+                getMessageQueueMetadataKey(accountUuid, deviceId),
+                getQueueIndexKey(accountUuid, deviceId));
+    }
+
+    private static byte[] getQueueListenerKey(final UUID accountUuid, final long deviceId) {
+        return getQueueListenerKey(getQueueName(accountUuid, deviceId)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String getQueueListenerKey(final String queueName) {
+        return "user_queue_listener::{" + queueName + "}";
+    }
+
     private static byte[] getPersistInProgressKey(final UUID accountUuid, final long deviceId) {
         return ("user_queue_persisting::{" + accountUuid + "::" + deviceId  + "}").getBytes(StandardCharsets.UTF_8);
     }
@@ -6,9 +6,12 @@
 package org.smassarn.textsecuregcm.storage;
 
 import static com.codahale.metrics.MetricRegistry.name;
+import static io.micrometer.core.instrument.Metrics.counter;
 import static io.micrometer.core.instrument.Metrics.timer;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Timer;
 import java.nio.ByteBuffer;
 import java.time.Duration;
@@ -17,12 +20,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.smassarn.textsecuregcm.entities.MessageProtos;
 import org.smassarn.textsecuregcm.entities.OutgoingMessageEntity;
 import org.smassarn.textsecuregcm.util.AttributeValues;
 import org.smassarn.textsecuregcm.util.UUIDUtil;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
@@ -53,70 +59,96 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
   private final Timer storeTimer = timer(name(getClass(), "store"));
   private final Timer loadTimer = timer(name(getClass(), "load"));
   private final Timer deleteByGuid = timer(name(getClass(), "delete", "guid"));
+  private final Timer deleteByKey = timer(name(getClass(), "delete", "key"));
+  private final Timer deleteBySortKey = timer(name(getClass(), "delete", "sortKey"));
   private final Timer deleteByAccount = timer(name(getClass(), "delete", "account"));
   private final Timer deleteByDevice = timer(name(getClass(), "delete", "device"));
+  private final Counter purgedMessages = counter(name(getClass(), "purgedMessages"));
 
   private final String tableName;
   private final Duration timeToLive;
 
-  public MessagesDynamoDb(DynamoDbClient dynamoDb, String tableName, Duration timeToLive) {
-    super(dynamoDb);
+  public MessagesDynamoDb(DynamoDbClient dynamoDb, DynamoDbAsyncClient dynamoDbAsync, String tableName,
+      Duration timeToLive) {
+    super(dynamoDb, dynamoDbAsync);
 
     this.tableName = tableName;
     this.timeToLive = timeToLive;
   }
 
   public void store(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
-    storeTimer.record(() -> writeInBatches(messages, (messageBatch) -> storeBatch(messageBatch, destinationAccountUuid, destinationDeviceId)));
+    storeTimer.record(() -> {
+      final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
+
+      executeTableWriteItemsUntilComplete(tableName, messages.stream()
+          .map(message -> WriteRequest.builder().putRequest(PutRequest.builder()
+              .item(getItemFromMessage(partitionKey, destinationDeviceId, message))
+              .build()).build())
+          .collect(Collectors.toList()));
+    });
   }
 
-  private void storeBatch(final List<MessageProtos.Envelope> messages, final UUID destinationAccountUuid, final long destinationDeviceId) {
-    if (messages.size() > DYNAMO_DB_MAX_BATCH_SIZE) {
-      throw new IllegalArgumentException("Maximum batch size of " + DYNAMO_DB_MAX_BATCH_SIZE + " execeeded with " + messages.size() + " messages");
+  private Map<String, AttributeValue> getItemFromMessage(final AttributeValue partitionKey,
+      final long destinationDeviceId, final MessageProtos.Envelope message) {
+
+    final UUID messageUuid = UUID.fromString(message.getServerGuid());
+    final ImmutableMap.Builder<String, AttributeValue> item = ImmutableMap.<String, AttributeValue>builder()
+        .put(KEY_PARTITION, partitionKey)
+        .put(KEY_SORT, convertSortKey(destinationDeviceId, message.getServerTimestamp(), messageUuid))
+        .put(LOCAL_INDEX_MESSAGE_UUID_KEY_SORT, convertLocalIndexMessageUuidSortKey(messageUuid))
+        .put(KEY_TYPE, AttributeValues.fromInt(message.getType().getNumber()))
+        .put(KEY_TIMESTAMP, AttributeValues.fromLong(message.getTimestamp()))
+        .put(KEY_TTL, AttributeValues.fromLong(getTtlForMessage(message)));
+    if (message.hasRelay() && message.getRelay().length() > 0) {
+      item.put(KEY_RELAY, AttributeValues.fromString(message.getRelay()));
     }
-
-    final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
-    List<WriteRequest> writeItems = new ArrayList<>();
-    for (MessageProtos.Envelope message : messages) {
-      final UUID messageUuid = UUID.fromString(message.getServerGuid());
-      final ImmutableMap.Builder<String, AttributeValue> item = ImmutableMap.<String, AttributeValue>builder()
-          .put(KEY_PARTITION, partitionKey)
-          .put(KEY_SORT, convertSortKey(destinationDeviceId, message.getServerTimestamp(), messageUuid))
-          .put(LOCAL_INDEX_MESSAGE_UUID_KEY_SORT, convertLocalIndexMessageUuidSortKey(messageUuid))
-          .put(KEY_TYPE, AttributeValues.fromInt(message.getType().getNumber()))
-          .put(KEY_TIMESTAMP, AttributeValues.fromLong(message.getTimestamp()))
-          .put(KEY_TTL, AttributeValues.fromLong(getTtlForMessage(message)));
-      if (message.hasRelay() && message.getRelay().length() > 0) {
-        item.put(KEY_RELAY, AttributeValues.fromString(message.getRelay()));
-      }
-      if (message.hasSource()) {
-        item.put(KEY_SOURCE, AttributeValues.fromString(message.getSource()));
-      }
-      if (message.hasSourceUuid()) {
-        item.put(KEY_SOURCE_UUID, AttributeValues.fromUUID(UUID.fromString(message.getSourceUuid())));
-      }
-      if (message.hasSourceDevice()) {
-        item.put(KEY_SOURCE_DEVICE, AttributeValues.fromInt(message.getSourceDevice()));
-      }
-      if (message.hasLegacyMessage()) {
-        item.put(KEY_MESSAGE, AttributeValues.fromByteArray(message.getLegacyMessage().toByteArray()));
-      }
-      if (message.hasContent()) {
-        item.put(KEY_CONTENT, AttributeValues.fromByteArray(message.getContent().toByteArray()));
-      }
-      writeItems.add(WriteRequest.builder().putRequest(PutRequest.builder()
-          .item(item.build())
-          .build()).build());
+    if (message.hasSource()) {
+      item.put(KEY_SOURCE, AttributeValues.fromString(message.getSource()));
     }
-
-    executeTableWriteItemsUntilComplete(Map.of(tableName, writeItems));
+    if (message.hasSourceUuid()) {
+      item.put(KEY_SOURCE_UUID, AttributeValues.fromUUID(UUID.fromString(message.getSourceUuid())));
+    }
+    if (message.hasSourceDevice()) {
+      item.put(KEY_SOURCE_DEVICE, AttributeValues.fromInt(message.getSourceDevice()));
+    }
+    if (message.hasLegacyMessage()) {
+      item.put(KEY_MESSAGE, AttributeValues.fromByteArray(message.getLegacyMessage().toByteArray()));
+    }
+    if (message.hasContent()) {
+      item.put(KEY_CONTENT, AttributeValues.fromByteArray(message.getContent().toByteArray()));
+    }
+    return item.build();
   }
 
   public List<OutgoingMessageEntity> load(final UUID destinationAccountUuid, final long destinationDeviceId, final int requestedNumberOfMessagesToFetch) {
+    return load(destinationAccountUuid, destinationDeviceId, requestedNumberOfMessagesToFetch, null);
+  }
+
+  /**
+   * Loads messages for the given destination device that sort after the given message, which need not still exist.
+   *
+   * @param destinationAccountUuid the UUID of the destination account
+   * @param destinationDeviceId the ID of the destination device
+   * @param requestedNumberOfMessagesToFetch the maximum number of messages to load
+   * @param afterServerTimestamp the server timestamp of the message after which to start loading
+   * @param afterMessageUuid the GUID of the message after which to start loading
+   *
+   * @return up to the requested number of messages following the given message
+   */
+  public List<OutgoingMessageEntity> load(final UUID destinationAccountUuid, final long destinationDeviceId,
+      final int requestedNumberOfMessagesToFetch, final long afterServerTimestamp, final UUID afterMessageUuid) {
+
+    return load(destinationAccountUuid, destinationDeviceId, requestedNumberOfMessagesToFetch,
+        convertSortKey(destinationDeviceId, afterServerTimestamp, afterMessageUuid));
+  }
+
+  private List<OutgoingMessageEntity> load(final UUID destinationAccountUuid, final long destinationDeviceId,
+      final int requestedNumberOfMessagesToFetch, @Nullable final AttributeValue exclusiveStartSortKey) {
+
     return loadTimer.record(() -> {
       final int numberOfMessagesToFetch = Math.min(requestedNumberOfMessagesToFetch, RESULT_SET_CHUNK_SIZE);
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
-      final QueryRequest queryRequest = QueryRequest.builder()
+      final QueryRequest.Builder queryRequestBuilder = QueryRequest.builder()
           .tableName(tableName)
           .consistentRead(true)
           .keyConditionExpression("#part = :part AND begins_with ( #sort , :sortprefix )")
@@ -126,8 +158,13 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
           .expressionAttributeValues(Map.of(
               ":part", partitionKey,
               ":sortprefix", convertDestinationDeviceIdToSortKeyPrefix(destinationDeviceId)))
-          .limit(numberOfMessagesToFetch)
-          .build();
+          .limit(numberOfMessagesToFetch);
+
+      if (exclusiveStartSortKey != null) {
+        queryRequestBuilder.exclusiveStartKey(Map.of(KEY_PARTITION, partitionKey, KEY_SORT, exclusiveStartSortKey));
+      }
+
+      final QueryRequest queryRequest = queryRequestBuilder.build();
       List<OutgoingMessageEntity> messageEntities = new ArrayList<>(numberOfMessagesToFetch);
       for (Map<String, AttributeValue> message : db().queryPaginator(queryRequest).items()) {
         messageEntities.add(convertItemToOutgoingMessageEntity(message));
@@ -162,6 +199,37 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
     });
   }
 
+  /**
+   * Deletes a single message whose server timestamp is already known with one {@code DeleteItem} call, avoiding the
+   * local secondary index lookup performed by {@link #deleteMessageByDestinationAndGuid(UUID, UUID)}.
+   *
+   * @param destinationAccountUuid the UUID of the account to which the message was sent
+   * @param destinationDeviceId the ID of the device to which the message was sent
+   * @param messageUuid the GUID of the message to delete
+   * @param serverTimestamp the server timestamp of the message to delete
+   *
+   * @return the deleted message, or empty if no such message existed
+   */
+  public Optional<OutgoingMessageEntity> deleteMessage(final UUID destinationAccountUuid,
+      final long destinationDeviceId, final UUID messageUuid, final long serverTimestamp) {
+
+    return deleteBySortKey.record(() -> {
+      final DeleteItemResponse deleteItemResponse = db().deleteItem(DeleteItemRequest.builder()
+          .tableName(tableName)
+          .key(Map.of(
+              KEY_PARTITION, convertPartitionKey(destinationAccountUuid),
+              KEY_SORT, convertSortKey(destinationDeviceId, serverTimestamp, messageUuid)))
+          .returnValues(ReturnValue.ALL_OLD)
+          .build());
+
+      if (deleteItemResponse.attributes() != null && deleteItemResponse.attributes().containsKey(KEY_PARTITION)) {
+        return Optional.of(convertItemToOutgoingMessageEntity(deleteItemResponse.attributes()));
+      }
+
+      return Optional.empty();
+    });
+  }
+
   @Nonnull
   private Optional<OutgoingMessageEntity> deleteItemsMatchingQueryAndReturnFirstOneActuallyDeleted(AttributeValue partitionKey, QueryRequest queryRequest) {
     Optional<OutgoingMessageEntity> result = Optional.empty();
@@ -181,7 +249,40 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
     return result;
   }
 
+  /**
+   * Deletes the given messages without first looking up their sort keys, which can be derived from each message's
+   * server timestamp and GUID. Deletes are issued in batches; messages that no longer exist are silently ignored.
+   *
+   * @param destinationAccountUuid the UUID of the account to which the messages were sent
+   * @param destinationDeviceId the ID of the device to which the messages were sent
+   * @param messages the messages to delete
+   */
+  public void deleteMessages(final UUID destinationAccountUuid, final long destinationDeviceId,
+      final List<MessageProtos.Envelope> messages) {
+
+    deleteByKey.record(() -> {
+      final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
+
+      executeTableWriteItemsUntilComplete(tableName, messages.stream()
+          .map(message -> WriteRequest.builder()
+              .deleteRequest(DeleteRequest.builder().key(Map.of(
+                  KEY_PARTITION, partitionKey,
+                  KEY_SORT, convertSortKey(destinationDeviceId, message.getServerTimestamp(),
+                      UUID.fromString(message.getServerGuid())))).build())
+              .build())
+          .collect(Collectors.toList()));
+    });
+  }
+
   public void deleteAllMessagesForAccount(final UUID destinationAccountUuid) {
+    deleteAllMessagesForAccount(destinationAccountUuid, Long.MAX_VALUE);
+  }
+
+  /**
+   * Deletes all of the given account's messages that the server received before the given time. Messages received
+   * later, for example by a new registration that reuses the account's UUID, are left in place.
+   */
+  public void deleteAllMessagesForAccount(final UUID destinationAccountUuid, final long receivedBeforeMillis) {
     deleteByAccount.record(() -> {
       final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
       final QueryRequest queryRequest = QueryRequest.builder()
@@ -192,7 +293,8 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
           .expressionAttributeNames(Map.of("#part", KEY_PARTITION))
           .expressionAttributeValues(Map.of(":part", partitionKey))
           .build();
-      deleteRowsMatchingQuery(partitionKey, queryRequest);
+      deleteRowsMatchingQuery(partitionKey, queryRequest,
+          item -> convertSortKey(item.get(KEY_SORT).b().asByteArray()).getServerTimestamp() < receivedBeforeMillis);
     });
   }
 
@@ -211,7 +313,7 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
           .projectionExpression(KEY_SORT)
           .consistentRead(true)
           .build();
-      deleteRowsMatchingQuery(partitionKey, queryRequest);
+      deleteRowsMatchingQuery(partitionKey, queryRequest, item -> true);
     });
   }
 
@@ -229,19 +331,21 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
     return new OutgoingMessageEntity(-1L, false, messageUuid, type, relay, timestamp, source, sourceUuid, sourceDevice, messageBytes, content, sortKey.getServerTimestamp());
   }
 
-  private void deleteRowsMatchingQuery(AttributeValue partitionKey, QueryRequest querySpec) {
-    writeInBatches(db().queryPaginator(querySpec).items(), itemBatch -> deleteItems(partitionKey, itemBatch));
-  }
-
-  private void deleteItems(AttributeValue partitionKey, List<Map<String, AttributeValue>> items) {
-    List<WriteRequest> deletes = items.stream()
-        .map(item -> WriteRequest.builder()
-            .deleteRequest(DeleteRequest.builder().key(Map.of(
-                KEY_PARTITION, partitionKey,
-                KEY_SORT, item.get(KEY_SORT))).build())
-            .build())
-        .collect(Collectors.toList());
-    executeTableWriteItemsUntilComplete(Map.of(tableName, deletes));
+  private void deleteRowsMatchingQuery(AttributeValue partitionKey, QueryRequest querySpec,
+      Predicate<Map<String, AttributeValue>> filter) {
+
+    // Items are transformed as they're drawn from the query, so the counter tracks a purge's progress as it runs
+    executeTableWriteItemsUntilComplete(tableName, Iterables.transform(
+        Iterables.filter(db().queryPaginator(querySpec).items(), filter::test),
+        item -> {
+          purgedMessages.increment();
+
+          return WriteRequest.builder()
+              .deleteRequest(DeleteRequest.builder().key(Map.of(
+                  KEY_PARTITION, partitionKey,
+                  KEY_SORT, item.get(KEY_SORT))).build())
+              .build();
+        }));
   }
 
   private long getTtlForMessage(MessageProtos.Envelope message) {
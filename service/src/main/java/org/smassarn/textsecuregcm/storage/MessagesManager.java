@@ -9,10 +9,21 @@ import static com.codahale.metrics.MetricRegistry.name;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.ByteString;
+import io.micrometer.core.instrument.Metrics;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import org.smassarn.textsecuregcm.entities.MessageProtos.Envelope;
 import org.smassarn.textsecuregcm.entities.OutgoingMessageEntity;
@@ -20,6 +31,7 @@ import org.smassarn.textsecuregcm.entities.OutgoingMessageEntityList;
 import org.smassarn.textsecuregcm.metrics.PushLatencyManager;
 import org.smassarn.textsecuregcm.redis.RedisOperation;
 import org.smassarn.textsecuregcm.util.Constants;
+import org.smassarn.textsecuregcm.util.Util;
 
 public class MessagesManager {
 
@@ -29,6 +41,11 @@ public class MessagesManager {
   private static final Meter cacheHitByGuidMeter = metricRegistry.meter(name(MessagesManager.class, "cacheHitByGuid"));
   private static final Meter cacheMissByGuidMeter = metricRegistry.meter(
       name(MessagesManager.class, "cacheMissByGuid"));
+  private static final Meter serverTimestampHitByGuidMeter = metricRegistry.meter(
+      name(MessagesManager.class, "serverTimestampHitByGuid"));
+
+  private static final int MAX_CACHED_SERVER_TIMESTAMPS = 100_000;
+  private static final Duration SERVER_TIMESTAMP_CACHE_TTL = Duration.ofMinutes(30);
 
   // migrated from MessagePersister, name is not a typo
   private final Meter persistMessageMeter = metricRegistry.meter(name(MessagePersister.class, "persistMessage"));
@@ -37,16 +54,30 @@ public class MessagesManager {
   private final MessagesCache messagesCache;
   private final PushLatencyManager pushLatencyManager;
   private final ReportMessageManager reportMessageManager;
+  private final Executor purgeExecutor;
+
+  private final AtomicInteger purgesInProgress = new AtomicInteger();
+
+  // Persisted messages are keyed by destination device, server timestamp, and GUID; remembering the server timestamps
+  // of messages we've handed to clients lets us delete them directly instead of looking them up by GUID first.
+  private final Cache<UUID, Long> persistedMessageServerTimestamps = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_SERVER_TIMESTAMPS)
+      .expireAfterWrite(SERVER_TIMESTAMP_CACHE_TTL)
+      .build();
 
   public MessagesManager(
       final MessagesDynamoDb messagesDynamoDb,
       final MessagesCache messagesCache,
       final PushLatencyManager pushLatencyManager,
-      final ReportMessageManager reportMessageManager) {
+      final ReportMessageManager reportMessageManager,
+      final Executor purgeExecutor) {
     this.messagesDynamoDb = messagesDynamoDb;
     this.messagesCache = messagesCache;
     this.pushLatencyManager = pushLatencyManager;
     this.reportMessageManager = reportMessageManager;
+    this.purgeExecutor = purgeExecutor;
+
+    Metrics.gauge(name(MessagesManager.class, "purgesInProgress"), purgesInProgress);
   }
 
   public void insert(UUID destinationUuid, long destinationDevice, Envelope message) {
@@ -59,6 +90,30 @@ public class MessagesManager {
     }
   }
 
+  /**
+   * Inserts a batch of messages bound for potentially many destination devices in as few round trips as possible.
+   *
+   * @param pendingMessages the messages to insert
+   *
+   * @return one future per message, in the order of {@code pendingMessages}, each of which completes once its message
+   * has been inserted
+   */
+  public List<CompletableFuture<Void>> insert(final List<PendingMessage> pendingMessages) {
+    final List<CompletableFuture<Void>> insertFutures = messagesCache.insert(pendingMessages);
+
+    // Report hashes are stored on the calling thread while the cache insertions are in flight; the insertion futures
+    // may complete on a Redis I/O thread, which must not block on DynamoDB.
+    for (final PendingMessage pendingMessage : pendingMessages) {
+      final Envelope message = pendingMessage.getEnvelope();
+
+      if (message.hasSource() && !pendingMessage.getDestinationUuid().toString().equals(message.getSourceUuid())) {
+        reportMessageManager.store(message.getSource(), pendingMessage.getGuid());
+      }
+    }
+
+    return insertFutures;
+  }
+
   @Deprecated
   public Optional<Envelope> takeEphemeralMessage(final UUID destinationUuid, final long destinationDevice) {
     return messagesCache.takeEphemeralMessage(destinationUuid, destinationDevice);
@@ -74,7 +129,13 @@ public class MessagesManager {
     List<OutgoingMessageEntity> messageList = new ArrayList<>();
 
     if (!cachedMessagesOnly) {
-      messageList.addAll(messagesDynamoDb.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE));
+      final List<OutgoingMessageEntity> persistedMessages =
+          messagesDynamoDb.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE);
+
+      persistedMessages.forEach(message ->
+          persistedMessageServerTimestamps.put(message.getGuid(), message.getServerTimestamp()));
+
+      messageList.addAll(persistedMessages);
     }
 
     if (messageList.size() < RESULT_SET_CHUNK_SIZE) {
@@ -84,11 +145,157 @@ public class MessagesManager {
     return new OutgoingMessageEntityList(messageList, messageList.size() >= RESULT_SET_CHUNK_SIZE);
   }
 
+  /**
+   * Retrieves the first page of messages for delivery to the given destination device.
+   *
+   * @param destinationUuid the UUID of the destination account
+   * @param destinationDevice the ID of the destination device
+   * @param userAgent the user agent of the client reading the queue
+   * @param cachedMessagesOnly if {@code true}, skip persisted messages and read only cached messages
+   *
+   * @return the first page of messages for the given destination device
+   *
+   * @see #getStoredMessagesForDevice(UUID, long, String, StoredMessageCursor)
+   */
+  public StoredMessageList getStoredMessagesForDevice(final UUID destinationUuid, final long destinationDevice,
+      final String userAgent, final boolean cachedMessagesOnly) {
+
+    return getStoredMessagesForDevice(destinationUuid, destinationDevice, userAgent,
+        StoredMessageCursor.start(cachedMessagesOnly));
+  }
+
+  /**
+   * Retrieves a page of messages for delivery to the given destination device, starting after the given cursor. Unlike
+   * {@link #getMessagesForDevice(UUID, long, String, boolean)}, cached messages are returned with their envelopes in
+   * the serialized form in which they were stored, so they can be sent to clients without being parsed and re-encoded.
+   *
+   * @param destinationUuid the UUID of the destination account
+   * @param destinationDevice the ID of the destination device
+   * @param userAgent the user agent of the client reading the queue
+   * @param cursor the position after which to read messages
+   *
+   * @return a page of messages for the given destination device
+   *
+   * @see StoredMessageCursor#start(boolean)
+   */
+  public StoredMessageList getStoredMessagesForDevice(final UUID destinationUuid, final long destinationDevice,
+      final String userAgent, final StoredMessageCursor cursor) {
+
+    RedisOperation.unchecked(() -> pushLatencyManager.recordQueueRead(destinationUuid, destinationDevice, userAgent));
+
+    final List<StoredMessage> messageList = new ArrayList<>();
+
+    boolean persistedMessagesExhausted = cursor.isPersistedMessagesExhausted();
+    long lastPersistedMessageServerTimestamp = cursor.getLastPersistedMessageServerTimestamp();
+    UUID lastPersistedMessageGuid = cursor.getLastPersistedMessageGuid();
+    long lastCachedMessageId = cursor.getLastCachedMessageId();
+
+    if (!persistedMessagesExhausted) {
+      final List<OutgoingMessageEntity> persistedMessages = lastPersistedMessageGuid == null
+          ? messagesDynamoDb.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE)
+          : messagesDynamoDb.load(destinationUuid, destinationDevice, RESULT_SET_CHUNK_SIZE,
+              lastPersistedMessageServerTimestamp, lastPersistedMessageGuid);
+
+      for (final OutgoingMessageEntity persistedMessage : persistedMessages) {
+        messageList.add(StoredMessage.fromEnvelope(toEnvelope(persistedMessage)));
+
+        lastPersistedMessageServerTimestamp = persistedMessage.getServerTimestamp();
+        lastPersistedMessageGuid = persistedMessage.getGuid();
+      }
+
+      persistedMessagesExhausted = persistedMessages.size() < RESULT_SET_CHUNK_SIZE;
+    }
+
+    if (messageList.size() < RESULT_SET_CHUNK_SIZE) {
+      final List<StoredMessage> cachedMessages = messagesCache.getStoredMessages(destinationUuid, destinationDevice,
+          lastCachedMessageId, RESULT_SET_CHUNK_SIZE - messageList.size());
+
+      if (!cachedMessages.isEmpty()) {
+        lastCachedMessageId = cachedMessages.get(cachedMessages.size() - 1).getId();
+      }
+
+      messageList.addAll(cachedMessages);
+    }
+
+    return new StoredMessageList(messageList, messageList.size() >= RESULT_SET_CHUNK_SIZE,
+        new StoredMessageCursor(persistedMessagesExhausted, lastPersistedMessageServerTimestamp,
+            lastPersistedMessageGuid, lastCachedMessageId));
+  }
+
+  private static Envelope toEnvelope(final OutgoingMessageEntity message) {
+    final Envelope.Builder builder = Envelope.newBuilder()
+        .setType(Envelope.Type.valueOf(message.getType()))
+        .setTimestamp(message.getTimestamp())
+        .setServerTimestamp(message.getServerTimestamp());
+
+    if (!Util.isEmpty(message.getSource())) {
+      builder.setSource(message.getSource())
+          .setSourceDevice(message.getSourceDevice());
+      if (message.getSourceUuid() != null) {
+        builder.setSourceUuid(message.getSourceUuid().toString());
+      }
+    }
+
+    if (message.getMessage() != null) {
+      builder.setLegacyMessage(ByteString.copyFrom(message.getMessage()));
+    }
+
+    if (message.getContent() != null) {
+      builder.setContent(ByteString.copyFrom(message.getContent()));
+    }
+
+    if (message.getRelay() != null && !message.getRelay().isEmpty()) {
+      builder.setRelay(message.getRelay());
+    }
+
+    builder.setServerGuid(message.getGuid().toString());
+
+    return builder.build();
+  }
+
   public void clear(UUID destinationUuid) {
     messagesCache.clear(destinationUuid);
     messagesDynamoDb.deleteAllMessagesForAccount(destinationUuid);
   }
 
+  /**
+   * Removes all messages for the given account. Cached queues for the given devices are cleared before this method
+   * returns; persisted messages are purged in the background. Only messages received before this method was called are
+   * purged, so a new registration that reuses the account's UUID keeps any messages sent to it in the meantime.
+   *
+   * @param destinationUuid the UUID of the account whose messages should be removed
+   * @param deviceIds the IDs of the account's devices
+   *
+   * @return a future that completes when all persisted messages have been purged
+   */
+  public CompletableFuture<Void> purge(final UUID destinationUuid, final Collection<Long> deviceIds) {
+    final long receivedBeforeMillis = System.currentTimeMillis();
+    messagesCache.clear(destinationUuid, deviceIds);
+
+    return purgePersistedMessages(destinationUuid, receivedBeforeMillis);
+  }
+
+  /**
+   * Removes all messages for the given account when its devices aren't known, clearing cached queues for every possible
+   * device ID.
+   *
+   * @see #purge(UUID, Collection)
+   */
+  public CompletableFuture<Void> purge(final UUID destinationUuid) {
+    final long receivedBeforeMillis = System.currentTimeMillis();
+    messagesCache.clear(destinationUuid);
+
+    return purgePersistedMessages(destinationUuid, receivedBeforeMillis);
+  }
+
+  private CompletableFuture<Void> purgePersistedMessages(final UUID destinationUuid, final long receivedBeforeMillis) {
+    purgesInProgress.incrementAndGet();
+
+    return CompletableFuture.runAsync(
+            () -> messagesDynamoDb.deleteAllMessagesForAccount(destinationUuid, receivedBeforeMillis), purgeExecutor)
+        .whenComplete((ignored, cause) -> purgesInProgress.decrementAndGet());
+  }
+
   public void clear(UUID destinationUuid, long deviceId) {
     messagesCache.clear(destinationUuid, deviceId);
     messagesDynamoDb.deleteAllMessagesForDevice(destinationUuid, deviceId);
@@ -98,7 +305,16 @@ public class MessagesManager {
     Optional<OutgoingMessageEntity> removed = messagesCache.remove(destinationUuid, destinationDeviceId, guid);
 
     if (removed.isEmpty()) {
-      removed = messagesDynamoDb.deleteMessageByDestinationAndGuid(destinationUuid, guid);
+      final Long serverTimestamp = persistedMessageServerTimestamps.getIfPresent(guid);
+
+      if (serverTimestamp != null) {
+        persistedMessageServerTimestamps.invalidate(guid);
+        removed = messagesDynamoDb.deleteMessage(destinationUuid, destinationDeviceId, guid, serverTimestamp);
+        serverTimestampHitByGuidMeter.mark();
+      } else {
+        removed = messagesDynamoDb.deleteMessageByDestinationAndGuid(destinationUuid, guid);
+      }
+
       cacheMissByGuidMeter.mark();
     } else {
       cacheHitByGuidMeter.mark();
@@ -107,6 +323,41 @@ public class MessagesManager {
     return removed;
   }
 
+  /**
+   * Deletes a batch of delivered messages from the message cache and, if they were not found there, from persistent
+   * storage.
+   *
+   * @param destinationUuid the UUID of the account to which the messages were sent
+   * @param destinationDeviceId the ID of the device to which the messages were sent
+   * @param messages the messages to delete
+   */
+  public void delete(final UUID destinationUuid, final long destinationDeviceId, final List<StoredMessage> messages) {
+    final List<UUID> cachedMessageGuids = messages.stream()
+        .filter(StoredMessage::isCached)
+        .map(StoredMessage::getGuid)
+        .collect(Collectors.toList());
+
+    final Set<UUID> removedMessageGuids = cachedMessageGuids.isEmpty()
+        ? Collections.emptySet()
+        : messagesCache.remove(destinationUuid, destinationDeviceId, cachedMessageGuids).stream()
+            .map(OutgoingMessageEntity::getGuid)
+            .collect(Collectors.toSet());
+
+    // Cached messages may have been persisted since they were read, so anything we didn't find in the cache may be in
+    // persistent storage instead
+    final List<Envelope> possiblyPersistedMessages = messages.stream()
+        .filter(message -> message.getGuid() != null && !removedMessageGuids.contains(message.getGuid()))
+        .map(StoredMessage::getEnvelope)
+        .collect(Collectors.toList());
+
+    cacheHitByGuidMeter.mark(removedMessageGuids.size());
+
+    if (!possiblyPersistedMessages.isEmpty()) {
+      messagesDynamoDb.deleteMessages(destinationUuid, destinationDeviceId, possiblyPersistedMessages);
+      cacheMissByGuidMeter.mark(possiblyPersistedMessages.size());
+    }
+  }
+
   public void persistMessages(
       final UUID destinationUuid,
       final long destinationDeviceId,
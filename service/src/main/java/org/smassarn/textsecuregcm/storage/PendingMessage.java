@@ -0,0 +1,64 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import java.util.Objects;
+import java.util.UUID;
+import org.smassarn.textsecuregcm.entities.MessageProtos.Envelope;
+
+/**
+ * A message bound for a single destination device that has not yet been written to the message cache.
+ */
+public class PendingMessage {
+
+  private final UUID guid;
+  private final UUID destinationUuid;
+  private final long destinationDevice;
+  private final Envelope envelope;
+
+  public PendingMessage(final UUID guid, final UUID destinationUuid, final long destinationDevice,
+      final Envelope envelope) {
+
+    this.guid = guid;
+    this.destinationUuid = destinationUuid;
+    this.destinationDevice = destinationDevice;
+    this.envelope = envelope;
+  }
+
+  public UUID getGuid() {
+    return guid;
+  }
+
+  public UUID getDestinationUuid() {
+    return destinationUuid;
+  }
+
+  public long getDestinationDevice() {
+    return destinationDevice;
+  }
+
+  public Envelope getEnvelope() {
+    return envelope;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final PendingMessage that = (PendingMessage) o;
+    return destinationDevice == that.destinationDevice && Objects.equals(guid, that.guid)
+        && Objects.equals(destinationUuid, that.destinationUuid) && Objects.equals(envelope, that.envelope);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(guid, destinationUuid, destinationDevice, envelope);
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.UUID;
+import javax.annotation.Nullable;
+import org.smassarn.textsecuregcm.entities.MessageProtos.Envelope;
+
+/**
+ * A stored message ready for delivery to a client. A stored message carries the serialized form of its envelope exactly
+ * as it will be sent over the wire, and only parses the full envelope if a caller actually asks for it.
+ */
+public class StoredMessage {
+
+  private static final int SERVER_GUID_TAG =
+      (Envelope.SERVERGUID_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+  private static final int EPHEMERAL_TAG = (Envelope.EPHEMERAL_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+
+  private final long id;
+  private final boolean cached;
+
+  @Nullable
+  private final UUID guid;
+  private final byte[] serializedEnvelope;
+
+  private volatile Envelope envelope;
+
+  private StoredMessage(final long id, final boolean cached, @Nullable final UUID guid, final byte[] serializedEnvelope,
+      @Nullable final Envelope envelope) {
+
+    this.id = id;
+    this.cached = cached;
+    this.guid = guid;
+    this.serializedEnvelope = serializedEnvelope;
+    this.envelope = envelope;
+  }
+
+  /**
+   * Constructs a cached stored message from a serialized envelope. Only the server GUID and ephemeral flag are read
+   * from the serialized envelope; all other fields (including the potentially-large message content) are skipped over
+   * without copying. Envelopes that have their ephemeral flag set are re-serialized without it, since the flag is
+   * meaningful only to the server.
+   *
+   * @param id the message's local ID within its cache queue
+   * @param serializedEnvelope the serialized envelope as stored
+   *
+   * @return a stored message wrapping the given serialized envelope
+   *
+   * @throws InvalidProtocolBufferException if the given bytes could not be read as an envelope
+   */
+  public static StoredMessage fromSerializedEnvelope(final long id, final byte[] serializedEnvelope)
+      throws InvalidProtocolBufferException {
+
+    final CodedInputStream input = CodedInputStream.newInstance(serializedEnvelope);
+
+    UUID guid = null;
+    boolean ephemeral = false;
+
+    try {
+      boolean done = false;
+
+      while (!done) {
+        final int tag = input.readTag();
+
+        if (tag == 0) {
+          done = true;
+        } else if (tag == SERVER_GUID_TAG) {
+          guid = UUID.fromString(input.readStringRequireUtf8());
+        } else if (tag == EPHEMERAL_TAG) {
+          ephemeral = input.readBool();
+        } else {
+          done = !input.skipField(tag);
+        }
+      }
+    } catch (final InvalidProtocolBufferException e) {
+      throw e;
+    } catch (final IOException e) {
+      throw new InvalidProtocolBufferException(e);
+    } catch (final IllegalArgumentException e) {
+      throw new InvalidProtocolBufferException("Could not parse server GUID: " + e.getMessage());
+    }
+
+    if (ephemeral) {
+      return fromEnvelope(id, true, Envelope.parseFrom(serializedEnvelope));
+    }
+
+    return new StoredMessage(id, true, guid, serializedEnvelope, null);
+  }
+
+  /**
+   * Constructs a non-cached stored message from an already-parsed envelope. The envelope's ephemeral flag, if any, is
+   * cleared before serialization.
+   *
+   * @param envelope the envelope to wrap
+   *
+   * @return a stored message for the given envelope
+   */
+  public static StoredMessage fromEnvelope(final Envelope envelope) {
+    return fromEnvelope(-1, false, envelope);
+  }
+
+  private static StoredMessage fromEnvelope(final long id, final boolean cached, final Envelope envelope) {
+    final Envelope deliverableEnvelope =
+        envelope.hasEphemeral() ? envelope.toBuilder().clearEphemeral().build() : envelope;
+
+    return new StoredMessage(id, cached,
+        deliverableEnvelope.hasServerGuid() ? UUID.fromString(deliverableEnvelope.getServerGuid()) : null,
+        deliverableEnvelope.toByteArray(),
+        deliverableEnvelope);
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public boolean isCached() {
+    return cached;
+  }
+
+  /**
+   * Returns the server-assigned GUID of this message, if any.
+   *
+   * @return the server-assigned GUID of this message, or {@code null} if the envelope has no server GUID
+   */
+  @Nullable
+  public UUID getGuid() {
+    return guid;
+  }
+
+  /**
+   * Returns the serialized envelope for this message. Callers must not modify the returned array.
+   *
+   * @return the serialized envelope for this message
+   */
+  public byte[] getSerializedEnvelope() {
+    return serializedEnvelope;
+  }
+
+  public int getSerializedSize() {
+    return serializedEnvelope.length;
+  }
+
+  /**
+   * Returns the parsed envelope for this message, parsing it on first access. Byte fields of the parsed envelope share
+   * storage with the serialized envelope rather than copying it.
+   *
+   * @return the parsed envelope for this message
+   */
+  public Envelope getEnvelope() {
+    Envelope parsedEnvelope = envelope;
+
+    if (parsedEnvelope == null) {
+      final CodedInputStream input = CodedInputStream.newInstance(serializedEnvelope);
+      input.enableAliasing(true);
+
+      try {
+        parsedEnvelope = Envelope.parseFrom(input);
+      } catch (final IOException e) {
+        // This should never happen; we've already walked the entire envelope when constructing this message
+        throw new UncheckedIOException(e);
+      }
+
+      envelope = parsedEnvelope;
+    }
+
+    return parsedEnvelope;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import java.util.Objects;
+import java.util.UUID;
+import javax.annotation.Nullable;
+
+/**
+ * A position in a destination device's combined (persisted, then cached) message queue. Because a cursor identifies
+ * the last message read rather than an offset from the head of the queue, a caller can fetch the next page of messages
+ * before the messages on the current page have been acknowledged and removed.
+ */
+public class StoredMessageCursor {
+
+  private final boolean persistedMessagesExhausted;
+
+  private final long lastPersistedMessageServerTimestamp;
+  @Nullable
+  private final UUID lastPersistedMessageGuid;
+
+  private final long lastCachedMessageId;
+
+  public StoredMessageCursor(final boolean persistedMessagesExhausted,
+      final long lastPersistedMessageServerTimestamp,
+      @Nullable final UUID lastPersistedMessageGuid,
+      final long lastCachedMessageId) {
+
+    this.persistedMessagesExhausted = persistedMessagesExhausted;
+    this.lastPersistedMessageServerTimestamp = lastPersistedMessageServerTimestamp;
+    this.lastPersistedMessageGuid = lastPersistedMessageGuid;
+    this.lastCachedMessageId = lastCachedMessageId;
+  }
+
+  /**
+   * Returns a cursor positioned at the head of a message queue.
+   *
+   * @param cachedMessagesOnly if {@code true}, the returned cursor skips persisted messages entirely
+   *
+   * @return a cursor positioned at the head of a message queue
+   */
+  public static StoredMessageCursor start(final boolean cachedMessagesOnly) {
+    return new StoredMessageCursor(cachedMessagesOnly, 0, null, 0);
+  }
+
+  public boolean isPersistedMessagesExhausted() {
+    return persistedMessagesExhausted;
+  }
+
+  public long getLastPersistedMessageServerTimestamp() {
+    return lastPersistedMessageServerTimestamp;
+  }
+
+  /**
+   * Returns the GUID of the last persisted message read, if any.
+   *
+   * @return the GUID of the last persisted message read, or {@code null} if no persisted messages have been read
+   */
+  @Nullable
+  public UUID getLastPersistedMessageGuid() {
+    return lastPersistedMessageGuid;
+  }
+
+  public long getLastCachedMessageId() {
+    return lastCachedMessageId;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final StoredMessageCursor that = (StoredMessageCursor) o;
+    return persistedMessagesExhausted == that.persistedMessagesExhausted
+        && lastPersistedMessageServerTimestamp == that.lastPersistedMessageServerTimestamp
+        && lastCachedMessageId == that.lastCachedMessageId
+        && Objects.equals(lastPersistedMessageGuid, that.lastPersistedMessageGuid);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(persistedMessagesExhausted, lastPersistedMessageServerTimestamp, lastPersistedMessageGuid,
+        lastCachedMessageId);
+  }
+}
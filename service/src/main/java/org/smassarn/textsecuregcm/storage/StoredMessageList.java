@@ -0,0 +1,51 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A page of stored messages bound for a single destination device.
+ */
+public class StoredMessageList {
+
+  private final List<StoredMessage> messages;
+  private final boolean more;
+  @Nullable
+  private final StoredMessageCursor nextPageCursor;
+
+  public StoredMessageList(final List<StoredMessage> messages, final boolean more) {
+    this(messages, more, null);
+  }
+
+  public StoredMessageList(final List<StoredMessage> messages, final boolean more,
+      @Nullable final StoredMessageCursor nextPageCursor) {
+
+    this.messages = messages;
+    this.more = more;
+    this.nextPageCursor = nextPageCursor;
+  }
+
+  public List<StoredMessage> getMessages() {
+    return messages;
+  }
+
+  public boolean hasMore() {
+    return more;
+  }
+
+  /**
+   * Returns a cursor positioned immediately after the last message in this page.
+   *
+   * @return a cursor from which to fetch the page following this one, or {@code null} if this page was constructed
+   * without one
+   */
+  @Nullable
+  public StoredMessageCursor getNextPageCursor() {
+    return nextPageCursor;
+  }
+}
@@ -41,12 +41,16 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
   private final ApnFallbackManager    apnFallbackManager;
   private final ClientPresenceManager clientPresenceManager;
   private final ScheduledExecutorService retrySchedulingExecutor;
+  private final int maxInFlightMessages;
+  private final int maxAckBatchSize;
 
   public AuthenticatedConnectListener(ReceiptSender receiptSender,
       MessagesManager messagesManager,
       final MessageSender messageSender, ApnFallbackManager apnFallbackManager,
       ClientPresenceManager clientPresenceManager,
-      ScheduledExecutorService retrySchedulingExecutor)
+      ScheduledExecutorService retrySchedulingExecutor,
+      int maxInFlightMessages,
+      int maxAckBatchSize)
   {
     this.receiptSender         = receiptSender;
     this.messagesManager       = messagesManager;
@@ -54,6 +58,8 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
     this.apnFallbackManager    = apnFallbackManager;
     this.clientPresenceManager = clientPresenceManager;
     this.retrySchedulingExecutor = retrySchedulingExecutor;
+    this.maxInFlightMessages     = maxInFlightMessages;
+    this.maxAckBatchSize         = maxAckBatchSize;
   }
 
   @Override
@@ -65,7 +71,9 @@ public class AuthenticatedConnectListener implements WebSocketConnectListener {
       final WebSocketConnection connection = new WebSocketConnection(receiptSender,
           messagesManager, auth, device,
           context.getClient(),
-          retrySchedulingExecutor);
+          retrySchedulingExecutor,
+          maxInFlightMessages,
+          maxAckBatchSize);
 
       openWebsocketCounter.inc();
       RedisOperation.unchecked(() -> apnFallbackManager.cancel(auth.getAccount(), device));
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.websocket;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import javax.annotation.Nullable;
+import javax.ws.rs.core.Response;
+import org.smassarn.textsecuregcm.auth.AuthenticatedAccount;
+import org.smassarn.textsecuregcm.controllers.KeepAliveController;
+import org.smassarn.textsecuregcm.controllers.MessageController;
+import org.smassarn.textsecuregcm.metrics.MetricsRequestEventListener;
+import org.smassarn.textsecuregcm.metrics.TrafficSource;
+import org.smassarn.websocket.messages.WebSocketRequestMessage;
+import org.smassarn.websocket.routing.WebSocketRouteResponse;
+import org.smassarn.websocket.routing.WebSocketRouteTable;
+import org.smassarn.websocket.session.WebSocketSessionContext;
+
+/**
+ * Routes the highest-volume requests on authenticated websocket connections, keepalives and message acknowledgements,
+ * directly to their controllers instead of through Jersey. Each handler reproduces the behavior the equivalent Jersey
+ * resource method would have, and records the same request metrics.
+ */
+public class AuthenticatedWebSocketRoutes {
+
+  @VisibleForTesting
+  static final String KEEPALIVE_PATH = "/v1/keepalive";
+
+  @VisibleForTesting
+  static final String ACKNOWLEDGE_MESSAGE_PATH = "/v1/messages/uuid/{uuid}";
+
+  private final KeepAliveController keepAliveController;
+  private final MessageController messageController;
+  private final MetricsRequestEventListener metricsRequestEventListener;
+
+  public AuthenticatedWebSocketRoutes(final KeepAliveController keepAliveController,
+      final MessageController messageController) {
+
+    this(keepAliveController, messageController, new MetricsRequestEventListener(TrafficSource.WEBSOCKET));
+  }
+
+  @VisibleForTesting
+  AuthenticatedWebSocketRoutes(final KeepAliveController keepAliveController,
+      final MessageController messageController,
+      final MetricsRequestEventListener metricsRequestEventListener) {
+
+    this.keepAliveController = keepAliveController;
+    this.messageController = messageController;
+    this.metricsRequestEventListener = metricsRequestEventListener;
+  }
+
+  public void register(final WebSocketRouteTable<AuthenticatedAccount> routes) {
+    routes.register("GET", KEEPALIVE_PATH, this::keepAlive);
+    routes.register("DELETE", ACKNOWLEDGE_MESSAGE_PATH, this::acknowledgeMessage);
+  }
+
+  @VisibleForTesting
+  CompletableFuture<WebSocketRouteResponse> keepAlive(@Nullable final AuthenticatedAccount auth,
+      final WebSocketSessionContext context,
+      final Map<String, String> pathParameters,
+      final WebSocketRequestMessage request) {
+
+    if (auth == null) {
+      return respond(KEEPALIVE_PATH, 401, context);
+    }
+
+    final Response response = keepAliveController.getKeepAlive(auth, context);
+    return respond(KEEPALIVE_PATH, response.getStatus(), context);
+  }
+
+  @VisibleForTesting
+  CompletableFuture<WebSocketRouteResponse> acknowledgeMessage(@Nullable final AuthenticatedAccount auth,
+      final WebSocketSessionContext context,
+      final Map<String, String> pathParameters,
+      final WebSocketRequestMessage request) {
+
+    if (auth == null) {
+      return respond(ACKNOWLEDGE_MESSAGE_PATH, 401, context);
+    }
+
+    final UUID messageUuid;
+
+    try {
+      messageUuid = UUID.fromString(pathParameters.get("uuid"));
+    } catch (final IllegalArgumentException e) {
+      // Jersey responds with a 404 if a path parameter can't be converted to its declared type
+      return respond(ACKNOWLEDGE_MESSAGE_PATH, 404, context);
+    }
+
+    messageController.removePendingMessage(auth, messageUuid);
+    return respond(ACKNOWLEDGE_MESSAGE_PATH, 204, context);
+  }
+
+  private CompletableFuture<WebSocketRouteResponse> respond(final String pathTemplate, final int status,
+      final WebSocketSessionContext context) {
+
+    metricsRequestEventListener.recordRequest(pathTemplate, status, context.getClient().getUserAgent());
+    return WebSocketRouteResponse.completed(status);
+  }
+}
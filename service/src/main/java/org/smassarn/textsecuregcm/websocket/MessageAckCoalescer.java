@@ -0,0 +1,156 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.websocket;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smassarn.textsecuregcm.auth.AuthenticatedAccount;
+import org.smassarn.textsecuregcm.storage.Device;
+import org.smassarn.textsecuregcm.storage.MessagesManager;
+import org.smassarn.textsecuregcm.storage.StoredMessage;
+
+/**
+ * Gathers stored messages that have been acknowledged by a single connected device and deletes them in batches rather
+ * than one at a time. A batch is deleted as soon as it reaches its maximum size, once its oldest acknowledgement has
+ * waited for the maximum delay, or when {@link #flush()} is called, which callers should do whenever they finish
+ * draining a message queue. Once the connection closes, callers should call {@link #stop()}, after which any late
+ * acknowledgements are deleted immediately.
+ */
+public class MessageAckCoalescer {
+
+  private final MessagesManager messagesManager;
+  private final AuthenticatedAccount auth;
+  private final Device device;
+  private final int maxBatchSize;
+  private final ScheduledExecutorService scheduledExecutorService;
+  private final Duration maxDelay;
+
+  private List<StoredMessage> acknowledgedMessages;
+  private boolean stopped;
+
+  @Nullable
+  private ScheduledFuture<?> flushFuture;
+
+  private static final DistributionSummary BATCH_SIZE_DISTRIBUTION =
+      Metrics.summary(name(MessageAckCoalescer.class, "batchSize"));
+
+  private static final Logger logger = LoggerFactory.getLogger(MessageAckCoalescer.class);
+
+  public MessageAckCoalescer(final MessagesManager messagesManager,
+      final AuthenticatedAccount auth,
+      final Device device,
+      final int maxBatchSize,
+      final ScheduledExecutorService scheduledExecutorService,
+      final Duration maxDelay) {
+
+    this.messagesManager = messagesManager;
+    this.auth = auth;
+    this.device = device;
+    this.maxBatchSize = maxBatchSize;
+    this.scheduledExecutorService = scheduledExecutorService;
+    this.maxDelay = maxDelay;
+
+    this.acknowledgedMessages = new ArrayList<>(maxBatchSize);
+  }
+
+  /**
+   * Marks the given message as acknowledged, deleting it and any other acknowledged messages if doing so fills the
+   * current batch. If this coalescer has been stopped, the message is deleted immediately.
+   *
+   * @param message the acknowledged message
+   */
+  public void acknowledge(final StoredMessage message) {
+    final List<StoredMessage> batch;
+
+    synchronized (this) {
+      if (stopped) {
+        batch = List.of(message);
+      } else {
+        acknowledgedMessages.add(message);
+
+        if (acknowledgedMessages.size() >= maxBatchSize) {
+          batch = takeAcknowledgedMessages();
+        } else {
+          batch = null;
+
+          if (acknowledgedMessages.size() == 1) {
+            flushFuture = scheduledExecutorService.schedule(this::flushQuietly, maxDelay.toMillis(),
+                TimeUnit.MILLISECONDS);
+          }
+        }
+      }
+    }
+
+    if (batch != null) {
+      delete(batch);
+    }
+  }
+
+  /**
+   * Deletes all messages acknowledged since the last batch was deleted.
+   */
+  public void flush() {
+    final List<StoredMessage> batch;
+
+    synchronized (this) {
+      if (acknowledgedMessages.isEmpty()) {
+        return;
+      }
+
+      batch = takeAcknowledgedMessages();
+    }
+
+    delete(batch);
+  }
+
+  /**
+   * Deletes all messages acknowledged since the last batch was deleted, and deletes any messages acknowledged from now
+   * on as soon as they're acknowledged.
+   */
+  public void stop() {
+    synchronized (this) {
+      stopped = true;
+    }
+
+    flush();
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (final Exception e) {
+      logger.warn("Failed to delete acknowledged messages", e);
+    }
+  }
+
+  private List<StoredMessage> takeAcknowledgedMessages() {
+    if (flushFuture != null) {
+      flushFuture.cancel(false);
+      flushFuture = null;
+    }
+
+    final List<StoredMessage> batch = acknowledgedMessages;
+    acknowledgedMessages = new ArrayList<>(maxBatchSize);
+
+    return batch;
+  }
+
+  private void delete(final List<StoredMessage> batch) {
+    BATCH_SIZE_DISTRIBUTION.record(batch.size());
+    messagesManager.delete(auth.getAccount().getUuid(), device.getId(), batch);
+  }
+}
@@ -13,11 +13,13 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.protobuf.ByteString;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
@@ -32,6 +34,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
 import javax.ws.rs.WebApplicationException;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -39,17 +42,17 @@ import org.slf4j.LoggerFactory;
 import org.smassarn.textsecuregcm.auth.AuthenticatedAccount;
 import org.smassarn.textsecuregcm.controllers.MessageController;
 import org.smassarn.textsecuregcm.controllers.NoSuchUserException;
-import org.smassarn.textsecuregcm.entities.OutgoingMessageEntity;
-import org.smassarn.textsecuregcm.entities.OutgoingMessageEntityList;
 import org.smassarn.textsecuregcm.metrics.UserAgentTagUtil;
 import org.smassarn.textsecuregcm.push.DisplacedPresenceListener;
 import org.smassarn.textsecuregcm.push.ReceiptSender;
 import org.smassarn.textsecuregcm.storage.Device;
 import org.smassarn.textsecuregcm.storage.MessageAvailabilityListener;
 import org.smassarn.textsecuregcm.storage.MessagesManager;
+import org.smassarn.textsecuregcm.storage.StoredMessage;
+import org.smassarn.textsecuregcm.storage.StoredMessageCursor;
+import org.smassarn.textsecuregcm.storage.StoredMessageList;
 import org.smassarn.textsecuregcm.util.Constants;
 import org.smassarn.textsecuregcm.util.TimestampHeaderUtil;
-import org.smassarn.textsecuregcm.util.Util;
 import org.smassarn.textsecuregcm.util.ua.ClientPlatform;
 import org.smassarn.textsecuregcm.util.ua.UnrecognizedUserAgentException;
 import org.smassarn.textsecuregcm.util.ua.UserAgentUtil;
@@ -89,6 +92,9 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private static final long RETRY_DELAY_MILLIS = 1_000;
   private static final int RETRY_DELAY_JITTER_MILLIS = 500;
 
+  // Acknowledged messages are deleted at least this often even if a batch never fills
+  private static final Duration MAX_ACK_DELAY = Duration.ofSeconds(5);
+
   private static final Logger logger = LoggerFactory.getLogger(WebSocketConnection.class);
 
   private final ReceiptSender receiptSender;
@@ -98,6 +104,8 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private final Device device;
   private final WebSocketClient client;
   private final ScheduledExecutorService retrySchedulingExecutor;
+  private final int maxInFlightMessages;
+  private final MessageAckCoalescer ackCoalescer;
 
   private final boolean isDesktopClient;
 
@@ -123,13 +131,18 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       AuthenticatedAccount auth,
       Device device,
       WebSocketClient client,
-      ScheduledExecutorService retrySchedulingExecutor) {
+      ScheduledExecutorService retrySchedulingExecutor,
+      int maxInFlightMessages,
+      int maxAckBatchSize) {
     this.receiptSender = receiptSender;
     this.messagesManager = messagesManager;
     this.auth = auth;
     this.device = device;
     this.client = client;
     this.retrySchedulingExecutor = retrySchedulingExecutor;
+    this.maxInFlightMessages = maxInFlightMessages;
+    this.ackCoalescer = new MessageAckCoalescer(messagesManager, auth, device, maxAckBatchSize,
+        retrySchedulingExecutor, MAX_ACK_DELAY);
 
     Optional<ClientPlatform> maybePlatform;
 
@@ -154,28 +167,36 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       future.cancel(false);
     }
 
+    try {
+      ackCoalescer.stop();
+    } catch (final Exception e) {
+      logger.warn("Failed to delete acknowledged messages", e);
+    }
+
     client.close(1000, "OK");
   }
 
-  private CompletableFuture<WebSocketResponseMessage> sendMessage(final Envelope message, final Optional<StoredMessageInfo> storedMessageInfo) {
-    // clear ephemeral field from the envelope
-    final Optional<byte[]> body = Optional.ofNullable(message.toBuilder().clearEphemeral().build().toByteArray());
+  private CompletableFuture<WebSocketResponseMessage> sendMessage(final StoredMessage message, final boolean deleteOnDelivery) {
+    // Stored messages already have their ephemeral flag cleared, so the serialized envelope can go out as-is
+    final Optional<byte[]> body = Optional.of(message.getSerializedEnvelope());
 
     sendMessageMeter.mark();
     sentMessageCounter.increment();
-    bytesSentMeter.mark(body.map(bytes -> bytes.length).orElse(0));
+    bytesSentMeter.mark(message.getSerializedSize());
 
     // X-Massarn-Key: false must be sent until Android stops assuming it missing means true
     return client.sendRequest("PUT", "/api/v1/message", List.of("X-Massarn-Key: false", TimestampHeaderUtil.getTimestampHeader()), body).whenComplete((response, throwable) -> {
           if (throwable == null) {
             if (isSuccessResponse(response)) {
-              if (storedMessageInfo.isPresent()) {
-                messagesManager.delete(auth.getAccount().getUuid(), device.getId(), storedMessageInfo.get().getGuid());
+              if (deleteOnDelivery) {
+                ackCoalescer.acknowledge(message);
               }
 
-              if (message.getType() != Envelope.Type.SERVER_DELIVERY_RECEIPT) {
-                recordMessageDeliveryDuration(message.getTimestamp(), device);
-                sendDeliveryReceiptFor(message);
+              final Envelope envelope = message.getEnvelope();
+
+              if (envelope.getType() != Envelope.Type.SERVER_DELIVERY_RECEIPT) {
+                recordMessageDeliveryDuration(envelope.getTimestamp(), device);
+                sendDeliveryReceiptFor(envelope);
               }
             } else {
               final List<Tag> tags = new ArrayList<>(
@@ -227,7 +248,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       final StoredMessageState      state              = storedMessageState.getAndSet(StoredMessageState.EMPTY);
       final CompletableFuture<Void> queueClearedFuture = new CompletableFuture<>();
 
-      sendNextMessagePage(state != StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE, queueClearedFuture);
+      new QueueDrain(state != StoredMessageState.PERSISTED_NEW_MESSAGES_AVAILABLE, queueClearedFuture).drain();
 
       queueClearedFuture.whenComplete((v, cause) -> {
         if (cause == null) {
@@ -280,70 +301,6 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     }
   }
 
-  private void sendNextMessagePage(final boolean cachedMessagesOnly, final CompletableFuture<Void> queueClearedFuture) {
-    try {
-      final OutgoingMessageEntityList messages = messagesManager
-          .getMessagesForDevice(auth.getAccount().getUuid(), device.getId(), client.getUserAgent(), cachedMessagesOnly);
-
-      final CompletableFuture<?>[] sendFutures = new CompletableFuture[messages.getMessages().size()];
-
-      for (int i = 0; i < messages.getMessages().size(); i++) {
-        final OutgoingMessageEntity message = messages.getMessages().get(i);
-        final Envelope.Builder builder = Envelope.newBuilder()
-            .setType(Envelope.Type.valueOf(message.getType()))
-            .setTimestamp(message.getTimestamp())
-            .setServerTimestamp(message.getServerTimestamp());
-
-        if (!Util.isEmpty(message.getSource())) {
-          builder.setSource(message.getSource())
-              .setSourceDevice(message.getSourceDevice());
-          if (message.getSourceUuid() != null) {
-            builder.setSourceUuid(message.getSourceUuid().toString());
-          }
-        }
-
-        if (message.getMessage() != null) {
-          builder.setLegacyMessage(ByteString.copyFrom(message.getMessage()));
-        }
-
-        if (message.getContent() != null) {
-          builder.setContent(ByteString.copyFrom(message.getContent()));
-        }
-
-        if (message.getRelay() != null && !message.getRelay().isEmpty()) {
-          builder.setRelay(message.getRelay());
-        }
-
-        builder.setServerGuid(message.getGuid().toString());
-
-        final Envelope envelope = builder.build();
-
-        if (envelope.getSerializedSize() > MAX_DESKTOP_MESSAGE_SIZE && isDesktopClient) {
-          messagesManager.delete(auth.getAccount().getUuid(), device.getId(), message.getGuid());
-          discardedMessagesMeter.mark();
-
-          sendFutures[i] = CompletableFuture.completedFuture(null);
-        } else {
-          sendFutures[i] = sendMessage(builder.build(), Optional.of(new StoredMessageInfo(message.getGuid())));
-        }
-      }
-
-      CompletableFuture.allOf(sendFutures).whenComplete((v, cause) -> {
-        if (cause == null) {
-          if (messages.hasMore()) {
-            sendNextMessagePage(cachedMessagesOnly, queueClearedFuture);
-          } else {
-            queueClearedFuture.complete(null);
-          }
-        } else {
-          queueClearedFuture.completeExceptionally(cause);
-        }
-      });
-    } catch (final Exception e) {
-      queueClearedFuture.completeExceptionally(e);
-    }
-  }
-
   @Override
   public void handleNewMessagesAvailable() {
     messageAvailableMeter.mark();
@@ -357,7 +314,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     ephemeralMessageAvailableMeter.mark();
 
     messagesManager.takeEphemeralMessage(auth.getAccount().getUuid(), device.getId())
-                   .ifPresent(message -> sendMessage(message, Optional.empty()));
+                   .ifPresent(message -> sendMessage(StoredMessage.fromEnvelope(message), false));
   }
 
   @Override
@@ -375,15 +332,130 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     client.hardDisconnectQuietly();
   }
 
-  private static class StoredMessageInfo {
-    private final UUID guid;
+  /**
+   * Drains stored messages to the client as a sliding window, keeping up to {@code maxInFlightMessages} unacknowledged
+   * messages in flight at a time. The next page of messages is fetched as soon as the last message of the current page
+   * has been sent, while earlier messages are still awaiting acknowledgement, so the drain doesn't stall for a full
+   * client round trip at each page boundary. At most one page of unsent messages is held in memory at a time.
+   */
+  @VisibleForTesting
+  class QueueDrain {
+
+    private final boolean cachedMessagesOnly;
+    private final CompletableFuture<Void> queueClearedFuture;
+
+    // Only one thread at a time runs the drain loop (see `drain()`), so the following fields need no further guarding
+    private final Deque<StoredMessage> unsentMessages = new ArrayDeque<>();
+    @Nullable
+    private StoredMessageCursor cursor;
+    private boolean morePages = true;
+
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private final AtomicInteger inFlightMessages = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    @VisibleForTesting
+    QueueDrain(final boolean cachedMessagesOnly, final CompletableFuture<Void> queueClearedFuture) {
+      this.cachedMessagesOnly = cachedMessagesOnly;
+      this.queueClearedFuture = queueClearedFuture;
+    }
+
+    void drain() {
+      // Sends may complete (and request another pass) on other threads or synchronously on this one; rather than
+      // recursing or contending for a lock, whichever thread gets here first keeps looping until no more passes are
+      // requested.
+      if (drainRequests.getAndIncrement() != 0) {
+        return;
+      }
+
+      do {
+        while (failure.get() == null) {
+          if (canSendNextMessage()) {
+            sendNextMessage();
+          } else if (needsNextPage()) {
+            fetchNextPage();
+          } else {
+            break;
+          }
+        }
+
+        if (isFinished()) {
+          complete();
+        }
+      } while (drainRequests.decrementAndGet() != 0);
+    }
+
+    @VisibleForTesting
+    boolean canSendNextMessage() {
+      return !unsentMessages.isEmpty() && inFlightMessages.get() < maxInFlightMessages;
+    }
+
+    @VisibleForTesting
+    boolean needsNextPage() {
+      return unsentMessages.isEmpty() && morePages;
+    }
 
-    public StoredMessageInfo(UUID guid) {
-      this.guid = guid;
+    @VisibleForTesting
+    boolean isFinished() {
+      return !queueClearedFuture.isDone() && inFlightMessages.get() == 0
+          && (failure.get() != null || (unsentMessages.isEmpty() && !morePages));
     }
 
-    public UUID getGuid() {
-      return guid;
+    @VisibleForTesting
+    void fetchNextPage() {
+      // The first page is read from the head of the queue; later pages pick up where the previous page left off
+      try {
+        final StoredMessageList messages = cursor == null
+            ? messagesManager.getStoredMessagesForDevice(auth.getAccount().getUuid(), device.getId(),
+                client.getUserAgent(), cachedMessagesOnly)
+            : messagesManager.getStoredMessagesForDevice(auth.getAccount().getUuid(), device.getId(),
+                client.getUserAgent(), cursor);
+
+        unsentMessages.addAll(messages.getMessages());
+        cursor = messages.getNextPageCursor();
+        morePages = messages.hasMore();
+      } catch (final Exception e) {
+        failure.compareAndSet(null, e);
+      }
+    }
+
+    @VisibleForTesting
+    void sendNextMessage() {
+      final StoredMessage message = unsentMessages.poll();
+
+      if (message.getSerializedSize() > MAX_DESKTOP_MESSAGE_SIZE && isDesktopClient) {
+        ackCoalescer.acknowledge(message);
+        discardedMessagesMeter.mark();
+      } else {
+        inFlightMessages.incrementAndGet();
+
+        sendMessage(message, true).whenComplete((response, cause) -> {
+          if (cause != null) {
+            failure.compareAndSet(null, cause);
+          }
+
+          inFlightMessages.decrementAndGet();
+          drain();
+        });
+      }
+    }
+
+    @VisibleForTesting
+    void complete() {
+      // Nothing is outstanding, so whatever the client acknowledged so far can be deleted before we report back
+      try {
+        ackCoalescer.flush();
+      } catch (final Exception e) {
+        failure.compareAndSet(null, e);
+      }
+
+      final Throwable cause = failure.get();
+
+      if (cause != null) {
+        queueClearedFuture.completeExceptionally(cause);
+      } else {
+        queueClearedFuture.complete(null);
+      }
     }
   }
 }
@@ -32,6 +32,7 @@ import org.smassarn.textsecuregcm.securebackup.SecureBackupClient;
 import org.smassarn.textsecuregcm.securestorage.SecureStorageClient;
 import org.smassarn.textsecuregcm.sqs.DirectoryQueue;
 import org.smassarn.textsecuregcm.storage.Account;
+import org.smassarn.textsecuregcm.storage.AccountNearCache;
 import org.smassarn.textsecuregcm.storage.Accounts;
 import org.smassarn.textsecuregcm.storage.AccountsManager;
 import org.smassarn.textsecuregcm.storage.DeletedAccounts;
@@ -52,6 +53,7 @@ import org.smassarn.textsecuregcm.storage.Usernames;
 import org.smassarn.textsecuregcm.storage.UsernamesManager;
 import org.smassarn.textsecuregcm.storage.VerificationCodeStore;
 import org.smassarn.textsecuregcm.util.DynamoDbFromConfig;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 
 public class SetUserDiscoverabilityCommand extends EnvironmentCommand<WhisperServerConfiguration> {
@@ -103,6 +105,12 @@ public class SetUserDiscoverabilityCommand extends EnvironmentCommand<WhisperSer
           software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create());
       DynamoDbClient preKeysDynamoDb = DynamoDbFromConfig.client(configuration.getKeysDynamoDbConfiguration(),
           software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create());
+      DynamoDbAsyncClient messageDynamoDbAsync = DynamoDbFromConfig.asyncClient(
+          configuration.getMessageDynamoDbConfiguration(),
+          software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create(), null);
+      DynamoDbAsyncClient preKeysDynamoDbAsync = DynamoDbFromConfig.asyncClient(
+          configuration.getKeysDynamoDbConfiguration(),
+          software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create(), null);
       DynamoDbClient accountsDynamoDbClient = DynamoDbFromConfig
           .client(configuration.getAccountsDynamoDbConfiguration(),
               software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider.create());
@@ -119,6 +127,8 @@ public class SetUserDiscoverabilityCommand extends EnvironmentCommand<WhisperSer
           .executorService(name(getClass(), "backupService-%d")).maxThreads(8).minThreads(1).build();
       ExecutorService storageServiceExecutor = environment.lifecycle()
           .executorService(name(getClass(), "storageService-%d")).maxThreads(8).minThreads(1).build();
+      ExecutorService messagePurgeExecutor = environment.lifecycle()
+          .executorService(name(getClass(), "messagePurge-%d")).maxThreads(8).minThreads(1).build();
 
       ExternalServiceCredentialGenerator backupCredentialsGenerator = new ExternalServiceCredentialGenerator(
           configuration.getSecureBackupServiceConfiguration().getUserAuthenticationTokenSharedSecret(), new byte[0],
@@ -156,13 +166,15 @@ public class SetUserDiscoverabilityCommand extends EnvironmentCommand<WhisperSer
       Accounts accounts = new Accounts(accountsDynamoDbClient,
           configuration.getAccountsDynamoDbConfiguration().getTableName(),
           configuration.getAccountsDynamoDbConfiguration().getPhoneNumberTableName(),
-          configuration.getAccountsDynamoDbConfiguration().getScanPageSize());
+          configuration.getAccountsDynamoDbConfiguration().getScanPageSize(),
+          configuration.getAccountsDynamoDbConfiguration().isWriteCompactAccountData(),
+          configuration.getAccountsDynamoDbConfiguration().isStoreDevicesSeparately());
       Usernames usernames = new Usernames(accountDatabase);
       Profiles profiles = new Profiles(accountDatabase);
       ReservedUsernames reservedUsernames = new ReservedUsernames(accountDatabase);
-      KeysDynamoDb keysDynamoDb = new KeysDynamoDb(preKeysDynamoDb,
+      KeysDynamoDb keysDynamoDb = new KeysDynamoDb(preKeysDynamoDb, preKeysDynamoDbAsync,
           configuration.getKeysDynamoDbConfiguration().getTableName());
-      MessagesDynamoDb messagesDynamoDb = new MessagesDynamoDb(messageDynamoDb,
+      MessagesDynamoDb messagesDynamoDb = new MessagesDynamoDb(messageDynamoDb, messageDynamoDbAsync,
           configuration.getMessageDynamoDbConfiguration().getTableName(),
           configuration.getMessageDynamoDbConfiguration().getTimeToLive());
       FaultTolerantRedisCluster messageInsertCacheCluster = new FaultTolerantRedisCluster("message_insert_cluster",
@@ -187,14 +199,17 @@ public class SetUserDiscoverabilityCommand extends EnvironmentCommand<WhisperSer
       ReportMessageManager reportMessageManager = new ReportMessageManager(reportMessageDynamoDb,
           Metrics.globalRegistry);
       MessagesManager messagesManager = new MessagesManager(messagesDynamoDb, messagesCache, pushLatencyManager,
-          reportMessageManager);
+          reportMessageManager, messagePurgeExecutor);
       DeletedAccountsManager deletedAccountsManager = new DeletedAccountsManager(deletedAccounts,
           deletedAccountsLockDynamoDbClient,
           configuration.getDeletedAccountsLockDynamoDbConfiguration().getTableName());
       StoredVerificationCodeManager pendingAccountsManager = new StoredVerificationCodeManager(pendingAccounts);
-      AccountsManager accountsManager = new AccountsManager(accounts, cacheCluster,
+      AccountNearCache accountNearCache = new AccountNearCache(cacheCluster,
+          configuration.getAccountNearCacheConfiguration());
+      AccountsManager accountsManager = new AccountsManager(accounts, cacheCluster, accountNearCache,
           deletedAccountsManager, directoryQueue, keysDynamoDb, messagesManager, usernamesManager, profilesManager,
-          pendingAccountsManager, secureStorageClient, secureBackupClient);
+          pendingAccountsManager, secureStorageClient, secureBackupClient,
+          configuration.getAccountsDynamoDbConfiguration().isWriteCompactAccountData(), false);
 
       Optional<Account> maybeAccount;
 
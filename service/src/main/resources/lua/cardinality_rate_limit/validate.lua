@@ -0,0 +1,20 @@
+-- keys: hll_key
+-- argv: target, ttl_seconds
+-- Adds the target to the set, setting the set's expiration if it doesn't have one yet
+-- returns: { changed (1 if the target was new to the set or 0 otherwise), cardinality, remaining_ttl_seconds }
+
+local hllKey = KEYS[1]
+
+local target = ARGV[1]
+local ttlSeconds = tonumber(ARGV[2])
+
+local changed = redis.call("PFADD", hllKey, target)
+local cardinality = redis.call("PFCOUNT", hllKey)
+local remainingTtl = redis.call("TTL", hllKey)
+
+if remainingTtl < 0 then
+    redis.call("EXPIRE", hllKey, ttlSeconds)
+    remainingTtl = ttlSeconds
+end
+
+return { changed, cardinality, remainingTtl }
@@ -0,0 +1,10 @@
+-- keys: queue_listener_key
+-- argv: server_id
+-- Removes a queue's listener record only if it still names the given server
+-- returns: 1 if the record was removed or 0 otherwise
+
+if redis.call("GET", KEYS[1]) == ARGV[1] then
+    return redis.call("DEL", KEYS[1])
+else
+    return 0
+end
@@ -2,10 +2,17 @@ local queueTotalIndexKey = KEYS[1]
 local maxTime            = ARGV[1]
 local limit              = ARGV[2]
 
-local results = redis.call("ZRANGEBYSCORE", queueTotalIndexKey, 0, maxTime, "LIMIT", 0, limit)
+local results = redis.call("ZRANGEBYSCORE", queueTotalIndexKey, 0, maxTime, "WITHSCORES", "LIMIT", 0, limit)
 
 if results and next(results) then
-    redis.call("ZREM", queueTotalIndexKey, unpack(results))
+    local queues = {}
+
+    for i = 1, #results, 2 do
+        queues[#queues + 1] = results[i]
+    end
+
+    redis.call("ZREM", queueTotalIndexKey, unpack(queues))
 end
 
+-- Results alternate between queue names and the times at which they were added to the index
 return results
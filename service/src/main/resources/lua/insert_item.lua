@@ -1,9 +1,11 @@
 local queueKey           = KEYS[1]
 local queueMetadataKey   = KEYS[2]
 local queueTotalIndexKey = KEYS[3]
+local queueListenerKey   = KEYS[4] -- omitted if targeted notifications are disabled
 local message            = ARGV[1]
 local currentTime        = ARGV[2]
 local guid               = ARGV[3]
+local notificationPrefix = ARGV[4]
 
 if redis.call("HEXISTS", queueMetadataKey, guid) == 1 then
     return tonumber(redis.call("HGET", queueMetadataKey, guid))
@@ -19,4 +21,14 @@ redis.call("EXPIRE", queueKey, 7776000)         -- 90 days
 redis.call("EXPIRE", queueMetadataKey, 7776000) -- 90 days
 
 redis.call("ZADD", queueTotalIndexKey, "NX", currentTime, queueKey)
+
+-- Tell the server listening for this queue's messages (if any) that a new message is available
+if queueListenerKey then
+    local listener = redis.call("GET", queueListenerKey)
+
+    if listener then
+        redis.call("PUBLISH", notificationPrefix .. listener, "zadd:" .. string.match(queueListenerKey, "{(.+)}"))
+    end
+end
+
 return messageId
@@ -0,0 +1,18 @@
+-- keys: bucket_key
+-- argv: bucket_size, amount
+-- Returns unused space to a bucket; a bucket that no longer exists would be created full, so it's left alone
+-- returns: 1 if space was returned to the bucket or 0 otherwise
+
+local bucketKey = KEYS[1]
+
+local bucketSize = tonumber(ARGV[1])
+local amount = tonumber(ARGV[2])
+
+local spaceRemaining = redis.call("HGET", bucketKey, "s")
+
+if spaceRemaining then
+    redis.call("HSET", bucketKey, "s", math.min(bucketSize, tonumber(spaceRemaining) + amount))
+    return 1
+end
+
+return 0
@@ -0,0 +1,61 @@
+-- keys: bucket_key (hash), [legacy_bucket_key (JSON string, in the same slot)]
+-- argv: bucket_size, leak_rate_per_millis, now_millis, amount, ttl_seconds, max_amount
+-- If the bucket has space for the given amount, takes as much of it as is available up to max_amount (which may be 0
+-- to only check for space).
+-- returns: { amount_taken, millis_until_space_available }, where millis_until_space_available is 0 if the bucket had
+--          space for the given amount and -1 if the amount exceeds the bucket size
+
+local bucketKey = KEYS[1]
+local legacyBucketKey = KEYS[2]
+
+local bucketSize = tonumber(ARGV[1])
+local leakRatePerMillis = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+local amount = tonumber(ARGV[4])
+local ttlSeconds = tonumber(ARGV[5])
+local maxAmount = tonumber(ARGV[6])
+
+local spaceRemaining
+local lastUpdateTimeMillis
+
+local bucket = redis.call("HMGET", bucketKey, "s", "t")
+
+if bucket[1] then
+    spaceRemaining = tonumber(bucket[1])
+    lastUpdateTimeMillis = tonumber(bucket[2])
+elseif legacyBucketKey then
+    local legacyBucket = redis.call("GET", legacyBucketKey)
+
+    if legacyBucket then
+        local decoded = cjson.decode(legacyBucket)
+        spaceRemaining = decoded.spaceRemaining
+        lastUpdateTimeMillis = decoded.lastUpdateTimeMillis
+    end
+end
+
+if not spaceRemaining then
+    spaceRemaining = bucketSize
+    lastUpdateTimeMillis = now
+end
+
+local elapsedMillis = math.max(0, now - lastUpdateTimeMillis)
+spaceRemaining = math.min(bucketSize, math.floor(spaceRemaining + elapsedMillis * leakRatePerMillis))
+
+if spaceRemaining >= amount then
+    local amountTaken = math.min(spaceRemaining, maxAmount)
+
+    if amountTaken > 0 then
+        redis.call("HSET", bucketKey, "s", spaceRemaining - amountTaken, "t", now)
+        redis.call("EXPIRE", bucketKey, ttlSeconds)
+
+        if legacyBucketKey then
+            redis.call("DEL", legacyBucketKey)
+        end
+    end
+
+    return { amountTaken, 0 }
+elseif amount > bucketSize then
+    return { 0, -1 }
+end
+
+return { 0, math.ceil((amount - spaceRemaining) / leakRatePerMillis) }
@@ -0,0 +1,13 @@
+-- keys: queue_listener_key
+-- argv: server_id, ttl_seconds
+-- Extends a queue's listener record if it still names the given server, or restores it if it has lapsed
+-- returns: 1 if the record was refreshed or 0 if another server now holds it
+
+local listener = redis.call("GET", KEYS[1])
+
+if not listener or listener == ARGV[1] then
+    redis.call("SET", KEYS[1], ARGV[1], "EX", ARGV[2])
+    return 1
+else
+    return 0
+end
@@ -0,0 +1,10 @@
+-- keys: prune_lock_key
+-- argv: manager_id
+-- Releases a claim on pruning a missing peer only if the given manager still holds it
+-- returns: 1 if the claim was released or 0 otherwise
+
+if redis.call("GET", KEYS[1]) == ARGV[1] then
+    return redis.call("DEL", KEYS[1])
+else
+    return 0
+end
@@ -0,0 +1,10 @@
+-- keys: prune_lock_key
+-- argv: manager_id, ttl_seconds
+-- Extends a claim on pruning a missing peer only if the given manager still holds it
+-- returns: 1 if the claim was extended or 0 otherwise
+
+if redis.call("GET", KEYS[1]) == ARGV[1] then
+    return redis.call("EXPIRE", KEYS[1], ARGV[2])
+else
+    return 0
+end
@@ -0,0 +1,15 @@
+local presenceKey     = KEYS[1]
+local presenceUuid    = ARGV[1]
+local displacedPrefix = ARGV[2]
+
+-- Tell the manager that previously held this presence (if any) that its client has been displaced
+local previousPresenceUuid = redis.call("GET", presenceKey)
+
+redis.call("SET", presenceKey, presenceUuid)
+
+if previousPresenceUuid and previousPresenceUuid ~= presenceUuid then
+    redis.call("PUBLISH", displacedPrefix .. previousPresenceUuid, presenceKey)
+    return true
+end
+
+return false
@@ -0,0 +1,12 @@
+local persistInProgressKey = KEYS[1]
+local queueListenerKey     = KEYS[2] -- omitted if targeted notifications are disabled
+local notificationPrefix   = ARGV[1]
+
+if redis.call("DEL", persistInProgressKey) == 1 and queueListenerKey then
+    -- Tell the server listening for this queue's messages (if any) that they've been persisted
+    local listener = redis.call("GET", queueListenerKey)
+
+    if listener then
+        redis.call("PUBLISH", notificationPrefix .. listener, "del:" .. string.match(queueListenerKey, "{(.+)}"))
+    end
+end
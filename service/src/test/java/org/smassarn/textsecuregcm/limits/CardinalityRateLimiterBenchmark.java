@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.limits;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.smassarn.textsecuregcm.controllers.RateLimitExceededException;
+import org.smassarn.textsecuregcm.redis.FaultTolerantRedisCluster;
+import org.smassarn.textsecuregcm.redis.RedisClusterExtension;
+
+/**
+ * Compares the cost of checking a {@link CardinalityRateLimiter} with a single script call with the cost of the
+ * sequence of commands it used to issue. Starts a local Redis cluster, so an embedded Redis binary must be available.
+ * Run with {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CardinalityRateLimiterBenchmark {
+
+  private static final Duration TTL = Duration.ofDays(1);
+  private static final int MAX_CARDINALITY = 100;
+  private static final int SOURCES = 1_000;
+
+  private final RedisClusterExtension redisClusterExtension = RedisClusterExtension.builder().build();
+  private final AtomicLong counter = new AtomicLong();
+
+  private FaultTolerantRedisCluster redisCluster;
+  private CardinalityRateLimiter rateLimiter;
+
+  @Setup
+  public void setUp() throws Exception {
+    redisClusterExtension.beforeAll(null);
+    redisClusterExtension.beforeEach(null);
+
+    redisCluster = redisClusterExtension.getRedisCluster();
+    rateLimiter = new CardinalityRateLimiter(redisCluster, "benchmark", TTL, MAX_CARDINALITY);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    redisClusterExtension.afterEach(null);
+    redisClusterExtension.afterAll(null);
+  }
+
+  @Benchmark
+  public boolean validateScript() {
+    final long i = counter.incrementAndGet();
+
+    try {
+      rateLimiter.validate(getSource(i), getTarget(i), MAX_CARDINALITY);
+      return true;
+    } catch (final RateLimitExceededException e) {
+      return false;
+    }
+  }
+
+  @Benchmark
+  public boolean validateCommands() {
+    final long i = counter.incrementAndGet();
+    final String hllKey = "hll_rate_limit::benchmark_commands::" + getSource(i);
+    final String target = getTarget(i);
+
+    final boolean rateLimitExceeded = redisCluster.withCluster(connection -> {
+      final boolean changed = connection.sync().pfadd(hllKey, target) == 1;
+      final long cardinality = connection.sync().pfcount(hllKey);
+
+      if (changed && cardinality == 1 && connection.sync().ttl(hllKey) == -1) {
+        connection.sync().expire(hllKey, TTL.toSeconds());
+      }
+
+      return changed && cardinality > MAX_CARDINALITY;
+    });
+
+    if (rateLimitExceeded) {
+      redisCluster.withCluster(connection -> connection.sync().ttl(hllKey));
+    }
+
+    return !rateLimitExceeded;
+  }
+
+  private static String getSource(final long i) {
+    return "+1800555" + (i % SOURCES);
+  }
+
+  private static String getTarget(final long i) {
+    return String.valueOf(i / SOURCES % (MAX_CARDINALITY * 2));
+  }
+
+  public static void main(final String... args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(CardinalityRateLimiterBenchmark.class.getSimpleName()).build()).run();
+  }
+}
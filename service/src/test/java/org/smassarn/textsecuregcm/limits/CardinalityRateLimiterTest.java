@@ -35,12 +35,16 @@ class CardinalityRateLimiterTest {
         rateLimiter.validate(source, String.valueOf(i), rateLimiter.getDefaultMaxCardinality());
         validatedAttempts++;
       } catch (final RateLimitExceededException e) {
+        assertTrue(e.getRetryDuration().compareTo(Duration.ZERO) > 0);
+        assertTrue(e.getRetryDuration().compareTo(Duration.ofDays(1)) <= 0);
+
         blockedAttempts++;
       }
     }
 
     assertTrue(validatedAttempts >= maxCardinality);
     assertTrue(blockedAttempts > 0);
+    assertTrue(rateLimiter.getRemainingTtl(source) > 0);
 
     final String secondSource = "+18005554321";
 
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.limits;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class LeasingRateLimiterCleanerTest {
+
+  @Test
+  void testStart() {
+    final LeasingRateLimiter shortLeaseLimiter = mock(LeasingRateLimiter.class);
+    final LeasingRateLimiter longLeaseLimiter = mock(LeasingRateLimiter.class);
+    final ScheduledExecutorService scheduledExecutorService = mock(ScheduledExecutorService.class);
+
+    when(shortLeaseLimiter.getLeaseDuration()).thenReturn(Duration.ofSeconds(5));
+    when(longLeaseLimiter.getLeaseDuration()).thenReturn(Duration.ofSeconds(30));
+
+    new LeasingRateLimiterCleaner(List.of(longLeaseLimiter, shortLeaseLimiter), scheduledExecutorService).start();
+
+    verify(scheduledExecutorService).scheduleWithFixedDelay(any(), eq(5_000L), eq(5_000L), eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  void testStartNoLeasingLimiters() {
+    final ScheduledExecutorService scheduledExecutorService = mock(ScheduledExecutorService.class);
+
+    new LeasingRateLimiterCleaner(List.of(), scheduledExecutorService).start();
+
+    verifyNoInteractions(scheduledExecutorService);
+  }
+
+  @Test
+  void testCleanUp() {
+    final LeasingRateLimiter failingLimiter = mock(LeasingRateLimiter.class);
+    final LeasingRateLimiter rateLimiter = mock(LeasingRateLimiter.class);
+
+    doThrow(new RuntimeException("OH NO")).when(failingLimiter).cleanUp();
+
+    new LeasingRateLimiterCleaner(List.of(failingLimiter, rateLimiter), mock(ScheduledExecutorService.class)).cleanUp();
+
+    verify(failingLimiter).cleanUp();
+    verify(rateLimiter).cleanUp();
+  }
+}
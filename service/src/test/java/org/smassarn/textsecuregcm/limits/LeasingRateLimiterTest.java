@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.limits;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.smassarn.textsecuregcm.controllers.RateLimitExceededException;
+import org.smassarn.textsecuregcm.redis.RedisClusterExtension;
+import org.smassarn.textsecuregcm.util.Constants;
+
+class LeasingRateLimiterTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  @Test
+  void testValidate() {
+    final LeasingRateLimiter rateLimiter = new LeasingRateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test",
+        5, 1.0, 3, Duration.ofMinutes(1));
+
+    final RateLimiter otherServerRateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 5, 1.0);
+    final String key = "+18005551234";
+
+    // The first check leases three permits, leaving two in the shared bucket
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertTrue(otherServerRateLimiter.hasAvailablePermits(key, 2));
+    assertFalse(otherServerRateLimiter.hasAvailablePermits(key, 3));
+
+    // ...and the next two are served from the lease
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertTrue(otherServerRateLimiter.hasAvailablePermits(key, 2));
+
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(key));
+    assertThrows(RateLimitExceededException.class, () -> otherServerRateLimiter.validate(key));
+
+    rateLimiter.clear(key);
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+  }
+
+  @Test
+  void testValidateExceedsLease() {
+    final LeasingRateLimiter rateLimiter = new LeasingRateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test",
+        10, 1.0, 2, Duration.ofMinutes(1));
+
+    final String key = "+18005551234";
+
+    assertDoesNotThrow(() -> rateLimiter.validate(key, 4));
+    assertTrue(rateLimiter.hasAvailablePermits(key, 6));
+    assertFalse(rateLimiter.hasAvailablePermits(key, 7));
+  }
+
+  @Test
+  void testCleanUp() throws InterruptedException {
+    final LeasingRateLimiter rateLimiter = new LeasingRateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test",
+        5, 1.0, 3, Duration.ofMillis(1));
+
+    final RateLimiter otherServerRateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 5, 1.0);
+    final String key = "+18005551234";
+
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertFalse(otherServerRateLimiter.hasAvailablePermits(key, 3));
+
+    Thread.sleep(10);
+    rateLimiter.cleanUp();
+
+    // Unused permits are returned asynchronously
+    for (int i = 0; i < 100 && !otherServerRateLimiter.hasAvailablePermits(key, 4); i++) {
+      Thread.sleep(10);
+    }
+
+    assertTrue(otherServerRateLimiter.hasAvailablePermits(key, 4));
+  }
+
+  @Test
+  void testValidateTimed() {
+    final String name = "timed";
+    final LeasingRateLimiter rateLimiter = new LeasingRateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), name,
+        5, 1.0, 3, Duration.ofMinutes(1));
+
+    final String key = "+18005551234";
+
+    // One check refills the lease from the shared bucket and the next two are served from the lease; all are timed
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+
+    assertEquals(3, SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME)
+        .timer(name(LeasingRateLimiter.class, name, "validate"))
+        .getCount());
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.limits;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.smassarn.textsecuregcm.controllers.RateLimitExceededException;
+import org.smassarn.textsecuregcm.redis.RedisClusterExtension;
+
+class RateLimiterTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  @Test
+  void testValidate() {
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 2, 1.0);
+    final String key = "+18005551234";
+
+    assertTrue(rateLimiter.hasAvailablePermits(key, 2));
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertFalse(rateLimiter.hasAvailablePermits(key, 1));
+
+    final RateLimitExceededException exception =
+        assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(key));
+
+    assertTrue(exception.getRetryDuration().compareTo(Duration.ZERO) > 0);
+    assertTrue(exception.getRetryDuration().compareTo(Duration.ofMinutes(1)) <= 0);
+
+    assertDoesNotThrow(() -> rateLimiter.validate("+18005554321"));
+
+    rateLimiter.clear(key);
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+  }
+
+  @Test
+  void testValidateLegacyBucket() {
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 10, 1.0);
+    final String key = "+18005551234";
+
+    // A bucket written as JSON by an earlier version, with one permit left
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection -> connection.sync().set(
+        "leaky_bucket::test::" + key,
+        String.format("{\"bucketSize\":10,\"leakRatePerMillis\":1.6666666666666667E-5,\"spaceRemaining\":1,"
+            + "\"lastUpdateTimeMillis\":%d}", System.currentTimeMillis())));
+
+    assertDoesNotThrow(() -> rateLimiter.validate(key));
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate(key));
+  }
+
+  @Test
+  void testValidateExceedsBucketSize() {
+    final RateLimiter rateLimiter = new RateLimiter(REDIS_CLUSTER_EXTENSION.getRedisCluster(), "test", 2, 1.0);
+
+    assertThrows(IllegalArgumentException.class, () -> rateLimiter.validate("+18005551234", 3));
+  }
+}
@@ -16,6 +16,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.vdurmont.semver4j.Semver;
 import io.dropwizard.jersey.DropwizardResourceConfig;
@@ -38,6 +39,7 @@ import javax.ws.rs.Path;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.glassfish.jersey.server.ApplicationHandler;
 import org.glassfish.jersey.server.ContainerRequest;
 import org.glassfish.jersey.server.ContainerResponse;
@@ -155,7 +157,7 @@ class MetricsRequestEventListenerTest {
         provider.onWebSocketBinary(message, 0, message.length);
 
         ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
-        verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+        verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
         SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -213,7 +215,7 @@ class MetricsRequestEventListenerTest {
         provider.onWebSocketBinary(message, 0, message.length);
 
         ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
-        verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+        verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
         SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -325,7 +327,7 @@ class MetricsRequestEventListenerTest {
     }
 
     private static SubProtocol.WebSocketResponseMessage getResponse(ArgumentCaptor<ByteBuffer> responseCaptor) throws InvalidProtocolBufferException {
-        return SubProtocol.WebSocketMessage.parseFrom(responseCaptor.getValue().array()).getResponse();
+        return SubProtocol.WebSocketMessage.parseFrom(ByteString.copyFrom(responseCaptor.getValue())).getResponse();
     }
 
     public static class TestPrincipal implements Principal {
@@ -13,7 +13,9 @@ import static org.mockito.Mockito.when;
 
 import io.lettuce.core.cluster.SlotHash;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.jupiter.api.BeforeEach;
@@ -59,6 +61,7 @@ class ApnFallbackManagerTest {
     final AccountsManager accountsManager = mock(AccountsManager.class);
     when(accountsManager.get(ACCOUNT_NUMBER)).thenReturn(Optional.of(account));
     when(accountsManager.get(ACCOUNT_UUID)).thenReturn(Optional.of(account));
+    when(accountsManager.getAll(Set.of(ACCOUNT_UUID))).thenReturn(Map.of(ACCOUNT_UUID, account));
 
     apnSender = mock(APNSender.class);
 
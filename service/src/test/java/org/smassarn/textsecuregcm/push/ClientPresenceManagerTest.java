@@ -11,6 +11,7 @@ import static org.junit.Assert.assertTrue;
 
 import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -21,6 +22,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.smassarn.textsecuregcm.redis.AbstractRedisClusterTest;
+import org.smassarn.textsecuregcm.util.Pair;
 
 public class ClientPresenceManagerTest extends AbstractRedisClusterTest {
 
@@ -63,6 +65,23 @@ public class ClientPresenceManagerTest extends AbstractRedisClusterTest {
         assertTrue(clientPresenceManager.isPresent(accountUuid, deviceId));
     }
 
+    @Test
+    public void testIsPresentBatch() {
+        final UUID localAccountUuid   = UUID.randomUUID();
+        final UUID remoteAccountUuid  = UUID.randomUUID();
+        final UUID missingAccountUuid = UUID.randomUUID();
+
+        clientPresenceManager.setPresent(localAccountUuid, 1, NO_OP);
+        addClientPresence(ClientPresenceManager.getPresenceKey(remoteAccountUuid, 2), UUID.randomUUID().toString());
+
+        assertEquals(Map.of(new Pair<>(localAccountUuid, 1L), true,
+                            new Pair<>(remoteAccountUuid, 2L), true,
+                            new Pair<>(missingAccountUuid, 3L), false),
+                     clientPresenceManager.isPresent(List.of(new Pair<>(localAccountUuid, 1L),
+                                                             new Pair<>(remoteAccountUuid, 2L),
+                                                             new Pair<>(missingAccountUuid, 3L))));
+    }
+
     @Test
     public void testIsLocallyPresent() {
         final UUID accountUuid = UUID.randomUUID();
@@ -123,6 +142,45 @@ public class ClientPresenceManagerTest extends AbstractRedisClusterTest {
         }
     }
 
+    @Test(timeout = 10_000)
+    public void testTargetedRemoteDisplacement() throws Exception {
+        final UUID accountUuid = UUID.randomUUID();
+        final long deviceId    = 1;
+
+        final AtomicBoolean displaced = new AtomicBoolean(false);
+
+        final ClientPresenceManager targetedPresenceManager =
+                new ClientPresenceManager(getRedisCluster(), presenceRenewalExecutorService, presenceRenewalExecutorService, true);
+
+        final ClientPresenceManager otherTargetedPresenceManager =
+                new ClientPresenceManager(getRedisCluster(), presenceRenewalExecutorService, presenceRenewalExecutorService, true);
+
+        targetedPresenceManager.start();
+        otherTargetedPresenceManager.start();
+
+        try {
+            targetedPresenceManager.setPresent(accountUuid, deviceId, () -> {
+                synchronized (displaced) {
+                    displaced.set(true);
+                    displaced.notifyAll();
+                }
+            });
+
+            otherTargetedPresenceManager.setPresent(accountUuid, deviceId, NO_OP);
+
+            synchronized (displaced) {
+                while (!displaced.get()) {
+                    displaced.wait();
+                }
+            }
+
+            assertTrue(otherTargetedPresenceManager.isPresent(accountUuid, deviceId));
+        } finally {
+            targetedPresenceManager.stop();
+            otherTargetedPresenceManager.stop();
+        }
+    }
+
     @Test(timeout = 10_000)
     public void testRemoteDisplacementAfterTopologyChange() throws InterruptedException {
         final UUID accountUuid = UUID.randomUUID();
@@ -197,9 +255,60 @@ public class ClientPresenceManagerTest extends AbstractRedisClusterTest {
         assertFalse(getRedisCluster().withCluster(connection -> connection.sync().sismember(ClientPresenceManager.MANAGER_SET_KEY, missingPeerId)));
     }
 
+    @Test
+    public void testPruneMissingPeerClaimedElsewhere() {
+        final String missingPeerId = UUID.randomUUID().toString();
+
+        getRedisCluster().useCluster(connection -> {
+            connection.sync().sadd(ClientPresenceManager.MANAGER_SET_KEY, missingPeerId);
+            connection.sync().set(ClientPresenceManager.getPruneLockKey(missingPeerId), UUID.randomUUID().toString());
+        });
+
+        addClientPresence(missingPeerId);
+
+        // Another manager has already claimed the missing peer, so this one should leave it alone
+        clientPresenceManager.pruneMissingPeers();
+
+        assertEquals(1, (long)getRedisCluster().withCluster(connection -> connection.sync().exists(ClientPresenceManager.getConnectedClientSetKey(missingPeerId))));
+
+        getRedisCluster().useCluster(connection -> connection.sync().del(ClientPresenceManager.getPruneLockKey(missingPeerId)));
+        clientPresenceManager.pruneMissingPeers();
+
+        assertEquals(0, (long)getRedisCluster().withCluster(connection -> connection.sync().exists(ClientPresenceManager.getConnectedClientSetKey(missingPeerId))));
+        assertEquals(0, (long)getRedisCluster().withCluster(connection -> connection.sync().exists(ClientPresenceManager.getPruneLockKey(missingPeerId))));
+    }
+
+    @Test
+    public void testRenewPruneLockClaimedElsewhere() {
+        final String missingPeerId = UUID.randomUUID().toString();
+        final String otherManagerId = UUID.randomUUID().toString();
+
+        getRedisCluster().useCluster(connection ->
+            connection.sync().setex(ClientPresenceManager.getPruneLockKey(missingPeerId), 5, otherManagerId));
+
+        assertFalse(clientPresenceManager.renewPruneLock(missingPeerId));
+        assertTrue(getRedisCluster().withCluster(connection -> connection.sync().ttl(ClientPresenceManager.getPruneLockKey(missingPeerId))) <= 5);
+    }
+
+    @Test
+    public void testReleasePruneLockClaimedElsewhere() {
+        final String missingPeerId = UUID.randomUUID().toString();
+        final String otherManagerId = UUID.randomUUID().toString();
+
+        getRedisCluster().useCluster(connection ->
+            connection.sync().set(ClientPresenceManager.getPruneLockKey(missingPeerId), otherManagerId));
+
+        // This manager's claim has lapsed and another manager holds the lock now, so it must not be released
+        clientPresenceManager.releasePruneLock(missingPeerId);
+
+        assertEquals(otherManagerId, getRedisCluster().withCluster(connection -> connection.sync().get(ClientPresenceManager.getPruneLockKey(missingPeerId))));
+    }
+
     private void addClientPresence(final String managerId) {
-        final String clientPresenceKey = ClientPresenceManager.getPresenceKey(UUID.randomUUID(), 7);
+        addClientPresence(ClientPresenceManager.getPresenceKey(UUID.randomUUID(), 7), managerId);
+    }
 
+    private void addClientPresence(final String clientPresenceKey, final String managerId) {
         getRedisCluster().useCluster(connection -> {
             connection.sync().set(clientPresenceKey, managerId);
             connection.sync().sadd(ClientPresenceManager.getConnectedClientSetKey(managerId), clientPresenceKey);
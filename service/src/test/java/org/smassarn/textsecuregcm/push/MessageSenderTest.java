@@ -11,14 +11,20 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import com.google.protobuf.ByteString;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -28,6 +34,8 @@ import org.smassarn.textsecuregcm.metrics.PushLatencyManager;
 import org.smassarn.textsecuregcm.storage.Account;
 import org.smassarn.textsecuregcm.storage.Device;
 import org.smassarn.textsecuregcm.storage.MessagesManager;
+import org.smassarn.textsecuregcm.storage.PendingMessage;
+import org.smassarn.textsecuregcm.util.Pair;
 
 class MessageSenderTest {
 
@@ -150,6 +158,142 @@ class MessageSenderTest {
     verifyNoInteractions(apnSender);
   }
 
+  @Test
+  void testSendMessages() {
+    final Account undeliverableAccount = mock(Account.class);
+    final Device undeliverableDevice = mock(Device.class);
+    final UUID undeliverableAccountUuid = UUID.randomUUID();
+
+    when(undeliverableAccount.getUuid()).thenReturn(undeliverableAccountUuid);
+    when(undeliverableDevice.getId()).thenReturn(DEVICE_ID);
+
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID))))
+        .thenReturn(Map.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID), false));
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(messagesManager.insert(any())).thenAnswer(invocation -> completedInserts(invocation.getArgument(0)));
+
+    final List<Pair<Account, Device>> undeliverable = messageSender.sendMessages(List.of(
+        new Pair<>(new Pair<>(account, device), message),
+        new Pair<>(new Pair<>(undeliverableAccount, undeliverableDevice), generateRandomMessage())),
+        false, Runnable::run);
+
+    assertEquals(List.of(new Pair<>(undeliverableAccount, undeliverableDevice)), undeliverable);
+
+    @SuppressWarnings("unchecked") final ArgumentCaptor<List<PendingMessage>> pendingMessagesCaptor =
+        ArgumentCaptor.forClass(List.class);
+
+    verify(messagesManager).insert(pendingMessagesCaptor.capture());
+
+    assertEquals(1, pendingMessagesCaptor.getValue().size());
+    assertEquals(ACCOUNT_UUID, pendingMessagesCaptor.getValue().get(0).getDestinationUuid());
+    assertEquals(DEVICE_ID, pendingMessagesCaptor.getValue().get(0).getDestinationDevice());
+    assertEquals(message, pendingMessagesCaptor.getValue().get(0).getEnvelope());
+
+    verify(gcmSender).sendMessage(any());
+    verifyNoInteractions(apnSender);
+  }
+
+  @Test
+  void testSendOnlineMessagesClientPresent() {
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID))))
+        .thenReturn(Map.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID), true));
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(messagesManager.insert(any())).thenAnswer(invocation -> completedInserts(invocation.getArgument(0)));
+
+    assertTrue(messageSender.sendMessages(List.of(new Pair<>(new Pair<>(account, device), message)), true,
+        Runnable::run).isEmpty());
+
+    @SuppressWarnings("unchecked") final ArgumentCaptor<List<PendingMessage>> pendingMessagesCaptor =
+        ArgumentCaptor.forClass(List.class);
+
+    verify(messagesManager).insert(pendingMessagesCaptor.capture());
+
+    assertEquals(1, pendingMessagesCaptor.getValue().size());
+    assertTrue(pendingMessagesCaptor.getValue().get(0).getEnvelope().getEphemeral());
+
+    verifyNoInteractions(gcmSender);
+    verifyNoInteractions(apnSender);
+  }
+
+  @Test
+  void testSendMessagesInsertFailure() {
+    final Account failedAccount = mock(Account.class);
+    final Device failedDevice = mock(Device.class);
+    final UUID failedAccountUuid = UUID.randomUUID();
+
+    when(failedAccount.getUuid()).thenReturn(failedAccountUuid);
+    when(failedDevice.getId()).thenReturn(DEVICE_ID);
+    when(failedDevice.getGcmId()).thenReturn("failed-gcm-id");
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID))))
+        .thenReturn(Map.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID), false));
+    when(messagesManager.insert(any())).thenReturn(List.of(
+        CompletableFuture.failedFuture(new RuntimeException("OH NO")),
+        CompletableFuture.completedFuture(null)));
+
+    // One failed insertion shouldn't prevent delivery to, or notification of, any other destination
+    assertTrue(messageSender.sendMessages(List.of(
+        new Pair<>(new Pair<>(failedAccount, failedDevice), generateRandomMessage()),
+        new Pair<>(new Pair<>(account, device), message)), false, Runnable::run).isEmpty());
+
+    final ArgumentCaptor<GcmMessage> gcmMessageCaptor = ArgumentCaptor.forClass(GcmMessage.class);
+    verify(gcmSender).sendMessage(gcmMessageCaptor.capture());
+
+    assertEquals("gcm-id", gcmMessageCaptor.getValue().getGcmId());
+  }
+
+  @Test
+  void testSendMessagesNotificationFailure() {
+    final Account otherAccount = mock(Account.class);
+    final Device otherDevice = mock(Device.class);
+    final UUID otherAccountUuid = UUID.randomUUID();
+
+    when(otherAccount.getUuid()).thenReturn(otherAccountUuid);
+    when(otherDevice.getId()).thenReturn(DEVICE_ID);
+    when(otherDevice.getGcmId()).thenReturn("other-gcm-id");
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    when(clientPresenceManager.isPresent(any())).thenReturn(Map.of());
+    when(messagesManager.insert(any())).thenAnswer(invocation -> completedInserts(invocation.getArgument(0)));
+    doThrow(new RuntimeException("OH NO")).doNothing().when(gcmSender).sendMessage(any());
+
+    assertTrue(messageSender.sendMessages(List.of(
+        new Pair<>(new Pair<>(otherAccount, otherDevice), generateRandomMessage()),
+        new Pair<>(new Pair<>(account, device), message)), false, Runnable::run).isEmpty());
+
+    verify(gcmSender, times(2)).sendMessage(any());
+  }
+
+  @Test
+  void testSendMessagesDuplicateDestination() {
+    final MessageProtos.Envelope otherMessage = generateRandomMessage();
+
+    when(clientPresenceManager.isPresent(List.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID))))
+        .thenReturn(Map.of(new Pair<>(ACCOUNT_UUID, DEVICE_ID), true));
+    when(device.getGcmId()).thenReturn("gcm-id");
+    when(messagesManager.insert(any())).thenAnswer(invocation -> completedInserts(invocation.getArgument(0)));
+
+    messageSender.sendMessages(List.of(
+        new Pair<>(new Pair<>(account, device), message),
+        new Pair<>(new Pair<>(account, device), otherMessage)), false, Runnable::run);
+
+    @SuppressWarnings("unchecked") final ArgumentCaptor<List<PendingMessage>> pendingMessagesCaptor =
+        ArgumentCaptor.forClass(List.class);
+
+    verify(messagesManager).insert(pendingMessagesCaptor.capture());
+
+    assertEquals(List.of(message, otherMessage), pendingMessagesCaptor.getValue().stream()
+        .map(PendingMessage::getEnvelope)
+        .collect(Collectors.toList()));
+  }
+
+  private static List<CompletableFuture<Void>> completedInserts(final List<PendingMessage> pendingMessages) {
+    return pendingMessages.stream()
+        .map(pendingMessage -> CompletableFuture.<Void>completedFuture(null))
+        .collect(Collectors.toList());
+  }
+
   private MessageProtos.Envelope generateRandomMessage() {
     return MessageProtos.Envelope.newBuilder()
         .setTimestamp(System.currentTimeMillis())
@@ -14,6 +14,9 @@ import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import io.lettuce.core.cluster.pubsub.StatefulRedisClusterPubSubConnection;
 import io.lettuce.core.event.EventBus;
 import io.lettuce.core.resource.ClientResources;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.smassarn.textsecuregcm.configuration.CircuitBreakerConfiguration;
@@ -21,6 +24,9 @@ import org.smassarn.textsecuregcm.configuration.RetryConfiguration;
 import reactor.core.publisher.Flux;
 
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -30,7 +36,9 @@ import static org.mockito.Mockito.when;
 public class FaultTolerantRedisClusterTest {
 
     private RedisAdvancedClusterCommands<String, String> clusterCommands;
+    private EventExecutorGroup                           eventExecutorGroup;
     private FaultTolerantRedisCluster                    faultTolerantCluster;
+    private FaultTolerantRedisCluster                    asyncFaultTolerantCluster;
 
     @SuppressWarnings("unchecked")
     @Before
@@ -41,12 +49,14 @@ public class FaultTolerantRedisClusterTest {
         final ClientResources                                      clientResources   = mock(ClientResources.class);
         final EventBus                                             eventBus          = mock(EventBus.class);
 
-        clusterCommands = mock(RedisAdvancedClusterCommands.class);
+        clusterCommands    = mock(RedisAdvancedClusterCommands.class);
+        eventExecutorGroup = new DefaultEventExecutorGroup(1);
 
         when(clusterClient.connect()).thenReturn(clusterConnection);
         when(clusterClient.connectPubSub()).thenReturn(pubSubConnection);
         when(clusterClient.getResources()).thenReturn(clientResources);
         when(clusterConnection.sync()).thenReturn(clusterCommands);
+        when(clientResources.eventExecutorGroup()).thenReturn(eventExecutorGroup);
         when(clientResources.eventBus()).thenReturn(eventBus);
         when(eventBus.get()).thenReturn(mock(Flux.class));
 
@@ -60,6 +70,18 @@ public class FaultTolerantRedisClusterTest {
         retryConfiguration.setWaitDuration(0);
 
         faultTolerantCluster = new FaultTolerantRedisCluster("test", clusterClient, Duration.ofSeconds(2), breakerConfiguration, retryConfiguration);
+
+        // Asynchronous retries are scheduled on an executor, and resilience4j treats a zero delay as "don't retry"
+        final RetryConfiguration asyncRetryConfiguration = new RetryConfiguration();
+        asyncRetryConfiguration.setMaxAttempts(3);
+        asyncRetryConfiguration.setWaitDuration(1);
+
+        asyncFaultTolerantCluster = new FaultTolerantRedisCluster("test-async", clusterClient, Duration.ofSeconds(2), breakerConfiguration, asyncRetryConfiguration);
+    }
+
+    @After
+    public void tearDown() {
+        eventExecutorGroup.shutdownGracefully();
     }
 
     @Test
@@ -96,4 +118,37 @@ public class FaultTolerantRedisClusterTest {
 
         assertThrows(RedisCommandTimeoutException.class, () -> faultTolerantCluster.withCluster(connection -> connection.sync().get("key")));
     }
+
+    @Test
+    public void testBreakerAsync() {
+        assertEquals("value", asyncFaultTolerantCluster.withClusterAsync(connection -> CompletableFuture.completedFuture("value")).toCompletableFuture().join());
+
+        assertThrows(CompletionException.class,
+                () -> asyncFaultTolerantCluster.withClusterAsync(connection -> CompletableFuture.failedFuture(new RuntimeException("Badness has ensued."))).toCompletableFuture().join());
+
+        final CompletionException completionException = assertThrows(CompletionException.class,
+                () -> asyncFaultTolerantCluster.withClusterAsync(connection -> CompletableFuture.completedFuture("value")).toCompletableFuture().join());
+
+        assertTrue(completionException.getCause() instanceof CallNotPermittedException);
+    }
+
+    @Test
+    public void testRetryAsync() {
+        final AtomicInteger attempts = new AtomicInteger();
+
+        assertEquals("value", asyncFaultTolerantCluster.withClusterAsync(connection -> attempts.incrementAndGet() < 3
+                ? CompletableFuture.failedFuture(new RedisCommandTimeoutException())
+                : CompletableFuture.completedFuture("value")).toCompletableFuture().join());
+
+        assertEquals(3, attempts.get());
+        attempts.set(0);
+
+        final CompletionException completionException = assertThrows(CompletionException.class,
+                () -> asyncFaultTolerantCluster.withClusterAsync(connection -> attempts.incrementAndGet() < 4
+                        ? CompletableFuture.failedFuture(new RedisCommandTimeoutException())
+                        : CompletableFuture.completedFuture("value")).toCompletableFuture().join());
+
+        assertTrue(completionException.getCause() instanceof RedisCommandTimeoutException);
+        assertEquals(3, attempts.get());
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+class AbstractDynamoDbStoreTest {
+
+  private static final String TABLE_NAME = "test";
+
+  private DynamoDbAsyncClient dynamoDbAsyncClient;
+  private AbstractDynamoDbStore store;
+
+  @BeforeEach
+  void setUp() {
+    dynamoDbAsyncClient = mock(DynamoDbAsyncClient.class);
+    store = new AbstractDynamoDbStore(mock(DynamoDbClient.class), dynamoDbAsyncClient);
+  }
+
+  @Test
+  void testWriteInChunks() {
+    when(dynamoDbAsyncClient.batchWriteItem(any(BatchWriteItemRequest.class)))
+        .thenReturn(CompletableFuture.completedFuture(BatchWriteItemResponse.builder().build()));
+
+    store.executeTableWriteItemsUntilComplete(TABLE_NAME, generateWriteRequests(60));
+
+    final ArgumentCaptor<BatchWriteItemRequest> requestCaptor = ArgumentCaptor.forClass(BatchWriteItemRequest.class);
+    verify(dynamoDbAsyncClient, times(3)).batchWriteItem(requestCaptor.capture());
+
+    assertEquals(List.of(25, 25, 10), requestCaptor.getAllValues().stream()
+        .map(request -> request.requestItems().get(TABLE_NAME).size())
+        .collect(Collectors.toList()));
+  }
+
+  @Test
+  void testRetryUnprocessedItems() {
+    final List<WriteRequest> writeRequests = generateWriteRequests(10);
+    final List<WriteRequest> unprocessed = writeRequests.subList(7, 10);
+
+    when(dynamoDbAsyncClient.batchWriteItem(any(BatchWriteItemRequest.class)))
+        .thenReturn(CompletableFuture.completedFuture(BatchWriteItemResponse.builder()
+            .unprocessedItems(Map.of(TABLE_NAME, unprocessed))
+            .build()))
+        .thenReturn(CompletableFuture.completedFuture(BatchWriteItemResponse.builder().build()));
+
+    store.executeTableWriteItemsUntilComplete(TABLE_NAME, writeRequests);
+
+    final ArgumentCaptor<BatchWriteItemRequest> requestCaptor = ArgumentCaptor.forClass(BatchWriteItemRequest.class);
+    verify(dynamoDbAsyncClient, times(2)).batchWriteItem(requestCaptor.capture());
+
+    assertEquals(writeRequests, requestCaptor.getAllValues().get(0).requestItems().get(TABLE_NAME));
+    assertEquals(unprocessed, requestCaptor.getAllValues().get(1).requestItems().get(TABLE_NAME));
+  }
+
+  @Test
+  void testWriteFailure() {
+    when(dynamoDbAsyncClient.batchWriteItem(any(BatchWriteItemRequest.class)))
+        .thenReturn(CompletableFuture.failedFuture(DynamoDbException.builder().message("OH NO").build()));
+
+    assertThrows(DynamoDbException.class,
+        () -> store.executeTableWriteItemsUntilComplete(TABLE_NAME, generateWriteRequests(60)));
+  }
+
+  @Test
+  void testWriteFailureStopsIteration() {
+    when(dynamoDbAsyncClient.batchWriteItem(any(BatchWriteItemRequest.class)))
+        .thenReturn(CompletableFuture.failedFuture(DynamoDbException.builder().message("OH NO").build()));
+
+    final List<WriteRequest> writeRequests = generateWriteRequests(100);
+    final AtomicInteger itemsRead = new AtomicInteger();
+
+    // Stands in for a paginated query, which would spend read capacity on every item drawn from it
+    final Iterable<WriteRequest> items = () -> writeRequests.stream()
+        .peek(ignored -> itemsRead.incrementAndGet())
+        .iterator();
+
+    assertThrows(DynamoDbException.class, () -> store.executeTableWriteItemsUntilComplete(TABLE_NAME, items));
+
+    verify(dynamoDbAsyncClient, times(1)).batchWriteItem(any(BatchWriteItemRequest.class));
+    assertEquals(AbstractDynamoDbStore.DYNAMO_DB_MAX_BATCH_SIZE, itemsRead.get());
+  }
+
+  @Test
+  void testNoAsyncClient() {
+    final AbstractDynamoDbStore syncOnlyStore = new AbstractDynamoDbStore(mock(DynamoDbClient.class));
+
+    assertThrows(IllegalStateException.class,
+        () -> syncOnlyStore.executeTableWriteItemsUntilComplete(TABLE_NAME, generateWriteRequests(1)));
+  }
+
+  @Test
+  void testGetRetryDelayMillis() {
+    for (int attempt = 1; attempt <= 25; attempt++) {
+      final long delay = AbstractDynamoDbStore.getRetryDelayMillis(attempt);
+
+      assertTrue(delay >= 0);
+      assertTrue(delay <= Math.min(2_000, 25L << (attempt - 1)));
+    }
+  }
+
+  private static List<WriteRequest> generateWriteRequests(final int count) {
+    return IntStream.range(0, count)
+        .mapToObj(i -> WriteRequest.builder()
+            .putRequest(PutRequest.builder()
+                .item(Map.of("K", AttributeValue.builder().n(String.valueOf(i)).build()))
+                .build())
+            .build())
+        .collect(Collectors.toList());
+  }
+}
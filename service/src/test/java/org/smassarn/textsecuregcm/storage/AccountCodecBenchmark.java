@@ -0,0 +1,75 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.smassarn.textsecuregcm.util.SystemMapper;
+
+/**
+ * Compares the cost of serializing accounts as JSON with the cost of serializing them with {@link AccountCodec}. The
+ * size of each serialized form is printed during setup. Run with {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountCodecBenchmark {
+
+  private final ObjectMapper mapper = SystemMapper.getMapper();
+
+  private Account account;
+  private byte[] json;
+  private byte[] compact;
+
+  @Setup
+  public void setUp() throws JsonProcessingException {
+    account = AccountCodecTest.buildAccount();
+    json = mapper.writeValueAsBytes(account);
+    compact = AccountCodec.encode(account);
+  }
+
+  @Benchmark
+  public byte[] encodeJson() throws JsonProcessingException {
+    return mapper.writeValueAsBytes(account);
+  }
+
+  @Benchmark
+  public byte[] encodeCompact() {
+    return AccountCodec.encode(account);
+  }
+
+  @Benchmark
+  public Account decodeJson() throws IOException {
+    return mapper.readValue(json, Account.class);
+  }
+
+  @Benchmark
+  public Account decodeCompact() throws IOException {
+    return AccountCodec.decode(compact);
+  }
+
+  public static void main(final String... args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(AccountCodecBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.smassarn.textsecuregcm.entities.SignedPreKey;
+import org.smassarn.textsecuregcm.storage.Device.DeviceCapabilities;
+import org.smassarn.textsecuregcm.util.SystemMapper;
+
+class AccountCodecTest {
+
+  static Account buildAccount() {
+    final Device masterDevice = new Device(Device.MASTER_ID, "master", "auth-token", "salt", null, "apn-id",
+        "voip-apn-id", false, 1234, new SignedPreKey(17, "public-key", "signature"), 1_600_000_000_000L,
+        1_500_000_000_000L, "OWI", 0, new DeviceCapabilities(true, true, false, true, false, true, true, false, true));
+
+    final Device linkedDevice = new Device(2, "linked", "other-auth-token", "other-salt", "gcm-id", null, null, true,
+        5678, null, 1_600_000_000_000L, 1_550_000_000_000L, "OWD", 1_560_000_000_000L, null);
+
+    final Account account = new Account("+14152222222", UUID.randomUUID(),
+        new HashSet<>(Set.of(masterDevice, linkedDevice)), new byte[16]);
+
+    account.setIdentityKey("identity-key");
+    account.setCurrentProfileVersion("profile-version");
+    account.setProfileName("name");
+    account.setAvatar("avatar");
+    account.getBadges().add(new AccountBadge("badge", Instant.ofEpochSecond(1_700_000_000L, 123), true));
+    account.getBadges().add(new AccountBadge("other-badge", null, false));
+    account.setRegistrationLock("registration-lock", "registration-lock-salt");
+    account.setUnrestrictedUnidentifiedAccess(true);
+    account.setDiscoverableByPhoneNumber(false);
+    account.setVersion(7);
+
+    return account;
+  }
+
+  @Test
+  void testRoundTrip() throws IOException {
+    final Account account = buildAccount();
+    final Account decoded = AccountCodec.decode(AccountCodec.encode(account));
+
+    assertNull(decoded.getUuid());
+    assertEquals(toJsonTree(account), toJsonTree(decoded));
+    assertEquals(1_560_000_000_000L, decoded.getDevice(2).orElseThrow().getUninstalledFeedbackTimestamp());
+    assertEquals(account.getDevice(Device.MASTER_ID).orElseThrow().getPushTimestamp(),
+        decoded.getDevice(Device.MASTER_ID).orElseThrow().getPushTimestamp());
+    assertEquals("registration-lock", decoded.getRegistrationLockHash());
+    assertEquals("registration-lock-salt", decoded.getRegistrationLockSalt());
+  }
+
+  @Test
+  void testRoundTripEmptyAccount() throws IOException {
+    final Account account = new Account();
+    final Account decoded = AccountCodec.decode(AccountCodec.encode(account));
+
+    assertEquals(toJsonTree(account), toJsonTree(decoded));
+    assertTrue(decoded.isDiscoverableByPhoneNumber());
+  }
+
+  @Test
+  void testCopy() {
+    final Account account = buildAccount();
+    final Account copy = AccountCodec.copy(account);
+
+    assertEquals(account.getUuid(), copy.getUuid());
+    assertEquals(toJsonTree(account), toJsonTree(copy));
+  }
+
+  @Test
+  void testEncodeSeparately() throws IOException {
+    final Account account = buildAccount();
+    final Account decoded = AccountCodec.decode(AccountCodec.encodeWithoutDevices(account));
+
+    assertTrue(decoded.getDevices().isEmpty());
+
+    for (final Device device : account.getDevices()) {
+      decoded.addDevice(AccountCodec.decodeDevice(AccountCodec.encodeDevice(device)));
+    }
+
+    assertEquals(toJsonTree(account), toJsonTree(decoded));
+    assertThrows(IOException.class, () -> AccountCodec.decodeDevice(new byte[] { '{', '}' }));
+  }
+
+  @Test
+  void testEncodedSmallerThanJson() throws IOException {
+    final Account account = buildAccount();
+
+    assertTrue(AccountCodec.encode(account).length < SystemMapper.getMapper().writeValueAsBytes(account).length);
+  }
+
+  @Test
+  void testDecodeJson() throws IOException {
+    final Account account = buildAccount();
+    final byte[] json = SystemMapper.getMapper().writeValueAsBytes(account);
+
+    assertEquals(toJsonTree(account), toJsonTree(AccountCodec.decode(json)));
+    assertEquals("+14152222222",
+        AccountCodec.decode(" {\"number\": \"+14152222222\"}".getBytes(StandardCharsets.UTF_8)).getNumber());
+  }
+
+  @Test
+  void testDecodeUnknownFields() throws IOException {
+    final byte[] encoded = AccountCodec.encode(buildAccount());
+    final byte[] withUnknownField = new byte[encoded.length + 3];
+
+    System.arraycopy(encoded, 0, withUnknownField, 0, encoded.length);
+
+    // Field 100, varint wire type, would be written by a newer version of the codec
+    withUnknownField[encoded.length] = (byte) 0xa0;
+    withUnknownField[encoded.length + 1] = 0x06;
+    withUnknownField[encoded.length + 2] = 0x01;
+
+    final Account decoded = AccountCodec.decode(withUnknownField);
+    assertEquals("+14152222222", decoded.getNumber());
+    assertArrayEquals(new byte[16], decoded.getUnidentifiedAccessKey().orElseThrow());
+  }
+
+  @Test
+  void testDecodeUnrecognizedFormat() {
+    assertThrows(IOException.class, () -> AccountCodec.decode(new byte[0]));
+    assertThrows(IOException.class, () -> AccountCodec.decode(new byte[] { 0x7f, 0x01, 0x02 }));
+  }
+
+  private static JsonNode toJsonTree(final Account account) {
+    return SystemMapper.getMapper().valueToTree(account);
+  }
+}
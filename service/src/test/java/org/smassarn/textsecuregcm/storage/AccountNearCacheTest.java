@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Function;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.smassarn.textsecuregcm.configuration.AccountNearCacheConfiguration;
+import org.smassarn.textsecuregcm.redis.FaultTolerantRedisCluster;
+
+class AccountNearCacheTest {
+
+  private static final byte[] ACCOUNT_DATA = "{\"number\": \"+14152222222\"}".getBytes(StandardCharsets.UTF_8);
+
+  private RedisAdvancedClusterAsyncCommands<String, String> asyncCommands;
+  private Clock clock;
+  private AccountNearCache accountNearCache;
+
+  @BeforeEach
+  void setUp() {
+    //noinspection unchecked
+    asyncCommands = mock(RedisAdvancedClusterAsyncCommands.class);
+
+    //noinspection unchecked
+    when(asyncCommands.publish(anyString(), anyString())).thenReturn(mock(RedisFuture.class));
+
+    //noinspection unchecked
+    final StatefulRedisClusterConnection<String, String> connection = mock(StatefulRedisClusterConnection.class);
+    when(connection.async()).thenReturn(asyncCommands);
+
+    final FaultTolerantRedisCluster cacheCluster = mock(FaultTolerantRedisCluster.class);
+    //noinspection unchecked
+    when(cacheCluster.withClusterAsync(any(Function.class)))
+        .thenAnswer(invocation -> invocation.getArgument(0, Function.class).apply(connection));
+
+    clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+
+    accountNearCache = new AccountNearCache(cacheCluster, new AccountNearCacheConfiguration(), clock);
+  }
+
+  @Test
+  void testGetAndPut() {
+    final UUID uuid = UUID.randomUUID();
+
+    assertEquals(Optional.empty(), accountNearCache.get(uuid));
+    assertEquals(Optional.empty(), accountNearCache.getUuid("+14152222222"));
+
+    accountNearCache.put(uuid, ACCOUNT_DATA);
+    accountNearCache.putUuid("+14152222222", uuid);
+
+    assertArrayEquals(ACCOUNT_DATA, accountNearCache.get(uuid).orElseThrow());
+    assertEquals(Optional.of(uuid), accountNearCache.getUuid("+14152222222"));
+  }
+
+  @Test
+  void testInvalidate() {
+    final UUID uuid = UUID.randomUUID();
+
+    accountNearCache.put(uuid, ACCOUNT_DATA);
+    accountNearCache.invalidate(uuid);
+
+    assertEquals(Optional.empty(), accountNearCache.get(uuid));
+    verify(asyncCommands).publish(AccountNearCache.INVALIDATION_CHANNEL, uuid.toString());
+  }
+
+  @Test
+  void testRemoteInvalidation() {
+    final UUID uuid = UUID.randomUUID();
+    final UUID otherUuid = UUID.randomUUID();
+
+    accountNearCache.put(uuid, ACCOUNT_DATA);
+    accountNearCache.put(otherUuid, ACCOUNT_DATA);
+
+    accountNearCache.message(mock(RedisClusterNode.class), AccountNearCache.INVALIDATION_CHANNEL, uuid.toString());
+    accountNearCache.message(mock(RedisClusterNode.class), "some_other_channel", otherUuid.toString());
+    accountNearCache.message(mock(RedisClusterNode.class), AccountNearCache.INVALIDATION_CHANNEL, "not-a-uuid");
+
+    assertEquals(Optional.empty(), accountNearCache.get(uuid));
+    assertArrayEquals(ACCOUNT_DATA, accountNearCache.get(otherUuid).orElseThrow());
+  }
+
+  @Test
+  void testGetStale() {
+    final UUID uuid = UUID.randomUUID();
+    final AccountNearCacheConfiguration configuration = new AccountNearCacheConfiguration();
+
+    accountNearCache.put(uuid, ACCOUNT_DATA);
+
+    assertTrue(accountNearCache.get(uuid).isPresent());
+    assertEquals(Optional.empty(), accountNearCache.getStale(uuid));
+
+    when(clock.millis()).thenReturn(configuration.getTimeToLive().toMillis() + 1);
+
+    assertEquals(Optional.empty(), accountNearCache.get(uuid));
+    assertArrayEquals(ACCOUNT_DATA, accountNearCache.getStale(uuid).orElseThrow());
+  }
+
+  @Test
+  void testReplace() {
+    final UUID uuid = UUID.randomUUID();
+    final byte[] freshAccountData = "{\"number\": \"+14153333333\"}".getBytes(StandardCharsets.UTF_8);
+    final long staleMillis = new AccountNearCacheConfiguration().getTimeToLive().toMillis() + 1;
+
+    accountNearCache.put(uuid, ACCOUNT_DATA);
+    when(clock.millis()).thenReturn(staleMillis);
+
+    final byte[] staleAccountData = accountNearCache.getStale(uuid).orElseThrow();
+    accountNearCache.replace(uuid, staleAccountData, freshAccountData);
+
+    assertArrayEquals(freshAccountData, accountNearCache.get(uuid).orElseThrow());
+
+    // A replacement for an entry that was invalidated in the meantime should be ignored
+    accountNearCache.put(uuid, ACCOUNT_DATA);
+    when(clock.millis()).thenReturn(staleMillis * 2);
+
+    final byte[] otherStaleAccountData = accountNearCache.getStale(uuid).orElseThrow();
+    accountNearCache.invalidate(uuid);
+    accountNearCache.replace(uuid, otherStaleAccountData, freshAccountData);
+
+    assertEquals(Optional.empty(), accountNearCache.get(uuid));
+    assertEquals(Optional.empty(), accountNearCache.getStale(uuid));
+  }
+}
@@ -114,6 +114,7 @@ class AccountsManagerConcurrentModificationIntegrationTest {
       accountsManager = new AccountsManager(
           accounts,
           RedisClusterHelper.buildMockRedisCluster(commands),
+          mock(AccountNearCache.class),
           deletedAccountsManager,
           mock(DirectoryQueue.class),
           mock(KeysDynamoDb.class),
@@ -122,7 +123,9 @@ class AccountsManagerConcurrentModificationIntegrationTest {
           mock(ProfilesManager.class),
           mock(StoredVerificationCodeManager.class),
           mock(SecureStorageClient.class),
-          mock(SecureBackupClient.class)
+          mock(SecureBackupClient.class),
+          false,
+          false
       );
     }
   }
@@ -9,6 +9,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.fasterxml.uuid.UUIDComparator;
@@ -17,6 +19,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -34,12 +37,17 @@ import org.smassarn.textsecuregcm.entities.SignedPreKey;
 import org.smassarn.textsecuregcm.util.AttributeValues;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
 import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.KeySchemaElement;
 import software.amazon.awssdk.services.dynamodb.model.KeyType;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
 import software.amazon.awssdk.services.dynamodb.model.ScalarAttributeType;
 import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
 import software.amazon.awssdk.services.dynamodb.model.TransactionConflictException;
@@ -155,6 +163,74 @@ class AccountsTest {
     verifyStoredState("+14152221111", uuidSecond, retrievedSecond.get(), accountSecond);
   }
 
+  @Test
+  void testGetAll() {
+    final List<UUID> uuids = new ArrayList<>();
+    final Map<UUID, Account> createdAccounts = new HashMap<>();
+
+    // Create enough accounts to require more than one batch
+    for (int i = 0; i < Accounts.GET_BATCH_SIZE + 5; i++) {
+      final Account account = generateAccount(String.format("+1415%07d", i), UUID.randomUUID(),
+          Collections.singleton(generateDevice(1)));
+
+      accounts.create(account);
+
+      uuids.add(account.getUuid());
+      createdAccounts.put(account.getUuid(), account);
+    }
+
+    final UUID missingUuid = UUID.randomUUID();
+    uuids.add(missingUuid);
+
+    final Map<UUID, Account> retrieved = accounts.getAll(uuids);
+
+    assertThat(retrieved).hasSize(createdAccounts.size());
+    assertThat(retrieved).doesNotContainKey(missingUuid);
+
+    createdAccounts.forEach((uuid, account) ->
+        verifyStoredState(account.getNumber(), uuid, retrieved.get(uuid), account));
+  }
+
+  @Test
+  void testGetAllRetriesUnprocessedKeys() {
+    final DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+    final Accounts accounts = new Accounts(dynamoDbClient, ACCOUNTS_TABLE_NAME, NUMBERS_TABLE_NAME, SCAN_PAGE_SIZE);
+
+    final UUID uuid = UUID.randomUUID();
+
+    when(dynamoDbClient.batchGetItem(any(BatchGetItemRequest.class)))
+        .thenReturn(BatchGetItemResponse.builder()
+            .unprocessedKeys(Map.of(ACCOUNTS_TABLE_NAME, KeysAndAttributes.builder()
+                .keys(Map.of(Accounts.KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid)))
+                .build()))
+            .build())
+        .thenReturn(BatchGetItemResponse.builder().build());
+
+    assertThat(accounts.getAll(List.of(uuid))).isEmpty();
+    verify(dynamoDbClient, times(2)).batchGetItem(any(BatchGetItemRequest.class));
+  }
+
+  @Test
+  void testGetAllUnprocessedKeysAttemptsExhausted() {
+    final DynamoDbClient dynamoDbClient = mock(DynamoDbClient.class);
+    final Accounts accounts = new Accounts(dynamoDbClient, ACCOUNTS_TABLE_NAME, NUMBERS_TABLE_NAME, SCAN_PAGE_SIZE);
+
+    final UUID uuid = UUID.randomUUID();
+
+    when(dynamoDbClient.batchGetItem(any(BatchGetItemRequest.class)))
+        .thenReturn(BatchGetItemResponse.builder()
+            .unprocessedKeys(Map.of(ACCOUNTS_TABLE_NAME, KeysAndAttributes.builder()
+                .keys(Map.of(Accounts.KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid)))
+                .build()))
+            .build());
+
+    assertThatThrownBy(() -> accounts.getAll(List.of(uuid)))
+        .isInstanceOf(ProvisionedThroughputExceededException.class);
+
+    verify(dynamoDbClient, times(Accounts.MAX_GET_ALL_UNPROCESSED_ATTEMPTS))
+        .batchGetItem(any(BatchGetItemRequest.class));
+  }
+
   @Test
   void testOverwrite() {
     Device  device  = generateDevice (1                                            );
@@ -230,6 +306,45 @@ class AccountsTest {
     verifyStoredState("+14151112222", account.getUuid(), account, true);
   }
 
+  @Test
+  void testUpdateDeviceStoredSeparately() {
+    final Accounts splitDeviceAccounts = new Accounts(dynamoDbExtension.getDynamoDbClient(),
+        dynamoDbExtension.getTableName(), NUMBERS_TABLE_NAME, SCAN_PAGE_SIZE, true, true);
+
+    final Set<Device> devices = new HashSet<>();
+    devices.add(generateDevice(1));
+    devices.add(generateDevice(2));
+
+    // Accounts written before devices were stored separately should be migrated by their first device update
+    final Account account = generateAccount("+14151112222", UUID.randomUUID(), devices);
+    accounts.create(account);
+
+    account.getDevice(2).orElseThrow().setName("foobar");
+    splitDeviceAccounts.updateDevice(account, 2);
+
+    assertThat(account.getVersion()).isEqualTo(1);
+    assertThat(getStoredItem(account.getUuid())).containsKey(Accounts.ATTR_DEVICES);
+    verifyStoredState("+14151112222", account.getUuid(), account, true);
+
+    account.getDevice(1).orElseThrow().setGcmId("new-gcm-id");
+    splitDeviceAccounts.updateDevice(account, 1);
+
+    assertThat(account.getVersion()).isEqualTo(2);
+    verifyStoredState("+14151112222", account.getUuid(), account, true);
+    verifyStoredState("+14151112222", account.getUuid(), accounts.get(account.getUuid()).orElseThrow(), account);
+
+    account.setVersion(1);
+    assertThatThrownBy(() -> splitDeviceAccounts.updateDevice(account, 1))
+        .isInstanceOfAny(ContestedOptimisticLockException.class);
+
+    // Writing the account in full again folds devices back into the account data
+    account.setVersion(2);
+    accounts.update(account);
+
+    assertThat(getStoredItem(account.getUuid())).doesNotContainKey(Accounts.ATTR_DEVICES);
+    verifyStoredState("+14151112222", account.getUuid(), account, true);
+  }
+
   @Test
   void testUpdateWithMockTransactionConflictException() {
 
@@ -433,6 +548,14 @@ class AccountsTest {
     return new Account(number, uuid, devices, unidentifiedAccessKey);
   }
 
+  private Map<String, AttributeValue> getStoredItem(final UUID uuid) {
+    return dynamoDbExtension.getDynamoDbClient().getItem(GetItemRequest.builder()
+        .tableName(dynamoDbExtension.getTableName())
+        .key(Map.of(Accounts.KEY_ACCOUNT_UUID, AttributeValues.fromUUID(uuid)))
+        .consistentRead(true)
+        .build()).item();
+  }
+
   private void verifyStoredState(String number, UUID uuid, Account expecting, boolean canonicallyDiscoverable) {
     final DynamoDbClient db = dynamoDbExtension.getDynamoDbClient();
 
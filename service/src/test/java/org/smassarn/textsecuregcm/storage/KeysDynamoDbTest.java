@@ -36,7 +36,8 @@ public class KeysDynamoDbTest {
 
     @Before
     public void setup() {
-        keysDynamoDb = new KeysDynamoDb(dynamoDbRule.getDynamoDbClient(), KeysDynamoDbRule.TABLE_NAME);
+        keysDynamoDb = new KeysDynamoDb(dynamoDbRule.getDynamoDbClient(), dynamoDbRule.getDynamoDbAsyncClient(),
+            KeysDynamoDbRule.TABLE_NAME);
 
         account = mock(Account.class);
         when(account.getNumber()).thenReturn(ACCOUNT_NUMBER);
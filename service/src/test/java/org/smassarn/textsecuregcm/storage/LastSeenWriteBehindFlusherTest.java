@@ -0,0 +1,39 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.jupiter.api.Test;
+import org.smassarn.textsecuregcm.configuration.LastSeenWriteBehindConfiguration;
+
+class LastSeenWriteBehindFlusherTest {
+
+  @Test
+  void testFlush() {
+    final AccountsManager accountsManager = mock(AccountsManager.class);
+    final UUID failingUuid = UUID.randomUUID();
+    final UUID uuid = UUID.randomUUID();
+
+    when(accountsManager.getUuidsWithPendingLastSeenUpdates()).thenReturn(Set.of(failingUuid, uuid));
+    doThrow(new RuntimeException("OH NO")).when(accountsManager).flushPendingLastSeenUpdates(failingUuid);
+
+    final LastSeenWriteBehindFlusher flusher = new LastSeenWriteBehindFlusher(accountsManager,
+        mock(ScheduledExecutorService.class), new LastSeenWriteBehindConfiguration());
+
+    flusher.flush(true);
+
+    // A failure to write one account's updates shouldn't prevent others from being written
+    verify(accountsManager).flushPendingLastSeenUpdates(failingUuid);
+    verify(accountsManager).flushPendingLastSeenUpdates(uuid);
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MessagePersisterConcurrencyLimiterTest {
+
+  private static final Duration TARGET_WRITE_LATENCY = Duration.ofMillis(100);
+  private static final Duration MAX_LAG = Duration.ofMinutes(1);
+
+  private MessagePersisterConcurrencyLimiter limiter;
+
+  @BeforeEach
+  void setUp() {
+    limiter = new MessagePersisterConcurrencyLimiter(2, 4, TARGET_WRITE_LATENCY, MAX_LAG);
+  }
+
+  @Test
+  void testInvalidBounds() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new MessagePersisterConcurrencyLimiter(0, 4, TARGET_WRITE_LATENCY, MAX_LAG));
+
+    assertThrows(IllegalArgumentException.class,
+        () -> new MessagePersisterConcurrencyLimiter(4, 2, TARGET_WRITE_LATENCY, MAX_LAG));
+  }
+
+  @Test
+  void testGrowWithBacklog() {
+    assertEquals(2, limiter.getLimit());
+
+    for (int i = 0; i < 10; i++) {
+      limiter.recordLag(MAX_LAG.multipliedBy(2));
+    }
+
+    assertEquals(4, limiter.getLimit());
+
+    limiter.recordLag(Duration.ZERO);
+    assertEquals(3, limiter.getLimit());
+  }
+
+  @Test
+  void testBackOffWhenWritesSlow() {
+    limiter.recordLag(MAX_LAG.multipliedBy(2));
+    limiter.recordLag(MAX_LAG.multipliedBy(2));
+    assertEquals(4, limiter.getLimit());
+
+    for (int i = 0; i < 10; i++) {
+      limiter.recordWriteLatency(TARGET_WRITE_LATENCY.multipliedBy(10));
+    }
+
+    assertEquals(2, limiter.getLimit());
+
+    // Slow writes should keep us from adding concurrency even if we're behind
+    limiter.recordLag(MAX_LAG.multipliedBy(2));
+    assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  void testFailure() {
+    limiter.recordLag(MAX_LAG.multipliedBy(2));
+    limiter.recordLag(MAX_LAG.multipliedBy(2));
+    assertEquals(4, limiter.getLimit());
+
+    limiter.recordFailure();
+    assertEquals(2, limiter.getLimit());
+
+    limiter.recordFailure();
+    assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  void testAcquireBlocksAtLimit() {
+    assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+      limiter.acquire();
+      limiter.acquire();
+
+      assertEquals(2, limiter.getInFlight());
+
+      final CompletableFuture<Void> blockedAcquire = CompletableFuture.runAsync(() -> {
+        try {
+          limiter.acquire();
+        } catch (final InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      });
+
+      Thread.sleep(100);
+      assertEquals(2, limiter.getInFlight());
+
+      limiter.release();
+      blockedAcquire.join();
+
+      assertEquals(2, limiter.getInFlight());
+    });
+  }
+}
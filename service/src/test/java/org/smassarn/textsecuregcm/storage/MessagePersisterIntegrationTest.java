@@ -29,6 +29,7 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.smassarn.textsecuregcm.configuration.MessagePersisterConfiguration;
 import org.smassarn.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.smassarn.textsecuregcm.entities.MessageProtos;
 import org.smassarn.textsecuregcm.entities.MessageProtos.Envelope.Type;
@@ -49,6 +50,7 @@ class MessagePersisterIntegrationTest {
   static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
 
   private ExecutorService notificationExecutorService;
+  private ExecutorService persistQueueExecutorService;
   private MessagesCache messagesCache;
   private MessagesManager messagesManager;
   private MessagePersister messagePersister;
@@ -64,6 +66,7 @@ class MessagePersisterIntegrationTest {
     });
 
     final MessagesDynamoDb messagesDynamoDb = new MessagesDynamoDb(dynamoDbExtension.getDynamoDbClient(),
+        dynamoDbExtension.getDynamoDbAsyncClient(),
         MessagesDynamoDbExtension.TABLE_NAME, Duration.ofDays(14));
     final AccountsManager accountsManager = mock(AccountsManager.class);
     final DynamicConfigurationManager dynamicConfigurationManager = mock(DynamicConfigurationManager.class);
@@ -72,9 +75,10 @@ class MessagePersisterIntegrationTest {
     messagesCache = new MessagesCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(),
         REDIS_CLUSTER_EXTENSION.getRedisCluster(), notificationExecutorService);
     messagesManager = new MessagesManager(messagesDynamoDb, messagesCache, mock(PushLatencyManager.class),
-        mock(ReportMessageManager.class));
+        mock(ReportMessageManager.class), Runnable::run);
+    persistQueueExecutorService = Executors.newFixedThreadPool(4);
     messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager,
-        dynamicConfigurationManager, PERSIST_DELAY);
+        dynamicConfigurationManager, PERSIST_DELAY, new MessagePersisterConfiguration(), persistQueueExecutorService);
 
     account = mock(Account.class);
 
@@ -92,6 +96,9 @@ class MessagePersisterIntegrationTest {
   void tearDown() throws Exception {
     notificationExecutorService.shutdown();
     notificationExecutorService.awaitTermination(15, TimeUnit.SECONDS);
+
+    persistQueueExecutorService.shutdown();
+    persistQueueExecutorService.awaitTermination(15, TimeUnit.SECONDS);
   }
 
   @Test
@@ -32,6 +32,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.Answer;
+import org.smassarn.textsecuregcm.configuration.MessagePersisterConfiguration;
 import org.smassarn.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.smassarn.textsecuregcm.entities.MessageProtos;
 import org.smassarn.textsecuregcm.redis.AbstractRedisClusterTest;
@@ -39,6 +40,7 @@ import org.smassarn.textsecuregcm.redis.AbstractRedisClusterTest;
 public class MessagePersisterTest extends AbstractRedisClusterTest {
 
     private ExecutorService          notificationExecutorService;
+    private ExecutorService          persistQueueExecutorService;
     private MessagesCache            messagesCache;
     private MessagesDynamoDb         messagesDynamoDb;
     private MessagePersister         messagePersister;
@@ -69,7 +71,9 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
 
         notificationExecutorService = Executors.newSingleThreadExecutor();
         messagesCache               = new MessagesCache(getRedisCluster(), getRedisCluster(), notificationExecutorService);
-        messagePersister            = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfigurationManager, PERSIST_DELAY);
+        persistQueueExecutorService = Executors.newFixedThreadPool(4);
+        messagePersister            = new MessagePersister(messagesCache, messagesManager, accountsManager, dynamicConfigurationManager, PERSIST_DELAY,
+                                                           new MessagePersisterConfiguration(), persistQueueExecutorService);
 
         doAnswer(invocation -> {
           final UUID destinationUuid = invocation.getArgument(0);
@@ -92,6 +96,9 @@ public class MessagePersisterTest extends AbstractRedisClusterTest {
 
         notificationExecutorService.shutdown();
         notificationExecutorService.awaitTermination(1, TimeUnit.SECONDS);
+
+        persistQueueExecutorService.shutdown();
+        persistQueueExecutorService.awaitTermination(1, TimeUnit.SECONDS);
     }
 
     @Test
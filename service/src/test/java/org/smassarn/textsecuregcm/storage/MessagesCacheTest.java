@@ -8,8 +8,11 @@ package org.smassarn.textsecuregcm.storage;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
 
 import com.google.protobuf.ByteString;
+import io.lettuce.core.ScoredValue;
 import io.lettuce.core.cluster.SlotHash;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
@@ -19,8 +22,10 @@ import java.util.List;
 import java.util.Optional;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
@@ -76,6 +81,26 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
         assertTrue(messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, sealedSender)) > 0);
     }
 
+    @Test
+    public void testInsertBatch() {
+        final int deviceCount = 16;
+        final List<PendingMessage> pendingMessages = new ArrayList<>(deviceCount);
+
+        for (int deviceId = 1; deviceId <= deviceCount; deviceId++) {
+            final UUID messageGuid = UUID.randomUUID();
+            pendingMessages.add(new PendingMessage(messageGuid, UUID.randomUUID(), deviceId, generateRandomMessage(messageGuid, true)));
+        }
+
+        messagesCache.insert(pendingMessages).forEach(CompletableFuture::join);
+
+        for (final PendingMessage pendingMessage : pendingMessages) {
+            final List<OutgoingMessageEntity> messages = messagesCache.get(pendingMessage.getDestinationUuid(), pendingMessage.getDestinationDevice(), 10);
+
+            assertEquals(1, messages.size());
+            assertEquals(pendingMessage.getGuid(), messages.get(0).getGuid());
+        }
+    }
+
     @Test
     public void testDoubleInsertGuid() {
         final UUID                   duplicateGuid    = UUID.randomUUID();
@@ -165,6 +190,37 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
         assertEquals(expectedMessages, messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, messageCount));
     }
 
+    @Test
+    @Parameters({"true", "false"})
+    public void testGetStoredMessages(final boolean sealedSender) {
+        final int messageCount = 100;
+
+        final List<MessageProtos.Envelope> expectedEnvelopes = new ArrayList<>(messageCount);
+
+        for (int i = 0; i < messageCount; i++) {
+            final UUID                   messageGuid = UUID.randomUUID();
+            final MessageProtos.Envelope message     = generateRandomMessage(messageGuid, sealedSender);
+
+            messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, message);
+            expectedEnvelopes.add(message.toBuilder().setServerGuid(messageGuid.toString()).build());
+        }
+
+        final List<StoredMessage> storedMessages = messagesCache.getStoredMessages(DESTINATION_UUID, DESTINATION_DEVICE_ID, 0, messageCount);
+
+        assertEquals(expectedEnvelopes.size(), storedMessages.size());
+
+        for (int i = 0; i < messageCount; i++) {
+            assertEquals(UUID.fromString(expectedEnvelopes.get(i).getServerGuid()), storedMessages.get(i).getGuid());
+            assertEquals(expectedEnvelopes.get(i), storedMessages.get(i).getEnvelope());
+        }
+
+        final long afterMessageId = storedMessages.get(messageCount / 2 - 1).getId();
+        final List<StoredMessage> secondHalf = messagesCache.getStoredMessages(DESTINATION_UUID, DESTINATION_DEVICE_ID, afterMessageId, messageCount);
+
+        assertEquals(messageCount / 2, secondHalf.size());
+        assertEquals(storedMessages.get(messageCount / 2).getGuid(), secondHalf.get(0).getGuid());
+    }
+
     @Test
     @Parameters({"true", "false"})
     public void testClearQueueForDevice(final boolean sealedSender) {
@@ -205,6 +261,27 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
         assertEquals(Collections.emptyList(), messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID + 1, messageCount));
     }
 
+    @Test
+    @Parameters({"true", "false"})
+    public void testClearQueuesForDevices(final boolean sealedSender) {
+        final int messageCount = 100;
+
+        for (final int deviceId : new int[] { DESTINATION_DEVICE_ID, DESTINATION_DEVICE_ID + 1, DESTINATION_DEVICE_ID + 2 }) {
+            for (int i = 0; i < messageCount; i++) {
+                final UUID                   messageGuid = UUID.randomUUID();
+                final MessageProtos.Envelope message     = generateRandomMessage(messageGuid, sealedSender);
+
+                messagesCache.insert(messageGuid, DESTINATION_UUID, deviceId, message);
+            }
+        }
+
+        messagesCache.clear(DESTINATION_UUID, List.of((long) DESTINATION_DEVICE_ID, (long) DESTINATION_DEVICE_ID + 1));
+
+        assertEquals(Collections.emptyList(), messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID, messageCount));
+        assertEquals(Collections.emptyList(), messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID + 1, messageCount));
+        assertEquals(messageCount, messagesCache.get(DESTINATION_UUID, DESTINATION_DEVICE_ID + 2, messageCount).size());
+    }
+
     private MessageProtos.Envelope generateRandomMessage(final UUID messageGuid, final boolean sealedSender) {
         return generateRandomMessage(messageGuid, sealedSender, serialTimestamp++);
     }
@@ -266,6 +343,28 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
         assertEquals(DESTINATION_DEVICE_ID, MessagesCache.getDeviceIdFromQueueName(queues.get(0)));
     }
 
+    @Test
+    public void testGetScoredQueuesToPersistAndRetry() {
+        final UUID    messageGuid = UUID.randomUUID();
+        final Instant start       = Instant.now();
+
+        messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, true));
+        final int slot = SlotHash.getSlot(DESTINATION_UUID.toString() + "::" + DESTINATION_DEVICE_ID);
+
+        final List<ScoredValue<String>> queues = messagesCache.getScoredQueuesToPersist(slot, Instant.now().plusSeconds(60), 100);
+
+        assertEquals(1, queues.size());
+        assertEquals(DESTINATION_UUID, MessagesCache.getAccountUuidFromQueueName(queues.get(0).getValue()));
+        assertTrue(queues.get(0).getScore() >= start.toEpochMilli());
+        assertTrue(messagesCache.getScoredQueuesToPersist(slot, Instant.now().plusSeconds(60), 100).isEmpty());
+
+        final Instant retryTime = Instant.now().plusSeconds(30);
+        messagesCache.addQueueToPersist(DESTINATION_UUID, DESTINATION_DEVICE_ID, retryTime);
+
+        assertTrue(messagesCache.getScoredQueuesToPersist(slot, retryTime.minusSeconds(1), 100).isEmpty());
+        assertEquals(List.of(queues.get(0).getValue()), messagesCache.getQueuesToPersist(slot, retryTime, 100));
+    }
+
     @Test(timeout = 5_000L)
     public void testNotifyListenerNewMessage() throws InterruptedException {
         final AtomicBoolean notified    = new AtomicBoolean(false);
@@ -337,4 +436,139 @@ public class MessagesCacheTest extends AbstractRedisClusterTest {
         assertTrue(notified.get());
     }
 
+    @Test(timeout = 5_000L)
+    public void testRemoveReplacedListener() throws InterruptedException {
+        final AtomicBoolean notified    = new AtomicBoolean(false);
+        final UUID          messageGuid = UUID.randomUUID();
+
+        final MessageAvailabilityListener replacedListener = mock(MessageAvailabilityListener.class);
+
+        final MessageAvailabilityListener listener = new MessageAvailabilityListener() {
+            @Override
+            public void handleNewMessagesAvailable() {
+                synchronized (notified) {
+                    notified.set(true);
+                    notified.notifyAll();
+                }
+            }
+
+            @Override
+            public void handleNewEphemeralMessageAvailable() {
+            }
+
+            @Override
+            public void handleMessagesPersisted() {
+            }
+        };
+
+        messagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, replacedListener);
+        messagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, listener);
+
+        // Removing the replaced listener must not remove the current listener or its subscription
+        messagesCache.removeMessageAvailabilityListener(replacedListener);
+        messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, true));
+
+        synchronized (notified) {
+            while (!notified.get()) {
+                notified.wait();
+            }
+        }
+
+        assertTrue(notified.get());
+        verifyNoInteractions(replacedListener);
+    }
+
+    @Test(timeout = 5_000L)
+    public void testTargetedNotifications() throws Exception {
+        final AtomicBoolean newMessagesNotified = new AtomicBoolean(false);
+        final AtomicBoolean persistedNotified   = new AtomicBoolean(false);
+        final UUID          messageGuid         = UUID.randomUUID();
+
+        final MessageAvailabilityListener listener = new MessageAvailabilityListener() {
+            @Override
+            public void handleNewMessagesAvailable() {
+                synchronized (newMessagesNotified) {
+                    newMessagesNotified.set(true);
+                    newMessagesNotified.notifyAll();
+                }
+            }
+
+            @Override
+            public void handleNewEphemeralMessageAvailable() {
+            }
+
+            @Override
+            public void handleMessagesPersisted() {
+                synchronized (persistedNotified) {
+                    persistedNotified.set(true);
+                    persistedNotified.notifyAll();
+                }
+            }
+        };
+
+        final MessagesCache targetedMessagesCache = new MessagesCache(getRedisCluster(), getRedisCluster(),
+                notificationExecutorService, mock(ScheduledExecutorService.class), true);
+
+        targetedMessagesCache.start();
+
+        try {
+            targetedMessagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, listener);
+
+            // Messages inserted by other servers should be announced to the listening server
+            targetedMessagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, true));
+
+            synchronized (newMessagesNotified) {
+                while (!newMessagesNotified.get()) {
+                    newMessagesNotified.wait();
+                }
+            }
+
+            targetedMessagesCache.lockQueueForPersistence(DESTINATION_UUID, DESTINATION_DEVICE_ID);
+            targetedMessagesCache.unlockQueueForPersistence(DESTINATION_UUID, DESTINATION_DEVICE_ID);
+
+            synchronized (persistedNotified) {
+                while (!persistedNotified.get()) {
+                    persistedNotified.wait();
+                }
+            }
+
+            targetedMessagesCache.removeMessageAvailabilityListener(listener);
+
+            assertEquals(0, (long) getRedisCluster().withCluster(connection ->
+                    connection.sync().exists("user_queue_listener::{" + MessagesCache.getQueueName(DESTINATION_UUID, DESTINATION_DEVICE_ID) + "}")));
+        } finally {
+            targetedMessagesCache.stop();
+        }
+    }
+
+    @Test
+    public void testRefreshQueueListeners() throws Exception {
+        final String listenerKey = "user_queue_listener::{" + MessagesCache.getQueueName(DESTINATION_UUID, DESTINATION_DEVICE_ID) + "}";
+        final MessagesCache targetedMessagesCache = new MessagesCache(getRedisCluster(), getRedisCluster(),
+                notificationExecutorService, mock(ScheduledExecutorService.class), true);
+
+        targetedMessagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, mock(MessageAvailabilityListener.class));
+
+        // Records expire in minutes rather than lingering after a server disappears
+        final long ttl = getRedisCluster().withCluster(connection -> connection.sync().ttl(listenerKey));
+        assertTrue(ttl > 0 && ttl <= 300);
+
+        // A lapsed record is restored...
+        getRedisCluster().useCluster(connection -> connection.sync().del(listenerKey));
+        targetedMessagesCache.refreshQueueListeners();
+
+        for (int i = 0; i < 100 && getRedisCluster().withCluster(connection -> connection.sync().exists(listenerKey)) == 0; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, (long) getRedisCluster().withCluster(connection -> connection.sync().exists(listenerKey)));
+
+        // ...but one claimed by another server is left alone
+        getRedisCluster().useCluster(connection -> connection.sync().set(listenerKey, "other-server"));
+        targetedMessagesCache.refreshQueueListeners();
+        Thread.sleep(100);
+
+        assertEquals("other-server", getRedisCluster().withCluster(connection -> connection.sync().get(listenerKey)));
+        assertEquals(-1, (long) getRedisCluster().withCluster(connection -> connection.sync().ttl(listenerKey)));
+    }
 }
@@ -1,14 +1,26 @@
 package org.smassarn.textsecuregcm.storage;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.longThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 import org.junit.jupiter.api.Test;
 import org.smassarn.textsecuregcm.entities.MessageProtos.Envelope;
+import org.smassarn.textsecuregcm.entities.OutgoingMessageEntity;
 import org.smassarn.textsecuregcm.metrics.PushLatencyManager;
 
 class MessagesManagerTest {
@@ -19,7 +31,7 @@ class MessagesManagerTest {
   private final ReportMessageManager reportMessageManager = mock(ReportMessageManager.class);
 
   private final MessagesManager messagesManager = new MessagesManager(messagesDynamoDb, messagesCache,
-      pushLatencyManager, reportMessageManager);
+      pushLatencyManager, reportMessageManager, Runnable::run);
 
   @Test
   void insert() {
@@ -43,4 +55,121 @@ class MessagesManagerTest {
 
     verifyNoMoreInteractions(reportMessageManager);
   }
+
+  @Test
+  void getStoredMessagesForDevice() throws InvalidProtocolBufferException {
+    final UUID destinationUuid = UUID.randomUUID();
+    final UUID persistedMessageGuid = UUID.randomUUID();
+
+    final OutgoingMessageEntity persistedMessage = new OutgoingMessageEntity(-1L, false, persistedMessageGuid,
+        Envelope.Type.CIPHERTEXT_VALUE, null, 1234, "+18005551234", UUID.randomUUID(), 1, null, new byte[16], 5678);
+
+    final UUID cachedMessageGuid = UUID.randomUUID();
+    final StoredMessage cachedMessage = StoredMessage.fromSerializedEnvelope(17, Envelope.newBuilder()
+        .setType(Envelope.Type.CIPHERTEXT)
+        .setServerGuid(cachedMessageGuid.toString())
+        .build()
+        .toByteArray());
+
+    when(messagesDynamoDb.load(destinationUuid, 1L, 100)).thenReturn(List.of(persistedMessage));
+    when(messagesCache.getStoredMessages(destinationUuid, 1L, 0, 99)).thenReturn(List.of(cachedMessage));
+
+    final StoredMessageList firstPage =
+        messagesManager.getStoredMessagesForDevice(destinationUuid, 1L, "Test-UA", StoredMessageCursor.start(false));
+
+    assertEquals(2, firstPage.getMessages().size());
+    assertEquals(persistedMessageGuid, firstPage.getMessages().get(0).getGuid());
+    assertEquals(5678, firstPage.getMessages().get(0).getEnvelope().getServerTimestamp());
+    assertEquals(cachedMessageGuid, firstPage.getMessages().get(1).getGuid());
+    assertFalse(firstPage.hasMore());
+    assertEquals(new StoredMessageCursor(true, 5678, persistedMessageGuid, 17), firstPage.getNextPageCursor());
+
+    when(messagesCache.getStoredMessages(destinationUuid, 1L, 17, 100)).thenReturn(Collections.emptyList());
+
+    final StoredMessageList secondPage =
+        messagesManager.getStoredMessagesForDevice(destinationUuid, 1L, "Test-UA", firstPage.getNextPageCursor());
+
+    assertTrue(secondPage.getMessages().isEmpty());
+    assertEquals(firstPage.getNextPageCursor(), secondPage.getNextPageCursor());
+
+    verify(messagesDynamoDb).load(destinationUuid, 1L, 100);
+    verifyNoMoreInteractions(messagesDynamoDb);
+  }
+
+  @Test
+  void deleteBatch() throws InvalidProtocolBufferException {
+    final UUID destinationUuid = UUID.randomUUID();
+
+    final StoredMessage cachedMessage = StoredMessage.fromSerializedEnvelope(1, generateEnvelope().toByteArray());
+    final StoredMessage persistedCachedMessage =
+        StoredMessage.fromSerializedEnvelope(2, generateEnvelope().toByteArray());
+    final StoredMessage persistedMessage = StoredMessage.fromEnvelope(generateEnvelope());
+
+    final OutgoingMessageEntity removedEntity = mock(OutgoingMessageEntity.class);
+    when(removedEntity.getGuid()).thenReturn(cachedMessage.getGuid());
+
+    when(messagesCache.remove(destinationUuid, 1L, List.of(cachedMessage.getGuid(), persistedCachedMessage.getGuid())))
+        .thenReturn(List.of(removedEntity));
+
+    messagesManager.delete(destinationUuid, 1L, List.of(cachedMessage, persistedCachedMessage, persistedMessage));
+
+    verify(messagesDynamoDb).deleteMessages(destinationUuid, 1L,
+        List.of(persistedCachedMessage.getEnvelope(), persistedMessage.getEnvelope()));
+  }
+
+  @Test
+  void deleteByGuidWithKnownServerTimestamp() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final UUID persistedMessageGuid = UUID.randomUUID();
+    final UUID unknownMessageGuid = UUID.randomUUID();
+
+    final OutgoingMessageEntity persistedMessage = new OutgoingMessageEntity(-1L, false, persistedMessageGuid,
+        Envelope.Type.CIPHERTEXT_VALUE, null, 1234, "+18005551234", UUID.randomUUID(), 1, null, new byte[16], 5678);
+
+    when(messagesDynamoDb.load(destinationUuid, 1L, 100)).thenReturn(List.of(persistedMessage));
+    when(messagesCache.remove(any(UUID.class), anyLong(), any(UUID.class))).thenReturn(Optional.empty());
+    when(messagesDynamoDb.deleteMessage(destinationUuid, 1L, persistedMessageGuid, 5678))
+        .thenReturn(Optional.of(persistedMessage));
+    when(messagesDynamoDb.deleteMessageByDestinationAndGuid(destinationUuid, unknownMessageGuid))
+        .thenReturn(Optional.empty());
+
+    messagesManager.getMessagesForDevice(destinationUuid, 1L, "Test-UA", false);
+
+    assertEquals(Optional.of(persistedMessage), messagesManager.delete(destinationUuid, 1L, persistedMessageGuid));
+    assertEquals(Optional.empty(), messagesManager.delete(destinationUuid, 1L, unknownMessageGuid));
+
+    verify(messagesDynamoDb).deleteMessage(destinationUuid, 1L, persistedMessageGuid, 5678);
+    verify(messagesDynamoDb, never()).deleteMessageByDestinationAndGuid(destinationUuid, persistedMessageGuid);
+    verify(messagesDynamoDb).deleteMessageByDestinationAndGuid(destinationUuid, unknownMessageGuid);
+  }
+
+  @Test
+  void purge() {
+    final UUID destinationUuid = UUID.randomUUID();
+
+    messagesManager.purge(destinationUuid, List.of(1L, 2L)).join();
+
+    verify(messagesCache).clear(destinationUuid, List.of(1L, 2L));
+    verify(messagesDynamoDb).deleteAllMessagesForAccount(eq(destinationUuid), anyLong());
+  }
+
+  @Test
+  void purgeAllDevices() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final long startMillis = System.currentTimeMillis();
+
+    messagesManager.purge(destinationUuid).join();
+
+    verify(messagesCache).clear(destinationUuid);
+    verify(messagesDynamoDb).deleteAllMessagesForAccount(eq(destinationUuid),
+        longThat(receivedBeforeMillis -> receivedBeforeMillis >= startMillis));
+  }
+
+  private static Envelope generateEnvelope() {
+    return Envelope.newBuilder()
+        .setType(Envelope.Type.CIPHERTEXT)
+        .setServerTimestamp(System.currentTimeMillis())
+        .setServerGuid(UUID.randomUUID().toString())
+        .build();
+  }
 }
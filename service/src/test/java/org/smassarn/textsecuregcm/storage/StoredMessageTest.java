@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.UUID;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.jupiter.api.Test;
+import org.smassarn.textsecuregcm.entities.MessageProtos.Envelope;
+
+class StoredMessageTest {
+
+  @Test
+  void testFromSerializedEnvelope() throws InvalidProtocolBufferException {
+    final UUID guid = UUID.randomUUID();
+    final Envelope envelope = generateEnvelope(guid);
+    final byte[] serializedEnvelope = envelope.toByteArray();
+
+    final StoredMessage storedMessage = StoredMessage.fromSerializedEnvelope(17, serializedEnvelope);
+
+    assertEquals(17, storedMessage.getId());
+    assertTrue(storedMessage.isCached());
+    assertEquals(guid, storedMessage.getGuid());
+    assertSame(serializedEnvelope, storedMessage.getSerializedEnvelope());
+    assertEquals(serializedEnvelope.length, storedMessage.getSerializedSize());
+    assertEquals(envelope, storedMessage.getEnvelope());
+  }
+
+  @Test
+  void testFromSerializedEnvelopeEphemeral() throws InvalidProtocolBufferException {
+    final UUID guid = UUID.randomUUID();
+    final Envelope envelope = generateEnvelope(guid);
+
+    final StoredMessage storedMessage =
+        StoredMessage.fromSerializedEnvelope(1, envelope.toBuilder().setEphemeral(true).build().toByteArray());
+
+    assertEquals(guid, storedMessage.getGuid());
+    assertFalse(Envelope.parseFrom(storedMessage.getSerializedEnvelope()).hasEphemeral());
+    assertEquals(envelope, storedMessage.getEnvelope());
+  }
+
+  @Test
+  void testFromSerializedEnvelopeNoGuid() throws InvalidProtocolBufferException {
+    final StoredMessage storedMessage = StoredMessage.fromSerializedEnvelope(1,
+        generateEnvelope(UUID.randomUUID()).toBuilder().clearServerGuid().build().toByteArray());
+
+    assertNull(storedMessage.getGuid());
+  }
+
+  @Test
+  void testFromSerializedEnvelopeInvalid() {
+    assertThrows(InvalidProtocolBufferException.class,
+        () -> StoredMessage.fromSerializedEnvelope(1, new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff }));
+
+    assertThrows(InvalidProtocolBufferException.class,
+        () -> StoredMessage.fromSerializedEnvelope(1, Envelope.newBuilder().setServerGuid("not a UUID").build().toByteArray()));
+  }
+
+  @Test
+  void testFromEnvelope() {
+    final UUID guid = UUID.randomUUID();
+    final Envelope envelope = generateEnvelope(guid);
+
+    final StoredMessage storedMessage = StoredMessage.fromEnvelope(envelope.toBuilder().setEphemeral(true).build());
+
+    assertFalse(storedMessage.isCached());
+    assertEquals(guid, storedMessage.getGuid());
+    assertEquals(envelope, storedMessage.getEnvelope());
+    assertEquals(envelope.getSerializedSize(), storedMessage.getSerializedSize());
+  }
+
+  private static Envelope generateEnvelope(final UUID guid) {
+    return Envelope.newBuilder()
+        .setType(Envelope.Type.CIPHERTEXT)
+        .setTimestamp(System.currentTimeMillis())
+        .setServerTimestamp(System.currentTimeMillis())
+        .setSource("+18005551234")
+        .setSourceUuid(UUID.randomUUID().toString())
+        .setSourceDevice(1)
+        .setContent(ByteString.copyFromUtf8(RandomStringUtils.randomAlphanumeric(256)))
+        .setServerGuid(guid.toString())
+        .build();
+  }
+}
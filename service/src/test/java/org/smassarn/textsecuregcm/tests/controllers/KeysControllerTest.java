@@ -158,6 +158,8 @@ class KeysControllerTest {
 
     when(accounts.get(NOT_EXISTS_NUMBER)).thenReturn(Optional.empty());
     when(accounts.get(NOT_EXISTS_UUID)).thenReturn(Optional.empty());
+    when(accounts.getAllowingStale(EXISTS_UUID)).thenReturn(Optional.of(existsAccount));
+    when(accounts.getAllowingStale(NOT_EXISTS_UUID)).thenReturn(Optional.empty());
 
     when(rateLimiters.getPreKeysLimiter()).thenReturn(rateLimiter);
 
@@ -5,11 +5,16 @@
 
 package org.smassarn.textsecuregcm.tests.storage;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doAnswer;
@@ -22,12 +27,30 @@ import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.SharedMetricRegistries;
+import io.lettuce.core.KeyValue;
 import io.lettuce.core.RedisException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -43,6 +66,7 @@ import org.smassarn.textsecuregcm.securebackup.SecureBackupClient;
 import org.smassarn.textsecuregcm.securestorage.SecureStorageClient;
 import org.smassarn.textsecuregcm.sqs.DirectoryQueue;
 import org.smassarn.textsecuregcm.storage.Account;
+import org.smassarn.textsecuregcm.storage.AccountNearCache;
 import org.smassarn.textsecuregcm.storage.Accounts;
 import org.smassarn.textsecuregcm.storage.AccountsManager;
 import org.smassarn.textsecuregcm.storage.ContestedOptimisticLockException;
@@ -56,18 +80,24 @@ import org.smassarn.textsecuregcm.storage.ProfilesManager;
 import org.smassarn.textsecuregcm.storage.StoredVerificationCodeManager;
 import org.smassarn.textsecuregcm.storage.UsernamesManager;
 import org.smassarn.textsecuregcm.tests.util.RedisClusterHelper;
+import org.smassarn.textsecuregcm.util.Constants;
 
 class AccountsManagerTest {
 
   private Accounts accounts;
+  private AccountNearCache accountNearCache;
   private DeletedAccountsManager deletedAccountsManager;
   private DirectoryQueue directoryQueue;
   private DynamicConfigurationManager dynamicConfigurationManager;
   private KeysDynamoDb keys;
   private MessagesManager messagesManager;
   private ProfilesManager profilesManager;
+  private SecureStorageClient secureStorageClient;
+  private SecureBackupClient secureBackupClient;
 
   private RedisAdvancedClusterCommands<String, String> commands;
+  private RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands;
+  private RedisAdvancedClusterAsyncCommands<byte[], byte[]> binaryAsyncCommands;
   private AccountsManager accountsManager;
 
   private static final Answer<?> ACCOUNT_UPDATE_ANSWER = (answer) -> {
@@ -81,16 +111,25 @@ class AccountsManagerTest {
   @BeforeEach
   void setup() throws InterruptedException {
     accounts = mock(Accounts.class);
+    accountNearCache = mock(AccountNearCache.class);
     deletedAccountsManager = mock(DeletedAccountsManager.class);
     directoryQueue = mock(DirectoryQueue.class);
     dynamicConfigurationManager = mock(DynamicConfigurationManager.class);
     keys = mock(KeysDynamoDb.class);
     messagesManager = mock(MessagesManager.class);
     profilesManager = mock(ProfilesManager.class);
+    secureStorageClient = mock(SecureStorageClient.class);
+    secureBackupClient = mock(SecureBackupClient.class);
 
     //noinspection unchecked
     commands = mock(RedisAdvancedClusterCommands.class);
 
+    //noinspection unchecked
+    binaryCommands = mock(RedisAdvancedClusterCommands.class);
+
+    //noinspection unchecked
+    binaryAsyncCommands = mock(RedisAdvancedClusterAsyncCommands.class);
+
     final DynamicConfiguration dynamicConfiguration = new DynamicConfiguration();
     when(dynamicConfigurationManager.getConfiguration()).thenReturn(dynamicConfiguration);
 
@@ -100,9 +139,14 @@ class AccountsManagerTest {
       return null;
     }).when(deletedAccountsManager).lockAndTake(anyString(), any());
 
-    accountsManager = new AccountsManager(
+    accountsManager = buildAccountsManager(false);
+  }
+
+  private AccountsManager buildAccountsManager(final boolean bufferLastSeenUpdates) {
+    return new AccountsManager(
         accounts,
-        RedisClusterHelper.buildMockRedisCluster(commands),
+        RedisClusterHelper.buildMockRedisCluster(commands, binaryCommands, binaryAsyncCommands),
+        accountNearCache,
         deletedAccountsManager,
         directoryQueue,
         keys,
@@ -110,8 +154,10 @@ class AccountsManagerTest {
         mock(UsernamesManager.class),
         profilesManager,
         mock(StoredVerificationCodeManager.class),
-        mock(SecureStorageClient.class),
-        mock(SecureBackupClient.class)
+        secureStorageClient,
+        secureBackupClient,
+        false,
+        bufferLastSeenUpdates
     );
   }
 
@@ -120,7 +166,8 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
 
     when(commands.get(eq("AccountMap::+14152222222"))).thenReturn(uuid.toString());
-    when(commands.get(eq("Account3::" + uuid))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}");
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(
+        "{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8));
 
     Optional<Account> account = accountsManager.get("+14152222222");
 
@@ -129,8 +176,8 @@ class AccountsManagerTest {
     assertEquals(account.get().getProfileName(), "test");
 
     verify(commands, times(1)).get(eq("AccountMap::+14152222222"));
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
-    verifyNoMoreInteractions(commands);
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
+    verifyNoMoreInteractions(commands, binaryCommands);
 
     verifyNoInteractions(accounts);
   }
@@ -139,7 +186,28 @@ class AccountsManagerTest {
   void testGetAccountByUuidInCache() {
     UUID uuid = UUID.randomUUID();
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn("{\"number\": \"+14152222222\", \"name\": \"test\"}");
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(
+        "{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8));
+
+    Optional<Account> account = accountsManager.get(uuid);
+
+    assertTrue(account.isPresent());
+    assertEquals(account.get().getNumber(), "+14152222222");
+    assertEquals(account.get().getUuid(), uuid);
+    assertEquals(account.get().getProfileName(), "test");
+
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
+    verifyNoMoreInteractions(commands, binaryCommands);
+
+    verifyNoInteractions(accounts);
+  }
+
+  @Test
+  void testGetAccountByUuidInNearCache() {
+    UUID uuid = UUID.randomUUID();
+
+    when(accountNearCache.get(uuid)).thenReturn(
+        Optional.of("{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8)));
 
     Optional<Account> account = accountsManager.get(uuid);
 
@@ -148,12 +216,58 @@ class AccountsManagerTest {
     assertEquals(account.get().getUuid(), uuid);
     assertEquals(account.get().getProfileName(), "test");
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
-    verifyNoMoreInteractions(commands);
+    verifyNoInteractions(commands, binaryCommands);
+    verifyNoInteractions(accounts);
+  }
+
+  @Test
+  void testGetAccountByNumberInNearCache() {
+    UUID uuid = UUID.randomUUID();
+
+    when(accountNearCache.getUuid("+14152222222")).thenReturn(Optional.of(uuid));
+    when(accountNearCache.get(uuid)).thenReturn(
+        Optional.of("{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8)));
+
+    Optional<Account> account = accountsManager.get("+14152222222");
+
+    assertTrue(account.isPresent());
+    assertEquals(account.get().getUuid(), uuid);
 
+    verifyNoInteractions(commands, binaryCommands);
     verifyNoInteractions(accounts);
   }
 
+  @Test
+  void testGetAccountByNumberInNearCacheNumberChanged() {
+    UUID staleUuid = UUID.randomUUID();
+    UUID uuid = UUID.randomUUID();
+
+    when(accountNearCache.getUuid("+14152222222")).thenReturn(Optional.of(staleUuid));
+    when(accountNearCache.get(staleUuid))
+        .thenReturn(Optional.of("{\"number\": \"+14153333333\"}".getBytes(StandardCharsets.UTF_8)));
+    when(commands.get(eq("AccountMap::+14152222222"))).thenReturn(uuid.toString());
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(
+        "{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8));
+
+    Optional<Account> account = accountsManager.get("+14152222222");
+
+    assertTrue(account.isPresent());
+    assertEquals(account.get().getUuid(), uuid);
+
+    verify(accountNearCache).putUuid("+14152222222", uuid);
+    verify(accountNearCache)
+        .put(eq(uuid), aryEq("{\"number\": \"+14152222222\", \"name\": \"test\"}".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  void testUpdateInvalidatesNearCache() {
+    final UUID uuid = UUID.randomUUID();
+    final Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+
+    accountsManager.update(account, a -> a.setProfileName("name"));
+
+    verify(accountNearCache).invalidate(uuid);
+  }
 
   @Test
   void testGetAccountByNumberNotInCache() {
@@ -171,8 +285,8 @@ class AccountsManagerTest {
 
     verify(commands, times(1)).get(eq("AccountMap::+14152222222"));
     verify(commands, times(1)).set(eq("AccountMap::+14152222222"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
-    verifyNoMoreInteractions(commands);
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any(byte[].class));
+    verifyNoMoreInteractions(commands, binaryCommands);
 
     verify(accounts, times(1)).get(eq("+14152222222"));
     verifyNoMoreInteractions(accounts);
@@ -184,7 +298,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(null);
     when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
 
     Optional<Account> retrieved = accountsManager.get(uuid);
@@ -192,15 +306,140 @@ class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
     verify(commands, times(1)).set(eq("AccountMap::+14152222222"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
-    verifyNoMoreInteractions(commands);
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any(byte[].class));
+    verifyNoMoreInteractions(commands, binaryCommands);
 
     verify(accounts, times(1)).get(eq(uuid));
     verifyNoMoreInteractions(accounts);
   }
 
+  @Test
+  void testGetAccountByUuidNotInCacheCoalesced() throws Exception {
+    final UUID uuid = UUID.randomUUID();
+    final Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+    final CountDownLatch loadStartedLatch = new CountDownLatch(1);
+    final CountDownLatch loadReleasedLatch = new CountDownLatch(1);
+
+    when(accounts.get(eq(uuid))).thenAnswer(invocation -> {
+      loadStartedLatch.countDown();
+      loadReleasedLatch.await();
+
+      return Optional.of(account);
+    });
+
+    final Meter coalescedLoadMeter = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME)
+        .meter(name(AccountsManager.class, "coalescedLoad"));
+
+    final long initialCoalescedLoads = coalescedLoadMeter.getCount();
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try {
+      final Future<Optional<Account>> leaderFuture = executor.submit(() -> accountsManager.get(uuid));
+      loadStartedLatch.await();
+
+      final Thread releaseThread = new Thread(() -> {
+        while (coalescedLoadMeter.getCount() == initialCoalescedLoads) {
+          Thread.onSpinWait();
+        }
+
+        loadReleasedLatch.countDown();
+      });
+
+      releaseThread.start();
+
+      final Optional<Account> coalesced = accountsManager.get(uuid);
+      final Optional<Account> leader = leaderFuture.get();
+
+      assertSame(account, leader.orElseThrow());
+      assertNotSame(account, coalesced.orElseThrow());
+      assertEquals(uuid, coalesced.get().getUuid());
+      assertEquals("+14152222222", coalesced.get().getNumber());
+
+      verify(accounts, times(1)).get(eq(uuid));
+      verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any(byte[].class));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void testGetAllowingStale() {
+    final UUID uuid = UUID.randomUUID();
+    final byte[] staleAccountData =
+        "{\"number\": \"+14152222222\", \"name\": \"stale\"}".getBytes(StandardCharsets.UTF_8);
+    final byte[] freshAccountData =
+        "{\"number\": \"+14152222222\", \"name\": \"fresh\"}".getBytes(StandardCharsets.UTF_8);
+
+    //noinspection unchecked
+    final RedisFuture<byte[]> redisFuture = mock(RedisFuture.class);
+    when(binaryAsyncCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(redisFuture);
+    when(redisFuture.whenComplete(any())).thenAnswer(invocation -> {
+      //noinspection unchecked
+      invocation.getArgument(0, BiConsumer.class).accept(freshAccountData, null);
+      return null;
+    });
+
+    when(accountNearCache.getStale(uuid)).thenReturn(Optional.of(staleAccountData));
+
+    final Optional<Account> account = accountsManager.getAllowingStale(uuid);
+
+    assertTrue(account.isPresent());
+    assertEquals(uuid, account.get().getUuid());
+    assertEquals("stale", account.get().getProfileName());
+
+    verify(accountNearCache).replace(uuid, staleAccountData, freshAccountData);
+    verifyNoInteractions(commands, binaryCommands, accounts);
+  }
+
+  @Test
+  void testGetAll() {
+    final UUID nearCachedUuid = UUID.randomUUID();
+    final UUID cachedUuid = UUID.randomUUID();
+    final UUID storedUuid = UUID.randomUUID();
+    final UUID missingUuid = UUID.randomUUID();
+
+    final Account storedAccount = new Account("+14154444444", storedUuid, new HashSet<>(), new byte[16]);
+
+    when(accountNearCache.get(nearCachedUuid))
+        .thenReturn(Optional.of("{\"number\": \"+14152222222\"}".getBytes(StandardCharsets.UTF_8)));
+
+    when(binaryCommands.mget(any())).thenAnswer(invocation -> {
+      final List<KeyValue<byte[], byte[]>> keyValues = new ArrayList<>();
+
+      for (final Object key : invocation.getArguments()) {
+        if (Arrays.equals(getAccountEntityKey(cachedUuid), (byte[]) key)) {
+          keyValues.add(KeyValue.just((byte[]) key, "{\"number\": \"+14153333333\"}".getBytes(StandardCharsets.UTF_8)));
+        } else {
+          keyValues.add(KeyValue.empty((byte[]) key));
+        }
+      }
+
+      return keyValues;
+    });
+
+    when(accounts.getAll(any())).thenReturn(Map.of(storedUuid, storedAccount));
+
+    final Map<UUID, Account> retrieved =
+        accountsManager.getAll(List.of(nearCachedUuid, cachedUuid, storedUuid, missingUuid, cachedUuid));
+
+    assertEquals(Set.of(nearCachedUuid, cachedUuid, storedUuid), retrieved.keySet());
+    assertEquals("+14152222222", retrieved.get(nearCachedUuid).getNumber());
+    assertEquals(nearCachedUuid, retrieved.get(nearCachedUuid).getUuid());
+    assertEquals("+14153333333", retrieved.get(cachedUuid).getNumber());
+    assertEquals(cachedUuid, retrieved.get(cachedUuid).getUuid());
+    assertSame(storedAccount, retrieved.get(storedUuid));
+
+    verify(binaryCommands).mget(aryEq(getAccountEntityKey(cachedUuid)), aryEq(getAccountEntityKey(storedUuid)),
+        aryEq(getAccountEntityKey(missingUuid)));
+    verify(accounts).getAll(List.of(storedUuid, missingUuid));
+    verify(accountNearCache).put(eq(cachedUuid), any(byte[].class));
+    verify(commands).mset(Map.of("AccountMap::+14154444444", storedUuid.toString()));
+    verify(binaryCommands).mset(argThat(map -> map.size() == 1 &&
+        Arrays.equals(getAccountEntityKey(storedUuid), map.keySet().iterator().next())));
+  }
+
   @Test
   void testGetAccountByNumberBrokenCache() {
     UUID uuid = UUID.randomUUID();
@@ -216,8 +455,8 @@ class AccountsManagerTest {
 
     verify(commands, times(1)).get(eq("AccountMap::+14152222222"));
     verify(commands, times(1)).set(eq("AccountMap::+14152222222"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
-    verifyNoMoreInteractions(commands);
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any(byte[].class));
+    verifyNoMoreInteractions(commands, binaryCommands);
 
     verify(accounts, times(1)).get(eq("+14152222222"));
     verifyNoMoreInteractions(accounts);
@@ -228,7 +467,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenThrow(new RedisException("Connection lost!"));
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenThrow(new RedisException("Connection lost!"));
     when(accounts.get(eq(uuid))).thenReturn(Optional.of(account));
 
     Optional<Account> retrieved = accountsManager.get(uuid);
@@ -236,10 +475,10 @@ class AccountsManagerTest {
     assertTrue(retrieved.isPresent());
     assertSame(retrieved.get(), account);
 
-    verify(commands, times(1)).get(eq("Account3::" + uuid));
+    verify(binaryCommands, times(1)).get(aryEq(getAccountEntityKey(uuid)));
     verify(commands, times(1)).set(eq("AccountMap::+14152222222"), eq(uuid.toString()));
-    verify(commands, times(1)).set(eq("Account3::" + uuid), anyString());
-    verifyNoMoreInteractions(commands);
+    verify(binaryCommands, times(1)).set(aryEq(getAccountEntityKey(uuid)), any(byte[].class));
+    verifyNoMoreInteractions(commands, binaryCommands);
 
     verify(accounts, times(1)).get(eq(uuid));
     verifyNoMoreInteractions(accounts);
@@ -250,7 +489,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(null);
 
     when(accounts.get(uuid)).thenReturn(
         Optional.of(new Account("+14152222222", uuid, new HashSet<>(), new byte[16])));
@@ -279,7 +518,7 @@ class AccountsManagerTest {
     UUID uuid = UUID.randomUUID();
     Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
 
-    when(commands.get(eq("Account3::" + uuid))).thenReturn(null);
+    when(binaryCommands.get(aryEq(getAccountEntityKey(uuid)))).thenReturn(null);
     when(accounts.get(uuid)).thenReturn(Optional.empty())
         .thenReturn(Optional.of(account));
     when(accounts.create(any())).thenThrow(ContestedOptimisticLockException.class);
@@ -347,6 +586,8 @@ class AccountsManagerTest {
       return false;
     });
 
+    when(messagesManager.purge(existingUuid)).thenReturn(new CompletableFuture<>());
+
     final String e164 = "+18005550123";
     final AccountAttributes attributes = new AccountAttributes(false, 0, null, null, true, null);
     accountsManager.create(e164, "password", null, attributes);
@@ -354,7 +595,9 @@ class AccountsManagerTest {
     verify(accounts).create(
         argThat(account -> e164.equals(account.getNumber()) && existingUuid.equals(account.getUuid())));
     verify(keys).delete(existingUuid);
-    verify(messagesManager).clear(existingUuid);
+
+    // Re-registration shouldn't wait for the old account's messages to be purged
+    verify(messagesManager).purge(existingUuid);
     verify(profilesManager).deleteAll(existingUuid);
   }
 
@@ -445,7 +688,7 @@ class AccountsManagerTest {
     accountsManager.updateDeviceLastSeen(account, device, updatedLastSeen);
 
     assertEquals(expectUpdate ? updatedLastSeen : initialLastSeen, device.getLastSeen());
-    verify(accounts, expectUpdate ? times(1) : never()).update(account);
+    verify(accounts, expectUpdate ? times(1) : never()).updateDevice(account, device.getId());
   }
 
   @SuppressWarnings("unused")
@@ -456,4 +699,167 @@ class AccountsManagerTest {
         Arguments.of(false, 2, 1)
     );
   }
+
+  @Test
+  void testUpdateDeviceLastSeenBuffered() {
+    final AccountsManager bufferingAccountsManager = buildAccountsManager(true);
+    final UUID uuid = UUID.randomUUID();
+
+    final Supplier<Account> storedAccountSupplier = () -> {
+      final Account storedAccount = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+      storedAccount.addDevice(new Device(Device.MASTER_ID, "device", "token", "salt", null, null, null, true, 1,
+          new SignedPreKey(1, "key", "sig"), 1, 0,
+          "OWT", 0, new DeviceCapabilities()));
+
+      return storedAccount;
+    };
+
+    // Each read returns a fresh copy of the stored account, which never sees the buffered value
+    when(accounts.get(uuid)).thenAnswer(invocation -> Optional.of(storedAccountSupplier.get()));
+    when(accounts.getAll(any())).thenAnswer(invocation -> Map.of(uuid, storedAccountSupplier.get()));
+
+    final Account account = storedAccountSupplier.get();
+    final Device device = account.getDevice(Device.MASTER_ID).orElseThrow();
+
+    assertSame(account, bufferingAccountsManager.updateDeviceLastSeen(account, device, 2));
+    assertSame(account, bufferingAccountsManager.updateDeviceLastSeen(account, device, 1));
+    assertEquals(2, device.getLastSeen());
+    verify(accounts, never()).update(any());
+    verify(accounts, never()).updateDevice(any(), anyLong());
+
+    assertEquals(2, bufferingAccountsManager.get(uuid).orElseThrow().getDevice(Device.MASTER_ID).orElseThrow()
+        .getLastSeen());
+    assertEquals(2, bufferingAccountsManager.getAll(List.of(uuid)).get(uuid).getDevice(Device.MASTER_ID)
+        .orElseThrow().getLastSeen());
+    assertEquals(Set.of(uuid), bufferingAccountsManager.getUuidsWithPendingLastSeenUpdates());
+
+    bufferingAccountsManager.flushPendingLastSeenUpdates(uuid);
+
+    verify(accounts).updateDevice(argThat(a -> a.getDevice(Device.MASTER_ID).orElseThrow().getLastSeen() == 2),
+        eq(Device.MASTER_ID));
+    assertTrue(bufferingAccountsManager.getUuidsWithPendingLastSeenUpdates().isEmpty());
+  }
+
+  @Test
+  void testUpdateDeviceLastSeenBufferedKeepsMaximum() {
+    final AccountsManager bufferingAccountsManager = buildAccountsManager(true);
+    final UUID uuid = UUID.randomUUID();
+
+    when(accounts.get(uuid)).thenAnswer(invocation -> Optional.of(generateLastSeenTestAccount(uuid)));
+
+    // Concurrent requests may each hold their own copy of the account, so a later, smaller value can still be buffered
+    final Account firstCopy = generateLastSeenTestAccount(uuid);
+    final Account secondCopy = generateLastSeenTestAccount(uuid);
+
+    bufferingAccountsManager.updateDeviceLastSeen(firstCopy, firstCopy.getDevice(Device.MASTER_ID).orElseThrow(), 5);
+    bufferingAccountsManager.updateDeviceLastSeen(secondCopy, secondCopy.getDevice(Device.MASTER_ID).orElseThrow(), 4);
+    bufferingAccountsManager.updateDeviceLastSeen(secondCopy, secondCopy.getDevice(2).orElseThrow(), 3);
+
+    bufferingAccountsManager.flushPendingLastSeenUpdates(uuid);
+
+    verify(accounts).update(argThat(a -> a.getDevice(Device.MASTER_ID).orElseThrow().getLastSeen() == 5
+        && a.getDevice(2).orElseThrow().getLastSeen() == 3));
+  }
+
+  @Test
+  void testGetMergesPendingLastSeen() {
+    final AccountsManager bufferingAccountsManager = buildAccountsManager(true);
+    final UUID uuid = UUID.randomUUID();
+
+    when(accounts.get(uuid)).thenAnswer(invocation -> Optional.of(generateLastSeenTestAccount(uuid)));
+    when(accounts.getAll(any())).thenAnswer(invocation -> Map.of(uuid, generateLastSeenTestAccount(uuid)));
+
+    final Account account = generateLastSeenTestAccount(uuid);
+    bufferingAccountsManager.updateDeviceLastSeen(account, account.getDevice(2).orElseThrow(), 5);
+
+    // Only the device with a buffered update should differ from the stored account
+    final Account retrieved = bufferingAccountsManager.get(uuid).orElseThrow();
+    assertEquals(1, retrieved.getDevice(Device.MASTER_ID).orElseThrow().getLastSeen());
+    assertEquals(5, retrieved.getDevice(2).orElseThrow().getLastSeen());
+
+    final Account retrievedInBatch = bufferingAccountsManager.getAll(List.of(uuid)).get(uuid);
+    assertEquals(1, retrievedInBatch.getDevice(Device.MASTER_ID).orElseThrow().getLastSeen());
+    assertEquals(5, retrievedInBatch.getDevice(2).orElseThrow().getLastSeen());
+  }
+
+  @Test
+  void testFlushPendingLastSeenFailureRetained() {
+    final AccountsManager bufferingAccountsManager = buildAccountsManager(true);
+    final UUID uuid = UUID.randomUUID();
+
+    when(accounts.get(uuid)).thenAnswer(invocation -> Optional.of(generateLastSeenTestAccount(uuid)));
+    doThrow(new RuntimeException("OH NO")).doNothing().when(accounts).updateDevice(any(), anyLong());
+
+    final Account account = generateLastSeenTestAccount(uuid);
+    bufferingAccountsManager.updateDeviceLastSeen(account, account.getDevice(Device.MASTER_ID).orElseThrow(), 5);
+
+    assertThrows(RuntimeException.class, () -> bufferingAccountsManager.flushPendingLastSeenUpdates(uuid));
+    assertEquals(Set.of(uuid), bufferingAccountsManager.getUuidsWithPendingLastSeenUpdates());
+
+    bufferingAccountsManager.flushPendingLastSeenUpdates(uuid);
+
+    verify(accounts, times(2)).updateDevice(
+        argThat(a -> a.getDevice(Device.MASTER_ID).orElseThrow().getLastSeen() == 5), eq(Device.MASTER_ID));
+    assertTrue(bufferingAccountsManager.getUuidsWithPendingLastSeenUpdates().isEmpty());
+  }
+
+  @Test
+  void testDeleteDiscardsPendingLastSeen() throws InterruptedException {
+    final AccountsManager bufferingAccountsManager = buildAccountsManager(true);
+    final UUID uuid = UUID.randomUUID();
+
+    doAnswer(invocation -> {
+      invocation.getArgument(1, Supplier.class).get();
+      return null;
+    }).when(deletedAccountsManager).lockAndPut(anyString(), any());
+
+    when(secureStorageClient.deleteStoredData(uuid)).thenReturn(CompletableFuture.completedFuture(null));
+    when(secureBackupClient.deleteBackups(uuid)).thenReturn(CompletableFuture.completedFuture(null));
+    when(messagesManager.purge(eq(uuid), any())).thenReturn(CompletableFuture.completedFuture(null));
+
+    final Account account = generateLastSeenTestAccount(uuid);
+    bufferingAccountsManager.updateDeviceLastSeen(account, account.getDevice(Device.MASTER_ID).orElseThrow(), 5);
+    assertEquals(Set.of(uuid), bufferingAccountsManager.getUuidsWithPendingLastSeenUpdates());
+
+    bufferingAccountsManager.delete(account, AccountsManager.DeletionReason.USER_REQUEST);
+
+    assertTrue(bufferingAccountsManager.getUuidsWithPendingLastSeenUpdates().isEmpty());
+  }
+
+  @Test
+  void testDeleteDoesNotWaitForMessagePurge() throws InterruptedException {
+    final UUID uuid = UUID.randomUUID();
+
+    doAnswer(invocation -> {
+      invocation.getArgument(1, Supplier.class).get();
+      return null;
+    }).when(deletedAccountsManager).lockAndPut(anyString(), any());
+
+    when(secureStorageClient.deleteStoredData(uuid)).thenReturn(CompletableFuture.completedFuture(null));
+    when(secureBackupClient.deleteBackups(uuid)).thenReturn(CompletableFuture.completedFuture(null));
+
+    // The purge never finishes, but the account should be deleted anyway
+    when(messagesManager.purge(eq(uuid), any())).thenReturn(new CompletableFuture<>());
+
+    accountsManager.delete(generateLastSeenTestAccount(uuid), AccountsManager.DeletionReason.USER_REQUEST);
+
+    verify(messagesManager).purge(uuid, List.of(Device.MASTER_ID, 2L));
+    verify(accounts).delete(uuid);
+  }
+
+  private static Account generateLastSeenTestAccount(final UUID uuid) {
+    final Account account = new Account("+14152222222", uuid, new HashSet<>(), new byte[16]);
+
+    for (final long deviceId : List.of(Device.MASTER_ID, 2L)) {
+      account.addDevice(new Device(deviceId, "device", "token", "salt", null, null, null, true, 1,
+          new SignedPreKey(1, "key", "sig"), 1, 0,
+          "OWT", 0, new DeviceCapabilities()));
+    }
+
+    return account;
+  }
+
+  private static byte[] getAccountEntityKey(final UUID uuid) {
+    return ("Account3::" + uuid).getBytes(StandardCharsets.UTF_8);
+  }
 }
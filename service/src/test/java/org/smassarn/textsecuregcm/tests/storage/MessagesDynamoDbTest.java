@@ -70,7 +70,8 @@ class MessagesDynamoDbTest {
 
   @BeforeEach
   void setup() {
-    messagesDynamoDb = new MessagesDynamoDb(dynamoDbExtension.getDynamoDbClient(), MessagesDynamoDbExtension.TABLE_NAME,
+    messagesDynamoDb = new MessagesDynamoDb(dynamoDbExtension.getDynamoDbClient(),
+        dynamoDbExtension.getDynamoDbAsyncClient(), MessagesDynamoDbExtension.TABLE_NAME,
         Duration.ofDays(14));
   }
 
@@ -118,6 +119,18 @@ class MessagesDynamoDbTest {
         .hasSize(1).element(0).satisfies(verify(MESSAGE2));
   }
 
+  @Test
+  void testDeleteForDestinationReceivedBefore() {
+    final UUID destinationUuid = UUID.randomUUID();
+    messagesDynamoDb.store(List.of(MESSAGE1, MESSAGE2), destinationUuid, 1);
+
+    // MESSAGE2 arrived one millisecond after MESSAGE1, so it should survive a purge that started in between
+    messagesDynamoDb.deleteAllMessagesForAccount(destinationUuid, MESSAGE2.getServerTimestamp());
+
+    assertThat(messagesDynamoDb.load(destinationUuid, 1, MessagesDynamoDb.RESULT_SET_CHUNK_SIZE)).isNotNull().hasSize(1)
+        .element(0).satisfies(verify(MESSAGE2));
+  }
+
   @Test
   void testDeleteForDestinationDevice() {
     final UUID destinationUuid = UUID.randomUUID();
@@ -168,6 +181,21 @@ class MessagesDynamoDbTest {
         .isEmpty();
   }
 
+  @Test
+  void testDeleteMessage() {
+    final UUID destinationUuid = UUID.randomUUID();
+    messagesDynamoDb.store(List.of(MESSAGE1, MESSAGE2), destinationUuid, 1);
+
+    assertThat(messagesDynamoDb.deleteMessage(destinationUuid, 1, UUID.fromString(MESSAGE1.getServerGuid()),
+        MESSAGE1.getServerTimestamp())).isPresent().get().satisfies(verify(MESSAGE1));
+
+    assertThat(messagesDynamoDb.deleteMessage(destinationUuid, 1, UUID.fromString(MESSAGE1.getServerGuid()),
+        MESSAGE1.getServerTimestamp())).isEmpty();
+
+    assertThat(messagesDynamoDb.load(destinationUuid, 1, MessagesDynamoDb.RESULT_SET_CHUNK_SIZE)).isNotNull().hasSize(1)
+        .element(0).satisfies(verify(MESSAGE2));
+  }
+
   private static void verify(OutgoingMessageEntity retrieved, MessageProtos.Envelope inserted) {
     assertThat(retrieved.getTimestamp()).isEqualTo(inserted.getTimestamp());
     assertThat(retrieved.getSource()).isEqualTo(inserted.hasSource() ? inserted.getSource() : null);
@@ -6,6 +6,7 @@
 package org.smassarn.textsecuregcm.tests.util;
 
 import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import org.smassarn.textsecuregcm.redis.FaultTolerantRedisCluster;
 
@@ -26,12 +27,18 @@ public class RedisClusterHelper {
 
     @SuppressWarnings("unchecked")
     public static FaultTolerantRedisCluster buildMockRedisCluster(final RedisAdvancedClusterCommands<String, String> stringCommands, final RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands) {
+        return buildMockRedisCluster(stringCommands, binaryCommands, mock(RedisAdvancedClusterAsyncCommands.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static FaultTolerantRedisCluster buildMockRedisCluster(final RedisAdvancedClusterCommands<String, String> stringCommands, final RedisAdvancedClusterCommands<byte[], byte[]> binaryCommands, final RedisAdvancedClusterAsyncCommands<byte[], byte[]> binaryAsyncCommands) {
         final FaultTolerantRedisCluster                      cluster    = mock(FaultTolerantRedisCluster.class);
         final StatefulRedisClusterConnection<String, String> stringConnection = mock(StatefulRedisClusterConnection.class);
         final StatefulRedisClusterConnection<byte[], byte[]> binaryConnection = mock(StatefulRedisClusterConnection.class);
 
         when(stringConnection.sync()).thenReturn(stringCommands);
         when(binaryConnection.sync()).thenReturn(binaryCommands);
+        when(binaryConnection.async()).thenReturn(binaryAsyncCommands);
 
         when(cluster.withCluster(any(Function.class))).thenAnswer(invocation -> {
             return invocation.getArgument(0, Function.class).apply(stringConnection);
@@ -68,7 +75,15 @@ public class RedisClusterHelper {
             invocation.getArgument(0, Consumer.class).accept(binaryConnection);
             return null;
         }).when(cluster).useBinaryCluster(any(Consumer.class));
-        
+
+        when(cluster.withClusterAsync(any(Function.class))).thenAnswer(invocation -> {
+            return invocation.getArgument(0, Function.class).apply(stringConnection);
+        });
+
+        when(cluster.withBinaryClusterAsync(any(Function.class))).thenAnswer(invocation -> {
+            return invocation.getArgument(0, Function.class).apply(binaryConnection);
+        });
+
         return cluster;
     }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.UUID;
+import javax.ws.rs.core.Response;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.smassarn.textsecuregcm.auth.AuthenticatedAccount;
+import org.smassarn.textsecuregcm.controllers.KeepAliveController;
+import org.smassarn.textsecuregcm.controllers.MessageController;
+import org.smassarn.textsecuregcm.metrics.MetricsRequestEventListener;
+import org.smassarn.websocket.WebSocketClient;
+import org.smassarn.websocket.messages.WebSocketRequestMessage;
+import org.smassarn.websocket.routing.WebSocketRouteTable;
+import org.smassarn.websocket.session.WebSocketSessionContext;
+
+class AuthenticatedWebSocketRoutesTest {
+
+  private static final String USER_AGENT = "Signal-Android/5.22.0 Android/30";
+
+  private KeepAliveController keepAliveController;
+  private MessageController messageController;
+  private MetricsRequestEventListener metricsRequestEventListener;
+  private WebSocketSessionContext context;
+
+  private AuthenticatedWebSocketRoutes routes;
+
+  @BeforeEach
+  void setUp() {
+    keepAliveController = mock(KeepAliveController.class);
+    messageController = mock(MessageController.class);
+    metricsRequestEventListener = mock(MetricsRequestEventListener.class);
+
+    final WebSocketClient client = mock(WebSocketClient.class);
+    when(client.getUserAgent()).thenReturn(USER_AGENT);
+
+    context = mock(WebSocketSessionContext.class);
+    when(context.getClient()).thenReturn(client);
+
+    routes = new AuthenticatedWebSocketRoutes(keepAliveController, messageController, metricsRequestEventListener);
+  }
+
+  @Test
+  void testRegister() {
+    final WebSocketRouteTable<AuthenticatedAccount> routeTable = new WebSocketRouteTable<>();
+    routes.register(routeTable);
+
+    assertTrue(routeTable.match("GET", "/v1/keepalive").isPresent());
+    assertTrue(routeTable.match("DELETE", "/v1/messages/uuid/" + UUID.randomUUID()).isPresent());
+
+    assertTrue(routeTable.match("GET", "/v1/keepalive/provisioning").isEmpty());
+    assertTrue(routeTable.match("PUT", "/v1/messages/" + UUID.randomUUID()).isEmpty());
+  }
+
+  @Test
+  void testKeepAlive() {
+    final AuthenticatedAccount auth = mock(AuthenticatedAccount.class);
+    when(keepAliveController.getKeepAlive(auth, context)).thenReturn(Response.ok().build());
+
+    assertEquals(200, routes.keepAlive(auth, context, Map.of(), mock(WebSocketRequestMessage.class)).join().getStatus());
+
+    verify(keepAliveController).getKeepAlive(auth, context);
+    verify(metricsRequestEventListener).recordRequest(AuthenticatedWebSocketRoutes.KEEPALIVE_PATH, 200, USER_AGENT);
+  }
+
+  @Test
+  void testKeepAliveUnauthenticated() {
+    assertEquals(401, routes.keepAlive(null, context, Map.of(), mock(WebSocketRequestMessage.class)).join().getStatus());
+
+    verifyNoInteractions(keepAliveController);
+    verify(metricsRequestEventListener).recordRequest(AuthenticatedWebSocketRoutes.KEEPALIVE_PATH, 401, USER_AGENT);
+  }
+
+  @Test
+  void testAcknowledgeMessage() {
+    final AuthenticatedAccount auth = mock(AuthenticatedAccount.class);
+    final UUID messageUuid = UUID.randomUUID();
+
+    assertEquals(204, routes.acknowledgeMessage(auth, context, Map.of("uuid", messageUuid.toString()),
+        mock(WebSocketRequestMessage.class)).join().getStatus());
+
+    verify(messageController).removePendingMessage(auth, messageUuid);
+    verify(metricsRequestEventListener)
+        .recordRequest(AuthenticatedWebSocketRoutes.ACKNOWLEDGE_MESSAGE_PATH, 204, USER_AGENT);
+  }
+
+  @Test
+  void testAcknowledgeMessageUnauthenticated() {
+    assertEquals(401, routes.acknowledgeMessage(null, context, Map.of("uuid", UUID.randomUUID().toString()),
+        mock(WebSocketRequestMessage.class)).join().getStatus());
+
+    verifyNoInteractions(messageController);
+  }
+
+  @Test
+  void testAcknowledgeMessageBadUuid() {
+    assertEquals(404, routes.acknowledgeMessage(mock(AuthenticatedAccount.class), context, Map.of("uuid", "not-a-uuid"),
+        mock(WebSocketRequestMessage.class)).join().getStatus());
+
+    verifyNoInteractions(messageController);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.smassarn.textsecuregcm.websocket;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.smassarn.textsecuregcm.auth.AuthenticatedAccount;
+import org.smassarn.textsecuregcm.entities.MessageProtos.Envelope;
+import org.smassarn.textsecuregcm.storage.Account;
+import org.smassarn.textsecuregcm.storage.Device;
+import org.smassarn.textsecuregcm.storage.MessagesManager;
+import org.smassarn.textsecuregcm.storage.StoredMessage;
+import org.smassarn.textsecuregcm.util.Pair;
+
+class MessageAckCoalescerTest {
+
+  private static final UUID ACCOUNT_UUID = UUID.randomUUID();
+  private static final long DEVICE_ID = 2;
+
+  private static final Duration MAX_DELAY = Duration.ofSeconds(5);
+
+  private MessagesManager messagesManager;
+  private ScheduledExecutorService scheduledExecutorService;
+  private MessageAckCoalescer ackCoalescer;
+
+  @BeforeEach
+  void setUp() {
+    final Account account = mock(Account.class);
+    final Device device = mock(Device.class);
+
+    when(account.getUuid()).thenReturn(ACCOUNT_UUID);
+    when(device.getId()).thenReturn(DEVICE_ID);
+
+    messagesManager = mock(MessagesManager.class);
+    scheduledExecutorService = mock(ScheduledExecutorService.class);
+    ackCoalescer = new MessageAckCoalescer(messagesManager, new AuthenticatedAccount(() -> new Pair<>(account, device)),
+        device, 3, scheduledExecutorService, MAX_DELAY);
+  }
+
+  @Test
+  void testAcknowledgeFullBatch() {
+    final StoredMessage first = generateMessage();
+    final StoredMessage second = generateMessage();
+    final StoredMessage third = generateMessage();
+
+    ackCoalescer.acknowledge(first);
+    ackCoalescer.acknowledge(second);
+
+    verify(messagesManager, never()).delete(any(UUID.class), anyLong(), any(List.class));
+
+    ackCoalescer.acknowledge(third);
+
+    verify(messagesManager).delete(ACCOUNT_UUID, DEVICE_ID, List.of(first, second, third));
+
+    ackCoalescer.flush();
+
+    verifyNoMoreInteractions(messagesManager);
+  }
+
+  @Test
+  void testFlush() {
+    final StoredMessage message = generateMessage();
+
+    ackCoalescer.flush();
+    verifyNoMoreInteractions(messagesManager);
+
+    ackCoalescer.acknowledge(message);
+    ackCoalescer.flush();
+
+    verify(messagesManager).delete(ACCOUNT_UUID, DEVICE_ID, List.of(message));
+
+    ackCoalescer.flush();
+    verifyNoMoreInteractions(messagesManager);
+  }
+
+  @Test
+  void testScheduledFlush() {
+    final StoredMessage first = generateMessage();
+    final StoredMessage second = generateMessage();
+
+    ackCoalescer.acknowledge(first);
+    ackCoalescer.acknowledge(second);
+
+    // Only the first acknowledgement in a batch starts the clock
+    final ArgumentCaptor<Runnable> flushCaptor = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduledExecutorService)
+        .schedule(flushCaptor.capture(), eq(MAX_DELAY.toMillis()), eq(TimeUnit.MILLISECONDS));
+    verify(messagesManager, never()).delete(any(UUID.class), anyLong(), any(List.class));
+
+    flushCaptor.getValue().run();
+
+    verify(messagesManager).delete(ACCOUNT_UUID, DEVICE_ID, List.of(first, second));
+  }
+
+  @Test
+  void testFullBatchCancelsScheduledFlush() {
+    final ScheduledFuture<?> flushFuture = mock(ScheduledFuture.class);
+    doReturn(flushFuture).when(scheduledExecutorService).schedule(any(Runnable.class), anyLong(), any());
+
+    ackCoalescer.acknowledge(generateMessage());
+    ackCoalescer.acknowledge(generateMessage());
+    ackCoalescer.acknowledge(generateMessage());
+
+    verify(flushFuture).cancel(false);
+  }
+
+  @Test
+  void testAcknowledgeAfterStop() {
+    final StoredMessage beforeStop = generateMessage();
+    final StoredMessage afterStop = generateMessage();
+
+    ackCoalescer.acknowledge(beforeStop);
+    ackCoalescer.stop();
+
+    verify(messagesManager).delete(ACCOUNT_UUID, DEVICE_ID, List.of(beforeStop));
+
+    // Nothing will flush the coalescer again, so late acknowledgements are deleted right away
+    ackCoalescer.acknowledge(afterStop);
+
+    verify(messagesManager).delete(ACCOUNT_UUID, DEVICE_ID, List.of(afterStop));
+  }
+
+  private static StoredMessage generateMessage() {
+    return StoredMessage.fromEnvelope(Envelope.newBuilder()
+        .setServerTimestamp(System.currentTimeMillis())
+        .setServerGuid(UUID.randomUUID().toString())
+        .build());
+  }
+}
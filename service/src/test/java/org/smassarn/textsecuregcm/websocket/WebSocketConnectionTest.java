@@ -27,6 +27,7 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import io.dropwizard.auth.basic.BasicCredentials;
 import io.lettuce.core.RedisException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -50,8 +51,6 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.smassarn.textsecuregcm.auth.AccountAuthenticator;
 import org.smassarn.textsecuregcm.auth.AuthenticatedAccount;
-import org.smassarn.textsecuregcm.entities.OutgoingMessageEntity;
-import org.smassarn.textsecuregcm.entities.OutgoingMessageEntityList;
 import org.smassarn.textsecuregcm.push.ApnFallbackManager;
 import org.smassarn.textsecuregcm.push.ClientPresenceManager;
 import org.smassarn.textsecuregcm.push.MessageSender;
@@ -60,6 +59,9 @@ import org.smassarn.textsecuregcm.storage.Account;
 import org.smassarn.textsecuregcm.storage.AccountsManager;
 import org.smassarn.textsecuregcm.storage.Device;
 import org.smassarn.textsecuregcm.storage.MessagesManager;
+import org.smassarn.textsecuregcm.storage.StoredMessage;
+import org.smassarn.textsecuregcm.storage.StoredMessageCursor;
+import org.smassarn.textsecuregcm.storage.StoredMessageList;
 import org.smassarn.textsecuregcm.util.Pair;
 import org.smassarn.websocket.WebSocketClient;
 import org.smassarn.websocket.auth.WebSocketAuthenticator.AuthenticationResult;
@@ -68,6 +70,9 @@ import org.smassarn.websocket.session.WebSocketSessionContext;
 
 public class WebSocketConnectionTest {
 
+  private static final int MAX_IN_FLIGHT_MESSAGES = 64;
+  private static final int MAX_ACK_BATCH_SIZE = 25;
+
   private static final String VALID_USER   = "+14152222222";
   private static final String INVALID_USER = "+14151111111";
 
@@ -103,7 +108,7 @@ public class WebSocketConnectionTest {
     WebSocketAccountAuthenticator webSocketAuthenticator = new WebSocketAccountAuthenticator(accountAuthenticator);
     AuthenticatedConnectListener connectListener = new AuthenticatedConnectListener(receiptSender, storedMessages,
         mock(MessageSender.class), apnFallbackManager, mock(ClientPresenceManager.class),
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
     WebSocketSessionContext sessionContext = mock(WebSocketSessionContext.class);
 
     when(accountAuthenticator.authenticate(eq(new BasicCredentials(VALID_USER, VALID_PASSWORD))))
@@ -150,13 +155,13 @@ public class WebSocketConnectionTest {
     UUID senderOneUuid = UUID.randomUUID();
     UUID senderTwoUuid = UUID.randomUUID();
 
-    List<OutgoingMessageEntity> outgoingMessages = new LinkedList<OutgoingMessageEntity> () {{
+    List<StoredMessage> outgoingMessages = new LinkedList<StoredMessage> () {{
       add(createMessage(1L, false, "sender1", senderOneUuid, 1111, false, "first"));
       add(createMessage(2L, false, "sender1", senderOneUuid, 2222, false, "second"));
       add(createMessage(3L, false, "sender2", senderTwoUuid, 3333, false, "third"));
     }};
 
-    OutgoingMessageEntityList outgoingMessagesList = new OutgoingMessageEntityList(outgoingMessages, false);
+    StoredMessageList outgoingMessagesList = new StoredMessageList(outgoingMessages, false);
 
     when(device.getId()).thenReturn(2L);
 
@@ -177,7 +182,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "user-agent";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getStoredMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
         .thenReturn(outgoingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
@@ -195,7 +200,7 @@ public class WebSocketConnectionTest {
         });
 
     WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages,
-        auth, device, client, retrySchedulingExecutor);
+        auth, device, client, retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     connection.start();
     verify(client, times(3)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class),
@@ -210,7 +215,7 @@ public class WebSocketConnectionTest {
     futures.get(0).completeExceptionally(new IOException());
     futures.get(2).completeExceptionally(new IOException());
 
-    verify(storedMessages, times(1)).delete(eq(accountUuid), eq(2L), eq(outgoingMessages.get(1).getGuid()));
+    verify(storedMessages, times(1)).delete(eq(accountUuid), eq(2L), eq(List.of(outgoingMessages.get(1))));
     verify(receiptSender, times(1)).sendReceipt(eq(auth), eq(senderOneUuid), eq(2222L));
 
     connection.stop();
@@ -222,7 +227,7 @@ public class WebSocketConnectionTest {
     final MessagesManager messagesManager = mock(MessagesManager.class);
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     final UUID accountUuid = UUID.randomUUID();
 
@@ -231,10 +236,10 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false))
-            .thenReturn(new OutgoingMessageEntityList(List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first")), false))
-            .thenReturn(new OutgoingMessageEntityList(List.of(createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second")), false));
+    when(messagesManager.getStoredMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+        .thenReturn(new StoredMessageList(Collections.emptyList(), false))
+            .thenReturn(new StoredMessageList(List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first")), false))
+            .thenReturn(new StoredMessageList(List.of(createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second")), false));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -250,7 +255,7 @@ public class WebSocketConnectionTest {
       return CompletableFuture.completedFuture(successResponse);
     });
 
-    // This is a little hacky and non-obvious, but because the first call to getMessagesForDevice returns empty list of
+    // This is a little hacky and non-obvious, but because the first call to getStoredMessagesForDevice returns empty list of
     // messages, the call to CompletableFuture.allOf(...) in processStoredMessages will produce an instantly-succeeded
     // future, and the whenComplete method will get called immediately on THIS thread, so we don't need to synchronize
     // or wait for anything.
@@ -300,18 +305,12 @@ public class WebSocketConnectionTest {
                                      .setType(Envelope.Type.CIPHERTEXT)
                                      .build();
 
-    List<OutgoingMessageEntity> pendingMessages     = new LinkedList<OutgoingMessageEntity>() {{
-      add(new OutgoingMessageEntity(1, true, UUID.randomUUID(), firstMessage.getType().getNumber(), firstMessage.getRelay(),
-                                    firstMessage.getTimestamp(), firstMessage.getSource(), UUID.fromString(firstMessage.getSourceUuid()),
-                                    firstMessage.getSourceDevice(), firstMessage.getLegacyMessage().toByteArray(),
-                                    firstMessage.getContent().toByteArray(), 0));
-      add(new OutgoingMessageEntity(2, false, UUID.randomUUID(), secondMessage.getType().getNumber(), secondMessage.getRelay(),
-                                    secondMessage.getTimestamp(), secondMessage.getSource(), UUID.fromString(secondMessage.getSourceUuid()),
-                                    secondMessage.getSourceDevice(), secondMessage.getLegacyMessage().toByteArray(),
-                                    secondMessage.getContent().toByteArray(), 0));
+    List<StoredMessage> pendingMessages     = new LinkedList<StoredMessage>() {{
+      add(StoredMessage.fromEnvelope(firstMessage.toBuilder().setServerGuid(UUID.randomUUID().toString()).build()));
+      add(StoredMessage.fromEnvelope(secondMessage.toBuilder().setServerGuid(UUID.randomUUID().toString()).build()));
     }};
 
-    OutgoingMessageEntityList   pendingMessagesList = new OutgoingMessageEntityList(pendingMessages, false);
+    StoredMessageList   pendingMessagesList = new StoredMessageList(pendingMessages, false);
 
     when(device.getId()).thenReturn(2L);
 
@@ -332,7 +331,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "user-agent";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getStoredMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
         .thenReturn(pendingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
@@ -350,7 +349,7 @@ public class WebSocketConnectionTest {
         });
 
     WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages,
-        auth, device, client, retrySchedulingExecutor);
+        auth, device, client, retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     connection.start();
 
@@ -375,7 +374,7 @@ public class WebSocketConnectionTest {
     final MessagesManager messagesManager = mock(MessagesManager.class);
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     when(account.getNumber()).thenReturn("+18005551234");
     when(account.getUuid()).thenReturn(UUID.randomUUID());
@@ -385,8 +384,8 @@ public class WebSocketConnectionTest {
     final AtomicBoolean threadWaiting = new AtomicBoolean(false);
     final AtomicBoolean returnMessageList = new AtomicBoolean(false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false)).thenAnswer(
-        (Answer<OutgoingMessageEntityList>) invocation -> {
+    when(messagesManager.getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false)).thenAnswer(
+        (Answer<StoredMessageList>) invocation -> {
       synchronized (threadWaiting) {
         threadWaiting.set(true);
         threadWaiting.notifyAll();
@@ -398,7 +397,7 @@ public class WebSocketConnectionTest {
         }
       }
 
-      return new OutgoingMessageEntityList(Collections.emptyList(), false);
+      return new StoredMessageList(Collections.emptyList(), false);
     });
 
     final Thread[]       threads               = new Thread[10];
@@ -430,7 +429,7 @@ public class WebSocketConnectionTest {
       thread.join();
     }
 
-    verify(messagesManager).getMessagesForDevice(any(UUID.class), anyLong(), anyString(), eq(false));
+    verify(messagesManager).getStoredMessagesForDevice(any(UUID.class), anyLong(), anyString(), eq(false));
   }
 
   @Test(timeout = 5000L)
@@ -438,27 +437,30 @@ public class WebSocketConnectionTest {
     final MessagesManager messagesManager = mock(MessagesManager.class);
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     when(account.getNumber()).thenReturn("+18005551234");
     when(account.getUuid()).thenReturn(UUID.randomUUID());
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    final List<OutgoingMessageEntity> firstPageMessages =
+    final List<StoredMessage> firstPageMessages =
         List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"),
             createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second"));
 
-    final List<OutgoingMessageEntity> secondPageMessages =
+    final List<StoredMessage> secondPageMessages =
             List.of(createMessage(3L, false, "sender1", UUID.randomUUID(), 3333, false, "third"));
 
-    final OutgoingMessageEntityList firstPage  = new OutgoingMessageEntityList(firstPageMessages, true);
-    final OutgoingMessageEntityList secondPage = new OutgoingMessageEntityList(secondPageMessages, false);
+    final StoredMessageList firstPage  = new StoredMessageList(firstPageMessages, true);
+    final StoredMessageList secondPage = new StoredMessageList(secondPageMessages, false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false))
+    when(messagesManager.getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false))
             .thenReturn(firstPage)
             .thenReturn(secondPage);
 
+    when(messagesManager.getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), firstPage.getNextPageCursor()))
+            .thenReturn(secondPage);
+
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
 
@@ -477,12 +479,230 @@ public class WebSocketConnectionTest {
     verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
   }
 
+  @Test
+  public void testProcessStoredMessagesInFlightLimit() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
+        retrySchedulingExecutor, 2, MAX_ACK_BATCH_SIZE);
+
+    when(account.getNumber()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final List<StoredMessage> messages =
+        List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"),
+            createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second"),
+            createMessage(3L, false, "sender1", UUID.randomUUID(), 3333, false, "third"),
+            createMessage(4L, false, "sender1", UUID.randomUUID(), 4444, false, "fourth"));
+
+    when(messagesManager.getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false))
+        .thenReturn(new StoredMessageList(messages, false));
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    final List<CompletableFuture<WebSocketResponseMessage>> futures = new ArrayList<>();
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class))).thenAnswer((Answer<CompletableFuture<WebSocketResponseMessage>>)invocation -> {
+      final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+      futures.add(future);
+      return future;
+    });
+
+    connection.processStoredMessages();
+
+    verify(client, times(2)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+
+    futures.get(0).complete(successResponse);
+    verify(client, times(3)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+
+    futures.get(1).complete(successResponse);
+    futures.get(2).complete(successResponse);
+    verify(client, times(4)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+    verify(client, never()).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), any(Optional.class));
+
+    verify(messagesManager, never()).delete(any(UUID.class), anyLong(), any(List.class));
+
+    futures.get(3).complete(successResponse);
+    verify(messagesManager).delete(account.getUuid(), 1L, messages);
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
+  }
+
+  @Test
+  public void testProcessStoredMessagesPrefetchNextPage() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
+
+    when(account.getNumber()).thenReturn("+18005551234");
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final StoredMessageList firstPage = createPage(
+        List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"),
+            createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second")), true);
+
+    final StoredMessageList secondPage = createPage(
+        List.of(createMessage(3L, false, "sender1", UUID.randomUUID(), 3333, false, "third")), false);
+
+    when(messagesManager.getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false))
+        .thenReturn(firstPage);
+
+    when(messagesManager.getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), firstPage.getNextPageCursor()))
+        .thenReturn(secondPage);
+
+    final List<CompletableFuture<WebSocketResponseMessage>> futures = new ArrayList<>();
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class))).thenAnswer((Answer<CompletableFuture<WebSocketResponseMessage>>)invocation -> {
+      final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+      futures.add(future);
+      return future;
+    });
+
+    connection.processStoredMessages();
+
+    // The second page should be fetched and sent before any messages from the first page have been acknowledged
+    verify(messagesManager).getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), firstPage.getNextPageCursor());
+    verify(client, times(3)).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    futures.forEach(future -> future.complete(successResponse));
+
+    verify(client).sendRequest(eq("PUT"), eq("/api/v1/queue/empty"), any(List.class), eq(Optional.empty()));
+  }
+
+  @Test
+  public void testQueueDrainPaging() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
+        retrySchedulingExecutor, 1, MAX_ACK_BATCH_SIZE);
+
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final StoredMessageList firstPage = createPage(
+        List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"),
+            createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second")), true);
+
+    when(messagesManager.getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), true))
+        .thenReturn(firstPage);
+
+    when(messagesManager.getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), firstPage.getNextPageCursor()))
+        .thenReturn(new StoredMessageList(Collections.emptyList(), false));
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class)))
+        .thenReturn(new CompletableFuture<>());
+
+    final WebSocketConnection.QueueDrain queueDrain = connection.new QueueDrain(true, new CompletableFuture<>());
+
+    assertTrue(queueDrain.needsNextPage());
+    assertFalse(queueDrain.canSendNextMessage());
+
+    queueDrain.fetchNextPage();
+    verify(messagesManager).getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), true);
+
+    assertFalse(queueDrain.needsNextPage());
+    assertTrue(queueDrain.canSendNextMessage());
+
+    queueDrain.sendNextMessage();
+
+    // The window is full, but the next page shouldn't be fetched until this page's messages have all been sent
+    assertFalse(queueDrain.needsNextPage());
+    assertFalse(queueDrain.canSendNextMessage());
+    assertFalse(queueDrain.isFinished());
+
+    queueDrain.fetchNextPage();
+    verify(messagesManager).getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), firstPage.getNextPageCursor());
+
+    // The second page was empty and there are no more pages, but one message is still in flight
+    assertFalse(queueDrain.needsNextPage());
+    assertFalse(queueDrain.isFinished());
+  }
+
+  @Test
+  public void testQueueDrainCompletion() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
+
+    final UUID accountUuid = UUID.randomUUID();
+
+    when(account.getUuid()).thenReturn(accountUuid);
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    final List<StoredMessage> messages =
+        List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"));
+
+    when(messagesManager.getStoredMessagesForDevice(accountUuid, 1L, "Test-UA", false))
+        .thenReturn(new StoredMessageList(messages, false));
+
+    final CompletableFuture<WebSocketResponseMessage> sendFuture = new CompletableFuture<>();
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class)))
+        .thenReturn(sendFuture);
+
+    final CompletableFuture<Void> queueClearedFuture = new CompletableFuture<>();
+    final WebSocketConnection.QueueDrain queueDrain = connection.new QueueDrain(false, queueClearedFuture);
+
+    queueDrain.fetchNextPage();
+    queueDrain.sendNextMessage();
+
+    assertFalse(queueDrain.isFinished());
+
+    final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
+    when(successResponse.getStatus()).thenReturn(200);
+
+    // Completing the send runs another pass of the drain loop, which should finish the drain
+    sendFuture.complete(successResponse);
+
+    assertTrue(queueClearedFuture.isDone());
+    assertFalse(queueClearedFuture.isCompletedExceptionally());
+    assertFalse(queueDrain.isFinished());
+    verify(messagesManager).delete(accountUuid, 1L, messages);
+  }
+
+  @Test
+  public void testQueueDrainFetchFailure() {
+    final MessagesManager messagesManager = mock(MessagesManager.class);
+    final WebSocketClient client = mock(WebSocketClient.class);
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
+
+    when(account.getUuid()).thenReturn(UUID.randomUUID());
+    when(device.getId()).thenReturn(1L);
+    when(client.getUserAgent()).thenReturn("Test-UA");
+
+    when(messagesManager.getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false))
+        .thenThrow(new RedisException("OH NO"));
+
+    final CompletableFuture<Void> queueClearedFuture = new CompletableFuture<>();
+    final WebSocketConnection.QueueDrain queueDrain = connection.new QueueDrain(false, queueClearedFuture);
+
+    queueDrain.fetchNextPage();
+
+    assertTrue(queueDrain.isFinished());
+
+    queueDrain.complete();
+
+    assertTrue(queueClearedFuture.isCompletedExceptionally());
+    verify(client, never()).sendRequest(eq("PUT"), eq("/api/v1/message"), any(List.class), any(Optional.class));
+  }
+
   @Test(timeout = 5000L)
   public void testProcessStoredMessagesContainsSenderUuid() throws InterruptedException {
     final MessagesManager messagesManager = mock(MessagesManager.class);
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     when(account.getNumber()).thenReturn("+18005551234");
     when(account.getUuid()).thenReturn(UUID.randomUUID());
@@ -490,11 +710,11 @@ public class WebSocketConnectionTest {
     when(client.getUserAgent()).thenReturn("Test-UA");
 
     final UUID senderUuid = UUID.randomUUID();
-    final List<OutgoingMessageEntity> messages = List.of(
+    final List<StoredMessage> messages = List.of(
         createMessage(1L, false, "senderE164", senderUuid, 1111L, false, "message the first"));
-    final OutgoingMessageEntityList firstPage = new OutgoingMessageEntityList(messages, false);
+    final StoredMessageList firstPage = new StoredMessageList(messages, false);
 
-    when(messagesManager.getMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false)).thenReturn(firstPage);
+    when(messagesManager.getStoredMessagesForDevice(account.getUuid(), 1L, client.getUserAgent(), false)).thenReturn(firstPage);
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -534,7 +754,7 @@ public class WebSocketConnectionTest {
     final MessagesManager messagesManager = mock(MessagesManager.class);
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     final UUID accountUuid = UUID.randomUUID();
 
@@ -543,8 +763,8 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getStoredMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+        .thenReturn(new StoredMessageList(Collections.emptyList(), false));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -564,7 +784,7 @@ public class WebSocketConnectionTest {
     final MessagesManager messagesManager = mock(MessagesManager.class);
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
     final UUID accountUuid = UUID.randomUUID();
 
     when(account.getNumber()).thenReturn("+18005551234");
@@ -572,20 +792,20 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    final List<OutgoingMessageEntity> firstPageMessages =
+    final List<StoredMessage> firstPageMessages =
         List.of(createMessage(1L, false, "sender1", UUID.randomUUID(), 1111, false, "first"),
             createMessage(2L, false, "sender1", UUID.randomUUID(), 2222, false, "second"));
 
-    final List<OutgoingMessageEntity> secondPageMessages =
+    final List<StoredMessage> secondPageMessages =
             List.of(createMessage(3L, false, "sender1", UUID.randomUUID(), 3333, false, "third"));
 
-    final OutgoingMessageEntityList firstPage  = new OutgoingMessageEntityList(firstPageMessages, false);
-    final OutgoingMessageEntityList secondPage = new OutgoingMessageEntityList(secondPageMessages, false);
+    final StoredMessageList firstPage  = new StoredMessageList(firstPageMessages, false);
+    final StoredMessageList secondPage = new StoredMessageList(secondPageMessages, false);
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+    when(messagesManager.getStoredMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
             .thenReturn(firstPage)
             .thenReturn(secondPage)
-            .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+            .thenReturn(new StoredMessageList(Collections.emptyList(), false));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -612,7 +832,7 @@ public class WebSocketConnectionTest {
     final MessagesManager messagesManager = mock(MessagesManager.class);
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     final UUID accountUuid = UUID.randomUUID();
 
@@ -621,8 +841,8 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getStoredMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+        .thenReturn(new StoredMessageList(Collections.emptyList(), false));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -633,11 +853,11 @@ public class WebSocketConnectionTest {
     // anything.
     connection.processStoredMessages();
 
-    verify(messagesManager).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), false);
+    verify(messagesManager).getStoredMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), false);
 
     connection.handleNewMessagesAvailable();
 
-    verify(messagesManager).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), true);
+    verify(messagesManager).getStoredMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), true);
   }
 
   @Test
@@ -645,7 +865,7 @@ public class WebSocketConnectionTest {
     final MessagesManager messagesManager = mock(MessagesManager.class);
     final WebSocketClient client = mock(WebSocketClient.class);
     final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     final UUID accountUuid = UUID.randomUUID();
 
@@ -654,8 +874,8 @@ public class WebSocketConnectionTest {
     when(device.getId()).thenReturn(1L);
     when(client.getUserAgent()).thenReturn("Test-UA");
 
-    when(messagesManager.getMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
-        .thenReturn(new OutgoingMessageEntityList(Collections.emptyList(), false));
+    when(messagesManager.getStoredMessagesForDevice(eq(accountUuid), eq(1L), eq("Test-UA"), anyBoolean()))
+        .thenReturn(new StoredMessageList(Collections.emptyList(), false));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
@@ -667,7 +887,7 @@ public class WebSocketConnectionTest {
     connection.processStoredMessages();
     connection.handleMessagesPersisted();
 
-    verify(messagesManager, times(2)).getMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), false);
+    verify(messagesManager, times(2)).getStoredMessagesForDevice(account.getUuid(), device.getId(), client.getUserAgent(), false);
   }
 
   @Test
@@ -678,13 +898,13 @@ public class WebSocketConnectionTest {
     UUID senderOneUuid = UUID.randomUUID();
     UUID senderTwoUuid = UUID.randomUUID();
 
-    List<OutgoingMessageEntity> outgoingMessages = new LinkedList<OutgoingMessageEntity> () {{
+    List<StoredMessage> outgoingMessages = new LinkedList<StoredMessage> () {{
       add(createMessage(1L, false, "sender1", senderOneUuid, 1111, false, "first"));
       add(createMessage(2L, false, "sender1", senderOneUuid, 2222, false, RandomStringUtils.randomAlphanumeric(WebSocketConnection.MAX_DESKTOP_MESSAGE_SIZE + 1)));
       add(createMessage(3L, false, "sender2", senderTwoUuid, 3333, false, "third"));
     }};
 
-    OutgoingMessageEntityList outgoingMessagesList = new OutgoingMessageEntityList(outgoingMessages, false);
+    StoredMessageList outgoingMessagesList = new StoredMessageList(outgoingMessages, false);
 
     when(device.getId()).thenReturn(2L);
 
@@ -705,7 +925,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Massarn-Desktop/1.2.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getStoredMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
             .thenReturn(outgoingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
@@ -725,7 +945,7 @@ public class WebSocketConnectionTest {
         });
 
     WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     connection.start();
     verify(client, times(2)).sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class),
@@ -740,7 +960,8 @@ public class WebSocketConnectionTest {
 
     // We should delete all three messages even though we only sent two; one got discarded because it was too big for
     // desktop clients.
-    verify(storedMessages, times(3)).delete(eq(accountUuid), eq(2L), any(UUID.class));
+    verify(storedMessages).delete(eq(accountUuid), eq(2L), ArgumentMatchers.<List<StoredMessage>>argThat(
+        deletedMessages -> deletedMessages.size() == 3 && deletedMessages.containsAll(outgoingMessages)));
 
     connection.stop();
     verify(client).close(anyInt(), anyString());
@@ -754,13 +975,13 @@ public class WebSocketConnectionTest {
     UUID senderOneUuid = UUID.randomUUID();
     UUID senderTwoUuid = UUID.randomUUID();
 
-    List<OutgoingMessageEntity> outgoingMessages = new LinkedList<OutgoingMessageEntity> () {{
+    List<StoredMessage> outgoingMessages = new LinkedList<StoredMessage> () {{
       add(createMessage(1L, false, "sender1", senderOneUuid, 1111, false, "first"));
       add(createMessage(2L, false, "sender1", senderOneUuid, 2222, false, RandomStringUtils.randomAlphanumeric(WebSocketConnection.MAX_DESKTOP_MESSAGE_SIZE + 1)));
       add(createMessage(3L, false, "sender2", senderTwoUuid, 3333, false, "third"));
     }};
 
-    OutgoingMessageEntityList outgoingMessagesList = new OutgoingMessageEntityList(outgoingMessages, false);
+    StoredMessageList outgoingMessagesList = new StoredMessageList(outgoingMessages, false);
 
     when(device.getId()).thenReturn(2L);
 
@@ -781,7 +1002,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Massarn-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getStoredMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
             .thenReturn(outgoingMessagesList);
 
     final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
@@ -801,7 +1022,7 @@ public class WebSocketConnectionTest {
         });
 
     WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
 
     connection.start();
     verify(client, times(3)).sendRequest(eq("PUT"), eq("/api/v1/message"), ArgumentMatchers.nullable(List.class),
@@ -815,7 +1036,8 @@ public class WebSocketConnectionTest {
     futures.get(1).complete(response);
     futures.get(2).complete(response);
 
-    verify(storedMessages, times(3)).delete(eq(accountUuid), eq(2L), any(UUID.class));
+    verify(storedMessages).delete(eq(accountUuid), eq(2L), ArgumentMatchers.<List<StoredMessage>>argThat(
+        deletedMessages -> deletedMessages.size() == 3 && deletedMessages.containsAll(outgoingMessages)));
 
     connection.stop();
     verify(client).close(anyInt(), anyString());
@@ -834,7 +1056,7 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Massarn-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getStoredMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
         .thenThrow(new RedisException("OH NO"));
 
     when(retrySchedulingExecutor.schedule(any(Runnable.class), anyLong(), any())).thenAnswer(
@@ -847,7 +1069,7 @@ public class WebSocketConnectionTest {
     when(client.isOpen()).thenReturn(true);
 
     WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
     connection.start();
 
     verify(retrySchedulingExecutor, times(WebSocketConnection.MAX_CONSECUTIVE_RETRIES)).schedule(any(Runnable.class),
@@ -868,23 +1090,35 @@ public class WebSocketConnectionTest {
 
     String userAgent = "Massarn-Android/4.68.3";
 
-    when(storedMessages.getMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
+    when(storedMessages.getStoredMessagesForDevice(account.getUuid(), device.getId(), userAgent, false))
         .thenThrow(new RedisException("OH NO"));
 
     final WebSocketClient client = mock(WebSocketClient.class);
     when(client.isOpen()).thenReturn(false);
 
     WebSocketConnection connection = new WebSocketConnection(receiptSender, storedMessages, auth, device, client,
-        retrySchedulingExecutor);
+        retrySchedulingExecutor, MAX_IN_FLIGHT_MESSAGES, MAX_ACK_BATCH_SIZE);
     connection.start();
 
     verify(retrySchedulingExecutor, never()).schedule(any(Runnable.class), anyLong(), any());
     verify(client, never()).close(anyInt(), anyString());
   }
 
-  private OutgoingMessageEntity createMessage(long id, boolean cached, String sender, UUID senderUuid, long timestamp, boolean receipt, String content) {
-    return new OutgoingMessageEntity(id, cached, UUID.randomUUID(), receipt ? Envelope.Type.SERVER_DELIVERY_RECEIPT_VALUE : Envelope.Type.CIPHERTEXT_VALUE,
-                                     null, timestamp, sender, senderUuid, 1, content.getBytes(), null, 0);
+  private static StoredMessageList createPage(final List<StoredMessage> messages, final boolean more) {
+    return new StoredMessageList(messages, more, new StoredMessageCursor(true, 0, null, messages.size()));
+  }
+
+  private StoredMessage createMessage(long id, boolean cached, String sender, UUID senderUuid, long timestamp, boolean receipt, String content) {
+    return StoredMessage.fromEnvelope(Envelope.newBuilder()
+        .setServerGuid(UUID.randomUUID().toString())
+        .setType(receipt ? Envelope.Type.SERVER_DELIVERY_RECEIPT : Envelope.Type.CIPHERTEXT)
+        .setTimestamp(timestamp)
+        .setServerTimestamp(0)
+        .setSource(sender)
+        .setSourceUuid(senderUuid.toString())
+        .setSourceDevice(1)
+        .setLegacyMessage(ByteString.copyFromUtf8(content))
+        .build());
   }
 
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.smassarn.websocket;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.smassarn.websocket.messages.WebSocketResponseMessage;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the requests a server has sent to a single client that are still awaiting a response. Each connection has its
+ * own table, so request IDs only need to be unique per connection and come from a simple counter. Requests that go
+ * unanswered for longer than the configured timeout fail with a {@link TimeoutException}, and no more than the
+ * configured number of requests may be pending at once.
+ */
+class PendingRequests {
+
+  // Timeouts for every connection share a single thread; the timeout tasks only complete futures, and are removed from
+  // the queue as soon as the request they guard completes
+  private static final ScheduledThreadPoolExecutor TIMEOUT_SCHEDULER;
+
+  static {
+    TIMEOUT_SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+        .setNameFormat("websocket-request-timeout-%d")
+        .setDaemon(true)
+        .build());
+
+    TIMEOUT_SCHEDULER.setRemoveOnCancelPolicy(true);
+  }
+
+  private final Map<Long, CompletableFuture<WebSocketResponseMessage>> futuresByRequestId = new ConcurrentHashMap<>();
+  private final AtomicLong nextRequestId = new AtomicLong();
+  private final Semaphore permits;
+  private final long timeoutMillis;
+
+  PendingRequests(final Duration timeout, final int maxPendingRequests) {
+    this.timeoutMillis = timeout.toMillis();
+    this.permits = new Semaphore(maxPendingRequests);
+  }
+
+  /**
+   * Adds a request to the table and returns its ID, or returns empty if too many requests are already pending. The
+   * request leaves the table as soon as the given future completes, however it completes.
+   */
+  OptionalLong add(final CompletableFuture<WebSocketResponseMessage> future) {
+    if (!permits.tryAcquire()) {
+      return OptionalLong.empty();
+    }
+
+    final long requestId = nextRequestId.getAndIncrement();
+    futuresByRequestId.put(requestId, future);
+
+    final ScheduledFuture<?> timeoutFuture = TIMEOUT_SCHEDULER.schedule(() ->
+        fail(requestId, new TimeoutException("No response to request " + requestId)), timeoutMillis, TimeUnit.MILLISECONDS);
+
+    future.whenComplete((response, cause) -> {
+      timeoutFuture.cancel(false);
+      futuresByRequestId.remove(requestId, future);
+      permits.release();
+    });
+
+    return OptionalLong.of(requestId);
+  }
+
+  void complete(final long requestId, final WebSocketResponseMessage response) {
+    final CompletableFuture<WebSocketResponseMessage> future = futuresByRequestId.remove(requestId);
+
+    if (future != null) {
+      future.complete(response);
+    }
+  }
+
+  void fail(final long requestId, final Throwable cause) {
+    final CompletableFuture<WebSocketResponseMessage> future = futuresByRequestId.remove(requestId);
+
+    if (future != null) {
+      future.completeExceptionally(cause);
+    }
+  }
+
+  void failAll(final Throwable cause) {
+    for (final long requestId : futuresByRequestId.keySet()) {
+      fail(requestId, cause);
+    }
+  }
+
+  int size() {
+    return futuresByRequestId.size();
+  }
+}
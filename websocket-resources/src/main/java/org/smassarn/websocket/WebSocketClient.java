@@ -10,16 +10,14 @@ import org.eclipse.jetty.websocket.api.WebSocketException;
 import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.smassarn.websocket.messages.WebSocketMessage;
 import org.smassarn.websocket.messages.WebSocketMessageFactory;
 import org.smassarn.websocket.messages.WebSocketResponseMessage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.security.SecureRandom;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.concurrent.CompletableFuture;
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
@@ -30,47 +28,60 @@ public class WebSocketClient {
   private final Session                                                session;
   private final RemoteEndpoint                                         remoteEndpoint;
   private final WebSocketMessageFactory                                messageFactory;
-  private final Map<Long, CompletableFuture<WebSocketResponseMessage>> pendingRequestMapper;
+  private final PendingRequests                                        pendingRequests;
   private final long                                                   created;
 
-  public WebSocketClient(Session session, RemoteEndpoint remoteEndpoint,
-                         WebSocketMessageFactory messageFactory,
-                         Map<Long, CompletableFuture<WebSocketResponseMessage>> pendingRequestMapper)
+  WebSocketClient(Session session, RemoteEndpoint remoteEndpoint,
+                  WebSocketMessageFactory messageFactory,
+                  PendingRequests pendingRequests)
   {
-    this.session              = session;
-    this.remoteEndpoint       = remoteEndpoint;
-    this.messageFactory       = messageFactory;
-    this.pendingRequestMapper = pendingRequestMapper;
-    this.created              = System.currentTimeMillis();
+    this.session         = session;
+    this.remoteEndpoint  = remoteEndpoint;
+    this.messageFactory  = messageFactory;
+    this.pendingRequests = pendingRequests;
+    this.created         = System.currentTimeMillis();
   }
 
+  /**
+   * Sends a request to the client. The returned future fails with a {@link java.util.concurrent.TimeoutException} if the
+   * client doesn't respond in time, or immediately with an {@link IOException} if too many requests to this client are
+   * already awaiting responses.
+   */
   public CompletableFuture<WebSocketResponseMessage> sendRequest(String verb, String path,
                                                                  List<String> headers,
                                                                  Optional<byte[]> body)
   {
-    final long                                        requestId = generateRequestId();
-    final CompletableFuture<WebSocketResponseMessage> future    = new CompletableFuture<>();
+    final CompletableFuture<WebSocketResponseMessage> future         = new CompletableFuture<>();
+    final OptionalLong                                maybeRequestId = pendingRequests.add(future);
 
-    pendingRequestMapper.put(requestId, future);
+    if (maybeRequestId.isEmpty()) {
+      future.completeExceptionally(new IOException("Too many pending requests"));
+      return future;
+    }
+
+    final long requestId = maybeRequestId.getAsLong();
 
-    WebSocketMessage requestMessage = messageFactory.createRequest(Optional.of(requestId), verb, path, headers, body);
+    final ByteBuffer requestBuffer = messageFactory.encodeRequest(Optional.of(requestId), verb, path, headers, body);
 
     try {
-      remoteEndpoint.sendBytes(ByteBuffer.wrap(requestMessage.toByteArray()), new WriteCallback() {
+      remoteEndpoint.sendBytes(requestBuffer, new WriteCallback() {
         @Override
         public void writeFailed(Throwable x) {
+          messageFactory.release(requestBuffer);
           logger.debug("Write failed", x);
-          pendingRequestMapper.remove(requestId);
-          future.completeExceptionally(x);
+          pendingRequests.fail(requestId, x);
         }
 
         @Override
-        public void writeSuccess() {}
+        public void writeSuccess() {
+          messageFactory.release(requestBuffer);
+        }
       });
     } catch (WebSocketException e) {
+      // Jetty rejected the write outright, so it holds no reference to the buffer and will never invoke the callback
+      messageFactory.release(requestBuffer);
       logger.debug("Write", e);
-      pendingRequestMapper.remove(requestId);
-      future.completeExceptionally(e);
+      pendingRequests.fail(requestId, e);
     }
 
     return future;
@@ -100,8 +111,4 @@ public class WebSocketClient {
     }
   }
 
-  private long generateRequestId() {
-    return Math.abs(new SecureRandom().nextLong());
-  }
-
 }
@@ -7,7 +7,9 @@ package org.smassarn.websocket;
 import com.google.common.annotations.VisibleForTesting;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketException;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.glassfish.jersey.internal.MapPropertiesDelegate;
 import org.glassfish.jersey.server.ApplicationHandler;
 import org.glassfish.jersey.server.ContainerRequest;
@@ -20,6 +22,8 @@ import org.smassarn.websocket.messages.WebSocketMessage;
 import org.smassarn.websocket.messages.WebSocketMessageFactory;
 import org.smassarn.websocket.messages.WebSocketRequestMessage;
 import org.smassarn.websocket.messages.WebSocketResponseMessage;
+import org.smassarn.websocket.routing.WebSocketRouteResponse;
+import org.smassarn.websocket.routing.WebSocketRouteTable;
 import org.smassarn.websocket.session.ContextPrincipal;
 import org.smassarn.websocket.session.WebSocketSessionContext;
 import org.smassarn.websocket.setup.WebSocketConnectListener;
@@ -32,6 +36,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.security.Principal;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -39,7 +44,6 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
 
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
@@ -47,8 +51,6 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
 
   private static final Logger logger = LoggerFactory.getLogger(WebSocketResourceProvider.class);
 
-  private final Map<Long, CompletableFuture<WebSocketResponseMessage>> requestMap = new ConcurrentHashMap<>();
-
   private final T                                  authenticated;
   private final WebSocketMessageFactory            messageFactory;
   private final Optional<WebSocketConnectListener> connectListener;
@@ -56,6 +58,8 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
   private final WebsocketRequestLog                requestLog;
   private final long                               idleTimeoutMillis;
   private final String                             remoteAddress;
+  private final PendingRequests                    pendingRequests;
+  private final WebSocketRouteTable<T>             routeTable;
 
   private Session                 session;
   private RemoteEndpoint          remoteEndpoint;
@@ -63,6 +67,12 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
 
   private static final Set<String> EXCLUDED_UPGRADE_REQUEST_HEADERS = Set.of("connection", "upgrade");
 
+  @VisibleForTesting
+  static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+  @VisibleForTesting
+  static final int DEFAULT_MAX_PENDING_REQUESTS = 256;
+
   public WebSocketResourceProvider(String                             remoteAddress,
                                    ApplicationHandler                 jerseyHandler,
                                    WebsocketRequestLog                requestLog,
@@ -70,6 +80,21 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
                                    WebSocketMessageFactory            messageFactory,
                                    Optional<WebSocketConnectListener> connectListener,
                                    long                               idleTimeoutMillis)
+  {
+    this(remoteAddress, jerseyHandler, requestLog, authenticated, messageFactory, connectListener, idleTimeoutMillis,
+        DEFAULT_REQUEST_TIMEOUT, DEFAULT_MAX_PENDING_REQUESTS, new WebSocketRouteTable<>());
+  }
+
+  public WebSocketResourceProvider(String                             remoteAddress,
+                                   ApplicationHandler                 jerseyHandler,
+                                   WebsocketRequestLog                requestLog,
+                                   T                                  authenticated,
+                                   WebSocketMessageFactory            messageFactory,
+                                   Optional<WebSocketConnectListener> connectListener,
+                                   long                               idleTimeoutMillis,
+                                   Duration                           requestTimeout,
+                                   int                                maxPendingRequests,
+                                   WebSocketRouteTable<T>             routeTable)
   {
     this.remoteAddress     = remoteAddress;
     this.jerseyHandler     = jerseyHandler;
@@ -78,13 +103,15 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
     this.messageFactory    = messageFactory;
     this.connectListener   = connectListener;
     this.idleTimeoutMillis = idleTimeoutMillis;
+    this.pendingRequests   = new PendingRequests(requestTimeout, maxPendingRequests);
+    this.routeTable        = routeTable;
   }
 
   @Override
   public void onWebSocketConnect(Session session) {
     this.session        = session;
     this.remoteEndpoint = session.getRemote();
-    this.context        = new WebSocketSessionContext(new WebSocketClient(session, remoteEndpoint, messageFactory, requestMap));
+    this.context        = new WebSocketSessionContext(new WebSocketClient(session, remoteEndpoint, messageFactory, pendingRequests));
     this.context.setAuthenticated(authenticated);
     this.session.setIdleTimeout(idleTimeoutMillis);
 
@@ -123,14 +150,7 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
   public void onWebSocketClose(int statusCode, String reason) {
     if (context != null) {
       context.notifyClosed(statusCode, reason);
-
-      for (long requestId : requestMap.keySet()) {
-        CompletableFuture<WebSocketResponseMessage> outstandingRequest = requestMap.remove(requestId);
-
-        if (outstandingRequest != null) {
-          outstandingRequest.completeExceptionally(new IOException("Connection closed!"));
-        }
-      }
+      pendingRequests.failAll(new IOException("Connection closed!"));
     }
   }
 
@@ -140,12 +160,40 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
   }
 
   private void handleRequest(WebSocketRequestMessage requestMessage) {
+    final Optional<WebSocketRouteTable.Match<T>> route = routeTable.match(requestMessage.getVerb(), requestMessage.getPath());
+
+    if (route.isPresent()) {
+      handleRoutedRequest(requestMessage, route.get());
+    } else {
+      handleJerseyRequest(requestMessage);
+    }
+  }
+
+  private void handleRoutedRequest(WebSocketRequestMessage requestMessage, WebSocketRouteTable.Match<T> route) {
+    CompletableFuture<WebSocketRouteResponse> responseFuture;
+
+    try {
+      responseFuture = route.getHandler().handle(authenticated, context, route.getPathParameters(), requestMessage);
+    } catch (Exception e) {
+      responseFuture = CompletableFuture.failedFuture(e);
+    }
+
+    responseFuture.whenComplete((response, cause) -> {
+      if (cause == null) {
+        sendResponse(requestMessage, response);
+      } else {
+        logger.warn("Websocket Error: " + requestMessage.getVerb() + " " + requestMessage.getPath(), cause);
+        sendErrorResponse(requestMessage, Response.status(500).build());
+      }
+    });
+  }
+
+  private void handleJerseyRequest(WebSocketRequestMessage requestMessage) {
     ContainerRequest containerRequest = new ContainerRequest(null, URI.create(requestMessage.getPath()), requestMessage.getVerb(), new WebSocketSecurityContext(new ContextPrincipal(context)), new MapPropertiesDelegate(new HashMap<>()), jerseyHandler.getConfiguration());
     containerRequest.headers(getCombinedHeaders(session.getUpgradeRequest().getHeaders(), requestMessage.getHeaders()));
 
-    if (requestMessage.getBody().isPresent()) {
-      containerRequest.setEntityStream(new ByteArrayInputStream(requestMessage.getBody().get()));
-    }
+    // Each call to getBody() copies the body, so only call it once
+    requestMessage.getBody().ifPresent(body -> containerRequest.setEntityStream(new ByteArrayInputStream(body)));
 
     ByteArrayOutputStream                responseBody     = new ByteArrayOutputStream();
     CompletableFuture<ContainerResponse> responseFuture   = (CompletableFuture<ContainerResponse>) jerseyHandler.apply(containerRequest, responseBody);
@@ -187,11 +235,7 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
   }
 
   private void handleResponse(WebSocketResponseMessage responseMessage) {
-    CompletableFuture<WebSocketResponseMessage> future = requestMap.remove(responseMessage.getRequestId());
-
-    if (future != null) {
-      future.complete(responseMessage);
-    }
+    pendingRequests.complete(responseMessage.getRequestId(), responseMessage);
   }
 
   private void close(Session session, int status, String message) {
@@ -206,26 +250,54 @@ public class WebSocketResourceProvider<T extends Principal> implements WebSocket
         body = null;
       }
 
-      byte[] responseBytes = messageFactory.createResponse(requestMessage.getRequestId(),
-                                                           response.getStatus(),
-                                                           response.getStatusInfo().getReasonPhrase(),
-                                                           getHeaderList(response.getStringHeaders()),
-                                                           Optional.ofNullable(body))
-                                           .toByteArray();
+      sendBuffer(messageFactory.encodeResponse(requestMessage.getRequestId(),
+                                               response.getStatus(),
+                                               response.getStatusInfo().getReasonPhrase(),
+                                               getHeaderList(response.getStringHeaders()),
+                                               Optional.ofNullable(body)));
+    }
+  }
 
-      remoteEndpoint.sendBytesByFuture(ByteBuffer.wrap(responseBytes));
+  private void sendResponse(WebSocketRequestMessage requestMessage, WebSocketRouteResponse response) {
+    if (requestMessage.hasRequestId()) {
+      sendBuffer(messageFactory.encodeResponse(requestMessage.getRequestId(),
+                                               response.getStatus(),
+                                               response.getReasonPhrase(),
+                                               response.getHeaders(),
+                                               response.getBody()));
     }
   }
 
   private void sendErrorResponse(WebSocketRequestMessage requestMessage, Response error) {
     if (requestMessage.hasRequestId()) {
-      WebSocketMessage response = messageFactory.createResponse(requestMessage.getRequestId(),
-                                                                error.getStatus(),
-                                                                "Error response",
-                                                                getHeaderList(error.getStringHeaders()),
-                                                                Optional.empty());
+      sendBuffer(messageFactory.encodeResponse(requestMessage.getRequestId(),
+                                               error.getStatus(),
+                                               "Error response",
+                                               getHeaderList(error.getStringHeaders()),
+                                               Optional.empty()));
+    }
+  }
 
-      remoteEndpoint.sendBytesByFuture(ByteBuffer.wrap(response.toByteArray()));
+  /**
+   * Writes an encoded message to the client, returning its buffer to the message factory once Jetty is done with it.
+   */
+  private void sendBuffer(ByteBuffer buffer) {
+    try {
+      remoteEndpoint.sendBytes(buffer, new WriteCallback() {
+        @Override
+        public void writeFailed(Throwable x) {
+          messageFactory.release(buffer);
+          logger.debug("Write failed", x);
+        }
+
+        @Override
+        public void writeSuccess() {
+          messageFactory.release(buffer);
+        }
+      });
+    } catch (WebSocketException e) {
+      messageFactory.release(buffer);
+      logger.debug("Write", e);
     }
   }
 
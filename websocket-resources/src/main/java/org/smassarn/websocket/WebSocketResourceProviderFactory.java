@@ -71,7 +71,10 @@ public class WebSocketResourceProviderFactory<T extends Principal> extends WebSo
           authenticated,
           this.environment.getMessageFactory(),
           ofNullable(this.environment.getConnectListener()),
-          this.environment.getIdleTimeoutMillis());
+          this.environment.getIdleTimeoutMillis(),
+          configuration.getRequestTimeout(),
+          configuration.getMaxPendingRequests(),
+          this.environment.routes());
     } catch (AuthenticationException | IOException e) {
       logger.warn("Authentication failure", e);
       try {
@@ -5,6 +5,7 @@
 package org.smassarn.websocket.configuration;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.time.Duration;
 import javax.validation.Valid;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
@@ -28,6 +29,21 @@ public class WebSocketConfiguration {
   @JsonProperty
   private int maxTextMessageSize = 512 * 1024;
 
+  /**
+   * How long the server waits for a client to respond to a request before giving up on it.
+   */
+  @NotNull
+  @JsonProperty
+  private Duration requestTimeout = Duration.ofSeconds(60);
+
+  /**
+   * The maximum number of requests the server may have sent to a single client without yet receiving responses.
+   * Further requests fail immediately until the client catches up.
+   */
+  @Min(1)
+  @JsonProperty
+  private int maxPendingRequests = 256;
+
   public WebsocketRequestLoggerFactory getRequestLog() {
     return requestLog;
   }
@@ -39,4 +55,12 @@ public class WebSocketConfiguration {
   public int getMaxTextMessageSize() {
     return maxTextMessageSize;
   }
+
+  public Duration getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  public int getMaxPendingRequests() {
+    return maxPendingRequests;
+  }
 }
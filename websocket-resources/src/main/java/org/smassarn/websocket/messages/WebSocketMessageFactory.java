@@ -5,12 +5,17 @@
 package org.smassarn.websocket.messages;
 
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 public interface WebSocketMessageFactory {
 
+  /**
+   * Parses a message from the given bytes. Implementations may refer to the given array instead of copying it, so
+   * callers must not modify it after parsing.
+   */
   public WebSocketMessage parseMessage(byte[] serialized, int offset, int len)
       throws InvalidMessageException;
 
@@ -23,4 +28,33 @@ public interface WebSocketMessageFactory {
                                          List<String> headers,
                                          Optional<byte[]> body);
 
+  /**
+   * Serializes a request into a buffer ready to be written to a client. Callers must pass the returned buffer to
+   * {@link #release(ByteBuffer)} once the write has completed or failed, and must not use it afterward.
+   */
+  public default ByteBuffer encodeRequest(Optional<Long> requestId,
+                                          String verb, String path,
+                                          List<String> headers,
+                                          Optional<byte[]> body)
+  {
+    return ByteBuffer.wrap(createRequest(requestId, verb, path, headers, body).toByteArray());
+  }
+
+  /**
+   * Serializes a response into a buffer ready to be written to a client. Callers must pass the returned buffer to
+   * {@link #release(ByteBuffer)} once the write has completed or failed, and must not use it afterward.
+   */
+  public default ByteBuffer encodeResponse(long requestId, int status, String message,
+                                           List<String> headers,
+                                           Optional<byte[]> body)
+  {
+    return ByteBuffer.wrap(createResponse(requestId, status, message, headers, body).toByteArray());
+  }
+
+  /**
+   * Releases a buffer returned by {@link #encodeRequest} or {@link #encodeResponse} for reuse.
+   */
+  public default void release(ByteBuffer buffer) {
+  }
+
 }
@@ -4,8 +4,9 @@
  */
 package org.smassarn.websocket.messages.protobuf;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 import org.smassarn.websocket.messages.InvalidMessageException;
 import org.smassarn.websocket.messages.WebSocketMessage;
 import org.smassarn.websocket.messages.WebSocketRequestMessage;
@@ -17,7 +18,12 @@ public class ProtobufWebSocketMessage implements WebSocketMessage {
 
   ProtobufWebSocketMessage(byte[] buffer, int offset, int length) throws InvalidMessageException {
     try {
-      this.message = SubProtocol.WebSocketMessage.parseFrom(ByteString.copyFrom(buffer, offset, length));
+      // Parse directly from the caller's buffer; with aliasing enabled, bytes fields (like message bodies) refer to
+      // slices of the buffer instead of copies
+      final CodedInputStream input = UnsafeByteOperations.unsafeWrap(buffer, offset, length).newCodedInput();
+      input.enableAliasing(true);
+
+      this.message = SubProtocol.WebSocketMessage.PARSER.parseFrom(input);
 
       if (getType() == Type.REQUEST_MESSAGE) {
         if (!message.getRequest().hasVerb() || !message.getRequest().hasPath()) {
@@ -4,16 +4,44 @@
  */
 package org.smassarn.websocket.messages.protobuf;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
 import org.smassarn.websocket.messages.InvalidMessageException;
 import org.smassarn.websocket.messages.WebSocketMessage;
 import org.smassarn.websocket.messages.WebSocketMessageFactory;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
 
 public class ProtobufWebSocketMessageFactory implements WebSocketMessageFactory {
 
+  // Buffers are pooled in 1 KiB increments up to 64 KiB; larger messages are rare, and get unpooled heap buffers
+  private static final int  BUFFER_POOL_FACTOR       = 1024;
+  private static final int  MAX_POOLED_BUFFER_SIZE   = 64 * 1024;
+  private static final long MAX_POOLED_DIRECT_MEMORY = 64 * 1024 * 1024;
+
+  private final ByteBufferPool bufferPool;
+
+  @FunctionalInterface
+  private interface MessageWriter {
+    void writeTo(CodedOutputStream output) throws IOException;
+  }
+
+  public ProtobufWebSocketMessageFactory() {
+    this(new ArrayByteBufferPool(0, BUFFER_POOL_FACTOR, MAX_POOLED_BUFFER_SIZE, -1, 0, MAX_POOLED_DIRECT_MEMORY));
+  }
+
+  @VisibleForTesting
+  ProtobufWebSocketMessageFactory(ByteBufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
+
   @Override
   public WebSocketMessage parseMessage(byte[] serialized, int offset, int len)
       throws InvalidMessageException
@@ -77,4 +105,124 @@ public class ProtobufWebSocketMessageFactory implements WebSocketMessageFactory
 
     return new ProtobufWebSocketMessage(message);
   }
+
+  @Override
+  public ByteBuffer encodeRequest(Optional<Long> requestId,
+                                  String verb, String path,
+                                  List<String> headers,
+                                  Optional<byte[]> body)
+  {
+    int requestSize = CodedOutputStream.computeStringSize(SubProtocol.WebSocketRequestMessage.VERB_FIELD_NUMBER, verb) +
+                      CodedOutputStream.computeStringSize(SubProtocol.WebSocketRequestMessage.PATH_FIELD_NUMBER, path) +
+                      getHeadersSize(SubProtocol.WebSocketRequestMessage.HEADERS_FIELD_NUMBER, headers);
+
+    if (body.isPresent()) {
+      requestSize += CodedOutputStream.computeByteArraySize(SubProtocol.WebSocketRequestMessage.BODY_FIELD_NUMBER, body.get());
+    }
+
+    if (requestId.isPresent()) {
+      requestSize += CodedOutputStream.computeUInt64Size(SubProtocol.WebSocketRequestMessage.ID_FIELD_NUMBER, requestId.get());
+    }
+
+    // Fields are written in field number order, just as the generated serializer would write them
+    return encode(SubProtocol.WebSocketMessage.Type.REQUEST_VALUE, SubProtocol.WebSocketMessage.REQUEST_FIELD_NUMBER, requestSize, output -> {
+      output.writeString(SubProtocol.WebSocketRequestMessage.VERB_FIELD_NUMBER, verb);
+      output.writeString(SubProtocol.WebSocketRequestMessage.PATH_FIELD_NUMBER, path);
+
+      if (body.isPresent()) {
+        output.writeByteArray(SubProtocol.WebSocketRequestMessage.BODY_FIELD_NUMBER, body.get());
+      }
+
+      if (requestId.isPresent()) {
+        output.writeUInt64(SubProtocol.WebSocketRequestMessage.ID_FIELD_NUMBER, requestId.get());
+      }
+
+      writeHeaders(output, SubProtocol.WebSocketRequestMessage.HEADERS_FIELD_NUMBER, headers);
+    });
+  }
+
+  @Override
+  public ByteBuffer encodeResponse(long requestId, int status, String messageString, List<String> headers, Optional<byte[]> body) {
+    int responseSize = CodedOutputStream.computeUInt64Size(SubProtocol.WebSocketResponseMessage.ID_FIELD_NUMBER, requestId) +
+                       CodedOutputStream.computeUInt32Size(SubProtocol.WebSocketResponseMessage.STATUS_FIELD_NUMBER, status) +
+                       CodedOutputStream.computeStringSize(SubProtocol.WebSocketResponseMessage.MESSAGE_FIELD_NUMBER, messageString) +
+                       getHeadersSize(SubProtocol.WebSocketResponseMessage.HEADERS_FIELD_NUMBER, headers);
+
+    if (body.isPresent()) {
+      responseSize += CodedOutputStream.computeByteArraySize(SubProtocol.WebSocketResponseMessage.BODY_FIELD_NUMBER, body.get());
+    }
+
+    return encode(SubProtocol.WebSocketMessage.Type.RESPONSE_VALUE, SubProtocol.WebSocketMessage.RESPONSE_FIELD_NUMBER, responseSize, output -> {
+      output.writeUInt64(SubProtocol.WebSocketResponseMessage.ID_FIELD_NUMBER, requestId);
+      output.writeUInt32(SubProtocol.WebSocketResponseMessage.STATUS_FIELD_NUMBER, status);
+      output.writeString(SubProtocol.WebSocketResponseMessage.MESSAGE_FIELD_NUMBER, messageString);
+
+      if (body.isPresent()) {
+        output.writeByteArray(SubProtocol.WebSocketResponseMessage.BODY_FIELD_NUMBER, body.get());
+      }
+
+      writeHeaders(output, SubProtocol.WebSocketResponseMessage.HEADERS_FIELD_NUMBER, headers);
+    });
+  }
+
+  @Override
+  public void release(ByteBuffer buffer) {
+    // Buffers too large to pool are heap buffers, and are left to the garbage collector
+    if (buffer.isDirect()) {
+      bufferPool.release(buffer);
+    }
+  }
+
+  /**
+   * Writes a {@code WebSocketMessage} envelope of the given type around a nested message of the given size, without
+   * building any intermediate message objects or arrays.
+   */
+  private ByteBuffer encode(int type, int nestedMessageFieldNumber, int nestedMessageSize, MessageWriter nestedMessageWriter) {
+    final int messageSize = CodedOutputStream.computeEnumSize(SubProtocol.WebSocketMessage.TYPE_FIELD_NUMBER, type) +
+                            CodedOutputStream.computeTagSize(nestedMessageFieldNumber) +
+                            CodedOutputStream.computeUInt32SizeNoTag(nestedMessageSize) +
+                            nestedMessageSize;
+
+    final ByteBuffer buffer = messageSize <= MAX_POOLED_BUFFER_SIZE
+        ? bufferPool.acquire(messageSize, true)
+        : ByteBuffer.allocate(messageSize);
+
+    buffer.clear();
+
+    try {
+      final CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+
+      output.writeEnum(SubProtocol.WebSocketMessage.TYPE_FIELD_NUMBER, type);
+      output.writeTag(nestedMessageFieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(nestedMessageSize);
+      nestedMessageWriter.writeTo(output);
+      output.flush();
+    } catch (IOException e) {
+      release(buffer);
+      throw new IllegalStateException("Serialized message did not fit in a buffer of its computed size", e);
+    }
+
+    buffer.flip();
+    return buffer;
+  }
+
+  private static int getHeadersSize(int fieldNumber, List<String> headers) {
+    int size = 0;
+
+    if (headers != null) {
+      for (String header : headers) {
+        size += CodedOutputStream.computeStringSize(fieldNumber, header);
+      }
+    }
+
+    return size;
+  }
+
+  private static void writeHeaders(CodedOutputStream output, int fieldNumber, List<String> headers) throws IOException {
+    if (headers != null) {
+      for (String header : headers) {
+        output.writeString(fieldNumber, header);
+      }
+    }
+  }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.smassarn.websocket.routing;
+
+import org.smassarn.websocket.messages.WebSocketRequestMessage;
+import org.smassarn.websocket.session.WebSocketSessionContext;
+
+import javax.annotation.Nullable;
+import java.security.Principal;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handles requests for a single route registered with a {@link WebSocketRouteTable}, without any Jersey machinery.
+ * Handlers are responsible for their own authorization, parameter validation and metrics.
+ *
+ * @param <T> the type of principal for authenticated connections
+ */
+@FunctionalInterface
+public interface WebSocketRouteHandler<T extends Principal> {
+
+  /**
+   * Handles a request. Exceptions thrown or returned by the handler are reported to the client as a 500 response.
+   *
+   * @param authenticated the principal for the connection, or {@code null} if the connection is not authenticated
+   * @param context the session context for the connection
+   * @param pathParameters the values of the parameters in the route's path template, keyed by parameter name
+   * @param request the request message
+   *
+   * @return a future that yields the response to send to the client
+   */
+  CompletableFuture<WebSocketRouteResponse> handle(@Nullable T authenticated,
+                                                   WebSocketSessionContext context,
+                                                   Map<String, String> pathParameters,
+                                                   WebSocketRequestMessage request) throws Exception;
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.smassarn.websocket.routing;
+
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A response produced by a {@link WebSocketRouteHandler}.
+ */
+@SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+public class WebSocketRouteResponse {
+
+  private final int              status;
+  private final List<String>     headers;
+  private final Optional<byte[]> body;
+
+  public WebSocketRouteResponse(int status, List<String> headers, Optional<byte[]> body) {
+    this.status  = status;
+    this.headers = headers;
+    this.body    = body;
+  }
+
+  public static WebSocketRouteResponse of(int status) {
+    return new WebSocketRouteResponse(status, Collections.emptyList(), Optional.empty());
+  }
+
+  public static CompletableFuture<WebSocketRouteResponse> completed(int status) {
+    return CompletableFuture.completedFuture(of(status));
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getReasonPhrase() {
+    final Response.Status knownStatus = Response.Status.fromStatusCode(status);
+    return knownStatus != null ? knownStatus.getReasonPhrase() : "";
+  }
+
+  public List<String> getHeaders() {
+    return headers;
+  }
+
+  public Optional<byte[]> getBody() {
+    return body;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.smassarn.websocket.routing;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A table of routes whose requests are dispatched directly to a {@link WebSocketRouteHandler} instead of through
+ * Jersey. Jersey dispatch accounts for most of the cost of trivial, high-volume requests like keepalives, and routes
+ * registered here skip it entirely; requests that don't match a route here fall back to Jersey as usual.
+ * <p>
+ * Path templates are matched exactly, segment by segment, and may contain parameters like {@code /v1/things/{id}}
+ * that each capture a single segment. Requests with query strings or percent-encoded parameter values never match
+ * and are left to Jersey. Requests handled here are not written to the websocket request log and are not seen by
+ * Jersey filters or event listeners.
+ * <p>
+ * Routes must all be registered before the websocket servlet starts accepting connections.
+ *
+ * @param <T> the type of principal for authenticated connections
+ */
+public class WebSocketRouteTable<T extends Principal> {
+
+  private final Map<String, Map<String, WebSocketRouteHandler<T>>> literalRoutesByVerb  = new HashMap<>();
+  private final Map<String, List<TemplateRoute<T>>>                templateRoutesByVerb = new HashMap<>();
+
+  private static class TemplateRoute<T extends Principal> {
+
+    private final String[]                 segments;
+    private final WebSocketRouteHandler<T> handler;
+
+    private TemplateRoute(String[] segments, WebSocketRouteHandler<T> handler) {
+      this.segments = segments;
+      this.handler  = handler;
+    }
+  }
+
+  public static class Match<T extends Principal> {
+
+    private final WebSocketRouteHandler<T> handler;
+    private final Map<String, String>      pathParameters;
+
+    private Match(WebSocketRouteHandler<T> handler, Map<String, String> pathParameters) {
+      this.handler        = handler;
+      this.pathParameters = pathParameters;
+    }
+
+    public WebSocketRouteHandler<T> getHandler() {
+      return handler;
+    }
+
+    public Map<String, String> getPathParameters() {
+      return pathParameters;
+    }
+  }
+
+  public void register(String verb, String pathTemplate, WebSocketRouteHandler<T> handler) {
+    if (!pathTemplate.startsWith("/") || pathTemplate.contains("?")) {
+      throw new IllegalArgumentException("Invalid path template: " + pathTemplate);
+    }
+
+    final String[] segments = pathTemplate.split("/", -1);
+    boolean        literal  = true;
+
+    for (String segment : segments) {
+      if (isParameter(segment)) {
+        literal = false;
+      }
+    }
+
+    if (literal) {
+      literalRoutesByVerb.computeIfAbsent(verb, ignored -> new HashMap<>()).put(pathTemplate, handler);
+    } else {
+      templateRoutesByVerb.computeIfAbsent(verb, ignored -> new ArrayList<>()).add(new TemplateRoute<>(segments, handler));
+    }
+  }
+
+  /**
+   * Returns the route registered for the given verb and path, if any. Routes with no parameters take precedence over
+   * routes with parameters, and otherwise routes are tried in the order they were registered.
+   */
+  public Optional<Match<T>> match(String verb, String path) {
+    if (path.indexOf('?') >= 0) {
+      return Optional.empty();
+    }
+
+    final Map<String, WebSocketRouteHandler<T>> literalRoutes = literalRoutesByVerb.get(verb);
+
+    if (literalRoutes != null) {
+      final WebSocketRouteHandler<T> handler = literalRoutes.get(path);
+
+      if (handler != null) {
+        return Optional.of(new Match<>(handler, Collections.emptyMap()));
+      }
+    }
+
+    final List<TemplateRoute<T>> templateRoutes = templateRoutesByVerb.get(verb);
+
+    if (templateRoutes != null) {
+      final String[] pathSegments = path.split("/", -1);
+
+      for (TemplateRoute<T> route : templateRoutes) {
+        final Map<String, String> pathParameters = matchSegments(route.segments, pathSegments);
+
+        if (pathParameters != null) {
+          return Optional.of(new Match<>(route.handler, pathParameters));
+        }
+      }
+    }
+
+    return Optional.empty();
+  }
+
+  private static Map<String, String> matchSegments(String[] templateSegments, String[] pathSegments) {
+    if (templateSegments.length != pathSegments.length) {
+      return null;
+    }
+
+    final Map<String, String> pathParameters = new HashMap<>(4);
+
+    for (int i = 0; i < templateSegments.length; i++) {
+      if (isParameter(templateSegments[i])) {
+        if (pathSegments[i].isEmpty() || pathSegments[i].indexOf('%') >= 0) {
+          return null;
+        }
+
+        pathParameters.put(templateSegments[i].substring(1, templateSegments[i].length() - 1), pathSegments[i]);
+      } else if (!templateSegments[i].equals(pathSegments[i])) {
+        return null;
+      }
+    }
+
+    return pathParameters;
+  }
+
+  private static boolean isParameter(String segment) {
+    return segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}");
+  }
+}
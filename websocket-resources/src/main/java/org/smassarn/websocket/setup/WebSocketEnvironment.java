@@ -13,17 +13,19 @@ import org.smassarn.websocket.configuration.WebSocketConfiguration;
 import org.smassarn.websocket.logging.WebsocketRequestLog;
 import org.smassarn.websocket.messages.WebSocketMessageFactory;
 import org.smassarn.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
+import org.smassarn.websocket.routing.WebSocketRouteTable;
 
 import javax.validation.Validator;
 import java.security.Principal;
 
 public class WebSocketEnvironment<T extends Principal> {
 
-  private final ResourceConfig        jerseyConfig;
-  private final ObjectMapper          objectMapper;
-  private final Validator             validator;
-  private final WebsocketRequestLog   requestLog;
-  private final long                  idleTimeoutMillis;
+  private final ResourceConfig         jerseyConfig;
+  private final ObjectMapper           objectMapper;
+  private final Validator              validator;
+  private final WebsocketRequestLog    requestLog;
+  private final long                   idleTimeoutMillis;
+  private final WebSocketRouteTable<T> routeTable;
 
   private WebSocketAuthenticator<T> authenticator;
   private WebSocketMessageFactory   messageFactory;
@@ -44,12 +46,21 @@ public class WebSocketEnvironment<T extends Principal> {
     this.requestLog               = requestLog;
     this.messageFactory           = new ProtobufWebSocketMessageFactory();
     this.idleTimeoutMillis        = idleTimeoutMillis;
+    this.routeTable               = new WebSocketRouteTable<>();
   }
 
   public ResourceConfig jersey() {
     return jerseyConfig;
   }
 
+  /**
+   * Returns the table of routes whose requests bypass Jersey; requests for any other route are dispatched to the
+   * resources registered with {@link #jersey()}.
+   */
+  public WebSocketRouteTable<T> routes() {
+    return routeTable;
+  }
+
   public WebSocketAuthenticator<T> getAuthenticator() {
     return authenticator;
   }
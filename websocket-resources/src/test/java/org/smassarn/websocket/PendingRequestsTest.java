@@ -0,0 +1,104 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.smassarn.websocket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.smassarn.websocket.messages.WebSocketResponseMessage;
+
+class PendingRequestsTest {
+
+  @Test
+  void testComplete() {
+    final PendingRequests pendingRequests = new PendingRequests(Duration.ofMinutes(1), 16);
+    final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+    final WebSocketResponseMessage response = mock(WebSocketResponseMessage.class);
+
+    final long requestId = pendingRequests.add(future).orElseThrow();
+    assertThat(pendingRequests.size()).isEqualTo(1);
+
+    pendingRequests.complete(requestId + 1, response);
+    assertThat(future).isNotDone();
+
+    pendingRequests.complete(requestId, response);
+    assertThat(future).isCompletedWithValue(response);
+    assertThat(pendingRequests.size()).isZero();
+  }
+
+  @Test
+  void testRequestIds() {
+    final PendingRequests pendingRequests = new PendingRequests(Duration.ofMinutes(1), 16);
+
+    final long firstRequestId = pendingRequests.add(new CompletableFuture<>()).orElseThrow();
+    final long secondRequestId = pendingRequests.add(new CompletableFuture<>()).orElseThrow();
+
+    assertThat(secondRequestId).isGreaterThan(firstRequestId);
+  }
+
+  @Test
+  void testTimeout() {
+    final PendingRequests pendingRequests = new PendingRequests(Duration.ofMillis(10), 16);
+    final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+
+    pendingRequests.add(future);
+
+    assertThatThrownBy(() -> future.get(5, TimeUnit.SECONDS))
+        .isInstanceOf(ExecutionException.class)
+        .hasCauseInstanceOf(TimeoutException.class);
+
+    assertThat(pendingRequests.size()).isZero();
+  }
+
+  @Test
+  void testMaxPendingRequests() {
+    final PendingRequests pendingRequests = new PendingRequests(Duration.ofMinutes(1), 2);
+    final CompletableFuture<WebSocketResponseMessage> firstFuture = new CompletableFuture<>();
+
+    final long firstRequestId = pendingRequests.add(firstFuture).orElseThrow();
+    assertThat(pendingRequests.add(new CompletableFuture<>())).isPresent();
+    assertThat(pendingRequests.add(new CompletableFuture<>())).isEqualTo(OptionalLong.empty());
+
+    pendingRequests.fail(firstRequestId, new IOException());
+    assertThat(firstFuture).isCompletedExceptionally();
+    assertThat(pendingRequests.add(new CompletableFuture<>())).isPresent();
+  }
+
+  @Test
+  void testCallerCancellationReleasesRequest() {
+    final PendingRequests pendingRequests = new PendingRequests(Duration.ofMinutes(1), 1);
+    final CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+
+    pendingRequests.add(future);
+    future.cancel(false);
+
+    assertThat(pendingRequests.size()).isZero();
+    assertThat(pendingRequests.add(new CompletableFuture<>())).isPresent();
+  }
+
+  @Test
+  void testFailAll() {
+    final PendingRequests pendingRequests = new PendingRequests(Duration.ofMinutes(1), 16);
+    final CompletableFuture<WebSocketResponseMessage> firstFuture = new CompletableFuture<>();
+    final CompletableFuture<WebSocketResponseMessage> secondFuture = new CompletableFuture<>();
+
+    pendingRequests.add(firstFuture);
+    pendingRequests.add(secondFuture);
+    pendingRequests.failAll(new IOException("Connection closed!"));
+
+    assertThat(firstFuture).isCompletedExceptionally();
+    assertThat(secondFuture).isCompletedExceptionally();
+    assertThat(pendingRequests.size()).isZero();
+  }
+}
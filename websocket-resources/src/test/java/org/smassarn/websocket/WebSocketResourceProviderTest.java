@@ -11,6 +11,7 @@ import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -25,6 +26,7 @@ import io.dropwizard.jersey.jackson.JacksonMessageBodyProvider;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.Principal;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -62,6 +64,8 @@ import org.smassarn.websocket.auth.WebsocketAuthValueFactoryProvider;
 import org.smassarn.websocket.logging.WebsocketRequestLog;
 import org.smassarn.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
 import org.smassarn.websocket.messages.protobuf.SubProtocol;
+import org.smassarn.websocket.routing.WebSocketRouteResponse;
+import org.smassarn.websocket.routing.WebSocketRouteTable;
 import org.smassarn.websocket.session.WebSocketSession;
 import org.smassarn.websocket.session.WebSocketSessionContext;
 import org.smassarn.websocket.session.WebSocketSessionContextValueFactoryProvider;
@@ -163,10 +167,10 @@ class WebSocketResourceProviderTest {
     assertThat(bundledRequest.getPath(false)).isEqualTo("bar");
 
     verify(requestLog).log(eq("127.0.0.1"), eq(bundledRequest), eq(response));
-    verify(remoteEndpoint).sendBytesByFuture(responseCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketMessage responseMessageContainer = SubProtocol.WebSocketMessage.parseFrom(
-        responseCaptor.getValue().array());
+        ByteString.copyFrom(responseCaptor.getValue()));
     assertThat(responseMessageContainer.getResponse().getId()).isEqualTo(111L);
     assertThat(responseMessageContainer.getResponse().getStatus()).isEqualTo(200);
     assertThat(responseMessageContainer.getResponse().getMessage()).isEqualTo("OK");
@@ -174,6 +178,65 @@ class WebSocketResourceProviderTest {
         ByteString.copyFrom("hello world!".getBytes()));
   }
 
+  @Test
+  void testRoutedRequest() throws Exception {
+    ApplicationHandler applicationHandler = mock(ApplicationHandler.class);
+    WebsocketRequestLog requestLog = mock(WebsocketRequestLog.class);
+    WebSocketRouteTable<TestPrincipal> routeTable = new WebSocketRouteTable<>();
+    TestPrincipal principal = new TestPrincipal("foo");
+
+    routeTable.register("DELETE", "/v1/things/{id}", (authenticated, context, pathParameters, request) -> {
+      assertThat(authenticated).isSameAs(principal);
+      assertThat(pathParameters).isEqualTo(Map.of("id", "bar"));
+
+      return WebSocketRouteResponse.completed(204);
+    });
+
+    routeTable.register("GET", "/v1/broken", (authenticated, context, pathParameters, request) -> {
+      throw new IllegalStateException("Broken");
+    });
+
+    WebSocketResourceProvider<TestPrincipal> provider = new WebSocketResourceProvider<>("127.0.0.1", applicationHandler,
+        requestLog, principal, new ProtobufWebSocketMessageFactory(), Optional.empty(), 30000,
+        Duration.ofSeconds(60), 16, routeTable);
+
+    Session session = mock(Session.class);
+    RemoteEndpoint remoteEndpoint = mock(RemoteEndpoint.class);
+    UpgradeRequest request = mock(UpgradeRequest.class);
+
+    when(session.getUpgradeRequest()).thenReturn(request);
+    when(session.getRemote()).thenReturn(remoteEndpoint);
+
+    provider.onWebSocketConnect(session);
+
+    byte[] message = new ProtobufWebSocketMessageFactory().createRequest(Optional.of(111L), "DELETE", "/v1/things/bar",
+        new LinkedList<>(), Optional.empty()).toByteArray();
+
+    byte[] brokenMessage = new ProtobufWebSocketMessageFactory().createRequest(Optional.of(112L), "GET", "/v1/broken",
+        new LinkedList<>(), Optional.empty()).toByteArray();
+
+    provider.onWebSocketBinary(message, 0, message.length);
+    provider.onWebSocketBinary(brokenMessage, 0, brokenMessage.length);
+
+    verify(applicationHandler, never()).apply(any(ContainerRequest.class), any(OutputStream.class));
+    verify(requestLog, never()).log(anyString(), any(ContainerRequest.class), any(ContainerResponse.class));
+
+    ArgumentCaptor<ByteBuffer> responseCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
+    verify(remoteEndpoint, times(2)).sendBytes(responseCaptor.capture(), any(WriteCallback.class));
+
+    SubProtocol.WebSocketMessage responseMessageContainer = SubProtocol.WebSocketMessage.parseFrom(
+        ByteString.copyFrom(responseCaptor.getAllValues().get(0)));
+    assertThat(responseMessageContainer.getResponse().getId()).isEqualTo(111L);
+    assertThat(responseMessageContainer.getResponse().getStatus()).isEqualTo(204);
+    assertThat(responseMessageContainer.getResponse().getMessage()).isEqualTo("No Content");
+    assertThat(responseMessageContainer.getResponse().hasBody()).isFalse();
+
+    SubProtocol.WebSocketMessage errorMessageContainer = SubProtocol.WebSocketMessage.parseFrom(
+        ByteString.copyFrom(responseCaptor.getAllValues().get(1)));
+    assertThat(errorMessageContainer.getResponse().getId()).isEqualTo(112L);
+    assertThat(errorMessageContainer.getResponse().getStatus()).isEqualTo(500);
+  }
+
   @Test
   void testMockedRouteMessageFailure() throws Exception {
     ApplicationHandler applicationHandler = mock(ApplicationHandler.class);
@@ -214,10 +277,10 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketMessage responseMessageContainer = SubProtocol.WebSocketMessage.parseFrom(
-        responseCaptor.getValue().array());
+        ByteString.copyFrom(responseCaptor.getValue()));
     assertThat(responseMessageContainer.getResponse().getStatus()).isEqualTo(500);
     assertThat(responseMessageContainer.getResponse().getMessage()).isEqualTo("Error response");
     assertThat(responseMessageContainer.getResponse().hasBody()).isFalse();
@@ -252,7 +315,7 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -291,7 +354,7 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -331,7 +394,7 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -370,7 +433,7 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -408,7 +471,7 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -447,7 +510,7 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -487,7 +550,7 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -528,7 +591,7 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -568,7 +631,7 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    verify(remoteEndpoint).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -621,7 +684,8 @@ class WebSocketResourceProviderTest {
 
     ArgumentCaptor<ByteBuffer> responseBytesCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
 
-    verify(remoteEndpoint).sendBytesByFuture(responseBytesCaptor.capture());
+    // The first write is the request to the client above
+    verify(remoteEndpoint, times(2)).sendBytes(responseBytesCaptor.capture(), any(WriteCallback.class));
 
     SubProtocol.WebSocketResponseMessage response = getResponse(responseBytesCaptor);
 
@@ -688,12 +752,12 @@ class WebSocketResourceProviderTest {
 
   private SubProtocol.WebSocketResponseMessage getResponse(ArgumentCaptor<ByteBuffer> responseCaptor)
       throws InvalidProtocolBufferException {
-    return SubProtocol.WebSocketMessage.parseFrom(responseCaptor.getValue().array()).getResponse();
+    return SubProtocol.WebSocketMessage.parseFrom(ByteString.copyFrom(responseCaptor.getValue())).getResponse();
   }
 
   private SubProtocol.WebSocketRequestMessage getRequest(ArgumentCaptor<ByteBuffer> requestCaptor)
       throws InvalidProtocolBufferException {
-    return SubProtocol.WebSocketMessage.parseFrom(requestCaptor.getValue().array()).getRequest();
+    return SubProtocol.WebSocketMessage.parseFrom(ByteString.copyFrom(requestCaptor.getValue())).getRequest();
   }
 
 
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.smassarn.websocket.messages.protobuf;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.smassarn.websocket.messages.WebSocketMessage;
+import org.smassarn.websocket.messages.WebSocketRequestMessage;
+
+@SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+class ProtobufWebSocketMessageFactoryTest {
+
+  private final ProtobufWebSocketMessageFactory messageFactory = new ProtobufWebSocketMessageFactory();
+
+  @ParameterizedTest
+  @MethodSource
+  void testEncodeRequest(Optional<Long> requestId, List<String> headers, Optional<byte[]> body) {
+    final ByteBuffer encoded = messageFactory.encodeRequest(requestId, "PUT", "/api/v1/message/\u00e9", headers, body);
+
+    assertThat(encoded.isDirect()).isTrue();
+    assertThat(toByteArray(encoded))
+        .isEqualTo(messageFactory.createRequest(requestId, "PUT", "/api/v1/message/\u00e9", headers, body).toByteArray());
+
+    messageFactory.release(encoded);
+  }
+
+  static Stream<Arguments> testEncodeRequest() {
+    return Stream.of(
+        Arguments.of(Optional.of(7L), List.of("X-Massarn-Timestamp:123"), Optional.of("body".getBytes(StandardCharsets.UTF_8))),
+        Arguments.of(Optional.of(Long.MAX_VALUE), List.of("a:b", "c:d"), Optional.of(new byte[0])),
+        Arguments.of(Optional.empty(), null, Optional.empty()),
+        Arguments.of(Optional.of(0L), List.of(), Optional.of(new byte[300])));
+  }
+
+  @ParameterizedTest
+  @MethodSource
+  void testEncodeResponse(long requestId, int status, List<String> headers, Optional<byte[]> body) {
+    final ByteBuffer encoded = messageFactory.encodeResponse(requestId, status, "OK", headers, body);
+
+    assertThat(toByteArray(encoded))
+        .isEqualTo(messageFactory.createResponse(requestId, status, "OK", headers, body).toByteArray());
+
+    messageFactory.release(encoded);
+  }
+
+  static Stream<Arguments> testEncodeResponse() {
+    return Stream.of(
+        Arguments.of(7L, 200, List.of("Content-Type:application/json"), Optional.of("{}".getBytes(StandardCharsets.UTF_8))),
+        Arguments.of(Long.MAX_VALUE, 500, null, Optional.empty()),
+        Arguments.of(0L, 0, List.of(), Optional.of(new byte[0])));
+  }
+
+  @Test
+  void testEncodeLargeMessage() {
+    final ByteBufferPool bufferPool = mock(ByteBufferPool.class);
+    final ProtobufWebSocketMessageFactory pooledMessageFactory = new ProtobufWebSocketMessageFactory(bufferPool);
+    final byte[] body = new byte[1024 * 1024];
+    Arrays.fill(body, (byte) 7);
+
+    final ByteBuffer encoded = pooledMessageFactory.encodeRequest(Optional.of(1L), "PUT", "/", null, Optional.of(body));
+
+    assertThat(encoded.isDirect()).isFalse();
+    assertThat(toByteArray(encoded))
+        .isEqualTo(pooledMessageFactory.createRequest(Optional.of(1L), "PUT", "/", null, Optional.of(body)).toByteArray());
+
+    pooledMessageFactory.release(encoded);
+
+    verify(bufferPool, never()).acquire(anyInt(), anyBoolean());
+    verify(bufferPool, never()).release(encoded);
+  }
+
+  @Test
+  void testRelease() {
+    final ByteBufferPool bufferPool = mock(ByteBufferPool.class);
+    final ByteBuffer pooledBuffer = ByteBuffer.allocateDirect(1024);
+    pooledBuffer.limit(0);
+
+    when(bufferPool.acquire(anyInt(), anyBoolean())).thenReturn(pooledBuffer);
+
+    final ProtobufWebSocketMessageFactory pooledMessageFactory = new ProtobufWebSocketMessageFactory(bufferPool);
+    final ByteBuffer encoded = pooledMessageFactory.encodeResponse(1L, 200, "OK", null, Optional.empty());
+
+    assertThat(encoded).isSameAs(pooledBuffer);
+    assertThat(toByteArray(encoded))
+        .isEqualTo(pooledMessageFactory.createResponse(1L, 200, "OK", null, Optional.empty()).toByteArray());
+
+    pooledMessageFactory.release(encoded);
+    verify(bufferPool).release(pooledBuffer);
+  }
+
+  @Test
+  void testReuseReleasedBuffer() {
+    final ProtobufWebSocketMessageFactory pooledMessageFactory =
+        new ProtobufWebSocketMessageFactory(new ArrayByteBufferPool());
+
+    final ByteBuffer longResponse =
+        pooledMessageFactory.encodeResponse(1L, 200, "OK", null, Optional.of(new byte[512]));
+
+    pooledMessageFactory.release(longResponse);
+
+    final ByteBuffer shortResponse = pooledMessageFactory.encodeResponse(2L, 204, "No Content", null, Optional.empty());
+
+    assertThat(shortResponse).isSameAs(longResponse);
+    assertThat(toByteArray(shortResponse))
+        .isEqualTo(pooledMessageFactory.createResponse(2L, 204, "No Content", null, Optional.empty()).toByteArray());
+  }
+
+  @Test
+  void testParseMessage() throws Exception {
+    final byte[] body = "body".getBytes(StandardCharsets.UTF_8);
+    final byte[] serialized = messageFactory.createRequest(Optional.of(9L), "GET", "/v1/keepalive",
+        List.of("User-Agent:test"), Optional.of(body)).toByteArray();
+
+    final byte[] framed = new byte[serialized.length + 4];
+    System.arraycopy(serialized, 0, framed, 2, serialized.length);
+
+    final WebSocketMessage message = messageFactory.parseMessage(framed, 2, serialized.length);
+    assertThat(message.getType()).isEqualTo(WebSocketMessage.Type.REQUEST_MESSAGE);
+
+    final WebSocketRequestMessage requestMessage = message.getRequestMessage();
+    assertThat(requestMessage.getRequestId()).isEqualTo(9L);
+    assertThat(requestMessage.getVerb()).isEqualTo("GET");
+    assertThat(requestMessage.getPath()).isEqualTo("/v1/keepalive");
+    assertThat(requestMessage.getHeaders()).containsEntry("user-agent", "test");
+    assertThat(requestMessage.getBody()).hasValueSatisfying(parsedBody -> assertThat(parsedBody).isEqualTo(body));
+  }
+
+  private static byte[] toByteArray(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+
+    return bytes;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 Massarn Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+package org.smassarn.websocket.routing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.security.Principal;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class WebSocketRouteTableTest {
+
+  private static final WebSocketRouteHandler<Principal> KEEPALIVE_HANDLER =
+      (authenticated, context, pathParameters, request) -> WebSocketRouteResponse.completed(200);
+
+  private static final WebSocketRouteHandler<Principal> THING_HANDLER =
+      (authenticated, context, pathParameters, request) -> WebSocketRouteResponse.completed(204);
+
+  private static final WebSocketRouteHandler<Principal> THING_LITERAL_HANDLER =
+      (authenticated, context, pathParameters, request) -> WebSocketRouteResponse.completed(404);
+
+  @Test
+  void testMatch() {
+    final WebSocketRouteTable<Principal> routeTable = new WebSocketRouteTable<>();
+    routeTable.register("GET", "/v1/keepalive", KEEPALIVE_HANDLER);
+    routeTable.register("DELETE", "/v1/things/{id}/parts/{part}", THING_HANDLER);
+    routeTable.register("DELETE", "/v1/things/special/parts/all", THING_LITERAL_HANDLER);
+
+    assertThat(routeTable.match("GET", "/v1/keepalive").orElseThrow().getHandler()).isSameAs(KEEPALIVE_HANDLER);
+    assertThat(routeTable.match("GET", "/v1/keepalive").orElseThrow().getPathParameters()).isEmpty();
+
+    final WebSocketRouteTable.Match<Principal> thingMatch =
+        routeTable.match("DELETE", "/v1/things/abc/parts/def").orElseThrow();
+
+    assertThat(thingMatch.getHandler()).isSameAs(THING_HANDLER);
+    assertThat(thingMatch.getPathParameters()).isEqualTo(Map.of("id", "abc", "part", "def"));
+
+    assertThat(routeTable.match("DELETE", "/v1/things/special/parts/all").orElseThrow().getHandler())
+        .isSameAs(THING_LITERAL_HANDLER);
+  }
+
+  @Test
+  void testNoMatch() {
+    final WebSocketRouteTable<Principal> routeTable = new WebSocketRouteTable<>();
+    routeTable.register("GET", "/v1/keepalive", KEEPALIVE_HANDLER);
+    routeTable.register("DELETE", "/v1/things/{id}", THING_HANDLER);
+
+    assertThat(routeTable.match("PUT", "/v1/keepalive")).isEmpty();
+    assertThat(routeTable.match("GET", "/v1/keepalive/")).isEmpty();
+    assertThat(routeTable.match("GET", "/v1/keepalive/provisioning")).isEmpty();
+    assertThat(routeTable.match("GET", "/v1/keepalive?foo=bar")).isEmpty();
+    assertThat(routeTable.match("DELETE", "/v1/things")).isEmpty();
+    assertThat(routeTable.match("DELETE", "/v1/things/")).isEmpty();
+    assertThat(routeTable.match("DELETE", "/v1/things/abc/def")).isEmpty();
+    assertThat(routeTable.match("DELETE", "/v1/things/a%20b")).isEmpty();
+    assertThat(routeTable.match("DELETE", "/v1/things/abc?foo=bar")).isEmpty();
+  }
+
+  @Test
+  void testRegisterInvalidTemplate() {
+    final WebSocketRouteTable<Principal> routeTable = new WebSocketRouteTable<>();
+
+    assertThatThrownBy(() -> routeTable.register("GET", "v1/keepalive", KEEPALIVE_HANDLER))
+        .isInstanceOf(IllegalArgumentException.class);
+
+    assertThatThrownBy(() -> routeTable.register("GET", "/v1/keepalive?foo=bar", KEEPALIVE_HANDLER))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}